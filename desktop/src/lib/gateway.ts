@@ -5,6 +5,43 @@ interface SmsResponse {
     reason?: string;
 }
 
+interface SmsBatchItem {
+    number: string;
+    message: string;
+    sim?: number;
+    deliveryReport?: boolean;
+}
+
+interface SmsBatchResponse {
+    status: 'queued' | 'failed';
+    reason?: string;
+    accepted?: number;
+    rejected?: number;
+    items?: Array<{ index: number; status: 'queued' | 'failed'; id?: string; reason?: string }>;
+}
+
+interface SmsStatus {
+    id: string;
+    status: 'queued' | 'sending' | 'sent' | 'failed';
+    reason?: string;
+    number: string;
+    sim?: number;
+    parts?: number;
+    createdAt: number;
+    finishedAt?: number;
+    delivery?: 'pending' | 'delivered' | 'failed';
+    deliveredParts?: number;
+    deliveredAt?: number;
+    seq: number;
+}
+
+interface SmsStatusPage {
+    cursor: number;
+    more: boolean;
+    truncated: boolean;
+    items: SmsStatus[];
+}
+
 interface UssdResponse {
     status: 'success' | 'failed';
     result?: string;
@@ -157,6 +194,48 @@ export async function sendSms(device: Device, number: string, message: string):
     return { status: 'failed', reason: result.error };
 }
 
+// Queues many messages with a single request. The gateway answers 202 right away
+// with a job ID per item; delivery happens in the background on the phone.
+export async function sendSmsBatch(device: Device, items: SmsBatchItem[]): Promise<SmsBatchResponse> {
+    const url = `http://${cleanIp(device.ip)}/sms/batch`;
+    const result = await httpRequest<SmsBatchResponse>(url, {
+        method: 'POST',
+        headers: {
+            'Authorization': `Bearer ${device.apiKey}`,
+            'Content-Type': 'application/json; charset=utf-8'
+        },
+        body: JSON.stringify({ items }),
+        timeout: 30000
+    });
+
+    if (result.ok && result.data) {
+        return result.data;
+    }
+
+    console.error(`Failed to queue SMS batch via ${device.name}:`, result.error);
+    return { status: 'failed', reason: result.error };
+}
+
+// Status changes since the given cursor (0 = everything the phone still has).
+// Pass the returned cursor to the next call to get only newer changes.
+export async function getSmsStatusChanges(device: Device, since: number, limit = 500): Promise<SmsStatusPage | null> {
+    const url = `http://${cleanIp(device.ip)}/sms/status?since=${since}&limit=${limit}`;
+    const result = await httpRequest<SmsStatusPage>(url, {
+        method: 'GET',
+        headers: {
+            'Authorization': `Bearer ${device.apiKey}`
+        },
+        timeout: 10000
+    });
+
+    if (result.ok && result.data) {
+        return result.data;
+    }
+
+    console.error(`Failed to get SMS status from ${device.name}:`, result.error);
+    return null;
+}
+
 export async function runUssd(device: Device, code: string): Promise<UssdResponse> {
     const url = `http://${cleanIp(device.ip)}/ussd`;
     const result = await httpRequest<UssdResponse>(url, {
@@ -0,0 +1,149 @@
+package com.pathway.android;
+
+import android.app.PendingIntent;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.telephony.SmsManager;
+import android.telephony.TelephonyManager;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+// Telephony on the device: SIMs from SubscriptionRegistry, parts sent through
+// the SIM's SmsManager and reported back by SentStatusReceiver, received SMS
+// from InboundSmsReceiver, USSD through TelephonyManager, and settings from the
+// shared preferences that GatewayPlugin writes.
+public class AndroidTelephony implements Telephony {
+    private final Context context;
+    private final SubscriptionRegistry subscriptions;
+    private final SentStatusReceiver sentStatus;
+    private final InboundSmsReceiver inbound;
+    private final SharedPreferences prefs;
+
+    public AndroidTelephony(Context context, SubscriptionRegistry subscriptions) {
+        this.context = context;
+        this.subscriptions = subscriptions;
+        this.sentStatus = new SentStatusReceiver(context);
+        this.inbound = new InboundSmsReceiver(context, subscriptions);
+        this.prefs = context.getSharedPreferences(SubscriptionRegistry.PREFS_NAME, Context.MODE_PRIVATE);
+    }
+
+    // Rate limits are stored per subscription ID (see GatewayPlugin.setRateLimit)
+    public static String rateLimitKey(int subscriptionId) {
+        return subscriptionId == -1 ? "rate_limit_default" : "rate_limit_" + subscriptionId;
+    }
+
+    @Override
+    public void start(Listener listener) {
+        sentStatus.register(listener);
+    }
+
+    @Override
+    public void stop() {
+        sentStatus.unregister();
+    }
+
+    @Override
+    public List<SubscriptionRegistry.Sim> sims() {
+        return subscriptions.sims();
+    }
+
+    @Override
+    public int preferredSim() {
+        return subscriptions.preferredSim();
+    }
+
+    @Override
+    public int subscriptionIdForSlot(int slot) {
+        return subscriptions.subscriptionIdForSlot(slot);
+    }
+
+    @Override
+    public void setSimListener(SimListener listener) {
+        subscriptions.setChangeListener(listener != null ? sims -> listener.onSimsChanged() : null);
+    }
+
+    // Without RECEIVE_SMS the broadcast never arrives; sending is unaffected
+    @Override
+    public void setInboxListener(InboxListener listener) {
+        if (listener != null) {
+            inbound.register(listener);
+        } else {
+            inbound.unregister();
+        }
+    }
+
+    // Throws IllegalArgumentException for a stored config that isn't valid JSON
+    @Override
+    public RateLimit rateLimit(int subscriptionId) {
+        String raw = prefs.getString(rateLimitKey(subscriptionId), null);
+        if (raw == null) return null;
+        try {
+            JSONObject config = new JSONObject(raw);
+            return new RateLimit(config.optDouble("perMinute", 0), config.optInt("burst", 1),
+                    config.optInt("hourlyCap", 0), config.optInt("dailyCap", 0), config.optBoolean("adaptive", false));
+        } catch (JSONException e) {
+            throw new IllegalArgumentException(e.getMessage(), e);
+        }
+    }
+
+    @Override
+    public File dataDir() {
+        return context.getFilesDir();
+    }
+
+    @Override
+    public void sendText(int simSlot, String jobId, String number, List<String> parts, boolean deliveryReport) {
+        // Falls back to the default SmsManager if the slot is unknown
+        SmsManager smsManager = subscriptions.smsManager(simSlot);
+        ArrayList<PendingIntent> sentIntents = sentStatus.sentIntents(jobId, parts.size());
+        ArrayList<PendingIntent> deliveryIntents = deliveryReport ? sentStatus.deliveryIntents(jobId, parts.size()) : null;
+        // Returns immediately; each part reports through its sent intent
+        smsManager.sendMultipartTextMessage(number, null, new ArrayList<>(parts), sentIntents, deliveryIntents);
+    }
+
+    @Override
+    public void sendUssd(int simSlot, String code, UssdCallback callback) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.O) {
+            callback.onFailure("Android 8.0+ required for USSD");
+            return;
+        }
+        // USSD has to be started from the main thread
+        Handler handler = new Handler(Looper.getMainLooper());
+        handler.post(() -> {
+            try {
+                // First SIM unless a slot is given
+                TelephonyManager tm = subscriptions.telephonyManager(simSlot);
+
+                tm.sendUssdRequest(code, new TelephonyManager.UssdResponseCallback() {
+                    @Override
+                    public void onReceiveUssdResponse(TelephonyManager telephonyManager, String request, CharSequence response) {
+                        super.onReceiveUssdResponse(telephonyManager, request, response);
+                        callback.onResponse(response != null ? response.toString() : "Success");
+                    }
+
+                    @Override
+                    public void onReceiveUssdResponseFailed(TelephonyManager telephonyManager, String request, int failureCode) {
+                        super.onReceiveUssdResponseFailed(telephonyManager, request, failureCode);
+                        if (failureCode == -1) { // TelephonyManager.USSD_RETURN_FAILURE
+                            callback.onFailure("USSD Failed: Network rejected request (-1)");
+                        } else if (failureCode == -2) { // TelephonyManager.USSD_ERROR_SERVICE_UNAVAIL
+                            callback.onFailure("USSD Failed: Service unavailable (-2)");
+                        } else {
+                            callback.onFailure("USSD Failed: code " + failureCode);
+                        }
+                    }
+                }, handler);
+            } catch (SecurityException e) {
+                callback.onFailure("Security Exception: " + e.getMessage());
+            } catch (Exception e) {
+                callback.onFailure("Exception: " + e.getMessage());
+            }
+        });
+    }
+}
@@ -17,20 +17,92 @@ import java.io.IOException;
 @CapacitorPlugin(
     name = "Gateway",
     permissions = {
-        @Permission(alias = "sms", strings = { Manifest.permission.SEND_SMS }),
+        @Permission(alias = "sms", strings = { Manifest.permission.SEND_SMS, Manifest.permission.RECEIVE_SMS }),
         @Permission(alias = "phone", strings = { Manifest.permission.CALL_PHONE, Manifest.permission.READ_PHONE_STATE }),
         @Permission(alias = "internet", strings = { Manifest.permission.INTERNET, Manifest.permission.ACCESS_WIFI_STATE })
     }
 )
 public class GatewayPlugin extends Plugin {
+    private static final int LOG_BUFFER_SIZE = 1024;
+    private static final long LOG_BRIDGE_INTERVAL_MILLIS = 250;
+    // The log view only shows this many lines, so older ones in a burst are skipped
+    private static final int LOG_BRIDGE_MAX_LINES = 50;
+
     private ApiServer server;
+    private SubscriptionRegistry subscriptions;
+    private final LogBuffer logs = new LogBuffer(LOG_BUFFER_SIZE);
+    // New log lines go to the WebView in one batch per tick, and not at all while it is hidden
+    private java.util.concurrent.ScheduledExecutorService logBridge;
+    private long bridgeCursor;
+    private volatile boolean paused;
     private android.net.wifi.WifiManager.WifiLock wifiLock;
     private android.os.PowerManager.WakeLock wakeLock;
 
+    @Override
+    public void load() {
+        subscriptions = new SubscriptionRegistry(getContext());
+        subscriptions.start();
+        logBridge = java.util.concurrent.Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "Pathway-LogBridge");
+            t.setDaemon(true);
+            return t;
+        });
+        logBridge.scheduleWithFixedDelay(this::forwardLogs, LOG_BRIDGE_INTERVAL_MILLIS, LOG_BRIDGE_INTERVAL_MILLIS,
+                java.util.concurrent.TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    protected void handleOnPause() {
+        paused = true;
+    }
+
+    @Override
+    protected void handleOnResume() {
+        paused = false;
+    }
+
+    @Override
+    protected void handleOnDestroy() {
+        if (subscriptions != null) {
+            subscriptions.stop();
+        }
+        if (logBridge != null) {
+            logBridge.shutdownNow();
+        }
+    }
+
     private void notifyLog(String message) {
+        logs.append(LogBuffer.INFO, message);
+    }
+
+    // Runs on the bridge thread. Lines logged while paused are caught up on resume,
+    // up to LOG_BRIDGE_MAX_LINES of them.
+    private void forwardLogs() {
+        if (paused) return;
+        long head = logs.head();
+        if (head == bridgeCursor) return;
+        if (!hasListeners("logs")) {
+            bridgeCursor = head;
+            return;
+        }
+        long from = Math.max(bridgeCursor, head - LOG_BRIDGE_MAX_LINES);
+        long skipped = from - bridgeCursor;
+        java.util.List<LogBuffer.Record> batch = new java.util.ArrayList<>();
+        bridgeCursor = logs.read(from, LOG_BRIDGE_MAX_LINES, LogBuffer.DEBUG, batch);
+        if (batch.isEmpty()) return;
+
+        com.getcapacitor.JSArray entries = new com.getcapacitor.JSArray();
+        for (LogBuffer.Record record : batch) {
+            JSObject entry = new JSObject();
+            entry.put("time", record.time);
+            entry.put("level", record.levelName());
+            entry.put("message", record.message);
+            entries.put(entry);
+        }
         JSObject ret = new JSObject();
-        ret.put("message", message);
-        notifyListeners("log", ret);
+        ret.put("entries", entries);
+        ret.put("skipped", skipped);
+        notifyListeners("logs", ret);
     }
 
     @PluginMethod
@@ -48,8 +120,28 @@ public class GatewayPlugin extends Plugin {
         }
 
         try {
-            server = new ApiServer(port, apiKey, getContext(), this::notifyLog);
+            server = new ApiServer(port, apiKey, new AndroidTelephony(getContext(), subscriptions), logs);
+            server.setDedupWindow(call.getInt("dedupWindowSeconds", 0));
             server.start();
+            try {
+                server.setInboxWebhook(call.getString("inboxWebhookUrl"), call.getString("inboxWebhookKey"));
+            } catch (IllegalArgumentException e) {
+                server.stop();
+                server = null;
+                call.reject(e.getMessage());
+                return;
+            }
+            // Optional binary listener for high-volume LAN clients
+            Integer binaryPort = call.getInt("binaryPort");
+            if (binaryPort != null) {
+                try {
+                    server.startFrameListener(binaryPort);
+                } catch (IOException e) {
+                    server.stop();
+                    server = null;
+                    throw e;
+                }
+            }
             
             // Acquire WiFi lock to prevent WiFi from going to sleep
             acquireWifiLock();
@@ -59,7 +151,7 @@ public class GatewayPlugin extends Plugin {
             
             JSObject ret = new JSObject();
             ret.put("success", true);
-            ret.put("message", "Server started on port " + port);
+            ret.put("message", "Server started on port " + port + (binaryPort != null ? ", binary on " + binaryPort : ""));
             call.resolve(ret);
         } catch (IOException e) {
             call.reject("Failed to start server: " + e.getMessage());
@@ -139,50 +231,80 @@ public class GatewayPlugin extends Plugin {
     
     @PluginMethod
     public void getSims(PluginCall call) {
-        if (android.os.Build.VERSION.SDK_INT >= android.os.Build.VERSION_CODES.LOLLIPOP_MR1) {
-            android.telephony.SubscriptionManager sm = (android.telephony.SubscriptionManager) getContext().getSystemService(Context.TELEPHONY_SUBSCRIPTION_SERVICE);
-            if (sm != null) {
-                if (getContext().checkSelfPermission(Manifest.permission.READ_PHONE_STATE) == android.content.pm.PackageManager.PERMISSION_GRANTED) {
-                    java.util.List<android.telephony.SubscriptionInfo> subs = sm.getActiveSubscriptionInfoList();
-                    com.getcapacitor.JSArray ret = new com.getcapacitor.JSArray();
-                    if (subs != null) {
-                        for (android.telephony.SubscriptionInfo info : subs) {
-                            JSObject sim = new JSObject();
-                            sim.put("slot", info.getSimSlotIndex());
-                            sim.put("subscriptionId", info.getSubscriptionId());
-                            sim.put("carrierName", info.getCarrierName());
-                            sim.put("number", info.getNumber()); // May be null/empty
-                            sim.put("displayName", info.getDisplayName());
-                            ret.put(sim);
-                        }
-                    }
-                    JSObject response = new JSObject();
-                    response.put("sims", ret);
-                    call.resolve(response);
-                    return;
-                }
-            }
+        if (getContext().checkSelfPermission(Manifest.permission.READ_PHONE_STATE) != android.content.pm.PackageManager.PERMISSION_GRANTED) {
+            call.reject("Unable to get SIMs");
+            return;
+        }
+        com.getcapacitor.JSArray ret = new com.getcapacitor.JSArray();
+        for (SubscriptionRegistry.Sim info : subscriptions.sims()) {
+            JSObject sim = new JSObject();
+            sim.put("slot", info.slot);
+            sim.put("subscriptionId", info.subscriptionId);
+            sim.put("carrierName", info.carrierName);
+            sim.put("number", info.number); // May be null/empty
+            sim.put("displayName", info.displayName);
+            ret.put(sim);
         }
-        call.reject("Unable to get SIMs");
+        JSObject response = new JSObject();
+        response.put("sims", ret);
+        call.resolve(response);
     }
 
     @PluginMethod
     public void setPreferredSim(PluginCall call) {
         int slot = call.getInt("slot", -1);
-        android.content.SharedPreferences prefs = getContext().getSharedPreferences("GatewayConfig", Context.MODE_PRIVATE);
-        prefs.edit().putInt("preferred_sim", slot).apply();
+        android.content.SharedPreferences prefs = getContext().getSharedPreferences(SubscriptionRegistry.PREFS_NAME, Context.MODE_PRIVATE);
+        prefs.edit().putInt(SubscriptionRegistry.PREF_PREFERRED_SIM, slot).apply();
         call.resolve();
     }
 
     @PluginMethod
     public void getPreferredSim(PluginCall call) {
-        android.content.SharedPreferences prefs = getContext().getSharedPreferences("GatewayConfig", Context.MODE_PRIVATE);
-        int slot = prefs.getInt("preferred_sim", -1); // -1 = Auto
+        android.content.SharedPreferences prefs = getContext().getSharedPreferences(SubscriptionRegistry.PREFS_NAME, Context.MODE_PRIVATE);
+        int slot = prefs.getInt(SubscriptionRegistry.PREF_PREFERRED_SIM, -1); // -1 = Auto
         JSObject ret = new JSObject();
         ret.put("slot", slot);
         call.resolve(ret);
     }
 
+    @PluginMethod
+    public void setRateLimit(PluginCall call) {
+        int subscriptionId = call.getInt("subscriptionId", -1);
+        double perMinute = call.getDouble("perMinute", 0.0);
+        android.content.SharedPreferences prefs = getContext().getSharedPreferences(SubscriptionRegistry.PREFS_NAME, Context.MODE_PRIVATE);
+        String key = AndroidTelephony.rateLimitKey(subscriptionId);
+
+        if (perMinute <= 0) {
+            // 0 removes the limit
+            prefs.edit().remove(key).apply();
+        } else {
+            JSObject config = new JSObject();
+            config.put("perMinute", perMinute);
+            config.put("burst", call.getInt("burst", 1));
+            config.put("hourlyCap", call.getInt("hourlyCap", 0));
+            config.put("dailyCap", call.getInt("dailyCap", 0));
+            config.put("adaptive", call.getBoolean("adaptive", false));
+            prefs.edit().putString(key, config.toString()).apply();
+        }
+
+        if (server != null) {
+            server.applyRateLimits();
+        }
+        call.resolve();
+    }
+
+    @PluginMethod
+    public void getRateLimit(PluginCall call) {
+        int subscriptionId = call.getInt("subscriptionId", -1);
+        android.content.SharedPreferences prefs = getContext().getSharedPreferences(SubscriptionRegistry.PREFS_NAME, Context.MODE_PRIVATE);
+        String raw = prefs.getString(AndroidTelephony.rateLimitKey(subscriptionId), null);
+        try {
+            call.resolve(raw != null ? new JSObject(raw) : new JSObject());
+        } catch (org.json.JSONException e) {
+            call.resolve(new JSObject());
+        }
+    }
+
     @PluginMethod
     public void setKeepScreenOn(PluginCall call) {
         boolean on = call.getBoolean("on", false);
@@ -0,0 +1,94 @@
+package com.pathway.android;
+
+import android.Manifest;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.provider.Telephony.Sms;
+import android.telephony.SmsMessage;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// Receives SMS_RECEIVED while the server runs and passes each message, its
+// parts joined, to the Telephony.InboxListener (the Inbox). Broadcasts are
+// handled on a thread of its own, never the main one, and only the system may
+// send them (BROADCAST_SMS). The default SMS app still stores every message;
+// this one only reads them.
+public class InboundSmsReceiver extends BroadcastReceiver {
+    // SubscriptionManager.EXTRA_SLOT_INDEX (API 29) and the older extras OEMs set
+    private static final String EXTRA_SLOT_INDEX = "android.telephony.extra.SLOT_INDEX";
+    private static final String EXTRA_SLOT = "slot";
+    private static final String EXTRA_SUBSCRIPTION = "subscription";
+
+    private final Context context;
+    private final SubscriptionRegistry subscriptions;
+    private HandlerThread thread;
+    private volatile Telephony.InboxListener listener;
+
+    public InboundSmsReceiver(Context context, SubscriptionRegistry subscriptions) {
+        this.context = context;
+        this.subscriptions = subscriptions;
+    }
+
+    public synchronized void register(Telephony.InboxListener listener) {
+        this.listener = listener;
+        if (thread != null) return;
+        thread = new HandlerThread("Pathway-Inbound");
+        thread.start();
+        Handler handler = new Handler(thread.getLooper());
+
+        IntentFilter filter = new IntentFilter(Sms.Intents.SMS_RECEIVED_ACTION);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.TIRAMISU) {
+            context.registerReceiver(this, filter, Manifest.permission.BROADCAST_SMS, handler, Context.RECEIVER_EXPORTED);
+        } else {
+            context.registerReceiver(this, filter, Manifest.permission.BROADCAST_SMS, handler);
+        }
+    }
+
+    public synchronized void unregister() {
+        if (thread == null) return;
+        context.unregisterReceiver(this);
+        thread.quitSafely();
+        thread = null;
+        listener = null;
+    }
+
+    @Override
+    public void onReceive(Context ctx, Intent intent) {
+        Telephony.InboxListener l = listener;
+        if (l == null) return;
+        SmsMessage[] parts = Sms.Intents.getMessagesFromIntent(intent);
+        if (parts == null || parts.length == 0) return;
+        int slot = slotOf(intent);
+
+        // The platform delivers a concatenated message's parts in one broadcast, in order
+        Map<String, StringBuilder> bodies = new LinkedHashMap<>();
+        Map<String, Long> sentAt = new LinkedHashMap<>();
+        for (SmsMessage part : parts) {
+            if (part == null) continue;
+            String sender = part.getDisplayOriginatingAddress();
+            if (sender == null) sender = "";
+            String text = part.getDisplayMessageBody();
+            bodies.computeIfAbsent(sender, s -> new StringBuilder()).append(text != null ? text : "");
+            sentAt.putIfAbsent(sender, part.getTimestampMillis());
+        }
+        for (Map.Entry<String, StringBuilder> entry : bodies.entrySet()) {
+            l.onSmsReceived(slot, entry.getKey(), entry.getValue().toString(), sentAt.get(entry.getKey()));
+        }
+    }
+
+    private int slotOf(Intent intent) {
+        int slot = intent.getIntExtra(EXTRA_SLOT_INDEX, -1);
+        if (slot == -1) slot = intent.getIntExtra(EXTRA_SLOT, -1);
+        if (slot != -1) return slot;
+        int subscriptionId = intent.getIntExtra(EXTRA_SUBSCRIPTION, -1);
+        for (SubscriptionRegistry.Sim sim : subscriptions.sims()) {
+            if (sim.subscriptionId == subscriptionId) return sim.slot;
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,132 @@
+package com.pathway.android;
+
+import android.app.PendingIntent;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.telephony.SmsManager;
+import android.telephony.SmsMessage;
+import androidx.core.content.ContextCompat;
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// One long-lived receiver for every outgoing part's sent status and delivery
+// report. Each PendingIntent carries the job ID and part index, which are passed
+// on to the Telephony.Listener (SendTracker) with the decoded result, so the
+// send path never registers receivers.
+public class SentStatusReceiver extends BroadcastReceiver {
+    public static final String ACTION_SENT = "com.pathway.android.SMS_SENT";
+    public static final String ACTION_DELIVERED = "com.pathway.android.SMS_DELIVERED";
+    private static final String EXTRA_JOB_ID = "jobId";
+    private static final String EXTRA_PART = "part";
+
+    private final Context context;
+    // PendingIntents are keyed by request code, so every part needs its own
+    private final AtomicInteger requestCodes = new AtomicInteger();
+    private HandlerThread thread;
+    private volatile Telephony.Listener listener;
+
+    public SentStatusReceiver(Context context) {
+        this.context = context;
+    }
+
+    public synchronized void register(Telephony.Listener listener) {
+        this.listener = listener;
+        if (thread != null) return;
+        // Deliver broadcasts off the main thread
+        thread = new HandlerThread("Pathway-SmsStatus");
+        thread.start();
+        Handler handler = new Handler(thread.getLooper());
+
+        // Not exported: the actions are fixed, so any app could otherwise mark
+        // jobs sent or delivered. The PendingIntents are sent as this app.
+        IntentFilter filter = new IntentFilter(ACTION_SENT);
+        filter.addAction(ACTION_DELIVERED);
+        ContextCompat.registerReceiver(context, this, filter, null, handler, ContextCompat.RECEIVER_NOT_EXPORTED);
+    }
+
+    public synchronized void unregister() {
+        if (thread == null) return;
+        context.unregisterReceiver(this);
+        thread.quitSafely();
+        thread = null;
+        listener = null;
+    }
+
+    // One sent intent per part
+    public ArrayList<PendingIntent> sentIntents(String jobId, int partCount) {
+        return partIntents(ACTION_SENT, jobId, partCount, PendingIntent.FLAG_IMMUTABLE | PendingIntent.FLAG_ONE_SHOT);
+    }
+
+    // One delivery intent per part. Not one-shot: the carrier may report "still
+    // trying" before the final status. Mutable, because the framework fills in
+    // the status report as the "pdu" and "format" extras.
+    public ArrayList<PendingIntent> deliveryIntents(String jobId, int partCount) {
+        int flags = Build.VERSION.SDK_INT >= Build.VERSION_CODES.S ? PendingIntent.FLAG_MUTABLE : 0;
+        return partIntents(ACTION_DELIVERED, jobId, partCount, flags);
+    }
+
+    private ArrayList<PendingIntent> partIntents(String action, String jobId, int partCount, int flags) {
+        ArrayList<PendingIntent> intents = new ArrayList<>(partCount);
+        for (int i = 0; i < partCount; i++) {
+            Intent intent = new Intent(action);
+            intent.setPackage(context.getPackageName());
+            intent.putExtra(EXTRA_JOB_ID, jobId);
+            intent.putExtra(EXTRA_PART, i);
+            intents.add(PendingIntent.getBroadcast(context, requestCodes.incrementAndGet(), intent, flags));
+        }
+        return intents;
+    }
+
+    @Override
+    public void onReceive(Context ctx, Intent intent) {
+        Telephony.Listener l = listener;
+        if (l == null) return;
+        String jobId = intent.getStringExtra(EXTRA_JOB_ID);
+        int part = intent.getIntExtra(EXTRA_PART, -1);
+        if (ACTION_DELIVERED.equals(intent.getAction())) {
+            l.onPartDelivered(jobId, part, deliveryOutcome(intent));
+            return;
+        }
+        int resultCode = getResultCode();
+        l.onPartSent(jobId, part, resultCode == android.app.Activity.RESULT_OK ? null : failureReason(resultCode));
+    }
+
+    // Reads TP-Status (GSM) or the error class (CDMA) from the status report PDU
+    private static byte deliveryOutcome(Intent intent) {
+        byte[] pdu = intent.getByteArrayExtra("pdu");
+        // The result code is RESULT_OK for every report, failed or not, so
+        // without the PDU nothing is known yet
+        if (pdu == null) return StatusStore.PART_PENDING;
+        String format = intent.getStringExtra("format");
+        SmsMessage report = SmsMessage.createFromPdu(pdu, format);
+        if (report == null) return StatusStore.PART_PENDING;
+        int status = report.getStatus();
+        if ("3gpp2".equals(format)) {
+            int errorClass = (status >> 24) & 0x03;
+            if (errorClass == 0) return StatusStore.PART_DELIVERED;
+            return errorClass == 3 ? StatusStore.PART_FAILED : StatusStore.PART_PENDING;
+        }
+        if (status < 0x20) return StatusStore.PART_DELIVERED;
+        return status >= 0x40 ? StatusStore.PART_FAILED : StatusStore.PART_PENDING;
+    }
+
+    private static String failureReason(int resultCode) {
+        switch (resultCode) {
+            case SmsManager.RESULT_ERROR_GENERIC_FAILURE:
+                return "generic_failure";
+            case SmsManager.RESULT_ERROR_NO_SERVICE:
+                return "no_service";
+            case SmsManager.RESULT_ERROR_NULL_PDU:
+                return "null_pdu";
+            case SmsManager.RESULT_ERROR_RADIO_OFF:
+                return "radio_off";
+            default:
+                return "error_" + resultCode;
+        }
+    }
+}
@@ -0,0 +1,166 @@
+package com.pathway.android;
+
+import android.Manifest;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.content.pm.PackageManager;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.telephony.SmsManager;
+import android.telephony.SubscriptionInfo;
+import android.telephony.SubscriptionManager;
+import android.telephony.TelephonyManager;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+// Cached view of the active SIMs and the preferred-SIM setting. Looking these up
+// means several binder calls, so the send path reads this snapshot instead and
+// it is only rebuilt when Android reports a subscription change or the
+// preference is edited.
+public class SubscriptionRegistry {
+    public static final String PREFS_NAME = "GatewayConfig";
+    public static final String PREF_PREFERRED_SIM = "preferred_sim";
+
+    public interface ChangeListener {
+        void onSimsChanged(List<Sim> sims);
+    }
+
+    public static class Sim extends Telephony.Sim {
+        final SmsManager smsManager;
+        final TelephonyManager telephonyManager;
+
+        Sim(SubscriptionInfo info, TelephonyManager baseTelephony) {
+            super(info.getSimSlotIndex(), info.getSubscriptionId(), info.getCarrierName(), info.getNumber(),
+                    info.getDisplayName());
+            this.smsManager = SmsManager.getSmsManagerForSubscriptionId(subscriptionId);
+            TelephonyManager tm = baseTelephony;
+            if (tm != null && Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) {
+                tm = tm.createForSubscriptionId(subscriptionId);
+            }
+            this.telephonyManager = tm;
+        }
+    }
+
+    private final Context context;
+    private final SharedPreferences prefs;
+    private final SubscriptionManager subscriptionManager;
+    private final TelephonyManager telephonyManager;
+    private volatile List<Sim> sims = Collections.emptyList();
+    private volatile boolean stale = true;
+    // Bumped on every change so a reload racing with a change doesn't mark itself fresh
+    private volatile int generation;
+    private volatile int preferredSim;
+    private volatile ChangeListener changeListener;
+    private SubscriptionManager.OnSubscriptionsChangedListener subscriptionsListener;
+
+    // Held in a field: SharedPreferences only keeps a weak reference to listeners
+    private final SharedPreferences.OnSharedPreferenceChangeListener prefsListener = (sharedPrefs, key) -> {
+        if (PREF_PREFERRED_SIM.equals(key)) {
+            preferredSim = sharedPrefs.getInt(PREF_PREFERRED_SIM, -1);
+        }
+    };
+
+    public SubscriptionRegistry(Context context) {
+        this.context = context.getApplicationContext() != null ? context.getApplicationContext() : context;
+        this.prefs = this.context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        this.subscriptionManager = Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP_MR1
+                ? (SubscriptionManager) this.context.getSystemService(Context.TELEPHONY_SUBSCRIPTION_SERVICE)
+                : null;
+        this.telephonyManager = (TelephonyManager) this.context.getSystemService(Context.TELEPHONY_SERVICE);
+        this.preferredSim = prefs.getInt(PREF_PREFERRED_SIM, -1);
+    }
+
+    public void start() {
+        prefs.registerOnSharedPreferenceChangeListener(prefsListener);
+        if (subscriptionManager != null) {
+            // The listener binds to the Looper of the thread that creates it
+            new Handler(Looper.getMainLooper()).post(() -> {
+                if (subscriptionsListener != null) return;
+                subscriptionsListener = new SubscriptionManager.OnSubscriptionsChangedListener() {
+                    @Override
+                    public void onSubscriptionsChanged() {
+                        generation++;
+                        stale = true;
+                        ChangeListener l = changeListener;
+                        if (l != null) l.onSimsChanged(sims());
+                    }
+                };
+                subscriptionManager.addOnSubscriptionsChangedListener(subscriptionsListener);
+            });
+        }
+    }
+
+    public void stop() {
+        prefs.unregisterOnSharedPreferenceChangeListener(prefsListener);
+        if (subscriptionManager != null) {
+            new Handler(Looper.getMainLooper()).post(() -> {
+                if (subscriptionsListener == null) return;
+                subscriptionManager.removeOnSubscriptionsChangedListener(subscriptionsListener);
+                subscriptionsListener = null;
+            });
+        }
+    }
+
+    public void setChangeListener(ChangeListener listener) {
+        this.changeListener = listener;
+    }
+
+    // Slot to use when a request doesn't name one; -1 = Auto
+    public int preferredSim() {
+        return preferredSim;
+    }
+
+    public List<Sim> sims() {
+        if (stale) {
+            reload();
+        }
+        return sims;
+    }
+
+    public Sim forSlot(int slot) {
+        for (Sim sim : sims()) {
+            if (sim.slot == slot) return sim;
+        }
+        return null;
+    }
+
+    public int subscriptionIdForSlot(int slot) {
+        Sim sim = slot != -1 ? forSlot(slot) : null;
+        return sim != null ? sim.subscriptionId : -1;
+    }
+
+    public SmsManager smsManager(int slot) {
+        Sim sim = slot != -1 ? forSlot(slot) : null;
+        return sim != null ? sim.smsManager : SmsManager.getDefault();
+    }
+
+    // USSD defaults to the first SIM rather than the platform default
+    public TelephonyManager telephonyManager(int slot) {
+        List<Sim> current = sims();
+        Sim sim = slot != -1 ? forSlot(slot) : null;
+        if (sim == null && !current.isEmpty()) sim = current.get(0);
+        return sim != null ? sim.telephonyManager : telephonyManager;
+    }
+
+    private synchronized void reload() {
+        if (!stale) return;
+        int startGeneration = generation;
+        if (subscriptionManager == null
+                || context.checkSelfPermission(Manifest.permission.READ_PHONE_STATE) != PackageManager.PERMISSION_GRANTED) {
+            // Stay stale so the list is picked up as soon as the permission is granted
+            sims = Collections.emptyList();
+            return;
+        }
+        List<SubscriptionInfo> infos = subscriptionManager.getActiveSubscriptionInfoList();
+        List<Sim> loaded = new ArrayList<>();
+        if (infos != null) {
+            for (SubscriptionInfo info : infos) {
+                loaded.add(new Sim(info, telephonyManager));
+            }
+        }
+        sims = Collections.unmodifiableList(loaded);
+        stale = generation != startGeneration;
+    }
+}
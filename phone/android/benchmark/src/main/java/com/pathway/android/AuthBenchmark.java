@@ -0,0 +1,79 @@
+package com.pathway.android;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// The Authorization check every request but the health check goes through:
+// header lookup in NanoHTTPD's lower-cased header map, then hashing the key and
+// finding it among the registered ones.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class AuthBenchmark {
+    private static final String KEY = "3f7a9c1e5b2d4f6a8c0e1b3d5f7a9c1e";
+
+    private ApiServer server;
+    private Map<String, String> valid;
+    private Map<String, String> wrongKey;
+    private Map<String, String> missing;
+
+    @Setup
+    public void setUp() {
+        // Never started: only the auth check is used
+        server = new ApiServer(0, KEY, new SimulatedTelephony(1, null), new LogBuffer(16));
+        missing = headers(null);
+        valid = headers("Bearer " + KEY);
+        // Same length, wrong last character
+        wrongKey = headers("Bearer " + KEY.substring(0, KEY.length() - 1) + "0");
+    }
+
+    private static Map<String, String> headers(String authorization) {
+        Map<String, String> headers = new HashMap<>();
+        headers.put("host", "192.168.1.20:8080");
+        headers.put("user-agent", "pathway-desktop/1.0");
+        headers.put("accept", "*/*");
+        headers.put("content-type", "application/json");
+        headers.put("content-length", "97");
+        headers.put("connection", "keep-alive");
+        headers.put("remote-addr", "192.168.1.10");
+        headers.put("http-client-ip", "192.168.1.10");
+        if (authorization != null) headers.put("authorization", authorization);
+        return headers;
+    }
+
+    private boolean check(Map<String, String> headers) {
+        String authHeader = headers.get("authorization");
+        if (authHeader == null) authHeader = headers.get("Authorization");
+        return server.authenticate(authHeader) != null;
+    }
+
+    @Benchmark
+    public boolean valid() {
+        return check(valid);
+    }
+
+    @Benchmark
+    public boolean wrongKey() {
+        return check(wrongKey);
+    }
+
+    @Benchmark
+    public boolean missing() {
+        return check(missing);
+    }
+}
@@ -0,0 +1,140 @@
+package com.pathway.android;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Whole requests over loopback HTTP with keep-alive, against the real server
+// and a SimulatedTelephony that reports every part sent at once, so what is
+// measured is the gateway: parsing, auth, the outbox, dispatch, the status
+// store and the reply.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Threads(4)
+@Fork(1)
+public class EndToEndBenchmark {
+    private static final String KEY = "benchmark-key";
+
+    private File dataDir;
+    private ApiServer server;
+    private String base;
+    private String knownId;
+    // Keeps every message distinct so duplicate suppression never answers
+    private final AtomicInteger numbers = new AtomicInteger();
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        dataDir = Files.createTempDirectory("pathway-benchmark").toFile();
+        SimulatedTelephony telephony = new SimulatedTelephony(2, dataDir);
+        telephony.setLatency(0, 0);
+        server = new ApiServer(0, KEY, telephony, new LogBuffer(1024));
+        server.start();
+        base = "http://127.0.0.1:" + server.getListeningPort();
+        String reply = request("POST", "/sms", sendBody(), 200);
+        int at = reply.indexOf("\"id\": \"") + 7;
+        knownId = reply.substring(at, reply.indexOf('"', at));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        server.stop();
+        delete(dataDir);
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) delete(child);
+        }
+        file.delete();
+    }
+
+    private String sendBody() {
+        return "{\"number\": \"+1555" + (1_000_000 + numbers.incrementAndGet() % 9_000_000)
+                + "\", \"message\": \"Your code is 482913\"}";
+    }
+
+    private String request(String method, String path, String body, int expected) throws IOException {
+        HttpURLConnection conn = (HttpURLConnection) new URL(base + path).openConnection();
+        conn.setRequestMethod(method);
+        conn.setRequestProperty("Authorization", "Bearer " + KEY);
+        if (body != null) {
+            conn.setDoOutput(true);
+            conn.setRequestProperty("Content-Type", "application/json");
+            try (OutputStream out = conn.getOutputStream()) {
+                out.write(body.getBytes(StandardCharsets.UTF_8));
+            }
+        }
+        int code = conn.getResponseCode();
+        // Read to the end so the connection goes back to the keep-alive pool
+        InputStream in = code < 400 ? conn.getInputStream() : conn.getErrorStream();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        if (in != null) {
+            try (InputStream stream = in) {
+                byte[] buffer = new byte[4096];
+                int n;
+                while ((n = stream.read(buffer)) > 0) bytes.write(buffer, 0, n);
+            }
+        }
+        String reply = new String(bytes.toByteArray(), StandardCharsets.UTF_8);
+        if (code != expected) {
+            throw new IllegalStateException(method + " " + path + " answered " + code + ": " + reply);
+        }
+        return reply;
+    }
+
+    // POST /sms, waiting for the radio
+    @Benchmark
+    public String send() throws IOException {
+        return request("POST", "/sms", sendBody(), 200);
+    }
+
+    // POST /sms with "async": accepted once it is in the outbox and queued
+    @Benchmark
+    public String sendAsync() throws IOException {
+        String body = sendBody();
+        return request("POST", "/sms", body.substring(0, body.length() - 1) + ", \"async\": true}", 202);
+    }
+
+    // GET /sms/{id}
+    @Benchmark
+    public String status() throws IOException {
+        return request("GET", "/sms/" + knownId, null, 200);
+    }
+
+    // A wrong key, answered before the body is read
+    @Benchmark
+    public int unauthorized() throws IOException {
+        HttpURLConnection conn = (HttpURLConnection) new URL(base + "/jobs").openConnection();
+        conn.setRequestProperty("Authorization", "Bearer wrong");
+        int code = conn.getResponseCode();
+        InputStream in = conn.getErrorStream();
+        if (in != null) in.close();
+        return code;
+    }
+}
@@ -0,0 +1,110 @@
+package com.pathway.android;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Log lines from request and send threads fanned out to their readers: the
+// pump that republishes them on /events (ApiServer.pumpLogs) and clients
+// polling GET /logs, each with its own cursor. "append" is a writer alone;
+// "fanout" runs writers and readers on the same buffer at once.
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LogFanOutBenchmark {
+    private static final int CAPACITY = 1024;
+    private static final int EVENT_BUFFER_SIZE = 4096;
+    private static final int POLL_LIMIT = 200;
+    private static final String[] MESSAGES = new String[64];
+
+    static {
+        for (int i = 0; i < MESSAGES.length; i++) {
+            MESSAGES[i] = "SMS sent to +1555" + (1_000_000 + i) + " on SIM " + (i & 1) + " (1 part)";
+        }
+    }
+
+    // One buffer shared by every thread of a group
+    @State(Scope.Group)
+    public static class Shared {
+        final LogBuffer logs = new LogBuffer(CAPACITY);
+        final EventHub events = new EventHub(EVENT_BUFFER_SIZE);
+    }
+
+    @State(Scope.Thread)
+    public static class Alone {
+        final LogBuffer logs = new LogBuffer(CAPACITY);
+    }
+
+    @State(Scope.Thread)
+    public static class Cursor {
+        long seq;
+        int next;
+        final List<LogBuffer.Record> records = new ArrayList<>();
+    }
+
+    private static long append(LogBuffer logs, Cursor cursor) {
+        logs.append(LogBuffer.INFO, MESSAGES[cursor.next++ & (MESSAGES.length - 1)]);
+        return logs.head();
+    }
+
+    @Benchmark
+    public long append(Alone alone, Cursor cursor) {
+        return append(alone.logs, cursor);
+    }
+
+    @Benchmark
+    @Group("fanout")
+    @GroupThreads(2)
+    public long write(Shared shared, Cursor cursor) {
+        return append(shared.logs, cursor);
+    }
+
+    // ApiServer.pumpLogs
+    @Benchmark
+    @Group("fanout")
+    @GroupThreads(1)
+    public int pump(Shared shared, Cursor cursor) {
+        LogBuffer logs = shared.logs;
+        List<LogBuffer.Record> batch = cursor.records;
+        batch.clear();
+        cursor.seq = logs.read(cursor.seq, logs.capacity(), LogBuffer.DEBUG, batch);
+        if (batch.isEmpty()) return 0;
+        List<String> data = new ArrayList<>(batch.size());
+        for (LogBuffer.Record record : batch) {
+            data.add(ApiServer.logJson(record));
+        }
+        shared.events.publishAll(EventHub.TYPE_LOG, data);
+        return data.size();
+    }
+
+    // GET /logs?after=cursor
+    @Benchmark
+    @Group("fanout")
+    @GroupThreads(2)
+    public int poll(Shared shared, Cursor cursor) {
+        LogBuffer logs = shared.logs;
+        List<LogBuffer.Record> records = cursor.records;
+        records.clear();
+        cursor.seq = logs.read(cursor.seq, POLL_LIMIT, LogBuffer.DEBUG, records);
+        JsonWriter out = JsonWriter.forThread().beginObject();
+        out.name("cursor").value(cursor.seq).name("items").beginArray();
+        for (LogBuffer.Record record : records) {
+            ApiServer.writeLog(out, record);
+        }
+        return out.endArray().endObject().length();
+    }
+}
@@ -0,0 +1,71 @@
+package com.pathway.android;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Body reading and JSON decoding the way handleRequest does it for POST /sms,
+// /sms/batch and template sends: straight off the connection's stream into an
+// ApiRequest with the worker thread's reusable JsonReader.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RequestParsingBenchmark {
+    private static final int BATCH_SIZE = 500;
+
+    @Param({ "send", "template", "unicode", "batch" })
+    public String body;
+
+    private byte[] bytes;
+    private ByteArrayInputStream in;
+
+    @Setup
+    public void setUp() {
+        bytes = body(body).getBytes(StandardCharsets.UTF_8);
+        in = new ByteArrayInputStream(bytes);
+    }
+
+    static String body(String kind) {
+        switch (kind) {
+            case "send":
+                return "{\"number\": \"+15550001234\", \"message\": \"Your code is 482913. It expires in 10 minutes.\", "
+                        + "\"sim\": 0, \"deliveryReport\": true, \"idempotencyKey\": \"7f9c2ba4-e88f-11ee-a51c-0242ac120002\"}";
+            case "template":
+                return "{\"number\": \"+15550001234\", \"template\": \"otp\", \"vars\": {\"name\": \"Ada\", "
+                        + "\"code\": 482913, \"minutes\": 10}, \"async\": true}";
+            case "unicode":
+                return "{\"number\": \"+15550001234\", \"message\": \"\u0412\u0430\u0448 \u043A\u043E\u0434 482913 \\u2014 \u0434\u0435\u0439\u0441\u0442\u0432\u0443\u0435\u0442 10 \u043C\u0438\u043D\u0443\u0442 \uD83D\uDD12\"}";
+            case "batch":
+                StringBuilder sb = new StringBuilder("{\"message\": \"Maintenance tonight from 22:00 to 23:00.\", \"numbers\": [");
+                for (int i = 0; i < BATCH_SIZE; i++) {
+                    if (i > 0) sb.append(", ");
+                    sb.append("\"+1555").append(1_000_000 + i).append('"');
+                }
+                return sb.append("]}").toString();
+            default:
+                throw new IllegalArgumentException("Unknown body: " + kind);
+        }
+    }
+
+    @Benchmark
+    public ApiRequest read() throws IOException {
+        in.reset();
+        return ApiServer.readBody(in, bytes.length);
+    }
+}
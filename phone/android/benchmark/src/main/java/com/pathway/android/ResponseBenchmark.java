@@ -0,0 +1,116 @@
+package com.pathway.android;
+
+import java.io.OutputStream;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.Method;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import fi.iki.elonen.NanoHTTPD;
+import fi.iki.elonen.NanoHTTPD.Response;
+
+// Building a reply and writing it to the wire: the JSON body, the NanoHTTPD
+// response, the CORS headers serve() adds, and the status line and headers
+// NanoHTTPD formats for every response. gzip is what a client sending
+// Accept-Encoding: gzip gets.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ResponseBenchmark {
+    // Response.send is what NanoHTTPD's connection handler calls; it isn't public
+    private static final MethodHandle SEND;
+
+    static {
+        try {
+            Method send = Response.class.getDeclaredMethod("send", OutputStream.class);
+            send.setAccessible(true);
+            SEND = MethodHandles.lookup().unreflect(send);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    // Counts what would have gone to the socket
+    private static final class Sink extends OutputStream {
+        long written;
+
+        @Override
+        public void write(int b) {
+            written++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            written += len;
+        }
+    }
+
+    @Param({ "false", "true" })
+    public boolean gzip;
+
+    private final Sink sink = new Sink();
+    private String jobId;
+    private String statusJson;
+
+    @Setup
+    public void setUp() {
+        StatusStore statuses = new StatusStore(16, 60_000);
+        SmsJob job = new SmsJob("+15550001234", "Your code is 482913", 0, true);
+        job.markSending(0, 1);
+        job.complete(SmsJob.STATUS_SENT, null);
+        statuses.record(job);
+        jobId = job.id;
+        statusJson = statuses.get(jobId);
+    }
+
+    private long send(Response response, NanoHTTPD.Method method) throws Throwable {
+        response.addHeader("Access-Control-Allow-Origin", "*");
+        response.addHeader("Access-Control-Allow-Methods", "GET, POST, DELETE, OPTIONS");
+        response.addHeader("Access-Control-Allow-Headers", "Authorization, Content-Type, Last-Event-ID, Idempotency-Key");
+        response.setRequestMethod(method);
+        response.setGzipEncoding(gzip);
+        response.setKeepAlive(true);
+        SEND.invokeExact(response, (OutputStream) sink);
+        return sink.written;
+    }
+
+    // POST /sms with async: a reply written by the worker's JsonWriter
+    @Benchmark
+    public long queued() throws Throwable {
+        JsonWriter out = JsonWriter.forThread().beginObject();
+        out.name("status").value("queued").name("id").value(jobId);
+        out.name("parts").value(1).endObject();
+        Response response = NanoHTTPD.newFixedLengthResponse(Response.Status.ACCEPTED, "application/json", out.stream(), out.length());
+        return send(response, NanoHTTPD.Method.POST);
+    }
+
+    // GET /sms/{id}: the JSON StatusStore keeps for the job
+    @Benchmark
+    public long status() throws Throwable {
+        Response response = NanoHTTPD.newFixedLengthResponse(Response.Status.OK, "application/json", statusJson);
+        return send(response, NanoHTTPD.Method.GET);
+    }
+
+    // 401 for a wrong key
+    @Benchmark
+    public long unauthorized() throws Throwable {
+        Response response = NanoHTTPD.newFixedLengthResponse(Response.Status.UNAUTHORIZED, NanoHTTPD.MIME_PLAINTEXT, "Unauthorized");
+        response.closeConnection(true);
+        return send(response, NanoHTTPD.Method.POST);
+    }
+}
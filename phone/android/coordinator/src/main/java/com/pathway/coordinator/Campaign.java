@@ -0,0 +1,162 @@
+package com.pathway.coordinator;
+
+import com.pathway.android.JsonWriter;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+// A set of messages submitted together and how far each has got. Messages
+// move from pending (waiting for a phone) to accepted (queued on a phone) and
+// end as sent, failed or unconfirmed: handed to a phone that then stopped
+// answering, so whether it went out is unknown. Unconfirmed messages are never
+// sent again elsewhere, which could deliver them twice.
+public class Campaign {
+    private static final int MAX_REASONS = 20;
+
+    // One recipient of the campaign
+    public static final class Item {
+        final Campaign campaign;
+        final String number;
+        final String message;
+        // The phone holding it and its job ID there, once accepted
+        String gateway;
+        String jobId;
+
+        Item(Campaign campaign, String number, String message) {
+            this.campaign = campaign;
+            this.number = number;
+            this.message = message;
+        }
+    }
+
+    public final String id;
+    public final long createdAt;
+    private final int total;
+    private int pending;
+    private int accepted;
+    private int sent;
+    private int failed;
+    private int unconfirmed;
+    private long finishedAt;
+    // Messages accepted by each phone, and why messages failed
+    private final Map<String, Integer> gateways = new TreeMap<>();
+    private final Map<String, Integer> reasons = new LinkedHashMap<>();
+
+    Campaign(String id, int total) {
+        this.id = id;
+        this.createdAt = System.currentTimeMillis();
+        this.total = total;
+        this.pending = total;
+    }
+
+    synchronized void accepted(Item item, String gateway, String jobId) {
+        item.gateway = gateway;
+        item.jobId = jobId;
+        pending--;
+        accepted++;
+        gateways.merge(gateway, 1, Integer::sum);
+    }
+
+    // Rejected by the phone before it was queued
+    synchronized void rejected(String reason) {
+        pending--;
+        failed++;
+        countReason(reason);
+        checkFinished();
+    }
+
+    synchronized void sent() {
+        accepted--;
+        sent++;
+        checkFinished();
+    }
+
+    synchronized void failed(String reason) {
+        accepted--;
+        failed++;
+        countReason(reason);
+        checkFinished();
+    }
+
+    // wasAccepted is false for a batch whose reply was lost
+    synchronized void unconfirmed(boolean wasAccepted) {
+        if (wasAccepted) {
+            accepted--;
+        } else {
+            pending--;
+        }
+        unconfirmed++;
+        checkFinished();
+    }
+
+    private void countReason(String reason) {
+        if (reason == null) reason = "unknown";
+        if (reasons.containsKey(reason) || reasons.size() < MAX_REASONS) {
+            reasons.merge(reason, 1, Integer::sum);
+        }
+    }
+
+    private void checkFinished() {
+        if (pending == 0 && accepted == 0 && finishedAt == 0) {
+            finishedAt = System.currentTimeMillis();
+            notifyAll();
+        }
+    }
+
+    public synchronized boolean isFinished() {
+        return finishedAt > 0;
+    }
+
+    public synchronized int sentCount() {
+        return sent;
+    }
+
+    public synchronized int failedCount() {
+        return failed;
+    }
+
+    public synchronized int unconfirmedCount() {
+        return unconfirmed;
+    }
+
+    // Messages each phone accepted
+    public synchronized Map<String, Integer> distribution() {
+        return new TreeMap<>(gateways);
+    }
+
+    // Waits until every message has an outcome
+    public synchronized boolean await(long timeoutMillis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (finishedAt == 0) {
+            long left = deadline - System.currentTimeMillis();
+            if (left <= 0) return false;
+            wait(left);
+        }
+        return true;
+    }
+
+    synchronized void write(JsonWriter out) {
+        out.beginObject();
+        out.name("id").value(id);
+        out.name("status").value(finishedAt > 0 ? "finished" : "running");
+        out.name("total").value(total);
+        out.name("pending").value(pending);
+        out.name("accepted").value(accepted);
+        out.name("sent").value(sent);
+        out.name("failed").value(failed);
+        out.name("unconfirmed").value(unconfirmed);
+        out.name("createdAt").value(createdAt);
+        if (finishedAt > 0) out.name("finishedAt").value(finishedAt);
+        out.name("gateways").beginObject();
+        for (Map.Entry<String, Integer> e : gateways.entrySet()) {
+            out.name(e.getKey()).value(e.getValue());
+        }
+        out.endObject();
+        out.name("reasons").beginObject();
+        for (Map.Entry<String, Integer> e : reasons.entrySet()) {
+            out.name(e.getKey()).value(e.getValue());
+        }
+        out.endObject();
+        out.endObject();
+    }
+}
@@ -0,0 +1,349 @@
+package com.pathway.coordinator;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Spreads campaigns over a pool of phones. Messages wait in one queue; the
+// router hands them out in chunks to the phone with the shortest expected wait
+// (Gateway.score) among those with room for more, so each phone gets work in
+// proportion to how fast it actually sends, after its rate limits and failures.
+//
+// Each phone has one thread of its own that submits its chunks, polls
+// GET /sms/status for their outcomes, refreshes GET /limits and checks GET /.
+// A phone that misses DOWN_AFTER_FAILED_CHECKS health checks, or doesn't answer
+// a submission, gets no more work until it answers again; chunks it never
+// accepted go back to the front of the queue for the others. Messages it did
+// accept stay with it, since it keeps them in its outbox, and are given up as
+// unconfirmed only if it stays away for STRANDED_AFTER_MILLIS.
+public class Coordinator {
+    private static final long HEALTH_INTERVAL_MILLIS = 2000;
+    private static final long STATUS_INTERVAL_MILLIS = 1000;
+    private static final long LIMITS_INTERVAL_MILLIS = 5000;
+    private static final int DOWN_AFTER_FAILED_CHECKS = 2;
+    private static final long STRANDED_AFTER_MILLIS = 10 * 60 * 1000;
+    private static final int MIN_CHUNK = 10;
+    private static final int MAX_CHUNK = 200;
+    private static final int MAX_CAMPAIGNS = 1000;
+    // How often the router looks again when every phone is full or down
+    private static final long ROUTE_RETRY_MILLIS = 50;
+
+    private static final String ID_PREFIX = Long.toString(System.currentTimeMillis(), 36);
+    private static final AtomicLong ID_COUNTER = new AtomicLong();
+
+    public interface LogCallback {
+        void log(String message);
+    }
+
+    private final List<Gateway> gateways;
+    private final LogCallback log;
+    // Guarded by this
+    private final Deque<Campaign.Item> pending = new ArrayDeque<>();
+    private final Map<String, Campaign> campaigns = new LinkedHashMap<>();
+    private final Map<Gateway, ScheduledExecutorService> workers = new IdentityHashMap<>();
+    private long healthIntervalMillis = HEALTH_INTERVAL_MILLIS;
+    private long statusIntervalMillis = STATUS_INTERVAL_MILLIS;
+    private Thread router;
+    private volatile boolean running;
+
+    public Coordinator(List<Gateway> gateways, LogCallback log) {
+        this.gateways = Collections.unmodifiableList(new ArrayList<>(gateways));
+        this.log = log;
+    }
+
+    // Shorter intervals notice failures and finished messages sooner; set before start()
+    public void setIntervals(long healthMillis, long statusMillis) {
+        this.healthIntervalMillis = healthMillis;
+        this.statusIntervalMillis = statusMillis;
+    }
+
+    public List<Gateway> gateways() {
+        return gateways;
+    }
+
+    public synchronized void start() {
+        if (running) return;
+        running = true;
+        for (Gateway gateway : gateways) {
+            ScheduledThreadPoolExecutor worker = new ScheduledThreadPoolExecutor(1, r -> {
+                Thread t = new Thread(r, "Pathway-Gateway-" + gateway.name);
+                t.setDaemon(true);
+                return t;
+            });
+            worker.scheduleWithFixedDelay(() -> checkHealth(gateway), 0, healthIntervalMillis, TimeUnit.MILLISECONDS);
+            worker.scheduleWithFixedDelay(() -> pollStatus(gateway), statusIntervalMillis, statusIntervalMillis, TimeUnit.MILLISECONDS);
+            worker.scheduleWithFixedDelay(() -> refreshLimits(gateway), LIMITS_INTERVAL_MILLIS, LIMITS_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+            workers.put(gateway, worker);
+        }
+        router = new Thread(this::route, "Pathway-Router");
+        router.setDaemon(true);
+        router.start();
+    }
+
+    public void stop() {
+        Thread r;
+        synchronized (this) {
+            if (!running) return;
+            running = false;
+            r = router;
+            router = null;
+            notifyAll();
+        }
+        try {
+            r.join(5000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (this) {
+            for (ScheduledExecutorService worker : workers.values()) {
+                worker.shutdownNow();
+            }
+            workers.clear();
+        }
+    }
+
+    // Queues one message per number, all with the same text
+    public Campaign submit(List<String> numbers, String message) {
+        return submit(numbers, Collections.nCopies(numbers.size(), message));
+    }
+
+    // Queues messages[i] for numbers[i]
+    public synchronized Campaign submit(List<String> numbers, List<String> messages) {
+        if (numbers.isEmpty() || numbers.size() != messages.size()) {
+            throw new IllegalArgumentException("Expected one message per number");
+        }
+        Campaign campaign = new Campaign(ID_PREFIX + "-" + Long.toString(ID_COUNTER.incrementAndGet(), 36), numbers.size());
+        for (int i = 0; i < numbers.size(); i++) {
+            pending.addLast(new Campaign.Item(campaign, numbers.get(i), messages.get(i)));
+        }
+        if (campaigns.size() >= MAX_CAMPAIGNS) evictFinished();
+        campaigns.put(campaign.id, campaign);
+        notifyAll();
+        return campaign;
+    }
+
+    private void evictFinished() {
+        for (Iterator<Campaign> it = campaigns.values().iterator(); it.hasNext(); ) {
+            if (it.next().isFinished()) {
+                it.remove();
+                if (campaigns.size() < MAX_CAMPAIGNS) return;
+            }
+        }
+    }
+
+    public synchronized Campaign campaign(String id) {
+        return campaigns.get(id);
+    }
+
+    // Messages no phone has taken yet
+    public synchronized int pending() {
+        return pending.size();
+    }
+
+    private synchronized void requeue(List<Campaign.Item> items) {
+        for (int i = items.size() - 1; i >= 0; i--) {
+            pending.addFirst(items.get(i));
+        }
+        notifyAll();
+    }
+
+    private synchronized void wake() {
+        notifyAll();
+    }
+
+    private void log(String message) {
+        if (log != null) log.log(message);
+    }
+
+    private void route() {
+        while (running) {
+            Gateway best;
+            List<Campaign.Item> chunk;
+            synchronized (this) {
+                try {
+                    while (running && pending.isEmpty()) {
+                        wait();
+                    }
+                    if (!running) return;
+                    long now = System.currentTimeMillis();
+                    best = null;
+                    int room = 0;
+                    double bestScore = Double.MAX_VALUE;
+                    double nextScore = Double.MAX_VALUE;
+                    for (Gateway gateway : gateways) {
+                        int free = gateway.free(now);
+                        if (free == 0) continue;
+                        double score = gateway.score();
+                        if (score < bestScore) {
+                            nextScore = bestScore;
+                            best = gateway;
+                            bestScore = score;
+                            room = free;
+                        } else if (score < nextScore) {
+                            nextScore = score;
+                        }
+                    }
+                    if (best == null) {
+                        wait(ROUTE_RETRY_MILLIS);
+                        continue;
+                    }
+                    int count = Math.min(Math.min(room, MAX_CHUNK), pending.size());
+                    // No more than keeps it the best choice, or a big chunk would
+                    // undo the weighting
+                    if (nextScore < Double.MAX_VALUE) {
+                        count = Math.min(count, Math.max(MIN_CHUNK, best.until(nextScore)));
+                    }
+                    chunk = new ArrayList<>(count);
+                    for (int i = 0; i < count; i++) {
+                        chunk.add(pending.pollFirst());
+                    }
+                    best.reserve(count);
+                    Gateway target = best;
+                    workers.get(best).execute(() -> submit(target, chunk));
+                } catch (InterruptedException e) {
+                    return;
+                } catch (java.util.concurrent.RejectedExecutionException e) {
+                    // Stopping
+                    return;
+                }
+            }
+        }
+    }
+
+    // Runs on the gateway's thread, like its status polls, so every accepted job
+    // is in assigned before the poll that could report it finished
+    private void submit(Gateway gateway, List<Campaign.Item> chunk) {
+        String[] reasons = new String[chunk.size()];
+        try {
+            String[] ids = gateway.client.submit(chunk, reasons);
+            for (int i = 0; i < ids.length; i++) {
+                Campaign.Item item = chunk.get(i);
+                if (ids[i] != null) {
+                    gateway.assigned.put(ids[i], item);
+                    item.campaign.accepted(item, gateway.name, ids[i]);
+                } else {
+                    item.campaign.rejected(reasons[i]);
+                }
+            }
+        } catch (GatewayClient.BusyException e) {
+            gateway.busy(System.currentTimeMillis() + e.retryAfterMillis);
+            requeue(chunk);
+        } catch (GatewayClient.UnconfirmedException e) {
+            log("No reply from " + gateway.name + " to a batch of " + chunk.size() + ": " + e.getMessage());
+            markDown(gateway);
+            for (Campaign.Item item : chunk) {
+                item.campaign.unconfirmed(false);
+            }
+        } catch (IOException e) {
+            log("Could not submit to " + gateway.name + ": " + e.getMessage());
+            markDown(gateway);
+            requeue(chunk);
+        } finally {
+            gateway.release(chunk.size());
+            wake();
+        }
+    }
+
+    private void markDown(Gateway gateway) {
+        if (gateway.checked(false, 1, System.currentTimeMillis())) {
+            log(gateway.name + " is down");
+        }
+    }
+
+    private void checkHealth(Gateway gateway) {
+        boolean ok = gateway.client.ping();
+        long now = System.currentTimeMillis();
+        if (gateway.checked(ok, DOWN_AFTER_FAILED_CHECKS, now)) {
+            log(gateway.name + (ok ? " is up" : " is down"));
+            if (ok) refreshLimits(gateway);
+            wake();
+        }
+        if (!ok && gateway.downFor(now) >= STRANDED_AFTER_MILLIS && !gateway.assigned.isEmpty()) {
+            log("Giving up on " + gateway.assigned.size() + " messages held by " + gateway.name);
+            for (Iterator<Campaign.Item> it = gateway.assigned.values().iterator(); it.hasNext(); ) {
+                Campaign.Item item = it.next();
+                it.remove();
+                item.campaign.unconfirmed(true);
+            }
+        }
+    }
+
+    private void refreshLimits(Gateway gateway) {
+        if (!gateway.isUp()) return;
+        try {
+            gateway.limits(gateway.client.limits());
+        } catch (IOException e) {
+            // The health check decides whether the phone is gone
+        }
+    }
+
+    private void pollStatus(Gateway gateway) {
+        long now = System.currentTimeMillis();
+        if (gateway.isUp() && !gateway.assigned.isEmpty()) {
+            try {
+                boolean truncated = false;
+                GatewayClient.Page page;
+                do {
+                    page = gateway.client.changes(gateway.statusCursor);
+                    truncated |= page.truncated;
+                    for (GatewayClient.Change change : page.changes) {
+                        finish(gateway, change);
+                    }
+                    gateway.statusCursor = page.cursor;
+                } while (page.more && running);
+                // Changes were evicted before we saw them; ask for each job instead
+                if (truncated) reconcile(gateway);
+            } catch (IOException e) {
+                // The health check decides whether the phone is gone
+            }
+        }
+        gateway.sample(now, pending() > 0);
+        double total = 0;
+        int measured = 0;
+        for (Gateway g : gateways) {
+            double rate = g.measuredRate();
+            if (rate > 0) {
+                total += rate;
+                measured++;
+            }
+        }
+        if (measured > 0) gateway.assume(total / measured);
+    }
+
+    private void reconcile(Gateway gateway) throws IOException {
+        for (String id : new ArrayList<>(gateway.assigned.keySet())) {
+            GatewayClient.Change change = gateway.client.status(id);
+            if (change == null) {
+                Campaign.Item item = gateway.assigned.remove(id);
+                if (item != null) item.campaign.unconfirmed(true);
+            } else {
+                finish(gateway, change);
+            }
+        }
+    }
+
+    private void finish(Gateway gateway, GatewayClient.Change change) {
+        boolean sent = "sent".equals(change.status);
+        if (!sent && !"failed".equals(change.status)) return;
+        Campaign.Item item = gateway.assigned.remove(change.id);
+        if (item == null) return;
+        gateway.finished(sent);
+        if (sent) {
+            item.campaign.sent();
+        } else {
+            item.campaign.failed(change.reason);
+        }
+        wake();
+    }
+}
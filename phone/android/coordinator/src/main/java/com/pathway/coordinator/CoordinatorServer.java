@@ -0,0 +1,189 @@
+package com.pathway.coordinator;
+
+import com.pathway.android.JsonReader;
+import com.pathway.android.JsonWriter;
+import fi.iki.elonen.NanoHTTPD;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+// The coordinator's HTTP API, with the same Bearer key scheme as the phones:
+//
+//   POST /campaigns     {"message", "numbers": [...]} or {"items": [{"number", "message"}]}
+//   GET  /campaigns/ID  progress: pending, accepted, sent, failed, unconfirmed, per phone
+//   GET  /gateways      each phone's state, load, capacity and failure rate
+//   GET  /              health check, no key needed
+public class CoordinatorServer extends NanoHTTPD {
+    private static final long MAX_BODY_BYTES = 16L * 1024 * 1024;
+    private static final int MAX_CAMPAIGN_SIZE = 100_000;
+    private static final String JSON = "application/json";
+
+    private final Coordinator coordinator;
+    private final String bearer;
+
+    public CoordinatorServer(int port, String apiKey, Coordinator coordinator) {
+        super(port);
+        this.coordinator = coordinator;
+        this.bearer = "Bearer " + apiKey;
+    }
+
+    @Override
+    protected ClientHandler createClientHandler(java.net.Socket socket, InputStream inputStream) {
+        // See ApiServer.createClientHandler
+        try {
+            socket.setTcpNoDelay(true);
+        } catch (java.net.SocketException ignored) {
+            // Already closed; the handler will find out
+        }
+        return super.createClientHandler(socket, inputStream);
+    }
+
+    // Constant-time, like ApiServer.authorized
+    private boolean authorized(String authHeader) {
+        if (authHeader == null || authHeader.length() != bearer.length()) return false;
+        int diff = 0;
+        for (int i = 0; i < bearer.length(); i++) {
+            diff |= authHeader.charAt(i) ^ bearer.charAt(i);
+        }
+        return diff == 0;
+    }
+
+    @Override
+    public Response serve(IHTTPSession session) {
+        String uri = session.getUri();
+        if (Method.GET.equals(session.getMethod()) && "/".equals(uri)) {
+            return newFixedLengthResponse(Response.Status.OK, JSON, "{\"status\": \"online\"}");
+        }
+        if (!authorized(session.getHeaders().get("authorization"))) {
+            Response r = newFixedLengthResponse(Response.Status.UNAUTHORIZED, MIME_PLAINTEXT, "Unauthorized");
+            r.closeConnection(true);
+            return r;
+        }
+
+        if (Method.POST.equals(session.getMethod()) && "/campaigns".equals(uri)) {
+            try {
+                return submit(session);
+            } catch (JsonReader.BodyTooLargeException e) {
+                Response r = failed(Response.Status.PAYLOAD_TOO_LARGE, "Body larger than " + MAX_BODY_BYTES + " bytes");
+                r.closeConnection(true);
+                return r;
+            } catch (IOException e) {
+                return failed(Response.Status.BAD_REQUEST, "Invalid JSON: " + e.getMessage());
+            }
+        }
+        if (Method.GET.equals(session.getMethod())) {
+            if (uri.startsWith("/campaigns/")) {
+                Campaign campaign = coordinator.campaign(uri.substring("/campaigns/".length()));
+                if (campaign == null) return failed(Response.Status.NOT_FOUND, "Unknown campaign");
+                JsonWriter out = JsonWriter.forThread();
+                campaign.write(out);
+                return json(Response.Status.OK, out);
+            } else if ("/gateways".equals(uri)) {
+                long now = System.currentTimeMillis();
+                JsonWriter out = JsonWriter.forThread().beginObject();
+                out.name("pending").value(coordinator.pending());
+                out.name("gateways").beginArray();
+                for (Gateway gateway : coordinator.gateways()) {
+                    gateway.write(out, now);
+                }
+                out.endArray().endObject();
+                return json(Response.Status.OK, out);
+            }
+        }
+        return newFixedLengthResponse(Response.Status.NOT_FOUND, MIME_PLAINTEXT, "Not Found");
+    }
+
+    private Response submit(IHTTPSession session) throws IOException {
+        String contentLength = session.getHeaders().get("content-length");
+        long length;
+        try {
+            length = contentLength != null ? Long.parseLong(contentLength.trim()) : session.getInputStream().available();
+        } catch (NumberFormatException e) {
+            return failed(Response.Status.BAD_REQUEST, "Invalid Content-Length");
+        }
+        List<String> numbers = new ArrayList<>();
+        List<String> messages = new ArrayList<>();
+        String shared = null;
+        JsonReader in = JsonReader.forThread(session.getInputStream(), length, MAX_BODY_BYTES);
+        try {
+            in.beginObject();
+            while (in.hasNext()) {
+                String name = in.nextName();
+                if (in.nextNullIfPresent()) continue;
+                switch (name) {
+                    case "message":
+                        shared = in.nextString();
+                        break;
+                    case "numbers":
+                        in.beginArray();
+                        while (in.hasNext()) {
+                            numbers.add(in.nextString());
+                            messages.add(null);
+                        }
+                        in.endArray();
+                        break;
+                    case "items":
+                        in.beginArray();
+                        while (in.hasNext()) {
+                            readItem(in, numbers, messages);
+                        }
+                        in.endArray();
+                        break;
+                    default:
+                        in.skipValue();
+                }
+            }
+            in.endObject();
+        } finally {
+            in.finish();
+        }
+
+        for (int i = 0; i < messages.size(); i++) {
+            if (messages.get(i) == null) messages.set(i, shared);
+            String number = numbers.get(i);
+            String message = messages.get(i);
+            if (number == null || number.isEmpty() || message == null || message.isEmpty()) {
+                return failed(Response.Status.BAD_REQUEST, "Missing number or message at index " + i);
+            }
+        }
+        if (numbers.isEmpty()) return failed(Response.Status.BAD_REQUEST, "Missing numbers or items");
+        if (numbers.size() > MAX_CAMPAIGN_SIZE) {
+            return failed(Response.Status.PAYLOAD_TOO_LARGE, "Campaign larger than " + MAX_CAMPAIGN_SIZE);
+        }
+
+        Campaign campaign = coordinator.submit(numbers, messages);
+        JsonWriter out = JsonWriter.forThread().beginObject();
+        out.name("status").value("queued").name("id").value(campaign.id);
+        out.name("accepted").value(numbers.size()).endObject();
+        return json(Response.Status.ACCEPTED, out);
+    }
+
+    private static void readItem(JsonReader in, List<String> numbers, List<String> messages) throws IOException {
+        String number = null, message = null;
+        in.beginObject();
+        while (in.hasNext()) {
+            String name = in.nextName();
+            if ("number".equals(name)) {
+                number = in.nextString();
+            } else if ("message".equals(name)) {
+                message = in.nextString();
+            } else {
+                in.skipValue();
+            }
+        }
+        in.endObject();
+        numbers.add(number);
+        messages.add(message);
+    }
+
+    private Response json(Response.Status status, JsonWriter out) {
+        return newFixedLengthResponse(status, JSON, out.stream(), out.length());
+    }
+
+    private Response failed(Response.Status status, String reason) {
+        JsonWriter out = JsonWriter.forThread().beginObject();
+        out.name("status").value("failed").name("reason").value(reason).endObject();
+        return json(status, out);
+    }
+}
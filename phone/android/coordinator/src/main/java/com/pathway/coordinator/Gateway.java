@@ -0,0 +1,191 @@
+package com.pathway.coordinator;
+
+import com.pathway.android.JsonWriter;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+// One phone in the pool and what the coordinator knows about it: whether it
+// answers its health check, how much work it holds, how fast it has been
+// getting through it, what its SIMs' rate limits allow and how often its sends
+// fail. score() turns that into the expected wait for one more message, and
+// free() into how many more it may be given: about TARGET_BACKLOG_SECONDS of
+// work, so a slow phone never sits on a queue that faster ones could drain and
+// little is held up on a phone that goes away.
+public class Gateway {
+    // Assumed per SIM until the phone, or another in the pool, has been seen sending
+    private static final double DEFAULT_LANE_RATE = 1.0;
+    private static final double TARGET_BACKLOG_SECONDS = 3;
+    private static final int MIN_WINDOW = 20;
+    private static final int MAX_WINDOW = 2000;
+    private static final double RATE_EWMA_WEIGHT = 0.3;
+    private static final double FAILURE_EWMA_WEIGHT = 0.05;
+    // A phone failing everything still gets a trickle, so recovery is noticed
+    private static final double MIN_HEALTH = 0.05;
+    // Shortest interval a throughput sample is taken over
+    private static final long MIN_SAMPLE_MILLIS = 250;
+
+    public final String name;
+    final GatewayClient client;
+
+    // Accepted by the phone and not finished yet, by the phone's job ID
+    final Map<String, Campaign.Item> assigned = new ConcurrentHashMap<>();
+    // Cursor into the phone's GET /sms/status
+    long statusCursor;
+
+    private boolean up;
+    private int failedChecks;
+    private long downSince;
+    private long busyUntil;
+    // Being submitted right now
+    private int reserved;
+    private int lanes = 1;
+    private int backlog;
+    private double budget = Double.POSITIVE_INFINITY;
+    private double rate;
+    private double failureRate;
+    private long sent;
+    private long failed;
+    private long sampleStart;
+    private int finishedInSample;
+    private boolean busyAtStart;
+    private double assumedRate;
+
+    public Gateway(String name, String baseUrl, String apiKey) {
+        this.name = name;
+        this.client = new GatewayClient(baseUrl, apiKey);
+    }
+
+    public synchronized boolean isUp() {
+        return up;
+    }
+
+    // Returns true if this changed the phone's state
+    synchronized boolean checked(boolean ok, int downAfter, long now) {
+        if (ok) {
+            failedChecks = 0;
+            if (up) return false;
+            up = true;
+            return true;
+        }
+        failedChecks++;
+        if (!up || failedChecks < downAfter) return false;
+        up = false;
+        downSince = now;
+        return true;
+    }
+
+    // How long the phone has been down, or 0
+    synchronized long downFor(long now) {
+        return up ? 0 : now - downSince;
+    }
+
+    // After a 503: no new work until the phone's Retry-After has passed
+    synchronized void busy(long untilMillis) {
+        busyUntil = untilMillis;
+    }
+
+    synchronized void limits(GatewayClient.Limits limits) {
+        lanes = Math.max(1, limits.lanes);
+        backlog = limits.backlog;
+        budget = limits.lanes > 0 ? limits.budget : Double.POSITIVE_INFINITY;
+    }
+
+    // Messages per second the phone is expected to get through, discounted by how
+    // many of them fail
+    public synchronized double capacity() {
+        double expected = rate > 0 ? rate : Math.max(assumedRate, DEFAULT_LANE_RATE * lanes);
+        return Math.min(expected, budget) * Math.max(MIN_HEALTH, 1 - failureRate);
+    }
+
+    private int window() {
+        double target = Math.ceil(capacity() * TARGET_BACKLOG_SECONDS);
+        return (int) Math.max(MIN_WINDOW, Math.min(MAX_WINDOW, target));
+    }
+
+    // Work on the phone: ours, plus whatever other clients have queued there
+    private int load() {
+        int ours = assigned.size() + reserved;
+        return ours + Math.max(0, backlog - assigned.size());
+    }
+
+    // How many more messages the phone may be given now
+    synchronized int free(long now) {
+        if (!up || now < busyUntil || budget <= 0) return 0;
+        return Math.max(0, window() - load());
+    }
+
+    // Expected seconds until one more message would be sent
+    synchronized double score() {
+        return (load() + 1) / Math.max(capacity(), 1e-6);
+    }
+
+    // How many more messages would bring its score up to score
+    synchronized int until(double score) {
+        return (int) (score * capacity()) - load();
+    }
+
+    synchronized void reserve(int count) {
+        reserved += count;
+    }
+
+    synchronized void release(int count) {
+        reserved -= count;
+    }
+
+    synchronized void finished(boolean ok) {
+        if (ok) {
+            sent++;
+        } else {
+            failed++;
+        }
+        failureRate += FAILURE_EWMA_WEIGHT * ((ok ? 0 : 1) - failureRate);
+        finishedInSample++;
+    }
+
+    // Called after each status poll with whether the coordinator still has
+    // messages waiting. Throughput is measured over intervals in which the phone
+    // had work or could have had it: one that emptied its window between polls
+    // while more was waiting was held back by the window, and counting that
+    // lower bound lets the window grow. At the end of a campaign it says nothing.
+    synchronized void sample(long now, boolean demand) {
+        boolean busy = !assigned.isEmpty() || demand;
+        if (sampleStart == 0 || !busyAtStart || !busy) {
+            sampleStart = now;
+            finishedInSample = 0;
+            busyAtStart = busy;
+            return;
+        }
+        long elapsed = now - sampleStart;
+        if (elapsed < MIN_SAMPLE_MILLIS) return;
+        double measured = finishedInSample * 1000.0 / elapsed;
+        rate = rate > 0 ? rate + RATE_EWMA_WEIGHT * (measured - rate) : measured;
+        sampleStart = now;
+        finishedInSample = 0;
+    }
+
+    // Measured throughput, or 0 before the phone has been seen sending
+    synchronized double measuredRate() {
+        return rate;
+    }
+
+    // What to expect of a phone that hasn't been measured yet: the pool's average
+    synchronized void assume(double poolRate) {
+        assumedRate = poolRate;
+    }
+
+    synchronized void write(JsonWriter out, long now) {
+        out.beginObject();
+        out.name("name").value(name);
+        out.name("url").value(client.baseUrl);
+        out.name("state").value(up ? (now < busyUntil ? "busy" : "up") : "down");
+        out.name("assigned").value(assigned.size());
+        out.name("backlog").value(backlog);
+        out.name("window").value(window());
+        out.name("capacity").raw(String.format(Locale.US, "%.2f", capacity()));
+        out.name("failureRate").raw(String.format(Locale.US, "%.3f", failureRate));
+        out.name("sent").value(sent);
+        out.name("failed").value(failed);
+        out.endObject();
+    }
+}
@@ -0,0 +1,371 @@
+package com.pathway.coordinator;
+
+import com.pathway.android.JsonReader;
+import com.pathway.android.JsonWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+
+// The calls the coordinator makes to one phone's ApiServer. Replies are decoded
+// straight off the connection with the calling thread's JsonReader.
+final class GatewayClient {
+    private static final int CONNECT_TIMEOUT_MILLIS = 2000;
+    private static final int READ_TIMEOUT_MILLIS = 10000;
+    private static final long MAX_REPLY_BYTES = 16L * 1024 * 1024;
+    private static final int STATUS_PAGE_SIZE = 1000;
+
+    // 503 from a phone whose queue is full, or 429 when the gateway's key is over
+    // its rate or quota; try again after retryAfterMillis
+    static final class BusyException extends IOException {
+        final long retryAfterMillis;
+
+        BusyException(String reason, long retryAfterMillis) {
+            super(reason);
+            this.retryAfterMillis = retryAfterMillis;
+        }
+    }
+
+    // The request was sent but no reply came back, so the phone may have acted on it
+    static final class UnconfirmedException extends IOException {
+        UnconfirmedException(IOException cause) {
+            super(cause.getMessage(), cause);
+        }
+    }
+
+    // GET /limits, summed over the phone's SIM lanes
+    static final class Limits {
+        int lanes;
+        // Messages queued or being sent on the phone, from every client
+        int backlog;
+        // Messages per second the lanes' rate limits allow; infinite if a lane has none
+        double budget;
+    }
+
+    // One entry of GET /sms/status
+    static final class Change {
+        final String id;
+        final String status;
+        final String reason;
+
+        Change(String id, String status, String reason) {
+            this.id = id;
+            this.status = status;
+            this.reason = reason;
+        }
+    }
+
+    static final class Page {
+        final List<Change> changes = new ArrayList<>();
+        long cursor;
+        boolean more;
+        boolean truncated;
+    }
+
+    final String baseUrl;
+    private final String authorization;
+
+    GatewayClient(String baseUrl, String apiKey) {
+        this.baseUrl = baseUrl.endsWith("/") ? baseUrl.substring(0, baseUrl.length() - 1) : baseUrl;
+        this.authorization = "Bearer " + apiKey;
+    }
+
+    private HttpURLConnection open(String method, String path) throws IOException {
+        HttpURLConnection conn = (HttpURLConnection) new URL(baseUrl + path).openConnection();
+        conn.setRequestMethod(method);
+        conn.setConnectTimeout(CONNECT_TIMEOUT_MILLIS);
+        conn.setReadTimeout(READ_TIMEOUT_MILLIS);
+        conn.setRequestProperty("Authorization", authorization);
+        return conn;
+    }
+
+    // The reply body, or an IOException for anything but 2xx
+    private static JsonReader reply(HttpURLConnection conn) throws IOException {
+        int code = conn.getResponseCode();
+        if (code == 503 || code == 429) {
+            drain(conn.getErrorStream());
+            long retryAfter = 1000;
+            try {
+                String header = conn.getHeaderField("Retry-After");
+                if (header != null) retryAfter = Long.parseLong(header.trim()) * 1000;
+            } catch (NumberFormatException ignored) {
+                // Keep the default
+            }
+            throw new BusyException("HTTP " + code, retryAfter);
+        }
+        if (code < 200 || code >= 300) {
+            drain(conn.getErrorStream());
+            throw new IOException("HTTP " + code);
+        }
+        InputStream in = conn.getInputStream();
+        long length = conn.getContentLengthLong();
+        return JsonReader.forThread(in, length >= 0 ? length : in.available(), MAX_REPLY_BYTES);
+    }
+
+    // Skips what is left of the reply and closes it, so the connection can be reused
+    private static void finish(HttpURLConnection conn, JsonReader in) throws IOException {
+        try {
+            in.finish();
+        } finally {
+            conn.getInputStream().close();
+        }
+    }
+
+    // Reads what is left so the connection can be reused
+    private static void drain(InputStream in) throws IOException {
+        if (in == null) return;
+        try (InputStream stream = in) {
+            byte[] buffer = new byte[4096];
+            while (stream.read(buffer) > 0) {
+                // Discard
+            }
+        }
+    }
+
+    // GET /, which needs no key
+    boolean ping() {
+        try {
+            HttpURLConnection conn = open("GET", "/");
+            int code = conn.getResponseCode();
+            drain(code < 400 ? conn.getInputStream() : conn.getErrorStream());
+            return code == 200;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    Limits limits() throws IOException {
+        HttpURLConnection conn = open("GET", "/limits");
+        JsonReader in = reply(conn);
+        Limits limits = new Limits();
+        try {
+            in.beginObject();
+            while (in.hasNext()) {
+                if (!"lanes".equals(in.nextName())) {
+                    in.skipValue();
+                    continue;
+                }
+                in.beginArray();
+                while (in.hasNext()) {
+                    readLane(in, limits);
+                }
+                in.endArray();
+            }
+            in.endObject();
+        } finally {
+            finish(conn, in);
+        }
+        return limits;
+    }
+
+    private static void readLane(JsonReader in, Limits limits) throws IOException {
+        double laneBudget = Double.POSITIVE_INFINITY;
+        in.beginObject();
+        while (in.hasNext()) {
+            String name = in.nextName();
+            if ("queued".equals(name) || "inFlight".equals(name)) {
+                limits.backlog += in.nextInt();
+            } else if ("rateLimit".equals(name) && !in.nextNullIfPresent()) {
+                laneBudget = readRateLimit(in);
+            } else {
+                in.skipValue();
+            }
+        }
+        in.endObject();
+        limits.lanes++;
+        limits.budget += laneBudget;
+    }
+
+    // Messages per second one lane may still send: none once an hourly or daily
+    // cap is used up
+    private static double readRateLimit(JsonReader in) throws IOException {
+        double perMinute = 0;
+        long hourlyCap = 0, sentThisHour = 0, dailyCap = 0, sentToday = 0;
+        in.beginObject();
+        while (in.hasNext()) {
+            switch (in.nextName()) {
+                case "perMinute":
+                    perMinute = in.nextDouble();
+                    break;
+                case "hourlyCap":
+                    hourlyCap = in.nextLong();
+                    break;
+                case "sentThisHour":
+                    sentThisHour = in.nextLong();
+                    break;
+                case "dailyCap":
+                    dailyCap = in.nextLong();
+                    break;
+                case "sentToday":
+                    sentToday = in.nextLong();
+                    break;
+                default:
+                    in.skipValue();
+            }
+        }
+        in.endObject();
+        if ((hourlyCap > 0 && sentThisHour >= hourlyCap) || (dailyCap > 0 && sentToday >= dailyCap)) return 0;
+        return perMinute > 0 ? perMinute / 60 : Double.POSITIVE_INFINITY;
+    }
+
+    // POST /sms/batch with one item per message. Returns the phone's job ID for
+    // each item, or null where the phone rejected it (with the reason in reasons).
+    // An IOException other than UnconfirmedException means nothing was queued.
+    String[] submit(List<Campaign.Item> items, String[] reasons) throws IOException {
+        JsonWriter body = JsonWriter.forThread().beginObject();
+        body.name("items").beginArray();
+        for (Campaign.Item item : items) {
+            body.beginObject().name("number").value(item.number).name("message").value(item.message).endObject();
+        }
+        body.endArray().endObject();
+
+        HttpURLConnection conn = open("POST", "/sms/batch");
+        conn.setDoOutput(true);
+        conn.setRequestProperty("Content-Type", "application/json");
+        conn.setFixedLengthStreamingMode(body.length());
+        try (OutputStream out = conn.getOutputStream(); InputStream in = body.stream()) {
+            byte[] buffer = new byte[8192];
+            int n;
+            while ((n = in.read(buffer)) > 0) out.write(buffer, 0, n);
+        }
+
+        JsonReader in;
+        try {
+            in = reply(conn);
+        } catch (BusyException e) {
+            throw e;
+        } catch (IOException e) {
+            // A complete request reached the phone; it may have queued it
+            throw new UnconfirmedException(e);
+        }
+        String[] ids = new String[items.size()];
+        String batchReason = null;
+        try {
+            in.beginObject();
+            while (in.hasNext()) {
+                String name = in.nextName();
+                if ("reason".equals(name)) {
+                    // The whole batch was refused
+                    batchReason = in.nextString();
+                } else if ("items".equals(name)) {
+                    in.beginArray();
+                    while (in.hasNext()) {
+                        readItem(in, ids, reasons);
+                    }
+                    in.endArray();
+                } else {
+                    in.skipValue();
+                }
+            }
+            in.endObject();
+        } finally {
+            finish(conn, in);
+        }
+        if (batchReason != null) {
+            java.util.Arrays.fill(reasons, batchReason);
+        }
+        return ids;
+    }
+
+    private static void readItem(JsonReader in, String[] ids, String[] reasons) throws IOException {
+        int index = -1;
+        String id = null, reason = null;
+        in.beginObject();
+        while (in.hasNext()) {
+            switch (in.nextName()) {
+                case "index":
+                    index = in.nextInt();
+                    break;
+                case "id":
+                    id = in.nextString();
+                    break;
+                case "reason":
+                    reason = in.nextString();
+                    break;
+                default:
+                    in.skipValue();
+            }
+        }
+        in.endObject();
+        if (index < 0 || index >= ids.length) return;
+        ids[index] = id;
+        reasons[index] = id == null ? (reason != null ? reason : "rejected") : null;
+    }
+
+    // GET /sms/status?since=
+    Page changes(long since) throws IOException {
+        HttpURLConnection conn = open("GET", "/sms/status?since=" + since + "&limit=" + STATUS_PAGE_SIZE);
+        JsonReader in = reply(conn);
+        Page page = new Page();
+        page.cursor = since;
+        try {
+            in.beginObject();
+            while (in.hasNext()) {
+                switch (in.nextName()) {
+                    case "cursor":
+                        page.cursor = in.nextLong();
+                        break;
+                    case "more":
+                        page.more = in.nextBoolean();
+                        break;
+                    case "truncated":
+                        page.truncated = in.nextBoolean();
+                        break;
+                    case "items":
+                        in.beginArray();
+                        while (in.hasNext()) {
+                            page.changes.add(readChange(in));
+                        }
+                        in.endArray();
+                        break;
+                    default:
+                        in.skipValue();
+                }
+            }
+            in.endObject();
+        } finally {
+            finish(conn, in);
+        }
+        return page;
+    }
+
+    private static Change readChange(JsonReader in) throws IOException {
+        String id = null, status = null, reason = null;
+        in.beginObject();
+        while (in.hasNext()) {
+            switch (in.nextName()) {
+                case "id":
+                    id = in.nextString();
+                    break;
+                case "status":
+                    status = in.nextString();
+                    break;
+                case "reason":
+                    reason = in.nextString();
+                    break;
+                default:
+                    in.skipValue();
+            }
+        }
+        in.endObject();
+        return new Change(id, status, reason);
+    }
+
+    // GET /sms/{id}; null if the phone no longer knows the job
+    Change status(String id) throws IOException {
+        HttpURLConnection conn = open("GET", "/sms/" + id);
+        if (conn.getResponseCode() == 404) {
+            drain(conn.getErrorStream());
+            return null;
+        }
+        JsonReader in = reply(conn);
+        try {
+            return readChange(in);
+        } finally {
+            finish(conn, in);
+        }
+    }
+}
@@ -0,0 +1,79 @@
+package com.pathway.coordinator;
+
+import java.io.IOException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+
+// java com.pathway.coordinator.Main --port 9090 --key SECRET
+//     --gateway http://192.168.1.20:8080=PHONE_KEY [--gateway ...]
+//
+// Each phone is named after its host and port unless given as NAME@URL=KEY.
+public final class Main {
+    private static final int DEFAULT_PORT = 9090;
+
+    private Main() {
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        int port = DEFAULT_PORT;
+        String key = null;
+        List<Gateway> gateways = new ArrayList<>();
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if (i + 1 >= args.length) usage("Missing value for " + arg);
+            String value = args[++i];
+            switch (arg) {
+                case "--port":
+                    port = Integer.parseInt(value);
+                    break;
+                case "--key":
+                    key = value;
+                    break;
+                case "--gateway":
+                    gateways.add(parseGateway(value));
+                    break;
+                default:
+                    usage("Unknown option " + arg);
+            }
+        }
+        if (key == null || key.isEmpty()) usage("--key is required");
+        if (gateways.isEmpty()) usage("At least one --gateway is required");
+
+        Coordinator coordinator = new Coordinator(gateways, message -> System.out.println(message));
+        coordinator.start();
+        CoordinatorServer server = new CoordinatorServer(port, key, coordinator);
+        server.start(CoordinatorServer.SOCKET_READ_TIMEOUT, false);
+        System.out.println("Coordinator listening on port " + server.getListeningPort() + " with " + gateways.size() + " phones");
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            server.stop();
+            coordinator.stop();
+        }));
+        Thread.currentThread().join();
+    }
+
+    private static Gateway parseGateway(String spec) {
+        int eq = spec.indexOf('=');
+        if (eq < 0) usage("Expected URL=KEY for --gateway, got " + spec);
+        String url = spec.substring(0, eq);
+        String name = null;
+        int at = url.indexOf('@');
+        if (at > 0 && !url.substring(0, at).contains("://")) {
+            name = url.substring(0, at);
+            url = url.substring(at + 1);
+        }
+        try {
+            URL parsed = new URL(url);
+            if (name == null) name = parsed.getAuthority();
+        } catch (IOException e) {
+            usage("Invalid URL " + url);
+        }
+        return new Gateway(name, url, spec.substring(eq + 1));
+    }
+
+    private static void usage(String error) {
+        System.err.println(error);
+        System.err.println("Usage: --port PORT --key KEY --gateway [NAME@]URL=KEY [--gateway ...]");
+        System.exit(2);
+    }
+}
@@ -0,0 +1,137 @@
+package com.pathway.coordinator;
+
+import static org.junit.Assert.*;
+
+import com.pathway.android.ApiServer;
+import com.pathway.android.LogBuffer;
+import com.pathway.android.SimulatedTelephony;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+// A coordinator in front of real ApiServers on loopback, each with a simulated radio
+public class CoordinatorTest {
+    private static final String KEY = "phone-key";
+
+    @Rule
+    public TemporaryFolder dataDir = new TemporaryFolder();
+
+    private final List<ApiServer> servers = new ArrayList<>();
+    private final List<SimulatedTelephony> radios = new ArrayList<>();
+    private Coordinator coordinator;
+
+    @After
+    public void tearDown() {
+        if (coordinator != null) coordinator.stop();
+        for (ApiServer server : servers) server.stop();
+    }
+
+    // A phone whose SIM takes latencyMillis per part
+    private Gateway phone(String name, int port, long latencyMillis) throws IOException {
+        SimulatedTelephony radio = new SimulatedTelephony(1, dataDir.newFolder());
+        radio.setSeed(1);
+        radio.setLatency(latencyMillis, latencyMillis);
+        ApiServer server = new ApiServer(port, KEY, radio, new LogBuffer(256));
+        server.start();
+        servers.add(server);
+        radios.add(radio);
+        return new Gateway(name, "http://127.0.0.1:" + server.getListeningPort(), KEY);
+    }
+
+    private Coordinator start(Gateway... gateways) {
+        coordinator = new Coordinator(List.of(gateways), null);
+        coordinator.setIntervals(100, 100);
+        coordinator.start();
+        return coordinator;
+    }
+
+    private static List<String> numbers(int count) {
+        List<String> numbers = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            numbers.add("+1555" + (1_000_000 + i));
+        }
+        return numbers;
+    }
+
+    private static void awaitUp(Gateway gateway, boolean up) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (gateway.isUp() != up && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(gateway.name, up, gateway.isUp());
+    }
+
+    @Test
+    public void fasterPhoneGetsMoreOfTheCampaign() throws Exception {
+        Gateway fast = phone("fast", 0, 1);
+        Gateway slow = phone("slow", 0, 40);
+        start(fast, slow);
+
+        Campaign campaign = coordinator.submit(numbers(600), "Hello");
+        assertTrue(campaign.await(60_000));
+        assertEquals(600, campaign.sentCount());
+        Map<String, Integer> split = campaign.distribution();
+        assertTrue(split.toString(), split.getOrDefault("fast", 0) > split.getOrDefault("slow", 0));
+        assertEquals(600, radios.get(0).sentMessages() + radios.get(1).sentMessages());
+    }
+
+    @Test
+    public void failingPhoneIsWeightedDown() throws Exception {
+        Gateway healthy = phone("healthy", 0, 2);
+        Gateway failing = phone("failing", 0, 2);
+        radios.get(1).setFailures(0.9, "no_service");
+        start(healthy, failing);
+
+        Campaign first = coordinator.submit(numbers(200), "Warm-up");
+        assertTrue(first.await(60_000));
+        Campaign second = coordinator.submit(numbers(400), "Hello");
+        assertTrue(second.await(60_000));
+        Map<String, Integer> split = second.distribution();
+        assertTrue(split.toString(), split.getOrDefault("healthy", 0) > 2 * split.getOrDefault("failing", 0));
+        assertTrue(failing.capacity() < healthy.capacity());
+    }
+
+    @Test
+    public void downPhoneGetsNoWorkUntilItAnswersAgain() throws Exception {
+        Gateway first = phone("first", 0, 1);
+        Gateway second = phone("second", 0, 1);
+        start(first, second);
+        awaitUp(first, true);
+        awaitUp(second, true);
+
+        int port = servers.get(0).getListeningPort();
+        servers.get(0).stop();
+        awaitUp(first, false);
+
+        Campaign campaign = coordinator.submit(numbers(100), "Hello");
+        assertTrue(campaign.await(30_000));
+        assertEquals(100, campaign.sentCount());
+        assertEquals(Integer.valueOf(100), campaign.distribution().get("second"));
+
+        // Back on the same address
+        phone("first-again", port, 1);
+        awaitUp(first, true);
+        Campaign later = coordinator.submit(numbers(300), "Hello again");
+        assertTrue(later.await(30_000));
+        assertEquals(300, later.sentCount());
+        assertTrue(later.distribution().toString(), later.distribution().getOrDefault("first", 0) > 0);
+    }
+
+    @Test
+    public void rejectedMessagesFailWithThePhonesReason() throws Exception {
+        Gateway only = phone("only", 0, 1);
+        start(only);
+        List<String> numbers = numbers(3);
+        numbers.set(1, "");
+        Campaign campaign = coordinator.submit(numbers, "Hello");
+        assertTrue(campaign.await(30_000));
+        assertEquals(2, campaign.sentCount());
+        assertEquals(1, campaign.failedCount());
+    }
+}
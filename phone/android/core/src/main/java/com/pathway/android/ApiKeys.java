@@ -0,0 +1,415 @@
+package com.pathway.android;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+// The API keys the server accepts. The key it was started with is the primary
+// key: it may do everything, without limits, and is the only one that may add
+// and remove the others (POST/DELETE /keys). Every other key belongs to one
+// integration and carries its own scopes, rate and daily quota, so a client
+// that misbehaves runs into its own limits and nobody else's.
+//
+// Only a SHA-256 of each secret is kept, here and on disk. A request's key is
+// found by hashing what it presented and looking the hash up, one map lookup
+// however many keys there are; the only comparison is between hashes, which
+// tells a guesser nothing about how close the guess was.
+public class ApiKeys {
+    public static final int SCOPE_SMS = 1;
+    public static final int SCOPE_USSD = 2;
+    public static final int SCOPE_READ = 4;
+    public static final int SCOPE_ADMIN = 8;
+    // Indexed by bit; "admin" can't be given to a new key
+    static final String[] SCOPE_NAMES = { "sms", "ussd", "read", "admin" };
+
+    public static final String PRIMARY_ID = "primary";
+    private static final int MAX_KEYS = 100;
+    private static final int MAX_ID_LENGTH = 64;
+    private static final int SECRET_BYTES = 24;
+    private static final long MAX_FILE_BYTES = 1024 * 1024;
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private static final ThreadLocal<MessageDigest> SHA256 = new ThreadLocal<MessageDigest>() {
+        @Override
+        protected MessageDigest initialValue() {
+            try {
+                return MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    };
+
+    // One key: what it may do, its token bucket and daily quota, and what it has used.
+    // The bucket is per key, so requests only ever wait on others made with the same key.
+    public static final class Key {
+        public final String id;
+        final String hash;
+        public final int scopes;
+        // Tokens per minute and bucket size; 0 for no rate limit
+        public final int ratePerMinute;
+        public final int burst;
+        // Messages (SMS and USSD sessions) per local calendar day; 0 for no quota
+        public final int dailyQuota;
+        public final long createdAt;
+
+        final AtomicLong requests = new AtomicLong();
+        final AtomicLong messages = new AtomicLong();
+        final AtomicLong throttled = new AtomicLong();
+        volatile long lastUsedAt;
+
+        // Guarded by this
+        private double tokens;
+        private long lastRefillMillis;
+        private long dayStart;
+        private long dayEnd;
+        private int usedToday;
+
+        Key(String id, String hash, int scopes, int ratePerMinute, int burst, int dailyQuota, long createdAt) {
+            this.id = id;
+            this.hash = hash;
+            this.scopes = scopes;
+            this.ratePerMinute = ratePerMinute;
+            this.burst = ratePerMinute > 0 ? Math.max(1, burst) : 0;
+            this.dailyQuota = dailyQuota;
+            this.createdAt = createdAt;
+            this.tokens = this.burst;
+            this.lastRefillMillis = System.currentTimeMillis();
+        }
+
+        public boolean isPrimary() {
+            return (scopes & SCOPE_ADMIN) != 0;
+        }
+
+        // True if the key has any of the scopes in mask
+        public boolean allows(int mask) {
+            return isPrimary() || (scopes & mask) != 0;
+        }
+
+        // Counts a request made with the key
+        void used() {
+            requests.incrementAndGet();
+            lastUsedAt = System.currentTimeMillis();
+        }
+
+        // Takes cost tokens and count messages of the day's quota, all or none.
+        // Returns 0 when taken, otherwise the milliseconds until they would be,
+        // or -1 if they never can be (cost larger than the bucket or quota).
+        public synchronized long acquire(int cost, int count) {
+            long now = System.currentTimeMillis();
+            if ((ratePerMinute > 0 && cost > burst) || (dailyQuota > 0 && count > dailyQuota)) {
+                throttled.incrementAndGet();
+                return -1;
+            }
+            if (dailyQuota > 0) {
+                rollDay(now);
+                if (usedToday + count > dailyQuota) {
+                    throttled.incrementAndGet();
+                    return Math.max(1, dayEnd - now);
+                }
+            }
+            if (ratePerMinute > 0) {
+                refill(now);
+                if (tokens < cost) {
+                    throttled.incrementAndGet();
+                    return Math.max(1, (long) Math.ceil((cost - tokens) * 60_000.0 / ratePerMinute));
+                }
+                tokens -= cost;
+            }
+            usedToday += count;
+            messages.addAndGet(count);
+            return 0;
+        }
+
+        // Gives back what acquire took for messages that were not accepted after all
+        public synchronized void release(int cost, int count) {
+            if (ratePerMinute > 0) tokens = Math.min(burst, tokens + cost);
+            usedToday = Math.max(0, usedToday - count);
+            messages.addAndGet(-count);
+        }
+
+        // Why acquire turned count messages away: "daily_quota" or "rate_limited"
+        public synchronized String limitReason(int count) {
+            return dailyQuota > 0 && usedToday() + count > dailyQuota ? "daily_quota" : "rate_limited";
+        }
+
+        public synchronized int usedToday() {
+            if (dailyQuota > 0) rollDay(System.currentTimeMillis());
+            return usedToday;
+        }
+
+        private void refill(long now) {
+            long elapsed = now - lastRefillMillis;
+            if (elapsed > 0) {
+                tokens = Math.min(burst, tokens + elapsed * ratePerMinute / 60_000.0);
+                lastRefillMillis = now;
+            }
+        }
+
+        // Days follow the device's local calendar, like RateLimiter's daily cap
+        private void rollDay(long now) {
+            if (now < dayEnd && now >= dayStart) return;
+            Calendar calendar = Calendar.getInstance();
+            calendar.setTimeInMillis(now);
+            calendar.set(Calendar.HOUR_OF_DAY, 0);
+            calendar.set(Calendar.MINUTE, 0);
+            calendar.set(Calendar.SECOND, 0);
+            calendar.set(Calendar.MILLISECOND, 0);
+            dayStart = calendar.getTimeInMillis();
+            calendar.add(Calendar.DAY_OF_MONTH, 1);
+            dayEnd = calendar.getTimeInMillis();
+            usedToday = 0;
+        }
+
+        // Settings and usage, with the secret only when the key was just made
+        void write(JsonWriter out, String secret) {
+            out.beginObject().name("id").value(id);
+            if (secret != null) out.name("key").value(secret);
+            out.name("scopes").beginArray();
+            for (int bit = 0; bit < SCOPE_NAMES.length; bit++) {
+                if ((scopes & (1 << bit)) != 0) out.value(SCOPE_NAMES[bit]);
+            }
+            out.endArray();
+            out.name("ratePerMinute").value(ratePerMinute);
+            out.name("burst").value(burst);
+            out.name("dailyQuota").value(dailyQuota);
+            out.name("createdAt").value(createdAt);
+            out.name("usage").beginObject();
+            out.name("requests").value(requests.get());
+            out.name("messages").value(messages.get());
+            out.name("today").value(usedToday());
+            out.name("throttled").value(throttled.get());
+            out.name("lastUsedAt").value(lastUsedAt);
+            out.endObject().endObject();
+        }
+    }
+
+    // A new key and its secret, which is shown this once
+    public static final class Created {
+        public final Key key;
+        public final String secret;
+
+        Created(Key key, String secret) {
+            this.key = key;
+            this.secret = secret;
+        }
+    }
+
+    private final File file;
+    private final ApiServer.LogCallback log;
+    private final Key primary;
+    // By hash of the secret
+    private final Map<String, Key> byHash = new ConcurrentHashMap<>();
+    private final Map<String, Key> byId = new ConcurrentHashMap<>();
+    private final SecureRandom random = new SecureRandom();
+
+    public ApiKeys(String primarySecret, File file, ApiServer.LogCallback log) {
+        this.file = file;
+        this.log = log;
+        this.primary = new Key(PRIMARY_ID, hash(primarySecret), SCOPE_SMS | SCOPE_USSD | SCOPE_READ | SCOPE_ADMIN,
+                0, 0, 0, System.currentTimeMillis());
+        byHash.put(primary.hash, primary);
+        byId.put(primary.id, primary);
+    }
+
+    // The key with this secret, or null
+    public Key find(String secret) {
+        if (secret == null) return null;
+        return byHash.get(hash(secret));
+    }
+
+    // The key an "Authorization: Bearer <secret>" header names, or null
+    public Key authenticate(String authHeader) {
+        if (authHeader == null || !authHeader.regionMatches(true, 0, "Bearer ", 0, 7)) return null;
+        return find(authHeader.substring(7).trim());
+    }
+
+    public Key get(String id) {
+        return byId.get(id);
+    }
+
+    // The primary key first, then the others oldest first
+    public List<Key> list() {
+        List<Key> keys = new ArrayList<>(byId.values());
+        keys.remove(primary);
+        Collections.sort(keys, new Comparator<Key>() {
+            @Override
+            public int compare(Key a, Key b) {
+                return Long.compare(a.createdAt, b.createdAt);
+            }
+        });
+        keys.add(0, primary);
+        return keys;
+    }
+
+    // Adds a key with a new random secret. Throws IllegalArgumentException for
+    // an ID in use or invalid, no scopes, a negative limit or too many keys.
+    public synchronized Created add(String id, int scopes, int ratePerMinute, int burst, int dailyQuota) {
+        if (id == null || id.isEmpty() || id.length() > MAX_ID_LENGTH || id.indexOf('/') >= 0) {
+            throw new IllegalArgumentException("Invalid id");
+        }
+        if (byId.containsKey(id)) throw new IllegalArgumentException("Key exists: " + id);
+        if ((scopes & ~(SCOPE_SMS | SCOPE_USSD | SCOPE_READ)) != 0 || scopes == 0) {
+            throw new IllegalArgumentException("Scopes must be some of sms, ussd, read");
+        }
+        if (ratePerMinute < 0 || burst < 0 || dailyQuota < 0) {
+            throw new IllegalArgumentException("Limits can't be negative");
+        }
+        if (byId.size() > MAX_KEYS) throw new IllegalArgumentException("Too many keys (" + MAX_KEYS + ")");
+        byte[] bytes = new byte[SECRET_BYTES];
+        random.nextBytes(bytes);
+        String secret = hex(bytes);
+        // A burst defaults to a minute's worth
+        Key key = new Key(id, hash(secret), scopes, ratePerMinute, burst > 0 ? burst : ratePerMinute, dailyQuota,
+                System.currentTimeMillis());
+        byHash.put(key.hash, key);
+        byId.put(id, key);
+        save();
+        return new Created(key, secret);
+    }
+
+    // False if there is no such key; the primary key can't be removed
+    public synchronized boolean remove(String id) {
+        Key key = byId.get(id);
+        if (key == null || key == primary) return false;
+        byId.remove(id);
+        byHash.remove(key.hash);
+        save();
+        return true;
+    }
+
+    // Scope bits for names, or -1 if one isn't a scope
+    static int scopes(List<String> names) {
+        int scopes = 0;
+        for (String name : names) {
+            int bit = Arrays.asList(SCOPE_NAMES).indexOf(name);
+            if (bit < 0) return -1;
+            scopes |= 1 << bit;
+        }
+        return scopes;
+    }
+
+    // Reads the keys added by earlier runs; a missing file means there are none yet
+    public synchronized void load() {
+        if (!file.exists()) return;
+        try (InputStream in = new FileInputStream(file)) {
+            JsonReader reader = JsonReader.forThread(in, file.length(), MAX_FILE_BYTES);
+            reader.beginObject();
+            while (reader.hasNext()) {
+                if (!"keys".equals(reader.nextName())) {
+                    reader.skipValue();
+                    continue;
+                }
+                reader.beginArray();
+                while (reader.hasNext()) {
+                    Key key = readKey(reader);
+                    if (key == null || byId.containsKey(key.id)) continue;
+                    byHash.put(key.hash, key);
+                    byId.put(key.id, key);
+                }
+                reader.endArray();
+            }
+            reader.endObject();
+            reader.finish();
+        } catch (IOException e) {
+            log.log("Cannot read API keys from " + file + ": " + e.getMessage());
+        }
+    }
+
+    private static Key readKey(JsonReader in) throws IOException {
+        String id = null, hash = null;
+        int scopes = 0, ratePerMinute = 0, burst = 0, dailyQuota = 0;
+        long createdAt = 0;
+        in.beginObject();
+        while (in.hasNext()) {
+            String name = in.nextName();
+            if (in.nextNullIfPresent()) continue;
+            switch (name) {
+                case "id":
+                    id = in.nextString();
+                    break;
+                case "hash":
+                    hash = in.nextString();
+                    break;
+                case "scopes":
+                    scopes = in.nextInt();
+                    break;
+                case "ratePerMinute":
+                    ratePerMinute = in.nextInt();
+                    break;
+                case "burst":
+                    burst = in.nextInt();
+                    break;
+                case "dailyQuota":
+                    dailyQuota = in.nextInt();
+                    break;
+                case "createdAt":
+                    createdAt = in.nextLong();
+                    break;
+                default:
+                    in.skipValue();
+            }
+        }
+        in.endObject();
+        // Never lets a file grant admin
+        if (id == null || hash == null || (scopes & SCOPE_ADMIN) != 0) return null;
+        return new Key(id, hash, scopes, ratePerMinute, burst, dailyQuota, createdAt);
+    }
+
+    // Written to a temporary file and renamed, so a crash leaves the old keys or the new ones
+    private void save() {
+        JsonWriter out = new JsonWriter(256 + byId.size() * 192).beginObject();
+        out.name("keys").beginArray();
+        for (Key key : list()) {
+            if (key == primary) continue;
+            out.beginObject().name("id").value(key.id).name("hash").value(key.hash);
+            out.name("scopes").value(key.scopes);
+            out.name("ratePerMinute").value(key.ratePerMinute);
+            out.name("burst").value(key.burst);
+            out.name("dailyQuota").value(key.dailyQuota);
+            out.name("createdAt").value(key.createdAt).endObject();
+        }
+        out.endArray().endObject();
+
+        File tmp = new File(file.getPath() + ".tmp");
+        try (FileOutputStream os = new FileOutputStream(tmp)) {
+            os.write(out.toString().getBytes(StandardCharsets.UTF_8));
+            os.getFD().sync();
+        } catch (IOException e) {
+            log.log("Cannot save API keys: " + e.getMessage());
+            return;
+        }
+        if (!tmp.renameTo(file)) {
+            log.log("Cannot save API keys to " + file);
+        }
+    }
+
+    static String hash(String secret) {
+        MessageDigest digest = SHA256.get();
+        return hex(digest.digest(secret.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    private static String hex(byte[] bytes) {
+        char[] chars = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            chars[i * 2] = HEX[(bytes[i] >> 4) & 0xF];
+            chars[i * 2 + 1] = HEX[bytes[i] & 0xF];
+        }
+        return new String(chars);
+    }
+}
@@ -0,0 +1,304 @@
+package com.pathway.android;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.GregorianCalendar;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+// The fields of a POST /sms, /sms/batch, /ussd, /templates or /keys body, pulled off the stream by
+// JsonReader. Unknown fields are skipped without being decoded. Batch items are
+// ApiRequests too; fields an item leaves out are left unset so the batch-level
+// value applies.
+final class ApiRequest {
+    static final int UNSET = Integer.MIN_VALUE;
+
+    // ISO 8601 date and time, with seconds, fraction and offset optional
+    private static final Pattern ISO_TIME = Pattern.compile(
+            "(\\d{4})-(\\d{2})-(\\d{2})[T ](\\d{2}):(\\d{2})(?::(\\d{2})(?:[.,](\\d{1,9}))?)?(Z|[+-]\\d{2}(?::?\\d{2})?)?");
+
+    String number;
+    String message;
+    String code;
+    // POST /ussd: text the first answer must contain, the menu steps after the
+    // code, and how long a successful answer may be reused (0: never)
+    String expect;
+    List<UssdEngine.Step> steps;
+    int cacheTtl;
+    String idempotencyKey;
+    // POST /templates: the template's ID and text
+    String id;
+    String text;
+    // Send a registered template instead of message, filling in vars
+    String template;
+    Map<String, String> vars;
+    int sim = UNSET;
+    boolean async;
+    Boolean deliveryReport;
+    // When to send: epoch milliseconds or an ISO 8601 time, and for a batch the
+    // seconds over which to space its messages out from then
+    String sendAt;
+    int spreadOver;
+    // Priority class name (SmsJob.PRIORITY_NAMES)
+    String priority;
+    List<ApiRequest> items;
+    List<String> numbers;
+    // National languages for POST /sms/estimate
+    List<String> languages;
+    // POST /keys: the new key's scopes and limits
+    List<String> scopes;
+    int ratePerMinute;
+    int burst;
+    int dailyQuota;
+    // A batch item that was not a JSON object
+    boolean invalid;
+
+    static ApiRequest read(JsonReader in) throws IOException {
+        if (in.peek() != JsonReader.BEGIN_OBJECT) {
+            throw new JsonReader.MalformedJsonException("Expected a JSON object");
+        }
+        ApiRequest request = readObject(in);
+        in.peek(); // Rejects anything after the object
+        return request;
+    }
+
+    private static ApiRequest readObject(JsonReader in) throws IOException {
+        ApiRequest request = new ApiRequest();
+        in.beginObject();
+        while (in.hasNext()) {
+            String name = in.nextName();
+            if (in.nextNullIfPresent()) continue;
+            switch (name) {
+                case "number":
+                    request.number = in.nextString();
+                    break;
+                case "message":
+                    request.message = in.nextString();
+                    break;
+                case "code":
+                    request.code = in.nextString();
+                    break;
+                case "expect":
+                    request.expect = in.nextString();
+                    break;
+                case "steps":
+                    request.steps = readSteps(in);
+                    break;
+                case "cacheTtl":
+                    request.cacheTtl = in.nextInt();
+                    break;
+                case "idempotencyKey":
+                    request.idempotencyKey = in.nextString();
+                    break;
+                case "id":
+                    request.id = in.nextString();
+                    break;
+                case "text":
+                    request.text = in.nextString();
+                    break;
+                case "template":
+                    request.template = in.nextString();
+                    break;
+                case "vars":
+                    request.vars = readVars(in);
+                    break;
+                case "sim":
+                    request.sim = in.nextInt();
+                    break;
+                case "async":
+                    request.async = in.nextBoolean();
+                    break;
+                case "deliveryReport":
+                    request.deliveryReport = in.nextBoolean();
+                    break;
+                case "sendAt":
+                    request.sendAt = in.nextString();
+                    break;
+                case "spreadOver":
+                    request.spreadOver = in.nextInt();
+                    break;
+                case "priority":
+                    request.priority = in.nextString();
+                    break;
+                case "items":
+                    request.items = readItems(in);
+                    break;
+                case "numbers":
+                    request.numbers = readStrings(in);
+                    break;
+                case "languages":
+                    request.languages = readStrings(in);
+                    break;
+                case "scopes":
+                    request.scopes = readStrings(in);
+                    break;
+                case "ratePerMinute":
+                    request.ratePerMinute = in.nextInt();
+                    break;
+                case "burst":
+                    request.burst = in.nextInt();
+                    break;
+                case "dailyQuota":
+                    request.dailyQuota = in.nextInt();
+                    break;
+                default:
+                    in.skipValue();
+            }
+        }
+        in.endObject();
+        return request;
+    }
+
+    private static List<ApiRequest> readItems(JsonReader in) throws IOException {
+        if (in.peek() != JsonReader.BEGIN_ARRAY) {
+            in.skipValue();
+            return null;
+        }
+        List<ApiRequest> items = new ArrayList<>();
+        in.beginArray();
+        while (in.hasNext()) {
+            if (in.peek() == JsonReader.BEGIN_OBJECT) {
+                items.add(readObject(in));
+            } else {
+                in.skipValue();
+                ApiRequest invalid = new ApiRequest();
+                invalid.invalid = true;
+                items.add(invalid);
+            }
+        }
+        in.endArray();
+        return items;
+    }
+
+    // Each step is a reply ("1") or {"reply" | "select", "expect"}; anything else
+    // becomes an empty step, which UssdEngine rejects
+    private static List<UssdEngine.Step> readSteps(JsonReader in) throws IOException {
+        if (in.peek() != JsonReader.BEGIN_ARRAY) {
+            in.skipValue();
+            return null;
+        }
+        List<UssdEngine.Step> steps = new ArrayList<>();
+        in.beginArray();
+        while (in.hasNext()) {
+            int token = in.peek();
+            if (token == JsonReader.STRING || token == JsonReader.NUMBER) {
+                steps.add(new UssdEngine.Step(in.nextString(), null, null));
+            } else if (token == JsonReader.BEGIN_OBJECT) {
+                String reply = null, select = null, expect = null;
+                in.beginObject();
+                while (in.hasNext()) {
+                    String name = in.nextName();
+                    if (in.nextNullIfPresent()) continue;
+                    if ("reply".equals(name)) {
+                        reply = in.nextString();
+                    } else if ("select".equals(name)) {
+                        select = in.nextString();
+                    } else if ("expect".equals(name)) {
+                        expect = in.nextString();
+                    } else {
+                        in.skipValue();
+                    }
+                }
+                in.endObject();
+                steps.add(new UssdEngine.Step(reply, select, expect));
+            } else {
+                in.skipValue();
+                steps.add(new UssdEngine.Step(null, null, null));
+            }
+        }
+        in.endArray();
+        return steps;
+    }
+
+    // A flat object of names to values; numbers and booleans become their text
+    private static Map<String, String> readVars(JsonReader in) throws IOException {
+        if (in.peek() != JsonReader.BEGIN_OBJECT) {
+            in.skipValue();
+            return null;
+        }
+        Map<String, String> vars = new HashMap<>();
+        in.beginObject();
+        while (in.hasNext()) {
+            String name = in.nextName();
+            int token = in.peek();
+            if (token == JsonReader.STRING || token == JsonReader.NUMBER || token == JsonReader.BOOLEAN) {
+                vars.put(name, in.nextString());
+            } else {
+                in.skipValue();
+            }
+        }
+        in.endObject();
+        return vars;
+    }
+
+    // Non-string elements become "" so indexes still line up
+    private static List<String> readStrings(JsonReader in) throws IOException {
+        if (in.peek() != JsonReader.BEGIN_ARRAY) {
+            in.skipValue();
+            return null;
+        }
+        List<String> values = new ArrayList<>();
+        in.beginArray();
+        while (in.hasNext()) {
+            int token = in.peek();
+            if (token == JsonReader.STRING || token == JsonReader.NUMBER) {
+                values.add(in.nextString());
+            } else {
+                in.skipValue();
+                values.add("");
+            }
+        }
+        in.endArray();
+        return values;
+    }
+
+    // Epoch milliseconds for sendAt, or -1 if it isn't a time. java.time needs API
+    // 26, so ISO times are taken apart by hand; without an offset they are the
+    // phone's local time.
+    static long parseTime(String value) {
+        if (value.isEmpty()) return -1;
+        if (value.chars().allMatch(Character::isDigit)) {
+            try {
+                return Long.parseLong(value);
+            } catch (NumberFormatException e) {
+                return -1;
+            }
+        }
+        Matcher m = ISO_TIME.matcher(value);
+        if (!m.matches()) return -1;
+        TimeZone zone = TimeZone.getDefault();
+        String offset = m.group(8);
+        if (offset != null) {
+            zone = TimeZone.getTimeZone("UTC");
+            if (!offset.equals("Z")) {
+                String digits = offset.replace(":", "");
+                int minutes = Integer.parseInt(digits.substring(1, 3)) * 60
+                        + (digits.length() > 3 ? Integer.parseInt(digits.substring(3)) : 0);
+                zone.setRawOffset((offset.charAt(0) == '-' ? -minutes : minutes) * 60_000);
+            }
+        }
+        GregorianCalendar calendar = new GregorianCalendar(zone);
+        calendar.setLenient(false);
+        calendar.clear();
+        calendar.set(Integer.parseInt(m.group(1)), Integer.parseInt(m.group(2)) - 1, Integer.parseInt(m.group(3)),
+                Integer.parseInt(m.group(4)), Integer.parseInt(m.group(5)), m.group(6) != null ? Integer.parseInt(m.group(6)) : 0);
+        String fraction = m.group(7);
+        if (fraction != null) {
+            calendar.set(Calendar.MILLISECOND, Integer.parseInt((fraction + "00").substring(0, 3)));
+        }
+        try {
+            return calendar.getTimeInMillis();
+        } catch (IllegalArgumentException e) {
+            return -1; // Out of range, e.g. 2025-02-30
+        }
+    }
+
+    static String orEmpty(String value) {
+        return value != null ? value : "";
+    }
+}
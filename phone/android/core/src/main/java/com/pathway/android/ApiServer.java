@@ -0,0 +1,1489 @@
+package com.pathway.android;
+
+import fi.iki.elonen.NanoHTTPD;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.MalformedURLException;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+public class ApiServer extends NanoHTTPD {
+    // Who may call, with each key's scopes and limits
+    private final ApiKeys keys;
+    private final Telephony telephony;
+    private final LogBuffer logs;
+    private final SmsDispatcher dispatcher;
+    private final StatusStore statuses;
+    private final EventHub events = new EventHub(EVENT_BUFFER_SIZE);
+    private final Metrics metrics = new Metrics();
+    private final WorkerPool workers = new WorkerPool(HTTP_WORKERS, HTTP_ACCEPT_QUEUE, HTTP_MAX_CONNECTIONS_PER_CLIENT);
+    private final SendTracker tracker;
+    private final Outbox outbox;
+    // Copies new log lines into the event stream off the logging threads
+    private ScheduledExecutorService logPump;
+    private long logPumpCursor;
+    private volatile boolean outboxReady;
+    private final TemplateStore templates = new TemplateStore(MAX_TEMPLATES);
+    // Keys of recent POST /sms requests, and (when enabled) number + message
+    // hashes, mapped to the job each one created
+    private final IdempotencyCache idempotencyKeys = new IdempotencyCache(IDEMPOTENCY_MAX_KEYS, IDEMPOTENCY_TTL_MILLIS);
+    private final IdempotencyCache recentContent = new IdempotencyCache(DEDUP_MAX_ENTRIES, 0);
+    // Optional binary listener (see FrameServer), started by startFrameListener
+    private volatile FrameServer frames;
+    private final UssdEngine ussd;
+    // Received SMS, and the optional push of them to a LAN URL (setInboxWebhook)
+    private final Inbox inbox;
+    private InboxWebhook inboxWebhook;
+    // Messages waiting for their sendAt; the outbox holds them across restarts
+    private final TimerWheel<SmsJob> schedule;
+    
+    // Timeout constants for SMS sending (in seconds)
+    private static final int SMS_BASE_TIMEOUT_SECONDS = 15;
+    private static final int SMS_PER_PART_TIMEOUT_SECONDS = 5;
+    // How long a blocking (non-async) POST /sms waits for its job to finish
+    private static final int SMS_SYNC_WAIT_SECONDS = 60;
+    // Per-SIM lane limits
+    private static final int SMS_QUEUE_CAPACITY = 10000;
+    // Messages handed to SmsManager per SIM before waiting for sent confirmations
+    private static final int SMS_MAX_IN_FLIGHT = 4;
+    private static final int USSD_TIMEOUT_SECONDS = 45;
+    // Received SMS kept for GET /inbox
+    private static final int INBOX_MAX_ENTRIES = 10000;
+    private static final long INBOX_MAX_AGE_MILLIS = 30L * 24 * 60 * 60 * 1000;
+    // Sessions waiting per SIM, and finished ones kept for GET /ussd/{id}
+    private static final int USSD_QUEUE_CAPACITY = 32;
+    private static final int USSD_MAX_SESSIONS = 1000;
+    // How long a blocking (non-async) POST /ussd waits before answering with the session so far
+    private static final int USSD_SYNC_WAIT_SECONDS = 90;
+    private static final int SMS_MAX_BATCH_SIZE = 5000;
+    // Scheduled messages waiting at once, and how far ahead sendAt may be
+    private static final int SCHEDULE_MAX_PENDING = 500_000;
+    private static final long SCHEDULE_MAX_AHEAD_MILLIS = 90L * 24 * 60 * 60 * 1000;
+    // Idempotency-Key values are remembered for a day; duplicate suppression by
+    // content is off until setDedupWindow
+    private static final int IDEMPOTENCY_MAX_KEYS = 10000;
+    private static final long IDEMPOTENCY_TTL_MILLIS = 24L * 60 * 60 * 1000;
+    private static final int MAX_IDEMPOTENCY_KEY_LENGTH = 255;
+    private static final int DEDUP_MAX_ENTRIES = 10000;
+    private static final int MAX_TEMPLATES = 500;
+    private static final int MAX_TEMPLATE_LENGTH = 10000;
+    // Characters listed by POST /sms/estimate as forcing UCS-2
+    private static final int MAX_UNENCODABLE_REPORTED = 20;
+    // POST bodies are decoded as they arrive; anything longer is refused unread
+    private static final int MAX_BODY_BYTES = 4 * 1024 * 1024;
+    // Status/delivery records kept for GET /sms/{id} and /sms/status, oldest update evicted first
+    private static final int STATUS_MAX_ENTRIES = 20000;
+    private static final long STATUS_MAX_AGE_MILLIS = 7L * 24 * 60 * 60 * 1000;
+    // Recent events kept for /events clients that reconnect
+    private static final int EVENT_BUFFER_SIZE = 4096;
+    private static final long LOG_PUMP_INTERVAL_MILLIS = 250;
+    // HTTP front end: connections are served by a fixed pool of workers (a blocking
+    // POST /sms holds one until the carrier answers), wait in a bounded queue when
+    // all are busy, and are turned away with 503 beyond that
+    private static final int HTTP_WORKERS = 16;
+    private static final int HTTP_ACCEPT_QUEUE = 64;
+    private static final int HTTP_MAX_CONNECTIONS_PER_CLIENT = 12;
+    // Event streams hold a worker each, so only a few may be open at once
+    private static final int MAX_EVENT_STREAMS = 4;
+    private static final String RETRY_AFTER_SECONDS = "1";
+
+    public interface LogCallback {
+        void log(String message);
+    }
+
+    public ApiServer(int port, String apiKey, Telephony telephony, LogBuffer logs) {
+        super(port);
+        this.telephony = telephony;
+        this.keys = new ApiKeys(apiKey, new File(telephony.dataDir(), "keys.json"), this::log);
+        this.logs = logs;
+        setAsyncRunner(workers);
+        this.statuses = new StatusStore(STATUS_MAX_ENTRIES, STATUS_MAX_AGE_MILLIS);
+        this.statuses.setListener(json -> events.publish(EventHub.TYPE_STATUS, json));
+        this.tracker = new SendTracker(statuses, metrics, this::log);
+        this.ussd = new UssdEngine(telephony, metrics, USSD_QUEUE_CAPACITY, USSD_TIMEOUT_SECONDS * 1000L, USSD_MAX_SESSIONS, logs);
+        this.outbox = new Outbox(new File(telephony.dataDir(), "outbox"), this::log);
+        this.inbox = new Inbox(new File(telephony.dataDir(), "inbox"), INBOX_MAX_ENTRIES, INBOX_MAX_AGE_MILLIS, this::log);
+        this.dispatcher = new SmsDispatcher(SMS_QUEUE_CAPACITY, SMS_MAX_IN_FLIGHT,
+                SMS_BASE_TIMEOUT_SECONDS, SMS_PER_PART_TIMEOUT_SECONDS, this::sendSms, statuses);
+        // Jobs dropped by a shutdown stay in the outbox and are replayed on the next start
+        this.dispatcher.setJobListener(job -> {
+            int slot = job.getSentOnSlot() != -1 ? job.getSentOnSlot() : job.simSlot;
+            long micros = (job.getFinishedAt() - job.readyAt()) * 1000;
+            metrics.sim(slot).recordFinished(job.getStatus(), job.getReason(), micros);
+            metrics.priority(job.priority).recordFinished(job.getStatus(), micros);
+            if (!SmsJob.REASON_STOPPED.equals(job.getReason())) {
+                outbox.done(job);
+            }
+            FrameServer f = frames;
+            if (f != null) f.onFinished(job);
+        });
+        // A job whose time has come joins its lane like a new one; a full lane
+        // leaves it in the wheel for the next second
+        this.schedule = new TimerWheel<>("Pathway-Schedule", job -> {
+            job.markQueued();
+            return dispatcher.submit(job);
+        });
+        this.tracker.setDeliveryListener((jobId, delivery) -> {
+            FrameServer f = frames;
+            if (f != null) f.onDelivery(jobId, delivery);
+        });
+    }
+
+    // Keeps the socket reachable so WorkerPool can answer a rejected connection
+    private class Connection extends ClientHandler implements WorkerPool.Connection {
+        private final Socket socket;
+
+        Connection(InputStream inputStream, Socket socket) {
+            super(inputStream, socket);
+            this.socket = socket;
+        }
+
+        @Override
+        public Socket socket() {
+            return socket;
+        }
+    }
+
+    @Override
+    protected ClientHandler createClientHandler(Socket socket, InputStream inputStream) {
+        // NanoHTTPD writes the headers and the body separately; with Nagle on, the
+        // body of every keep-alive response waits for the client's delayed ACK
+        try {
+            socket.setTcpNoDelay(true);
+        } catch (SocketException ignored) {
+            // Already closed; the handler will find out
+        }
+        return new Connection(inputStream, socket);
+    }
+
+    @Override
+    public void start(int timeout, boolean daemon) throws IOException {
+        keys.load();
+        logPumpCursor = logs.head();
+        logPump = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "Pathway-LogEvents");
+            t.setDaemon(true);
+            return t;
+        });
+        logPump.scheduleWithFixedDelay(this::pumpLogs, LOG_PUMP_INTERVAL_MILLIS, LOG_PUMP_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+        tracker.start();
+        telephony.start(tracker);
+        int[] slots = activeSimSlots();
+        dispatcher.start(slots);
+        log("Dispatch lanes: " + slots.length);
+        applyRateLimits();
+        schedule.start();
+        replayOutbox();
+        try {
+            inbox.open();
+        } catch (IOException e) {
+            log(LogBuffer.WARN, "Inbox log unavailable, received messages won't survive a restart: " + e.getMessage());
+        }
+        telephony.setInboxListener(this::onSmsReceived);
+        telephony.setSimListener(() -> {
+            dispatcher.addLanes(activeSimSlots());
+            applyRateLimits();
+            log("SIMs changed: " + telephony.sims().size() + " active");
+        });
+        // Only now: a message accepted before the lanes and the outbox are up
+        // would be turned away, or answered without being written down
+        try {
+            super.start(timeout, daemon);
+        } catch (IOException e) {
+            stop();
+            throw e;
+        }
+    }
+
+    // Re-queues messages that were accepted but never confirmed by a previous run,
+    // and schedules again those whose sendAt is still ahead
+    private void replayOutbox() {
+        List<SmsJob> pending;
+        try {
+            pending = outbox.open();
+            outboxReady = true;
+        } catch (IOException e) {
+            log(LogBuffer.WARN, "Outbox unavailable, queued messages won't survive a restart: " + e.getMessage());
+            return;
+        }
+        if (pending.isEmpty()) return;
+
+        long now = System.currentTimeMillis();
+        List<SmsJob> later = new ArrayList<>();
+        int replayed = 0;
+        for (SmsJob job : pending) {
+            if (job.sendAt > now) {
+                later.add(job);
+                continue;
+            }
+            job.markQueued();
+            // Anything that doesn't fit stays in the outbox for the next start
+            if (dispatcher.submit(job)) replayed++;
+        }
+        log("Replaying " + replayed + " unsent message(s) from outbox");
+        if (!later.isEmpty()) {
+            scheduleAll(later);
+            log("Rescheduled " + later.size() + " message(s) from outbox");
+        }
+    }
+
+    private void scheduleAll(List<SmsJob> jobs) {
+        long[] due = new long[jobs.size()];
+        for (int i = 0; i < due.length; i++) {
+            SmsJob job = jobs.get(i);
+            statuses.record(job);
+            due[i] = job.sendAt;
+        }
+        schedule.scheduleAll(jobs, due);
+    }
+
+    // When a message with this sendAt and offsetMillis into its spreadOver window
+    // should go out, or 0 for right away. Throws IllegalArgumentException for a
+    // sendAt that isn't a time or is too far ahead.
+    private static long sendTime(String sendAt, long offsetMillis) {
+        long now = System.currentTimeMillis();
+        long start = now;
+        if (sendAt != null) {
+            start = ApiRequest.parseTime(sendAt);
+            if (start < 0) throw new IllegalArgumentException("Invalid sendAt: " + sendAt);
+        }
+        long at = Math.max(start, now) + offsetMillis;
+        if (at - now > SCHEDULE_MAX_AHEAD_MILLIS) {
+            throw new IllegalArgumentException("sendAt more than " + SCHEDULE_MAX_AHEAD_MILLIS / (24 * 60 * 60 * 1000) + " days ahead");
+        }
+        return at > now ? at : 0;
+    }
+
+    // The request's priority class, the given default without one, or -1 for an unknown name
+    private static int priorityOf(ApiRequest request, int defaultPriority) {
+        return request.priority != null ? SmsJob.priority(request.priority) : defaultPriority;
+    }
+
+    // Who a request counts against for fair queueing: its key, or for the
+    // primary key, which several clients may share, the client's address
+    private static String tenantOf(ApiKeys.Key key, IHTTPSession session) {
+        if (!key.isPrimary()) return key.id;
+        String address = session.getRemoteIpAddress();
+        return address != null ? address : "";
+    }
+
+    private static boolean validSpread(int spreadOver) {
+        return spreadOver >= 0 && spreadOver * 1000L <= SCHEDULE_MAX_AHEAD_MILLIS;
+    }
+
+    // Blocks until the jobs are durable (group-committed with other requests)
+    private void persist(List<SmsJob> jobs) throws IOException, InterruptedException {
+        if (outboxReady) {
+            outbox.accept(jobs);
+        }
+    }
+
+    // Treats a POST /sms with the same number and message as one accepted in the
+    // last `seconds` as a retry of it; 0 turns this off
+    public void setDedupWindow(int seconds) {
+        recentContent.setTtl(seconds * 1000L);
+    }
+
+    // Opens the binary protocol listener next to HTTP; closed again by stop()
+    public void startFrameListener(int port) throws IOException {
+        FrameServer server = new FrameServer(port, keys, new FrameServer.Sink() {
+            @Override
+            public boolean[] submit(List<SmsJob> jobs) throws IOException, InterruptedException {
+                return submitEach(jobs);
+            }
+
+            @Override
+            public int preferredSim() {
+                return ApiServer.this.preferredSim();
+            }
+
+            @Override
+            public boolean knownSim(int slot) {
+                return ApiServer.this.knownSim(slot);
+            }
+        }, this::log);
+        server.start();
+        frames = server;
+    }
+
+    // One durable write for the group, then each job is queued on its own
+    private boolean[] submitEach(List<SmsJob> jobs) throws IOException, InterruptedException {
+        persist(jobs);
+        boolean[] accepted = new boolean[jobs.size()];
+        for (int i = 0; i < accepted.length; i++) {
+            SmsJob job = jobs.get(i);
+            accepted[i] = dispatcher.submit(job);
+            if (!accepted[i]) outbox.done(job);
+        }
+        return accepted;
+    }
+
+    @Override
+    public void stop() {
+        FrameServer f = frames;
+        frames = null;
+        if (f != null) f.stop();
+        super.stop();
+        workers.shutdown();
+        telephony.setSimListener(null);
+        telephony.setInboxListener(null);
+        setInboxWebhook(null, null);
+        inbox.close();
+        logPump.shutdownNow();
+        pumpLogs();
+        events.close();
+        schedule.stop();
+        dispatcher.stop();
+        telephony.stop();
+        tracker.stop();
+        outboxReady = false;
+        outbox.close();
+        ussd.stop();
+    }
+
+    // Pushes received SMS to url (see InboxWebhook), sending key as a Bearer
+    // token when set; null stops it. Throws IllegalArgumentException for a URL
+    // that isn't http(s).
+    public synchronized void setInboxWebhook(String url, String key) {
+        if (inboxWebhook != null) {
+            inboxWebhook.stop();
+            inboxWebhook = null;
+        }
+        if (url == null || url.isEmpty()) return;
+        URL parsed;
+        try {
+            parsed = new URL(url);
+        } catch (MalformedURLException e) {
+            throw new IllegalArgumentException("Invalid webhook URL: " + url);
+        }
+        if (!"http".equals(parsed.getProtocol()) && !"https".equals(parsed.getProtocol())) {
+            throw new IllegalArgumentException("Webhook URL must be http or https: " + url);
+        }
+        inboxWebhook = new InboxWebhook(inbox, parsed, key != null && !key.isEmpty() ? key : null,
+                new File(telephony.dataDir(), "inbox/webhook.cursor"), this::log);
+        inboxWebhook.start();
+        log("Pushing received SMS to " + url);
+    }
+
+    // Runs on the receiver's thread: a memory append, the disk write happens behind it
+    private void onSmsReceived(int simSlot, String sender, String body, long sentAt) {
+        Inbox.Message message = inbox.append(simSlot, sender, body, sentAt);
+        log("Received SMS #" + message.seq + " from " + message.sender + (simSlot != -1 ? " on SIM " + simSlot : ""));
+        JsonWriter out = new JsonWriter(128 + message.body.length());
+        message.write(out);
+        events.publish(EventHub.TYPE_INBOX, out.toString());
+    }
+
+    // Slots of the active SIMs, or {-1} (default SmsManager) if they can't be read
+    private int[] activeSimSlots() {
+        List<? extends Telephony.Sim> sims = telephony.sims();
+        if (sims.isEmpty()) {
+            return new int[] { -1 };
+        }
+        int[] slots = new int[sims.size()];
+        for (int i = 0; i < slots.length; i++) {
+            slots[i] = sims.get(i).slot;
+        }
+        return slots;
+    }
+
+    private int preferredSim() {
+        return telephony.preferredSim();
+    }
+
+    // Lanes whose config didn't change keep their limiter; the others get one that
+    // carries over its counts and adapted rate (see RateLimiter.reconfigure)
+    public void applyRateLimits() {
+        for (DispatchLane lane : dispatcher.lanes()) {
+            int subId = telephony.subscriptionIdForSlot(lane.simSlot);
+            try {
+                Telephony.RateLimit config = telephony.rateLimit(subId);
+                RateLimiter current = lane.getRateLimiter();
+                if (config == null) {
+                    lane.setRateLimiter(null);
+                    continue;
+                }
+                if (current != null && config.matches(current)) {
+                    continue;
+                }
+                if (config.perMinute <= 0) {
+                    lane.setRateLimiter(null);
+                } else if (current != null) {
+                    lane.setRateLimiter(current.reconfigure(config.perMinute, config.burst, config.hourlyCap,
+                            config.dailyCap, config.adaptive));
+                } else {
+                    lane.setRateLimiter(new RateLimiter(config.perMinute, config.burst, config.hourlyCap,
+                            config.dailyCap, config.adaptive));
+                }
+                log("Rate limit for SIM " + lane.simSlot + ": " + config.perMinute + "/min" + (config.adaptive ? " (adaptive)" : ""));
+            } catch (Exception e) {
+                log(LogBuffer.WARN, "Invalid rate limit config for subscription " + subId + ": " + e.getMessage());
+            }
+        }
+    }
+
+    private void log(String msg) {
+        logs.append(LogBuffer.INFO, msg);
+    }
+
+    private void log(int level, String msg) {
+        logs.append(level, msg);
+    }
+
+    // Publishes lines logged since the last run to /events in one batch
+    private synchronized void pumpLogs() {
+        List<LogBuffer.Record> batch = new ArrayList<>();
+        logPumpCursor = logs.read(logPumpCursor, logs.capacity(), LogBuffer.DEBUG, batch);
+        if (batch.isEmpty()) return;
+        List<String> data = new ArrayList<>(batch.size());
+        for (LogBuffer.Record record : batch) {
+            data.add(logJson(record));
+        }
+        events.publishAll(EventHub.TYPE_LOG, data);
+    }
+
+    // Event data is kept as Strings in the event buffer
+    static String logJson(LogBuffer.Record record) {
+        JsonWriter out = new JsonWriter(96 + record.message.length());
+        writeLog(out, record);
+        return out.toString();
+    }
+
+    static void writeLog(JsonWriter out, LogBuffer.Record record) {
+        out.beginObject().name("seq").value(record.seq).name("time").value(record.time);
+        out.name("level").value(record.levelName()).name("message").value(record.message).endObject();
+    }
+
+    // Event streams must reach the client as they are written, which gzip would prevent
+    @Override
+    protected boolean useGzipWhenAccepted(Response r) {
+        return !"text/event-stream".equals(r.getMimeType()) && super.useGzipWhenAccepted(r);
+    }
+
+    @Override
+    public Response serve(IHTTPSession session) {
+        // Handle CORS Preflight
+        if (Method.OPTIONS.equals(session.getMethod())) {
+            Response r = newFixedLengthResponse(Response.Status.OK, MIME_PLAINTEXT, "OK");
+            addCORSHeaders(r);
+            return r;
+        }
+
+        long started = System.nanoTime();
+        Response response = handleRequest(session);
+        addCORSHeaders(response);
+        metrics.recordRequest(Metrics.route(session.getUri()), response.getStatus().getRequestStatus(), System.nanoTime() - started);
+        return response;
+    }
+
+    private void addCORSHeaders(Response r) {
+        r.addHeader("Access-Control-Allow-Origin", "*");
+        r.addHeader("Access-Control-Allow-Methods", "GET, POST, DELETE, OPTIONS");
+        r.addHeader("Access-Control-Allow-Headers", "Authorization, Content-Type, Last-Event-ID, Idempotency-Key");
+    }
+
+    private Response handleRequest(IHTTPSession session) {
+        // Health check / Ping (No auth required for basic connectivity check)
+        if (Method.GET.equals(session.getMethod()) && "/".equals(session.getUri())) {
+            return newFixedLengthResponse(Response.Status.OK, "application/json", "{\"status\": \"online\"}");
+        }
+
+        Map<String, String> headers = session.getHeaders();
+        String authHeader = headers.get("authorization");
+        if (authHeader == null) authHeader = headers.get("Authorization");
+
+        ApiKeys.Key key = keys.authenticate(authHeader);
+        if (key == null) {
+             return unread(newFixedLengthResponse(Response.Status.UNAUTHORIZED, MIME_PLAINTEXT, "Unauthorized"));
+        }
+        key.used();
+
+        String uri = session.getUri();
+        Method method = session.getMethod();
+        int scopes = scopesFor(method, uri);
+        if (!key.allows(scopes)) {
+            return unread(failed(Response.Status.FORBIDDEN, "Key " + key.id + " may not " + method + " " + uri));
+        }
+        // Sends are charged per message once the body says how many; everything else
+        // but /keys, where a throttled client can see why, costs a token
+        boolean sending = Method.POST.equals(method) && ("/sms".equals(uri) || "/sms/batch".equals(uri) || "/ussd".equals(uri));
+        if (!sending && !"/keys".equals(uri)) {
+            Response limited = charge(key, 1, 0);
+            if (limited != null) return unread(limited);
+        }
+
+        if (Method.GET.equals(session.getMethod())) {
+            if ("/sms/status".equals(uri)) {
+                return handleStatusChanges(session);
+            } else if (uri.startsWith("/sms/")) {
+                return handleSmsStatus(uri.substring("/sms/".length()));
+            } else if ("/jobs".equals(uri)) {
+                return handleJobs(session);
+            } else if ("/limits".equals(uri)) {
+                return handleLimits();
+            } else if ("/metrics".equals(uri)) {
+                return handleMetrics(session);
+            } else if ("/logs".equals(uri)) {
+                return handleLogs(session);
+            } else if ("/events".equals(uri)) {
+                return handleEvents(session);
+            } else if ("/templates".equals(uri)) {
+                return handleTemplates();
+            } else if (uri.startsWith("/templates/")) {
+                return handleTemplate(uri.substring("/templates/".length()));
+            } else if ("/inbox".equals(uri)) {
+                return handleInbox(session);
+            } else if (uri.startsWith("/ussd/")) {
+                return handleUssdStatus(uri.substring("/ussd/".length()));
+            } else if ("/keys".equals(uri)) {
+                return handleKeys(key);
+            }
+        }
+
+        if (Method.DELETE.equals(session.getMethod()) && uri.startsWith("/keys/")) {
+            String id = uri.substring("/keys/".length());
+            if (!keys.remove(id)) {
+                return failed(Response.Status.NOT_FOUND, "Unknown key");
+            }
+            log("Removed API key " + id);
+            JsonWriter out = JsonWriter.forThread().beginObject();
+            out.name("status").value("deleted").endObject();
+            return json(Response.Status.OK, out);
+        }
+
+        if (Method.DELETE.equals(session.getMethod()) && uri.startsWith("/templates/")) {
+            if (!templates.remove(uri.substring("/templates/".length()))) {
+                return failed(Response.Status.NOT_FOUND, "Unknown template");
+            }
+            JsonWriter out = JsonWriter.forThread().beginObject();
+            out.name("status").value("deleted").endObject();
+            return json(Response.Status.OK, out);
+        }
+
+        if (Method.POST.equals(session.getMethod())) {
+            if (!"/sms".equals(uri) && !"/sms/batch".equals(uri) && !"/sms/estimate".equals(uri)
+                    && !"/ussd".equals(uri) && !"/templates".equals(uri) && !"/keys".equals(uri)) {
+                return unread(newFixedLengthResponse(Response.Status.NOT_FOUND, MIME_PLAINTEXT, "Not Found"));
+            }
+            try {
+                ApiRequest request = readRequest(session);
+
+                if ("/sms".equals(uri)) {
+                    return handleSms(request, session, key);
+                } else if ("/sms/batch".equals(uri)) {
+                    return handleSmsBatch(request, session, key);
+                } else if ("/sms/estimate".equals(uri)) {
+                    return handleEstimate(request);
+                } else if ("/templates".equals(uri)) {
+                    return registerTemplate(request);
+                } else if ("/keys".equals(uri)) {
+                    return addKey(request);
+                } else {
+                    return submitUssd(request, session, key);
+                }
+
+            } catch (JsonReader.BodyTooLargeException e) {
+                return unread(failed(Response.Status.PAYLOAD_TOO_LARGE, "Body larger than " + MAX_BODY_BYTES + " bytes"));
+            } catch (JsonReader.MalformedJsonException e) {
+                return failed(Response.Status.BAD_REQUEST, "Invalid JSON: " + e.getMessage());
+            } catch (Exception e) {
+                log(LogBuffer.ERROR, "Error: " + e.getMessage());
+                return newFixedLengthResponse(Response.Status.INTERNAL_ERROR, MIME_PLAINTEXT, "Error: " + e.getMessage());
+            }
+        }
+
+        return newFixedLengthResponse(Response.Status.NOT_FOUND, MIME_PLAINTEXT, "Not Found");
+    }
+
+    // The key an Authorization header names, or null (see ApiKeys for why the
+    // lookup gives nothing away to a guesser)
+    ApiKeys.Key authenticate(String authHeader) {
+        return keys.authenticate(authHeader);
+    }
+
+    // The scopes any one of which lets a key make this request. Everyone may
+    // GET /keys (and sees only their own key); changing keys takes the primary one.
+    private static int scopesFor(Method method, String uri) {
+        if ("/keys".equals(uri) || uri.startsWith("/keys/")) {
+            return Method.GET.equals(method) ? ApiKeys.SCOPE_SMS | ApiKeys.SCOPE_USSD | ApiKeys.SCOPE_READ
+                    : ApiKeys.SCOPE_ADMIN;
+        }
+        if (Method.GET.equals(method)) {
+            if (uri.startsWith("/sms/") || "/jobs".equals(uri) || uri.startsWith("/templates")) {
+                return ApiKeys.SCOPE_SMS | ApiKeys.SCOPE_READ;
+            }
+            if (uri.startsWith("/ussd/")) return ApiKeys.SCOPE_USSD | ApiKeys.SCOPE_READ;
+            return ApiKeys.SCOPE_READ;
+        }
+        return "/ussd".equals(uri) ? ApiKeys.SCOPE_USSD : ApiKeys.SCOPE_SMS;
+    }
+
+    // Takes cost tokens and count messages of the day's quota from the key, or
+    // answers 429 with when to try again. Only this key's bucket is involved, so
+    // one client running into its limits never slows down another.
+    private Response charge(ApiKeys.Key key, int cost, int count) {
+        long wait = key.acquire(cost, count);
+        if (wait == 0) return null;
+        if (wait < 0) {
+            return failed(Response.Status.PAYLOAD_TOO_LARGE, "More than key " + key.id + " may send at once ("
+                    + (key.dailyQuota > 0 && count > key.dailyQuota ? key.dailyQuota : key.burst) + ")");
+        }
+        Response response = failed(Response.Status.TOO_MANY_REQUESTS, key.limitReason(count));
+        response.addHeader("Retry-After", Long.toString((wait + 999) / 1000));
+        return response;
+    }
+
+    // For a response sent without reading the request body: whatever is left of
+    // it would be parsed as the next request, so the connection is closed
+    private static Response unread(Response response) {
+        response.closeConnection(true);
+        return response;
+    }
+
+    // Decodes the body straight off the connection, never more than Content-Length
+    // bytes (or, without the header, what the client has already sent)
+    private ApiRequest readRequest(IHTTPSession session) throws IOException {
+        InputStream in = session.getInputStream();
+        String contentLengthHeader = session.getHeaders().get("content-length");
+        long contentLength;
+        try {
+            contentLength = contentLengthHeader != null ? Long.parseLong(contentLengthHeader.trim()) : in.available();
+        } catch (NumberFormatException e) {
+            throw new JsonReader.MalformedJsonException("Invalid Content-Length");
+        }
+        return readBody(in, contentLength);
+    }
+
+    static ApiRequest readBody(InputStream in, long contentLength) throws IOException {
+        JsonReader reader = JsonReader.forThread(in, contentLength, MAX_BODY_BYTES);
+        try {
+            return ApiRequest.read(reader);
+        } finally {
+            reader.finish();
+        }
+    }
+
+    private Response handleSms(ApiRequest request, IHTTPSession session, ApiKeys.Key key) throws Exception {
+        String number = ApiRequest.orEmpty(request.number);
+        String message = ApiRequest.orEmpty(request.message);
+        int simSlot = request.sim != ApiRequest.UNSET ? request.sim : -1;
+        // If no SIM specified in request, use global preference from settings (-1 = least-loaded lane)
+        if (simSlot == -1) simSlot = preferredSim();
+        else if (!knownSim(simSlot)) return failed(Response.Status.OK, "Unknown SIM: " + simSlot);
+        boolean async = request.async || "true".equals(params(session).get("async"));
+        boolean deliveryReport = Boolean.TRUE.equals(request.deliveryReport);
+        SmsSegmenter.Estimate estimate = null;
+        if (request.template != null && request.message == null) {
+            Template template = templates.get(request.template);
+            if (template == null) {
+                return failed(Response.Status.BAD_REQUEST, "Unknown template: " + request.template);
+            }
+            try {
+                Template.Expansion expansion = template.expand(request.vars);
+                message = expansion.text;
+                estimate = expansion.estimate;
+            } catch (IllegalArgumentException e) {
+                return failed(Response.Status.BAD_REQUEST, e.getMessage());
+            }
+        }
+
+        if (number.isEmpty() || message.isEmpty()) {
+            return failed(Response.Status.OK, "Missing number or message");
+        }
+
+        String idempotencyKey = session.getHeaders().get("idempotency-key");
+        if (idempotencyKey == null) idempotencyKey = request.idempotencyKey;
+        if (idempotencyKey != null && idempotencyKey.isEmpty()) idempotencyKey = null;
+        if (idempotencyKey != null && idempotencyKey.length() > MAX_IDEMPOTENCY_KEY_LENGTH) {
+            return failed(Response.Status.BAD_REQUEST, "Idempotency key longer than " + MAX_IDEMPOTENCY_KEY_LENGTH);
+        }
+        // Both are per tenant: another integration's request is never taken for a retry of this one
+        String tenant = tenantOf(key, session);
+        if (idempotencyKey != null) idempotencyKey = tenant + "\n" + idempotencyKey;
+        String contentKey = recentContent.isEnabled() ? contentKey(tenant, number, message) : null;
+
+        int priority = priorityOf(request, SmsJob.PRIORITY_TRANSACTIONAL);
+        if (priority < 0) {
+            return failed(Response.Status.BAD_REQUEST, "Unknown priority: " + request.priority);
+        }
+        // spreadOver on a single message picks a moment within the window
+        if (!validSpread(request.spreadOver)) {
+            return failed(Response.Status.BAD_REQUEST, "Invalid spreadOver: " + request.spreadOver);
+        }
+        long sendAt;
+        try {
+            long offset = request.spreadOver > 0
+                    ? ThreadLocalRandom.current().nextLong(request.spreadOver * 1000L) : 0;
+            sendAt = sendTime(request.sendAt, offset);
+        } catch (IllegalArgumentException e) {
+            return failed(Response.Status.BAD_REQUEST, e.getMessage());
+        }
+        if (sendAt > 0 && schedule.size() >= SCHEDULE_MAX_PENDING) {
+            log(LogBuffer.WARN, "Schedule full, rejecting message to " + number);
+            return busy(Response.Status.SERVICE_UNAVAILABLE, "schedule_full");
+        }
+
+        SmsJob job = new SmsJob(number, message, simSlot, deliveryReport, sendAt, priority, tenant);
+        // A retry of an earlier request gets that request's job instead of a second SMS
+        String original = claimRequest(job, idempotencyKey, contentKey);
+        if (original != null) {
+            return replay(original, async);
+        }
+        Response limited = charge(key, 1, 1);
+        if (limited != null) {
+            releaseClaims(job, idempotencyKey, contentKey);
+            return limited;
+        }
+        try {
+            persist(Collections.singletonList(job));
+        } catch (IOException | InterruptedException | RuntimeException e) {
+            releaseClaims(job, idempotencyKey, contentKey);
+            key.release(1, 1);
+            throw e;
+        }
+        // Nothing to wait for yet, so even a blocking request is answered now
+        if (sendAt > 0) {
+            statuses.record(job);
+            schedule.schedule(job, sendAt);
+            if (estimate == null) estimate = SmsSegmenter.DEFAULT.estimate(message);
+            JsonWriter out = JsonWriter.forThread().beginObject();
+            out.name("status").value(SmsJob.STATUS_SCHEDULED).name("id").value(job.id);
+            out.name("parts").value(estimate.parts).name("sendAt").value(sendAt).endObject();
+            return json(Response.Status.ACCEPTED, out);
+        }
+        if (!dispatcher.submit(job)) {
+            outbox.done(job);
+            releaseClaims(job, idempotencyKey, contentKey);
+            key.release(1, 1);
+            log(LogBuffer.WARN, "SMS queue full, rejecting message to " + number);
+            return busy(Response.Status.SERVICE_UNAVAILABLE, "queue_full");
+        }
+
+        if (async) {
+            if (estimate == null) estimate = SmsSegmenter.DEFAULT.estimate(message);
+            JsonWriter out = JsonWriter.forThread().beginObject();
+            out.name("status").value("queued").name("id").value(job.id);
+            out.name("parts").value(estimate.parts).endObject();
+            return json(Response.Status.ACCEPTED, out);
+        }
+
+        // Blocking mode: wait for the dispatcher to finish this job
+        job.await(SMS_SYNC_WAIT_SECONDS, TimeUnit.SECONDS);
+        return currentResult(job.id, job.getStatus(), job.getReason());
+    }
+
+    // 200 with the outcome once the job is done. A job that is still queued or
+    // sending when the wait runs out will still go out, so it gets 202 and its
+    // id to poll rather than a failure the client would retry.
+    private Response currentResult(String id, String status, String reason) {
+        boolean finished = SmsJob.STATUS_SENT.equals(status) || SmsJob.STATUS_FAILED.equals(status);
+        return jobResult(finished ? Response.Status.OK : Response.Status.ACCEPTED, id, status, reason);
+    }
+
+    private Response jobResult(Response.Status code, String id, String status, String reason) {
+        JsonWriter out = JsonWriter.forThread().beginObject();
+        out.name("status").value(status);
+        if (SmsJob.STATUS_FAILED.equals(status)) {
+            out.name("reason").value(reason);
+        }
+        out.name("id").value(id).endObject();
+        return json(code, out);
+    }
+
+    // Claims the request's keys for the new job. Returns the earlier job they
+    // belong to instead, if the request repeats one.
+    private String claimRequest(SmsJob job, String idempotencyKey, String contentKey) {
+        if (idempotencyKey != null) {
+            String original = idempotencyKeys.claim(idempotencyKey, job.id);
+            if (original != null) return original;
+        }
+        if (contentKey != null) {
+            String original = recentContent.claim(contentKey, job.id);
+            if (original != null) {
+                if (idempotencyKey != null) idempotencyKeys.reassign(idempotencyKey, job.id, original);
+                return original;
+            }
+        }
+        return null;
+    }
+
+    // The job was never queued, so a retry must be free to try again
+    private void releaseClaims(SmsJob job, String idempotencyKey, String contentKey) {
+        if (idempotencyKey != null) idempotencyKeys.release(idempotencyKey, job.id);
+        if (contentKey != null) recentContent.release(contentKey, job.id);
+    }
+
+    // Per-tenant and number key for the duplicate window; holds a hash, not the message
+    private static String contentKey(String tenant, String number, String message) {
+        long hash = 0xcbf29ce484222325L; // FNV-1a
+        for (int i = 0; i < message.length(); i++) {
+            hash = (hash ^ message.charAt(i)) * 0x100000001b3L;
+        }
+        return tenant + "\n" + number + "#" + Long.toHexString(hash);
+    }
+
+    // Answers a repeated request with the original job's result without sending
+    // again, waiting for it like the original would have in blocking mode
+    private Response replay(String jobId, boolean async) throws InterruptedException {
+        SmsJob live = dispatcher.get(jobId);
+        String status;
+        String reason;
+        if (live != null) {
+            if (!async) live.await(SMS_SYNC_WAIT_SECONDS, TimeUnit.SECONDS);
+            status = live.getStatus();
+            reason = live.getReason();
+        } else {
+            String[] outcome = statuses.outcome(jobId);
+            if (outcome == null) {
+                // The first request is still being accepted
+                Response response = failed(Response.Status.CONFLICT, "in_progress");
+                response.addHeader("Retry-After", RETRY_AFTER_SECONDS);
+                return response;
+            }
+            status = outcome[0];
+            reason = outcome[1];
+        }
+        Response response = currentResult(jobId, status, reason);
+        response.addHeader("Idempotent-Replayed", "true");
+        return response;
+    }
+
+    // Accepts either {"items": [{"number", "message", "sim"}, ...]} or a single
+    // template {"message", "numbers": [...], "sim"}. Either form can name a
+    // registered template with "template" and fill it from "vars" (per item, or
+    // shared). Items are validated in one pass and enqueued together; the
+    // response carries one entry per item with its predicted part count.
+    private Response handleSmsBatch(ApiRequest request, IHTTPSession session, ApiKeys.Key key) throws Exception {
+        List<ApiRequest> items = request.items;
+        List<String> numbers = request.numbers;
+        String sharedMessage = ApiRequest.orEmpty(request.message);
+        int sharedSim = request.sim != ApiRequest.UNSET ? request.sim : -1;
+        if (sharedSim == -1) sharedSim = preferredSim();
+        boolean sharedDeliveryReport = Boolean.TRUE.equals(request.deliveryReport);
+        Template sharedTemplate = null;
+        if (request.template != null) {
+            sharedTemplate = templates.get(request.template);
+            if (sharedTemplate == null) {
+                return failed(Response.Status.BAD_REQUEST, "Unknown template: " + request.template);
+            }
+        }
+
+        int count = items != null ? items.size() : (numbers != null ? numbers.size() : 0);
+        if (count == 0) {
+            return failed(Response.Status.BAD_REQUEST, "Missing items or numbers");
+        }
+        if (count > SMS_MAX_BATCH_SIZE) {
+            return failed(Response.Status.PAYLOAD_TOO_LARGE, "Batch larger than " + SMS_MAX_BATCH_SIZE);
+        }
+        if (!validSpread(request.spreadOver)) {
+            return failed(Response.Status.BAD_REQUEST, "Invalid spreadOver: " + request.spreadOver);
+        }
+        // Batches are campaigns unless they say otherwise
+        int priority = priorityOf(request, SmsJob.PRIORITY_BULK);
+        if (priority < 0) {
+            return failed(Response.Status.BAD_REQUEST, "Unknown priority: " + request.priority);
+        }
+        String tenant = tenantOf(key, session);
+
+        // The shared text is expanded and segmented once for every item that uses it
+        Template.Expansion shared = null;
+        String sharedError = null;
+        if (sharedTemplate != null) {
+            try {
+                shared = sharedTemplate.expand(request.vars);
+            } catch (IllegalArgumentException e) {
+                sharedError = e.getMessage();
+            }
+        } else if (!sharedMessage.isEmpty()) {
+            shared = new Template.Expansion(sharedMessage, SmsSegmenter.DEFAULT.estimate(sharedMessage));
+        }
+
+        List<SmsJob> accepted = new ArrayList<>(count);
+        // Accepted jobs with a sendAt; the rest are queued right away
+        List<SmsJob> scheduled = new ArrayList<>();
+        List<SmsJob> immediate = new ArrayList<>(count);
+        // Per item: the accepted job and its predicted parts, or null with the rejection reason
+        SmsJob[] jobs = new SmsJob[count];
+        int[] parts = new int[count];
+        String[] reasons = new String[count];
+        for (int i = 0; i < count; i++) {
+            String number;
+            Template.Expansion text = shared;
+            String error = sharedError;
+            int simSlot;
+            int requestedSim;
+            boolean deliveryReport = sharedDeliveryReport;
+            String sendAt = request.sendAt;
+            if (items != null) {
+                ApiRequest item = items.get(i);
+                if (item.invalid) {
+                    reasons[i] = "Invalid item";
+                    continue;
+                }
+                number = ApiRequest.orEmpty(item.number);
+                simSlot = item.sim != ApiRequest.UNSET ? item.sim : sharedSim;
+                requestedSim = item.sim != ApiRequest.UNSET ? item.sim : request.sim;
+                if (item.deliveryReport != null) deliveryReport = item.deliveryReport;
+                if (item.sendAt != null) sendAt = item.sendAt;
+
+                Template template = sharedTemplate;
+                if (item.message != null) {
+                    template = null;
+                    text = new Template.Expansion(item.message, SmsSegmenter.DEFAULT.estimate(item.message));
+                    error = null;
+                } else if (item.template != null) {
+                    template = templates.get(item.template);
+                    if (template == null) {
+                        reasons[i] = "Unknown template: " + item.template;
+                        continue;
+                    }
+                }
+                if (template != null && (template != sharedTemplate || item.vars != null)) {
+                    try {
+                        text = template.expand(item.vars != null ? item.vars : request.vars);
+                        error = null;
+                    } catch (IllegalArgumentException e) {
+                        text = null;
+                        error = e.getMessage();
+                    }
+                }
+            } else {
+                number = numbers.get(i);
+                simSlot = sharedSim;
+                requestedSim = request.sim;
+            }
+            // Only the preferred SIM falls back to another lane, never one asked for
+            if (requestedSim != ApiRequest.UNSET && !knownSim(requestedSim)) {
+                reasons[i] = "Unknown SIM: " + requestedSim;
+                continue;
+            }
+
+            if (error != null) {
+                reasons[i] = error;
+                continue;
+            }
+            if (number.isEmpty() || text == null || text.text.isEmpty()) {
+                reasons[i] = "Missing number or message";
+                continue;
+            }
+            // Item i of n goes out i/n of the way through the spreadOver window
+            long at;
+            try {
+                at = sendTime(sendAt, request.spreadOver * 1000L * i / count);
+            } catch (IllegalArgumentException e) {
+                reasons[i] = e.getMessage();
+                continue;
+            }
+            jobs[i] = new SmsJob(number, text.text, simSlot, deliveryReport, at, priority, tenant);
+            parts[i] = text.estimate.parts;
+            accepted.add(jobs[i]);
+            (at > 0 ? scheduled : immediate).add(jobs[i]);
+        }
+
+        if (!scheduled.isEmpty() && schedule.size() + scheduled.size() > SCHEDULE_MAX_PENDING) {
+            log(LogBuffer.WARN, "Schedule full, rejecting batch of " + accepted.size());
+            return busy(Response.Status.SERVICE_UNAVAILABLE, "schedule_full");
+        }
+        // A batch with every item rejected is answered with the reasons, costing nothing
+        if (!accepted.isEmpty()) {
+            // All of the batch or none of it, like the queue below
+            Response limited = charge(key, accepted.size(), accepted.size());
+            if (limited != null) return limited;
+            try {
+                persist(accepted);
+            } catch (IOException | InterruptedException | RuntimeException e) {
+                key.release(accepted.size(), accepted.size());
+                throw e;
+            }
+            if (!immediate.isEmpty() && !dispatcher.submitAll(immediate)) {
+                for (SmsJob job : accepted) {
+                    outbox.done(job);
+                }
+                key.release(accepted.size(), accepted.size());
+                log(LogBuffer.WARN, "SMS queue full, rejecting batch of " + accepted.size());
+                return busy(Response.Status.SERVICE_UNAVAILABLE, "queue_full");
+            }
+            if (!scheduled.isEmpty()) scheduleAll(scheduled);
+        }
+        log("Queued batch of " + accepted.size() + " SMS (" + scheduled.size() + " scheduled, "
+                + (count - accepted.size()) + " rejected)");
+
+        JsonWriter out = JsonWriter.forThread().beginObject();
+        out.name("status").value("queued");
+        out.name("accepted").value(accepted.size());
+        out.name("rejected").value(count - accepted.size());
+        if (!scheduled.isEmpty()) out.name("scheduled").value(scheduled.size());
+        long totalParts = 0;
+        for (int p : parts) totalParts += p;
+        out.name("parts").value(totalParts);
+        out.name("items").beginArray();
+        for (int i = 0; i < count; i++) {
+            out.beginObject().name("index").value(i);
+            if (jobs[i] != null) {
+                out.name("status").value(jobs[i].sendAt > 0 ? SmsJob.STATUS_SCHEDULED : "queued").name("id").value(jobs[i].id);
+                out.name("parts").value(parts[i]);
+                if (jobs[i].sendAt > 0) out.name("sendAt").value(jobs[i].sendAt);
+            } else {
+                out.name("status").value("failed").name("reason").value(reasons[i]);
+            }
+            out.endObject();
+        }
+        out.endArray().endObject();
+        return json(Response.Status.ACCEPTED, out);
+    }
+
+    // Segmentation of a message, or of a template expanded with vars, without
+    // sending it. "languages" adds national language tables to the default ones
+    // for carriers that support them; sends themselves use the default tables.
+    private Response handleEstimate(ApiRequest request) {
+        String message = request.message;
+        if (message == null && request.template != null) {
+            Template template = templates.get(request.template);
+            if (template == null) {
+                return failed(Response.Status.BAD_REQUEST, "Unknown template: " + request.template);
+            }
+            try {
+                message = template.expand(request.vars).text;
+            } catch (IllegalArgumentException e) {
+                return failed(Response.Status.BAD_REQUEST, e.getMessage());
+            }
+        }
+        if (message == null || message.isEmpty()) {
+            return failed(Response.Status.BAD_REQUEST, "Missing message");
+        }
+
+        SmsSegmenter segmenter = SmsSegmenter.DEFAULT;
+        if (request.languages != null) {
+            int[] languages = new int[request.languages.size()];
+            for (int i = 0; i < languages.length; i++) {
+                languages[i] = SmsSegmenter.language(request.languages.get(i));
+                if (languages[i] < 0) {
+                    return failed(Response.Status.BAD_REQUEST, "Unknown language: " + request.languages.get(i));
+                }
+            }
+            segmenter = SmsSegmenter.forLanguages(languages);
+        }
+
+        SmsSegmenter.Estimate estimate = segmenter.estimate(message);
+        JsonWriter out = JsonWriter.forThread().beginObject();
+        out.name("encoding").value(estimate.encoding);
+        out.name("length").value(estimate.length);
+        out.name("parts").value(estimate.parts);
+        out.name("perPart").value(estimate.perPart);
+        out.name("remaining").value(estimate.remaining);
+        if (estimate.lockingShift != 0) out.name("lockingShift").value(SmsSegmenter.languageName(estimate.lockingShift));
+        if (estimate.singleShift != 0) out.name("singleShift").value(SmsSegmenter.languageName(estimate.singleShift));
+        if (!estimate.isGsm7()) {
+            // What to replace to get back to GSM-7
+            out.name("unencodable").beginArray();
+            for (String c : segmenter.unencodable(message, MAX_UNENCODABLE_REPORTED)) {
+                out.value(c);
+            }
+            out.endArray();
+        }
+        out.endObject();
+        return json(Response.Status.OK, out);
+    }
+
+    private Response handleSmsStatus(String id) {
+        String status = statuses.get(id);
+        if (status == null) {
+            return failed(Response.Status.NOT_FOUND, "Unknown job");
+        }
+        return newFixedLengthResponse(Response.Status.OK, "application/json", status);
+    }
+
+    private Response handleJobs(IHTTPSession session) {
+        Map<String, String> params = params(session);
+        String status = params.get("status");
+        int limit = intParam(params, "limit", 100, 1000);
+
+        JsonWriter out = JsonWriter.forThread().beginObject();
+        out.name("queued").value(dispatcher.queueDepth());
+        out.name("scheduled").value(schedule.size());
+        out.name("jobs").beginArray();
+        for (String job : statuses.list(status, limit)) {
+            out.raw(job);
+        }
+        out.endArray().endObject();
+        return json(Response.Status.OK, out);
+    }
+
+    // Status changes after the ?since= cursor (0 for everything still kept), in the
+    // order they happened. Pass the returned cursor back to get only newer changes.
+    private Response handleStatusChanges(IHTTPSession session) {
+        Map<String, String> params = params(session);
+        long since = 0;
+        try {
+            if (params.get("since") != null) since = Math.max(0, Long.parseLong(params.get("since")));
+        } catch (NumberFormatException ignored) {
+            // Start from the beginning
+        }
+        StatusStore.Page page = statuses.since(since, intParam(params, "limit", 500, 5000));
+
+        JsonWriter out = JsonWriter.forThread().beginObject();
+        out.name("cursor").value(page.cursor);
+        out.name("more").value(page.more);
+        out.name("truncated").value(page.truncated);
+        out.name("items").beginArray();
+        for (String item : page.items) {
+            out.raw(item);
+        }
+        out.endArray().endObject();
+        return json(Response.Status.OK, out);
+    }
+
+    // Received SMS after the ?after= cursor (0 for everything kept), oldest first.
+    // ?from= keeps one sender's, ?since= (epoch millis) skips older ones.
+    private Response handleInbox(IHTTPSession session) {
+        Map<String, String> params = params(session);
+        long after = 0;
+        long since = 0;
+        try {
+            if (params.get("after") != null) after = Math.max(0, Long.parseLong(params.get("after")));
+            if (params.get("since") != null) since = Long.parseLong(params.get("since"));
+        } catch (NumberFormatException e) {
+            return failed(Response.Status.BAD_REQUEST, "Invalid after or since");
+        }
+        String from = params.get("from");
+        if (from != null && from.isEmpty()) from = null;
+        Inbox.Page page = inbox.read(after, intParam(params, "limit", 100, 1000), from, since);
+
+        JsonWriter out = JsonWriter.forThread().beginObject();
+        out.name("cursor").value(page.cursor);
+        out.name("more").value(page.more);
+        out.name("truncated").value(page.truncated);
+        out.name("items").beginArray();
+        for (Inbox.Message message : page.items) {
+            message.write(out);
+        }
+        out.endArray().endObject();
+        return json(Response.Status.OK, out);
+    }
+
+    // Sends what the calling worker thread's JsonWriter holds
+    private Response json(Response.Status status, JsonWriter out) {
+        return newFixedLengthResponse(status, "application/json", out.stream(), out.length());
+    }
+
+    private Response failed(Response.Status status, String reason) {
+        JsonWriter out = JsonWriter.forThread().beginObject();
+        out.name("status").value("failed").name("reason").value(reason).endObject();
+        return json(status, out);
+    }
+
+    // Saturation answer: the client should retry after a short pause
+    private Response busy(Response.Status status, String reason) {
+        Response response = failed(status, reason);
+        response.addHeader("Retry-After", RETRY_AFTER_SECONDS);
+        return response;
+    }
+
+    // GET /keys: every key with its limits and usage for the primary key, the
+    // caller's own for any other
+    private Response handleKeys(ApiKeys.Key caller) {
+        JsonWriter out = JsonWriter.forThread().beginObject();
+        out.name("keys").beginArray();
+        if (caller.isPrimary()) {
+            for (ApiKeys.Key key : keys.list()) {
+                key.write(out, null);
+            }
+        } else {
+            caller.write(out, null);
+        }
+        out.endArray().endObject();
+        return json(Response.Status.OK, out);
+    }
+
+    // POST /keys {"id", "scopes", "ratePerMinute"?, "burst"?, "dailyQuota"?}:
+    // adds a key and answers with its secret, which can't be read back later
+    private Response addKey(ApiRequest request) {
+        int scopes = request.scopes != null ? ApiKeys.scopes(request.scopes) : 0;
+        if (scopes < 0) {
+            return failed(Response.Status.BAD_REQUEST, "Unknown scope in " + request.scopes);
+        }
+        ApiKeys.Created created;
+        try {
+            created = keys.add(request.id, scopes, request.ratePerMinute, request.burst, request.dailyQuota);
+        } catch (IllegalArgumentException e) {
+            return failed(Response.Status.BAD_REQUEST, e.getMessage());
+        }
+        log("Added API key " + created.key.id);
+        JsonWriter out = JsonWriter.forThread();
+        created.key.write(out, created.secret);
+        return json(Response.Status.CREATED, out);
+    }
+
+    // POST /templates {"id"?, "text"}: registers or replaces a template
+    private Response registerTemplate(ApiRequest request) {
+        String text = ApiRequest.orEmpty(request.text);
+        if (text.isEmpty()) {
+            return failed(Response.Status.BAD_REQUEST, "Missing text");
+        }
+        if (text.length() > MAX_TEMPLATE_LENGTH) {
+            return failed(Response.Status.PAYLOAD_TOO_LARGE, "Template longer than " + MAX_TEMPLATE_LENGTH + " characters");
+        }
+        if (request.id != null && (request.id.isEmpty() || request.id.indexOf('/') >= 0)) {
+            return failed(Response.Status.BAD_REQUEST, "Invalid id");
+        }
+        Template template;
+        try {
+            template = templates.put(request.id, text);
+        } catch (IllegalArgumentException e) {
+            return failed(Response.Status.BAD_REQUEST, e.getMessage());
+        }
+        if (template == null) {
+            return failed(Response.Status.BAD_REQUEST, "Too many templates (" + MAX_TEMPLATES + ")");
+        }
+        log("Registered template " + template.id + " (" + template.variables().size() + " variables)");
+        return json(Response.Status.CREATED, writeTemplate(JsonWriter.forThread(), template, false));
+    }
+
+    private Response handleTemplates() {
+        JsonWriter out = JsonWriter.forThread().beginObject();
+        out.name("templates").beginArray();
+        for (Template template : templates.list()) {
+            writeTemplate(out, template, true);
+        }
+        out.endArray().endObject();
+        return json(Response.Status.OK, out);
+    }
+
+    private Response handleTemplate(String id) {
+        Template template = templates.get(id);
+        if (template == null) {
+            return failed(Response.Status.NOT_FOUND, "Unknown template");
+        }
+        return json(Response.Status.OK, writeTemplate(JsonWriter.forThread(), template, true));
+    }
+
+    // parts/encoding describe the fixed text alone, with every variable empty
+    private static JsonWriter writeTemplate(JsonWriter out, Template template, boolean withText) {
+        SmsSegmenter.Estimate fixed = template.fixedEstimate();
+        out.beginObject().name("id").value(template.id);
+        if (withText) out.name("text").value(template.text);
+        out.name("variables").beginArray();
+        for (String name : template.variables()) {
+            out.value(name);
+        }
+        out.endArray();
+        out.name("encoding").value(fixed.encoding);
+        out.name("parts").value(fixed.parts);
+        return out.endObject();
+    }
+
+    // The query parameters, each with its first value
+    private static Map<String, String> params(IHTTPSession session) {
+        Map<String, String> params = new HashMap<>();
+        for (Map.Entry<String, List<String>> entry : session.getParameters().entrySet()) {
+            if (!entry.getValue().isEmpty()) params.put(entry.getKey(), entry.getValue().get(0));
+        }
+        return params;
+    }
+
+    private static int intParam(Map<String, String> params, String name, int defaultValue, int max) {
+        try {
+            if (params.get(name) != null) return Math.max(1, Math.min(max, Integer.parseInt(params.get(name))));
+        } catch (NumberFormatException ignored) {
+            // Keep default
+        }
+        return defaultValue;
+    }
+
+    // Server-Sent Events stream of status changes and log lines. Resumes after
+    // ?after= or the Last-Event-ID header that EventSource sends on reconnect;
+    // ?types=status limits the stream to the given event types.
+    private Response handleEvents(IHTTPSession session) {
+        Map<String, String> params = params(session);
+        String after = params.get("after");
+        if (after == null) after = session.getHeaders().get("last-event-id");
+        long cursor = events.lastSeq();
+        try {
+            if (after != null) cursor = Math.max(0, Long.parseLong(after.trim()));
+        } catch (NumberFormatException ignored) {
+            // Only new events
+        }
+        List<String> types = null;
+        if (params.get("types") != null) {
+            types = Arrays.asList(params.get("types").split(","));
+        }
+
+        if (events.subscribers() >= MAX_EVENT_STREAMS) {
+            return busy(Response.Status.SERVICE_UNAVAILABLE, "too_many_streams");
+        }
+        Response response = newChunkedResponse(Response.Status.OK, "text/event-stream", events.subscribe(cursor, types));
+        response.addHeader("Cache-Control", "no-cache");
+        return response;
+    }
+
+    // Prometheus text format by default; JSON with ?format=json or Accept: application/json
+    private Response handleMetrics(IHTTPSession session) {
+        String accept = session.getHeaders().get("accept");
+        if ("json".equals(params(session).get("format")) || (accept != null && accept.contains("application/json"))) {
+            JsonWriter out = JsonWriter.forThread();
+            metrics.json(out, dispatcher.lanes(), outbox.pendingCount(), statuses.size(), logs.head());
+            return json(Response.Status.OK, out);
+        }
+        return newFixedLengthResponse(Response.Status.OK, "text/plain; version=0.0.4; charset=utf-8",
+                metrics.prometheus(dispatcher.lanes(), outbox.pendingCount(), statuses.size(), logs.head()));
+    }
+
+    // Recent log lines after ?after= (default: the oldest still kept), optionally ?level=warn and up
+    private Response handleLogs(IHTTPSession session) {
+        Map<String, String> params = params(session);
+        long after = 0;
+        try {
+            if (params.get("after") != null) after = Math.max(0, Long.parseLong(params.get("after")));
+        } catch (NumberFormatException ignored) {
+            // From the oldest
+        }
+        int minLevel = LogBuffer.parseLevel(params.get("level"), LogBuffer.DEBUG);
+        // Like /sms/status, a cursor from a previous run of the app starts over
+        if (after > logs.head()) after = 0;
+        boolean truncated = after + 1 < logs.tail() && after > 0;
+
+        List<LogBuffer.Record> records = new ArrayList<>();
+        long cursor = logs.read(after, intParam(params, "limit", 200, logs.capacity()), minLevel, records);
+        JsonWriter out = JsonWriter.forThread().beginObject();
+        out.name("cursor").value(cursor);
+        out.name("truncated").value(truncated);
+        out.name("items").beginArray();
+        for (LogBuffer.Record record : records) {
+            writeLog(out, record);
+        }
+        out.endArray().endObject();
+        return json(Response.Status.OK, out);
+    }
+
+    private Response handleLimits() {
+        JsonWriter out = JsonWriter.forThread().beginObject();
+        out.name("lanes").beginArray();
+        for (DispatchLane lane : dispatcher.lanes()) {
+            out.beginObject().name("sim").value(lane.simSlot);
+            out.name("queued").value(lane.queueDepth());
+            out.name("inFlight").value(lane.inFlight());
+            out.name("maxInFlight").value(lane.maxInFlight());
+            RateLimiter limiter = lane.getRateLimiter();
+            if (limiter != null) {
+                out.name("rateLimit").beginObject();
+                out.name("perMinute").raw(String.valueOf(limiter.maxRatePerMinute));
+                out.name("currentPerMinute").raw(String.format(Locale.US, "%.2f", limiter.currentRatePerMinute()));
+                out.name("burst").value(limiter.burst);
+                out.name("adaptive").value(limiter.adaptive);
+                out.name("failureRate").raw(String.format(Locale.US, "%.3f", limiter.failureRate()));
+                out.name("hourlyCap").value(limiter.hourlyCap);
+                out.name("sentThisHour").value(limiter.sentThisHour());
+                out.name("dailyCap").value(limiter.dailyCap);
+                out.name("sentToday").value(limiter.sentToday());
+                out.endObject();
+            }
+            out.endObject();
+        }
+        out.endArray().endObject();
+        return json(Response.Status.OK, out);
+    }
+
+    // Runs on the job's lane thread; the lane decides which SIM it goes out on.
+    // Hands the parts to the radio and returns without waiting for the carrier.
+    private void sendSms(SmsJob job, DispatchLane lane) {
+        String number = job.number;
+        String message = job.message;
+        int simSlot = lane.simSlot;
+
+        log("Sending SMS to " + number + (simSlot != -1 ? " on SIM " + simSlot : ""));
+        
+        try {
+            // Split here rather than with divideMessage so parts match the estimates
+            // given to the client; each part fits the default tables the radio uses
+            ArrayList<String> parts = SmsSegmenter.DEFAULT.split(message);
+            int partCount = parts.size();
+            log(LogBuffer.DEBUG, "Message divided into " + partCount + " part(s)");
+            job.markSending(simSlot, partCount);
+            statuses.record(job);
+            long waited = (System.currentTimeMillis() - job.readyAt()) * 1000;
+            metrics.sim(simSlot).queueWait.recordMicros(waited);
+            metrics.priority(job.priority).queueWait.recordMicros(waited);
+            
+            // Parts report back by job ID; the lane slot is released when the last one does
+            tracker.track(job, lane, partCount);
+            try {
+                telephony.sendText(simSlot, job.id, number, parts, job.deliveryReport);
+            } catch (RuntimeException e) {
+                tracker.cancel(job);
+                throw e;
+            }
+        } catch (Exception e) {
+            log(LogBuffer.ERROR, "SMS Exception: " + e.getMessage());
+            lane.complete(job, SmsJob.STATUS_FAILED, "error_" + e.getMessage());
+        }
+    }
+    
+    // POST /ussd {"code", "sim"?, "expect"?, "steps"?, "cacheTtl"?, "async"?}: queues
+    // a session on the SIM's USSD lane (see UssdEngine). Blocking requests wait
+    // for it to finish, async ones get its ID for GET /ussd/{id}.
+    private Response submitUssd(ApiRequest request, IHTTPSession http, ApiKeys.Key key) throws Exception {
+        int simSlot = request.sim != ApiRequest.UNSET ? request.sim : preferredSim();
+        if (!knownSim(simSlot)) {
+            return failed(Response.Status.OK, "Unknown SIM: " + simSlot);
+        }
+        Response limited = charge(key, 1, 1);
+        if (limited != null) return limited;
+        long cacheTtlMillis = Math.max(0, request.cacheTtl) * 1000L;
+        boolean async = request.async || "true".equals(params(http).get("async"));
+        long requested = System.nanoTime();
+        UssdEngine.Session session;
+        try {
+            session = ussd.submit(simSlot, ApiRequest.orEmpty(request.code), request.expect, request.steps, cacheTtlMillis);
+        } catch (IllegalArgumentException e) {
+            key.release(1, 1);
+            return failed(Response.Status.OK, e.getMessage());
+        }
+        if (session == null) {
+            key.release(1, 1);
+            return busy(Response.Status.SERVICE_UNAVAILABLE, "ussd_queue_full");
+        }
+        boolean cached = session.finishedBefore(requested);
+        if (!async) session.await(USSD_SYNC_WAIT_SECONDS, TimeUnit.SECONDS);
+
+        JsonWriter out = JsonWriter.forThread();
+        session.write(out, cached);
+        // Always HTTP 200 once finished - the JSON body says whether it worked
+        return json(session.isFinished() ? Response.Status.OK : Response.Status.ACCEPTED, out);
+    }
+
+    private boolean hasSim(int slot) {
+        for (Telephony.Sim sim : telephony.sims()) {
+            if (sim.slot == slot) return true;
+        }
+        return false;
+    }
+
+    // A SIM a request may ask for by slot: -1 (any), or one that is there. With
+    // no SIMs listed (no phone permission yet) the request is let through.
+    private boolean knownSim(int slot) {
+        return slot == -1 || telephony.sims().isEmpty() || hasSim(slot);
+    }
+
+    private Response handleUssdStatus(String id) {
+        UssdEngine.Session session = ussd.get(id);
+        if (session == null) {
+            return failed(Response.Status.NOT_FOUND, "Unknown session");
+        }
+        JsonWriter out = JsonWriter.forThread();
+        session.write(out, false);
+        return json(Response.Status.OK, out);
+    }
+}
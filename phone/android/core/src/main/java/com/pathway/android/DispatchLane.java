@@ -0,0 +1,145 @@
+package com.pathway.android;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+// One SIM's share of the SMS pipeline: its own queue, worker thread, in-flight
+// limit and timeout budget, so a slow radio on one SIM never holds up the other.
+// The queue hands out jobs by priority class and tenant (see FairQueue).
+public class DispatchLane {
+    public interface Sender {
+        // Must eventually call lane.complete(job, ...), from any thread
+        void send(SmsJob job, DispatchLane lane) throws InterruptedException;
+    }
+
+    final int simSlot;
+    private final int maxInFlight;
+    private final int baseTimeoutSeconds;
+    private final int perPartTimeoutSeconds;
+    private final FairQueue queue;
+    private final Semaphore permits;
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final Sender sender;
+    private final Consumer<SmsJob> onFinished;
+    private volatile Thread worker;
+    private volatile RateLimiter limiter;
+
+    public DispatchLane(int simSlot, int capacity, int maxInFlight, int baseTimeoutSeconds, int perPartTimeoutSeconds,
+                        Sender sender, Consumer<SmsJob> onFinished) {
+        this.simSlot = simSlot;
+        this.maxInFlight = maxInFlight;
+        this.baseTimeoutSeconds = baseTimeoutSeconds;
+        this.perPartTimeoutSeconds = perPartTimeoutSeconds;
+        this.queue = new FairQueue(capacity);
+        this.permits = new Semaphore(maxInFlight);
+        this.sender = sender;
+        this.onFinished = onFinished;
+    }
+
+    public synchronized void start() {
+        if (worker != null) return;
+        worker = new Thread(this::drain, "Pathway-Lane-" + (simSlot == -1 ? "default" : "sim" + simSlot));
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    public synchronized void stop() {
+        if (worker == null) return;
+        worker.interrupt();
+        worker = null;
+
+        // Anything still queued will never reach the radio
+        SmsJob job;
+        while ((job = queue.poll()) != null) {
+            job.complete(SmsJob.STATUS_FAILED, SmsJob.REASON_STOPPED);
+            onFinished.accept(job);
+        }
+    }
+
+    // null turns pacing off
+    public void setRateLimiter(RateLimiter limiter) {
+        this.limiter = limiter;
+    }
+
+    public RateLimiter getRateLimiter() {
+        return limiter;
+    }
+
+    boolean offer(SmsJob job) {
+        return queue.offer(job);
+    }
+
+    // Room left for jobs of this class from this tenant
+    int remainingCapacity(int priority, String tenant) {
+        return queue.room(priority, tenant);
+    }
+
+    // Queued plus in-flight; used to pick a lane when the request names no SIM
+    public int load() {
+        return queue.size() + inFlight.get();
+    }
+
+    public int queueDepth() {
+        return queue.size();
+    }
+
+    public int queueDepth(int priority) {
+        return queue.size(priority);
+    }
+
+    public int inFlight() {
+        return inFlight.get();
+    }
+
+    public int maxInFlight() {
+        return maxInFlight;
+    }
+
+    public long timeoutMillis(int partCount) {
+        return (baseTimeoutSeconds + (long) partCount * perPartTimeoutSeconds) * 1000L;
+    }
+
+    // Called by the sender once the carrier has answered (or the budget ran out)
+    public void complete(SmsJob job, String status, String reason) {
+        if (job.complete(status, reason)) {
+            RateLimiter l = limiter;
+            if (l != null) l.onResult(SmsJob.STATUS_SENT.equals(status), reason);
+            inFlight.decrementAndGet();
+            permits.release();
+            onFinished.accept(job);
+        }
+    }
+
+    private void drain() {
+        while (!Thread.currentThread().isInterrupted()) {
+            SmsJob job;
+            try {
+                permits.acquire();
+                job = queue.take();
+            } catch (InterruptedException e) {
+                break;
+            }
+            inFlight.incrementAndGet();
+            try {
+                awaitToken();
+                job = queue.preempt(job);
+                sender.send(job, this);
+            } catch (InterruptedException e) {
+                complete(job, SmsJob.STATUS_FAILED, SmsJob.REASON_STOPPED);
+                break;
+            } catch (Exception e) {
+                complete(job, SmsJob.STATUS_FAILED, "error_" + e.getMessage());
+            }
+        }
+    }
+
+    // Re-reads the limiter each round so config changes apply to a waiting lane
+    private void awaitToken() throws InterruptedException {
+        RateLimiter l;
+        long wait;
+        while ((l = limiter) != null && (wait = l.reserve()) > 0) {
+            Thread.sleep(Math.min(wait, 1000));
+        }
+    }
+}
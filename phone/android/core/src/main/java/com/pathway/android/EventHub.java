@@ -0,0 +1,176 @@
+package com.pathway.android;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Fan-out of status changes, log lines and received SMS to GET /events subscribers. Events are
+// numbered and kept in a fixed ring, so a client that reconnects with the last
+// ID it saw gets everything it missed, as long as that is still in the ring.
+// Publishing never waits for subscribers; each one reads at its own pace.
+public class EventHub {
+    public static final String TYPE_STATUS = "status";
+    public static final String TYPE_LOG = "log";
+    public static final String TYPE_INBOX = "inbox";
+
+    // Sent when a stream is idle so dead connections are noticed
+    private static final long HEARTBEAT_MILLIS = 15_000;
+    private static final int MAX_EVENTS_PER_READ = 256;
+    private static final byte[] HEARTBEAT = ": ping\n\n".getBytes(StandardCharsets.UTF_8);
+
+    private static final class Event {
+        final long seq;
+        final String type;
+        final String data;
+
+        Event(long seq, String type, String data) {
+            this.seq = seq;
+            this.type = type;
+            this.data = data;
+        }
+    }
+
+    private final Event[] ring;
+    private final AtomicInteger subscribers = new AtomicInteger();
+    private long lastSeq;
+    private boolean closed;
+
+    public EventHub(int capacity) {
+        this.ring = new Event[capacity];
+    }
+
+    // data must be a single-line JSON document
+    public synchronized void publish(String type, String data) {
+        if (closed) return;
+        long seq = ++lastSeq;
+        ring[(int) (seq % ring.length)] = new Event(seq, type, data);
+        notifyAll();
+    }
+
+    // Publishes several events of one type with a single wake-up
+    public synchronized void publishAll(String type, List<String> data) {
+        if (closed) return;
+        for (String item : data) {
+            long seq = ++lastSeq;
+            ring[(int) (seq % ring.length)] = new Event(seq, type, item);
+        }
+        notifyAll();
+    }
+
+    public synchronized long lastSeq() {
+        return lastSeq;
+    }
+
+    // Wakes every subscriber and ends their streams
+    public synchronized void close() {
+        closed = true;
+        notifyAll();
+    }
+
+    // A stream of events after the given sequence number, in text/event-stream
+    // format. types limits which event types are sent; null means all.
+    public InputStream subscribe(long after, List<String> types) {
+        return new Subscription(after, types);
+    }
+
+    // Open streams; each one holds an HTTP worker for as long as it is connected
+    public int subscribers() {
+        return subscribers.get();
+    }
+
+    // Waits up to timeoutMillis for events after the cursor. Returns null once closed.
+    private synchronized List<Event> await(long after, long timeoutMillis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (!closed && lastSeq <= after) {
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) break;
+            wait(remaining);
+        }
+        if (closed) return null;
+
+        List<Event> events = new ArrayList<>();
+        long oldest = Math.max(1, lastSeq - ring.length + 1);
+        long from = Math.max(after + 1, oldest);
+        if (from > after + 1) {
+            // The client fell further behind than the ring holds
+            events.add(new Event(from - 1, "reset", "{\"from\": " + from + "}"));
+        }
+        for (long seq = from; seq <= lastSeq && events.size() < MAX_EVENTS_PER_READ; seq++) {
+            events.add(ring[(int) (seq % ring.length)]);
+        }
+        return events;
+    }
+
+    private final class Subscription extends InputStream {
+        private final List<String> types;
+        private long cursor;
+        private byte[] buffer = "retry: 3000\n\n".getBytes(StandardCharsets.UTF_8);
+        private int position;
+        private volatile boolean done;
+
+        Subscription(long after, List<String> types) {
+            // A cursor from a previous run of the app is ahead of this one; start over
+            this.cursor = after > lastSeq() ? 0 : after;
+            this.types = types;
+            subscribers.incrementAndGet();
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) == -1 ? -1 : one[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (position >= buffer.length && !fill()) {
+                return -1;
+            }
+            int n = Math.min(len, buffer.length - position);
+            System.arraycopy(buffer, position, b, off, n);
+            position += n;
+            return n;
+        }
+
+        @Override
+        public void close() {
+            if (!done) {
+                done = true;
+                subscribers.decrementAndGet();
+            }
+        }
+
+        // Blocks until there is something to send: events, or a heartbeat once idle
+        private boolean fill() throws IOException {
+            long deadline = System.currentTimeMillis() + HEARTBEAT_MILLIS;
+            StringBuilder sb = new StringBuilder();
+            while (sb.length() == 0) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (done) return false;
+                if (remaining <= 0) break;
+                List<Event> events;
+                try {
+                    events = await(cursor, remaining);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted");
+                }
+                if (events == null) return false;
+
+                for (Event event : events) {
+                    cursor = event.seq;
+                    if (types != null && !"reset".equals(event.type) && !types.contains(event.type)) continue;
+                    sb.append("id: ").append(event.seq).append('\n');
+                    sb.append("event: ").append(event.type).append('\n');
+                    sb.append("data: ").append(event.data).append("\n\n");
+                }
+            }
+            buffer = sb.length() > 0 ? sb.toString().getBytes(StandardCharsets.UTF_8) : HEARTBEAT;
+            position = 0;
+            return true;
+        }
+    }
+}
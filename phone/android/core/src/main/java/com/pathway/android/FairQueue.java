@@ -0,0 +1,162 @@
+package com.pathway.android;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+
+// A lane's queue of jobs waiting for the radio, ordered by priority class and
+// tenant instead of arrival. The top class (otp) is strict: it is served
+// whenever it has anything waiting, and may take up to TOP_RESERVE_PERCENT more
+// than the capacity so a full queue of bulk messages can't turn it away. The
+// other classes share what is left by weighted fair queueing (stride scheduling):
+// each serve costs a class STRIDE / weight of virtual time and the class furthest
+// behind goes next, so with weights 4:1 transactional gets four messages out for
+// every bulk one while both have work, and all of it when bulk is idle.
+//
+// Within a class, tenants (API clients) take turns one message at a time, so a
+// client with a 5,000 message campaign delays another client's single message by
+// one send, not 5,000. No tenant may hold more than TENANT_SHARE_PERCENT of the
+// capacity, leaving room for the others to be admitted at all.
+//
+// Offering and taking are O(1) apart from a scan over the handful of classes.
+public class FairQueue {
+    private static final int[] WEIGHTS = { 0, 4, 1 };
+    private static final long STRIDE = 1 << 20;
+    private static final int TOP_RESERVE_PERCENT = 10;
+    private static final int TENANT_SHARE_PERCENT = 75;
+
+    private static final class Tenant {
+        final String id;
+        final ArrayDeque<SmsJob> jobs = new ArrayDeque<>();
+
+        Tenant(String id) {
+            this.id = id;
+        }
+    }
+
+    private static final class PriorityClass {
+        final long stride;
+        final Map<String, Tenant> tenants = new HashMap<>();
+        // Tenants with jobs waiting, in the order they get their next turn
+        final ArrayDeque<Tenant> turns = new ArrayDeque<>();
+        int size;
+        long pass;
+
+        PriorityClass(int weight) {
+            this.stride = weight > 0 ? STRIDE / weight : 0;
+        }
+    }
+
+    private final int capacity;
+    private final int tenantLimit;
+    private final PriorityClass[] classes = new PriorityClass[WEIGHTS.length];
+    // Jobs per tenant across all classes
+    private final Map<String, int[]> held = new HashMap<>();
+    private int size;
+    // Pass of the class served last; a class that was idle starts from here
+    private long virtualTime;
+
+    public FairQueue(int capacity) {
+        this.capacity = capacity;
+        this.tenantLimit = Math.max(1, (int) ((long) capacity * TENANT_SHARE_PERCENT / 100));
+        for (int i = 0; i < classes.length; i++) {
+            classes[i] = new PriorityClass(WEIGHTS[i]);
+        }
+    }
+
+    // Returns false if the job's class or tenant is at its limit
+    public synchronized boolean offer(SmsJob job) {
+        if (room(job.priority, job.tenant) <= 0) return false;
+        PriorityClass c = classes[job.priority];
+        if (c.size == 0) c.pass = Math.max(c.pass, virtualTime);
+        Tenant tenant = c.tenants.get(job.tenant);
+        if (tenant == null) {
+            tenant = new Tenant(job.tenant);
+            c.tenants.put(job.tenant, tenant);
+            c.turns.addLast(tenant);
+        }
+        tenant.jobs.addLast(job);
+        c.size++;
+        size++;
+        int[] count = held.get(job.tenant);
+        if (count == null) held.put(job.tenant, count = new int[1]);
+        count[0]++;
+        notifyAll();
+        return true;
+    }
+
+    // How many more jobs of this class and tenant would be taken
+    public synchronized int room(int priority, String tenant) {
+        int limit = priority == SmsJob.PRIORITY_OTP ? capacity + capacity * TOP_RESERVE_PERCENT / 100 : capacity;
+        int[] count = held.get(tenant);
+        return Math.min(limit - size, tenantLimit - (count != null ? count[0] : 0));
+    }
+
+    public synchronized SmsJob take() throws InterruptedException {
+        while (size == 0) {
+            wait();
+        }
+        return poll();
+    }
+
+    // The next job by class and turn, or null if there is none
+    public synchronized SmsJob poll() {
+        if (size == 0) return null;
+        PriorityClass next = classes[SmsJob.PRIORITY_OTP];
+        if (next.size == 0) {
+            next = null;
+            for (int i = SmsJob.PRIORITY_OTP + 1; i < classes.length; i++) {
+                PriorityClass c = classes[i];
+                if (c.size > 0 && (next == null || c.pass < next.pass)) next = c;
+            }
+            virtualTime = next.pass;
+            next.pass += next.stride;
+        }
+        Tenant tenant = next.turns.pollFirst();
+        SmsJob job = tenant.jobs.pollFirst();
+        if (tenant.jobs.isEmpty()) {
+            next.tenants.remove(tenant.id);
+        } else {
+            next.turns.addLast(tenant);
+        }
+        next.size--;
+        size--;
+        int[] count = held.get(job.tenant);
+        if (--count[0] == 0) held.remove(job.tenant);
+        return job;
+    }
+
+    // Called with a job already taken, just before it goes to the radio: if a
+    // top class job arrived meanwhile (say while the lane waited on its rate
+    // limit), that one goes instead and the taken job gets its turn back
+    public synchronized SmsJob preempt(SmsJob taken) {
+        if (taken.priority == SmsJob.PRIORITY_OTP || classes[SmsJob.PRIORITY_OTP].size == 0) return taken;
+        PriorityClass c = classes[taken.priority];
+        c.pass -= c.stride;
+        Tenant tenant = c.tenants.get(taken.tenant);
+        if (tenant == null) {
+            tenant = new Tenant(taken.tenant);
+            c.tenants.put(taken.tenant, tenant);
+            c.turns.addFirst(tenant);
+        } else {
+            // Its tenant is next in line again
+            c.turns.remove(tenant);
+            c.turns.addFirst(tenant);
+        }
+        tenant.jobs.addFirst(taken);
+        c.size++;
+        size++;
+        int[] count = held.get(taken.tenant);
+        if (count == null) held.put(taken.tenant, count = new int[1]);
+        count[0]++;
+        return poll();
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    public synchronized int size(int priority) {
+        return classes[priority].size;
+    }
+}
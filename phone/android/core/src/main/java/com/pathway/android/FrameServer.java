@@ -0,0 +1,553 @@
+package com.pathway.android;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+// Optional binary listener for high-volume LAN clients: one persistent TCP
+// connection carrying length-prefixed frames instead of an HTTP request (and
+// CORS headers) per message. Acks and status updates for the connection's
+// messages come back on the same socket, tagged with the client's correlation ID.
+//
+// Every frame is a varint payload length followed by the payload, whose first
+// byte is the frame type. Numbers are unsigned LEB128 varints; strings are a
+// varint byte length followed by UTF-8.
+//
+//   client -> gateway
+//     0x01 HELLO   string apiKey                       (must be the first frame;
+//                                                       a key with the sms scope)
+//     0x02 SEND    varint corr, u8 sim, u8 flags, string number, string message
+//                  sim 0xFF = preferred SIM; flags bit 0 = request delivery report
+//     0x03 PING    varint corr
+//   gateway -> client
+//     0x81 READY
+//     0x82 ACK     varint corr, u8 result, string id-or-reason
+//                  result 0 = queued (id), 1 = invalid, 2 = queue full, 3 = error,
+//                  4 = over the key's rate or daily quota (rate_limited, daily_quota)
+//     0x83 PONG    varint corr
+//     0x84 STATUS  varint corr, string id, u8 state, string reason
+//                  state 1 = sent, 2 = failed, 3 = delivered, 4 = not delivered
+//     0xEF ERROR   string reason                        (then the socket closes)
+//
+// A message's STATUS frames always follow its ACK.
+// A SEND that got no ACK before an ERROR frame was not taken.
+public class FrameServer {
+    public static final int HELLO = 0x01;
+    public static final int SEND = 0x02;
+    public static final int PING = 0x03;
+    public static final int READY = 0x81;
+    public static final int ACK = 0x82;
+    public static final int PONG = 0x83;
+    public static final int STATUS = 0x84;
+    public static final int ERROR = 0xEF;
+
+    public static final int ACK_QUEUED = 0;
+    public static final int ACK_INVALID = 1;
+    public static final int ACK_QUEUE_FULL = 2;
+    public static final int ACK_ERROR = 3;
+    public static final int ACK_THROTTLED = 4;
+
+    public static final int STATE_SENT = 1;
+    public static final int STATE_FAILED = 2;
+    public static final int STATE_DELIVERED = 3;
+    public static final int STATE_UNDELIVERED = 4;
+
+    public static final int SIM_PREFERRED = 0xFF;
+    public static final int FLAG_DELIVERY_REPORT = 1;
+
+    private static final int MAX_FRAME_BYTES = 64 * 1024;
+    private static final int MAX_CONNECTIONS = 4;
+    private static final int HELLO_TIMEOUT_MILLIS = 10_000;
+    // SEND frames already received are made durable and queued together
+    private static final int MAX_SEND_BATCH = 256;
+    // Outgoing frames waiting for a slow client; past this the client is dropped
+    private static final int OUTGOING_QUEUE_CAPACITY = 16_384;
+
+    // Makes the jobs durable and queues each one; returns which were accepted
+    public interface Sink {
+        boolean[] submit(List<SmsJob> jobs) throws IOException, InterruptedException;
+
+        int preferredSim();
+
+        // False for a slot with no SIM in it
+        boolean knownSim(int slot);
+    }
+
+    // A message sent on a connection, until its last status frame
+    private static final class Tracked {
+        final Client client;
+        final long corr;
+        final boolean deliveryReport;
+        // Status frames that overtook the ack, sent right after it
+        private boolean acked;
+        private List<byte[]> deferred;
+
+        Tracked(Client client, long corr, boolean deliveryReport) {
+            this.client = client;
+            this.corr = corr;
+            this.deliveryReport = deliveryReport;
+        }
+
+        synchronized void status(byte[] frame) {
+            if (acked) {
+                client.send(frame);
+                return;
+            }
+            if (deferred == null) deferred = new ArrayList<>(2);
+            deferred.add(frame);
+        }
+
+        synchronized void ack(byte[] frame) {
+            client.send(frame);
+            acked = true;
+            if (deferred == null) return;
+            for (byte[] status : deferred) {
+                client.send(status);
+            }
+            deferred = null;
+        }
+    }
+
+    private final int port;
+    private final ApiKeys keys;
+    private final Sink sink;
+    private final ApiServer.LogCallback log;
+    private final Set<Client> clients = ConcurrentHashMap.newKeySet();
+    private final Map<String, Tracked> tracked = new ConcurrentHashMap<>();
+    private volatile ServerSocket serverSocket;
+
+    public FrameServer(int port, ApiKeys keys, Sink sink, ApiServer.LogCallback log) {
+        this.port = port;
+        this.keys = keys;
+        this.sink = sink;
+        this.log = log;
+    }
+
+    public void start() throws IOException {
+        ServerSocket socket = new ServerSocket(port);
+        serverSocket = socket;
+        Thread acceptor = new Thread(() -> acceptLoop(socket), "Pathway-Frames");
+        acceptor.setDaemon(true);
+        acceptor.start();
+        log.log("Binary listener on port " + port);
+    }
+
+    public void stop() {
+        ServerSocket socket = serverSocket;
+        serverSocket = null;
+        if (socket != null) {
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+                // Already closed
+            }
+        }
+        for (Client client : clients) {
+            client.close();
+        }
+        tracked.clear();
+    }
+
+    public int connections() {
+        return clients.size();
+    }
+
+    // The job reached sent or failed; called from the dispatcher
+    public void onFinished(SmsJob job) {
+        Tracked t = tracked.get(job.id);
+        if (t == null) return;
+        boolean sent = SmsJob.STATUS_SENT.equals(job.getStatus());
+        // Keep waiting for the delivery report only if one will come
+        if (!sent || !t.deliveryReport) tracked.remove(job.id, t);
+        String reason = job.getReason();
+        t.status(statusFrame(t.corr, job.id, sent ? STATE_SENT : STATE_FAILED, reason != null ? reason : ""));
+    }
+
+    // The message's delivery state became final; called from SentStatusReceiver
+    public void onDelivery(String jobId, String delivery) {
+        Tracked t = tracked.remove(jobId);
+        if (t == null) return;
+        boolean delivered = StatusStore.DELIVERY_DELIVERED.equals(delivery);
+        t.status(statusFrame(t.corr, jobId, delivered ? STATE_DELIVERED : STATE_UNDELIVERED, ""));
+    }
+
+    private void acceptLoop(ServerSocket socket) {
+        while (!socket.isClosed()) {
+            Socket connection;
+            try {
+                connection = socket.accept();
+            } catch (IOException e) {
+                break;
+            }
+            if (clients.size() >= MAX_CONNECTIONS) {
+                rejectBusy(connection);
+                continue;
+            }
+            Client client = new Client(connection);
+            clients.add(client);
+            client.start();
+        }
+    }
+
+    private void rejectBusy(Socket connection) {
+        try {
+            OutputStream out = connection.getOutputStream();
+            out.write(errorFrame("too_many_connections"));
+            out.flush();
+        } catch (IOException ignored) {
+            // Client already gone
+        }
+        closeQuietly(connection);
+    }
+
+    private final class Client {
+        final Socket socket;
+        final BlockingQueue<byte[]> outgoing = new ArrayBlockingQueue<>(OUTGOING_QUEUE_CAPACITY);
+        volatile boolean closed;
+        // Set by HELLO; sends count against its limits
+        private ApiKeys.Key key;
+        private String tenant;
+
+        Client(Socket socket) {
+            this.socket = socket;
+        }
+
+        void start() {
+            String name = socket.getInetAddress().getHostAddress();
+            Thread reader = new Thread(this::readLoop, "Pathway-Frames-In-" + name);
+            Thread writer = new Thread(this::writeLoop, "Pathway-Frames-Out-" + name);
+            reader.setDaemon(true);
+            writer.setDaemon(true);
+            reader.start();
+            writer.start();
+        }
+
+        // Queues a frame for the writer thread; a client that can't keep up is dropped
+        void send(byte[] frame) {
+            if (closed) return;
+            if (!outgoing.offer(frame)) {
+                log.log("Binary client " + socket.getInetAddress().getHostAddress() + " too slow, closing");
+                close();
+            }
+        }
+
+        void close() {
+            if (closed) return;
+            closed = true;
+            clients.remove(this);
+            closeQuietly(socket);
+            Iterator<Tracked> it = tracked.values().iterator();
+            while (it.hasNext()) {
+                if (it.next().client == this) it.remove();
+            }
+        }
+
+        private void readLoop() {
+            List<SmsJob> jobs = new ArrayList<>(MAX_SEND_BATCH);
+            List<Long> corrs = new ArrayList<>(MAX_SEND_BATCH);
+            try {
+                InputStream in = new BufferedInputStream(socket.getInputStream(), 16 * 1024);
+                socket.setTcpNoDelay(true);
+                socket.setSoTimeout(HELLO_TIMEOUT_MILLIS);
+                byte[] hello = readFrame(in);
+                key = hello != null ? authenticate(hello) : null;
+                if (key == null) {
+                    sendAndClose(errorFrame("unauthorized"));
+                    return;
+                }
+                if (!key.allows(ApiKeys.SCOPE_SMS)) {
+                    sendAndClose(errorFrame("forbidden"));
+                    return;
+                }
+                key.used();
+                // As over HTTP, clients sharing the primary key are told apart by address
+                tenant = key.isPrimary() ? socket.getInetAddress().getHostAddress() : key.id;
+                socket.setSoTimeout(0);
+                send(new byte[] { 1, (byte) READY });
+                log.log("Binary client connected from " + socket.getInetAddress().getHostAddress() + " with key " + key.id);
+
+                byte[] frame;
+                while ((frame = readFrame(in)) != null) {
+                    handle(frame, jobs, corrs);
+                    // Drain whatever else already arrived, then commit the sends together
+                    while (jobs.size() < MAX_SEND_BATCH && in.available() > 0 && (frame = readFrame(in)) != null) {
+                        handle(frame, jobs, corrs);
+                    }
+                    if (!jobs.isEmpty()) {
+                        try {
+                            submit(jobs, corrs);
+                        } finally {
+                            jobs.clear();
+                            corrs.clear();
+                        }
+                    }
+                }
+            } catch (SocketTimeoutException e) {
+                sendAndClose(errorFrame("hello_timeout"));
+            } catch (ProtocolException e) {
+                sendAndClose(errorFrame(e.getMessage()));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (IOException e) {
+                // Client went away
+            } finally {
+                // Sends read before a bad frame were neither queued nor acked, so
+                // the client knows they weren't taken; their quota goes back
+                if (!jobs.isEmpty()) key.release(jobs.size(), jobs.size());
+                close();
+            }
+        }
+
+        private void handle(byte[] frame, List<SmsJob> jobs, List<Long> corrs) throws IOException {
+            Cursor c = new Cursor(frame);
+            int type = c.u8();
+            if (type == SEND) {
+                long corr = c.varint();
+                int sim = c.u8();
+                int flags = c.u8();
+                String number = c.string();
+                String message = c.string();
+                if (number.isEmpty() || message.isEmpty()) {
+                    send(ackFrame(corr, ACK_INVALID, "Missing number or message"));
+                    return;
+                }
+                if (sim != SIM_PREFERRED && !sink.knownSim(sim)) {
+                    send(ackFrame(corr, ACK_INVALID, "Unknown SIM: " + sim));
+                    return;
+                }
+                if (key.acquire(1, 1) != 0) {
+                    send(ackFrame(corr, ACK_THROTTLED, key.limitReason(1)));
+                    return;
+                }
+                int simSlot = sim == SIM_PREFERRED ? sink.preferredSim() : sim;
+                jobs.add(new SmsJob(number, message, simSlot, (flags & FLAG_DELIVERY_REPORT) != 0, 0,
+                        SmsJob.PRIORITY_TRANSACTIONAL, tenant));
+                corrs.add(corr);
+            } else if (type == PING) {
+                send(corrFrame(PONG, c.varint()));
+            } else {
+                throw new ProtocolException("unknown_frame");
+            }
+        }
+
+        private void submit(List<SmsJob> jobs, List<Long> corrs) throws InterruptedException {
+            // Tracked before queueing so a fast status finds its correlation ID
+            Tracked[] entries = new Tracked[jobs.size()];
+            for (int i = 0; i < jobs.size(); i++) {
+                SmsJob job = jobs.get(i);
+                entries[i] = new Tracked(this, corrs.get(i), job.deliveryReport);
+                tracked.put(job.id, entries[i]);
+            }
+            boolean[] accepted;
+            try {
+                accepted = sink.submit(jobs);
+            } catch (IOException e) {
+                key.release(jobs.size(), jobs.size());
+                for (int i = 0; i < jobs.size(); i++) {
+                    tracked.remove(jobs.get(i).id);
+                    send(ackFrame(corrs.get(i), ACK_ERROR, "outbox_error"));
+                }
+                return;
+            }
+            for (int i = 0; i < jobs.size(); i++) {
+                SmsJob job = jobs.get(i);
+                if (accepted[i]) {
+                    entries[i].ack(ackFrame(corrs.get(i), ACK_QUEUED, job.id));
+                } else {
+                    tracked.remove(job.id);
+                    key.release(1, 1);
+                    send(ackFrame(corrs.get(i), ACK_QUEUE_FULL, "queue_full"));
+                }
+            }
+        }
+
+        // The key HELLO names, or null
+        private ApiKeys.Key authenticate(byte[] frame) throws IOException {
+            Cursor c = new Cursor(frame);
+            if (c.u8() != HELLO) return null;
+            return keys.find(c.string());
+        }
+
+        // Writes queued frames, flushing only when the queue runs dry
+        private void writeLoop() {
+            try {
+                OutputStream out = new BufferedOutputStream(socket.getOutputStream(), 16 * 1024);
+                while (!closed) {
+                    byte[] frame = outgoing.poll(1, TimeUnit.SECONDS);
+                    if (frame == null) continue;
+                    do {
+                        out.write(frame);
+                    } while ((frame = outgoing.poll()) != null);
+                    out.flush();
+                }
+            } catch (IOException | InterruptedException e) {
+                close();
+            }
+        }
+
+        private void sendAndClose(byte[] frame) {
+            try {
+                OutputStream out = socket.getOutputStream();
+                out.write(frame);
+                out.flush();
+            } catch (IOException ignored) {
+                // Client already gone
+            }
+            close();
+        }
+    }
+
+    // Malformed input; the reason is sent in an ERROR frame before closing
+    private static class ProtocolException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        ProtocolException(String reason) {
+            super(reason);
+        }
+    }
+
+    // Reads one frame's payload, or returns null at a clean end of stream
+    static byte[] readFrame(InputStream in) throws IOException {
+        int first = in.read();
+        if (first == -1) return null;
+        long length = readVarint(in, first);
+        if (length == 0 || length > MAX_FRAME_BYTES) throw new ProtocolException("bad_frame_length");
+        byte[] payload = new byte[(int) length];
+        int read = 0;
+        while (read < payload.length) {
+            int n = in.read(payload, read, payload.length - read);
+            if (n == -1) throw new EOFException();
+            read += n;
+        }
+        return payload;
+    }
+
+    private static long readVarint(InputStream in, int first) throws IOException {
+        long value = 0;
+        int shift = 0;
+        int b = first;
+        while (true) {
+            if (b == -1) throw new EOFException();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) return value;
+            shift += 7;
+            if (shift > 63) throw new ProtocolException("bad_varint");
+            b = in.read();
+        }
+    }
+
+    // Reads fields out of one frame's payload
+    static final class Cursor {
+        private final byte[] data;
+        private int position;
+
+        Cursor(byte[] data) {
+            this.data = data;
+        }
+
+        int u8() throws ProtocolException {
+            if (position >= data.length) throw new ProtocolException("truncated_frame");
+            return data[position++] & 0xFF;
+        }
+
+        long varint() throws ProtocolException {
+            long value = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                int b = u8();
+                value |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) return value;
+            }
+            throw new ProtocolException("bad_varint");
+        }
+
+        String string() throws ProtocolException {
+            long length = varint();
+            if (length > data.length - position) throw new ProtocolException("truncated_frame");
+            String value = new String(data, position, (int) length, StandardCharsets.UTF_8);
+            position += (int) length;
+            return value;
+        }
+    }
+
+    // Builds one frame: the payload is written first, then prefixed with its length
+    static final class FrameBuilder {
+        private final ByteArrayOutputStream payload = new ByteArrayOutputStream(64);
+
+        FrameBuilder(int type) {
+            payload.write(type);
+        }
+
+        FrameBuilder u8(int value) {
+            payload.write(value);
+            return this;
+        }
+
+        FrameBuilder varint(long value) {
+            writeVarint(payload, value);
+            return this;
+        }
+
+        FrameBuilder string(String value) {
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            writeVarint(payload, bytes.length);
+            payload.write(bytes, 0, bytes.length);
+            return this;
+        }
+
+        byte[] build() {
+            ByteArrayOutputStream frame = new ByteArrayOutputStream(payload.size() + 3);
+            writeVarint(frame, payload.size());
+            frame.write(payload.toByteArray(), 0, payload.size());
+            return frame.toByteArray();
+        }
+    }
+
+    static void writeVarint(ByteArrayOutputStream out, long value) {
+        while ((value & ~0x7FL) != 0) {
+            out.write((int) (value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    private static byte[] ackFrame(long corr, int result, String idOrReason) {
+        return new FrameBuilder(ACK).varint(corr).u8(result).string(idOrReason).build();
+    }
+
+    private static byte[] statusFrame(long corr, String id, int state, String reason) {
+        return new FrameBuilder(STATUS).varint(corr).string(id).u8(state).string(reason).build();
+    }
+
+    private static byte[] corrFrame(int type, long corr) {
+        return new FrameBuilder(type).varint(corr).build();
+    }
+
+    private static byte[] errorFrame(String reason) {
+        return new FrameBuilder(ERROR).string(reason).build();
+    }
+
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException ignored) {
+            // Already closed
+        }
+    }
+}
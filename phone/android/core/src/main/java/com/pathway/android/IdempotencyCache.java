@@ -0,0 +1,98 @@
+package com.pathway.android;
+
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Remembers which job a request key (an Idempotency-Key, or a number + message
+// hash) was first used for, so a retried POST /sms gets the original job instead
+// of sending a second SMS. Lookups and claims are single hash-map operations.
+// Entries expire after the TTL and the oldest go first once more than maxEntries
+// are held; only the key and job ID are kept, never the message.
+public class IdempotencyCache {
+    private static final class Entry {
+        final String key;
+        final String jobId;
+        final long expiresAt;
+
+        Entry(String key, String jobId, long expiresAt) {
+            this.key = key;
+            this.jobId = jobId;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+    // Claims in the order they were made, which is also expiry order for a fixed TTL
+    private final ArrayDeque<Entry> order = new ArrayDeque<>();
+    private final int maxEntries;
+    private volatile long ttlMillis;
+
+    public IdempotencyCache(int maxEntries, long ttlMillis) {
+        this.maxEntries = maxEntries;
+        this.ttlMillis = ttlMillis;
+    }
+
+    // 0 turns the cache off: nothing is remembered and every claim succeeds
+    public void setTtl(long ttlMillis) {
+        this.ttlMillis = ttlMillis;
+    }
+
+    public boolean isEnabled() {
+        return ttlMillis > 0;
+    }
+
+    // Claims key for jobId. Returns null if the claim was made, or the job ID an
+    // earlier, unexpired claim holds.
+    public String claim(String key, String jobId) {
+        long ttl = ttlMillis;
+        if (ttl <= 0) return null;
+        long now = System.currentTimeMillis();
+        Entry fresh = new Entry(key, jobId, now + ttl);
+        while (true) {
+            Entry existing = entries.putIfAbsent(key, fresh);
+            if (existing == null) break;
+            if (existing.expiresAt > now) return existing.jobId;
+            entries.remove(key, existing);
+        }
+        synchronized (order) {
+            order.addLast(fresh);
+            evict(now);
+        }
+        return null;
+    }
+
+    // Drops key's claim if jobId still holds it, e.g. when the job was never queued
+    public void release(String key, String jobId) {
+        entries.computeIfPresent(key, (k, entry) -> entry.jobId.equals(jobId) ? null : entry);
+    }
+
+    // Points key at another job, as when a duplicate turns out to belong to an earlier one
+    public void reassign(String key, String fromJobId, String toJobId) {
+        Entry replaced = entries.computeIfPresent(key, (k, entry) -> entry.jobId.equals(fromJobId)
+                ? new Entry(key, toJobId, entry.expiresAt) : entry);
+        if (replaced != null && replaced.jobId.equals(toJobId)) {
+            synchronized (order) {
+                order.addLast(replaced);
+                evict(System.currentTimeMillis());
+            }
+        }
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    // Caller holds the order lock. The deque also holds released and replaced
+    // claims, so bounding it bounds the map.
+    private void evict(long now) {
+        Entry oldest;
+        while ((oldest = order.peekFirst()) != null && (oldest.expiresAt <= now || order.size() > maxEntries)) {
+            order.pollFirst();
+            Entry current = entries.get(oldest.key);
+            if (current != null && current.jobId.equals(oldest.jobId)) {
+                entries.remove(oldest.key, current);
+            }
+        }
+    }
+}
@@ -0,0 +1,371 @@
+package com.pathway.android;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Received SMS, in an append-only log so they survive restarts, read back by
+// cursor. Every message gets the next sequence number, which carries over
+// restarts, so a client's cursor stays good. The newest maxEntries messages no
+// older than maxAgeMillis are kept, in memory in sequence (and so arrival-time)
+// order plus an index by sender, and the log is compacted down to them.
+//
+// Appends never wait for the disk: one writer thread writes and fsyncs whatever
+// has piled up, like Outbox, so a burst of hundreds of messages costs a few
+// fsyncs. Readers only see messages once they are durable, so a sequence number
+// handed out is never reused after a crash.
+public class Inbox {
+    private static final byte RECORD_MESSAGE = 1;
+    // Highest sequence number so far, written first by every compaction so the
+    // numbering survives even when every message has aged out
+    private static final byte RECORD_MARK = 2;
+    private static final String LOG_NAME = "inbox.log";
+    private static final long COMPACT_AFTER_BYTES = 4L * 1024 * 1024;
+
+    public static final class Message {
+        public final long seq;
+        public final long receivedAt;
+        // When the sender's SMSC stamped it
+        public final long sentAt;
+        public final int simSlot;
+        public final String sender;
+        public final String body;
+
+        Message(long seq, long receivedAt, long sentAt, int simSlot, String sender, String body) {
+            this.seq = seq;
+            this.receivedAt = receivedAt;
+            this.sentAt = sentAt;
+            this.simSlot = simSlot;
+            this.sender = sender;
+            this.body = body;
+        }
+
+        public void write(JsonWriter out) {
+            out.beginObject();
+            out.name("seq").value(seq);
+            out.name("from").value(sender);
+            out.name("message").value(body);
+            out.name("sim").value(simSlot);
+            out.name("sentAt").value(sentAt);
+            out.name("receivedAt").value(receivedAt);
+            out.endObject();
+        }
+    }
+
+    public static final class Page {
+        public final List<Message> items;
+        // Pass back as after= to continue
+        public final long cursor;
+        public final boolean more;
+        // Messages after the requested cursor were dropped before being read
+        public final boolean truncated;
+
+        Page(List<Message> items, long cursor, boolean more, boolean truncated) {
+            this.items = items;
+            this.cursor = cursor;
+            this.more = more;
+            this.truncated = truncated;
+        }
+    }
+
+    private final File dir;
+    private final RecordLog file;
+    private final long maxAgeMillis;
+    private final ApiServer.LogCallback log;
+
+    // Guarded by this: messages firstSeq..lastSeq, message seq at ring[seq % length]
+    private final Message[] ring;
+    private final Map<String, ArrayDeque<Message>> bySender = new HashMap<>();
+    private long firstSeq = 1;
+    private long lastSeq;
+    // Highest sequence number on disk (or accepted, without a log); readers stop here
+    private long durableSeq;
+    private List<Message> pendingWrites = new ArrayList<>();
+    private long bytesSinceCompact;
+    private Thread writer;
+    private boolean open;
+
+    public Inbox(File dir, int maxEntries, long maxAgeMillis, ApiServer.LogCallback log) {
+        this.dir = dir;
+        this.file = new RecordLog(dir, LOG_NAME);
+        this.maxAgeMillis = maxAgeMillis;
+        this.ring = new Message[maxEntries];
+        this.log = log;
+    }
+
+    // Reads the log back, compacts it and starts the writer. Without a call to
+    // open, or after it fails, messages are kept in memory only.
+    public synchronized void open() throws IOException {
+        if (open) return;
+        if (!dir.exists() && !dir.mkdirs()) {
+            throw new IOException("Cannot create " + dir);
+        }
+        readLog();
+        compact(durableSeq, kept());
+        open = true;
+        writer = new Thread(this::writeLoop, "Pathway-Inbox");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    public void close() {
+        Thread w;
+        synchronized (this) {
+            if (!open) return;
+            open = false;
+            w = writer;
+            writer = null;
+            notifyAll();
+        }
+        try {
+            w.join(5000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (this) {
+            file.close();
+        }
+    }
+
+    // Called from the SMS receiver; returns at once
+    public synchronized Message append(int simSlot, String sender, String body, long sentAt) {
+        long now = System.currentTimeMillis();
+        Message message = new Message(lastSeq + 1, now, sentAt, simSlot, sender != null ? sender : "", body != null ? body : "");
+        add(message);
+        if (open) {
+            pendingWrites.add(message);
+        } else {
+            durableSeq = message.seq;
+        }
+        notifyAll();
+        return message;
+    }
+
+    // Messages after the cursor, oldest first, up to limit. sender, when set,
+    // keeps only that sender's; sinceMillis skips those received earlier.
+    public synchronized Page read(long after, int limit, String sender, long sinceMillis) {
+        evictExpired(System.currentTimeMillis());
+        // A cursor from before the log was lost starts over
+        if (after > durableSeq) after = 0;
+        boolean truncated = after > 0 && after + 1 < firstSeq;
+        List<Message> items = new ArrayList<>(Math.min(limit, 256));
+        long cursor = Math.max(after, Math.min(durableSeq, firstSeq - 1));
+        if (sender != null) {
+            ArrayDeque<Message> messages = bySender.get(sender);
+            if (messages != null) {
+                for (Message m : messages) {
+                    if (m.seq <= after || m.receivedAt < sinceMillis) continue;
+                    if (m.seq > durableSeq) break;
+                    if (items.size() == limit) return new Page(items, cursor, true, truncated);
+                    items.add(m);
+                    cursor = m.seq;
+                }
+            }
+            return new Page(items, Math.max(cursor, durableSeq), false, truncated);
+        }
+        long seq = Math.max(after + 1, firstSeq);
+        if (sinceMillis > 0) seq = Math.max(seq, firstReceivedAt(sinceMillis));
+        for (; seq <= durableSeq && items.size() < limit; seq++) {
+            items.add(ring[(int) (seq % ring.length)]);
+        }
+        cursor = Math.max(cursor, Math.min(seq - 1, durableSeq));
+        return new Page(items, cursor, seq <= durableSeq, truncated);
+    }
+
+    // Waits up to timeoutMillis for a message after seq to become readable
+    public synchronized boolean awaitAfter(long seq, long timeoutMillis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (durableSeq <= seq) {
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) return false;
+            wait(remaining);
+        }
+        return true;
+    }
+
+    public synchronized int size() {
+        return (int) (lastSeq - firstSeq + 1);
+    }
+
+    public synchronized long lastSeq() {
+        return durableSeq;
+    }
+
+    // First sequence number received at or after time; arrival order is sequence order
+    private long firstReceivedAt(long time) {
+        long lo = firstSeq, hi = lastSeq + 1;
+        while (lo < hi) {
+            long mid = (lo + hi) >>> 1;
+            if (ring[(int) (mid % ring.length)].receivedAt < time) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    // Caller holds the lock
+    private void add(Message message) {
+        if (lastSeq - firstSeq + 1 == ring.length) evictOldest();
+        ring[(int) (message.seq % ring.length)] = message;
+        if (firstSeq > lastSeq) firstSeq = message.seq;
+        lastSeq = message.seq;
+        bySender.computeIfAbsent(message.sender, s -> new ArrayDeque<>()).addLast(message);
+        evictExpired(message.receivedAt);
+    }
+
+    private void evictExpired(long now) {
+        while (firstSeq <= lastSeq && firstSeq <= durableSeq
+                && ring[(int) (firstSeq % ring.length)].receivedAt < now - maxAgeMillis) {
+            evictOldest();
+        }
+    }
+
+    private void evictOldest() {
+        int index = (int) (firstSeq % ring.length);
+        Message oldest = ring[index];
+        ring[index] = null;
+        firstSeq++;
+        ArrayDeque<Message> messages = bySender.get(oldest.sender);
+        messages.pollFirst();
+        if (messages.isEmpty()) bySender.remove(oldest.sender);
+    }
+
+    private void writeLoop() {
+        while (true) {
+            List<Message> batch;
+            synchronized (this) {
+                while (pendingWrites.isEmpty() && open) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if (pendingWrites.isEmpty()) return; // Closed and drained
+                batch = pendingWrites;
+                pendingWrites = new ArrayList<>();
+            }
+
+            try {
+                List<byte[]> records = new ArrayList<>(batch.size());
+                for (Message message : batch) {
+                    records.add(encode(message));
+                }
+                bytesSinceCompact += file.append(records);
+            } catch (IOException e) {
+                // Still readable from memory; lost from disk if the app dies
+                log.log("Inbox write failed: " + e.getMessage());
+            }
+
+            long mark;
+            List<Message> kept = null;
+            synchronized (this) {
+                durableSeq = Math.max(durableSeq, batch.get(batch.size() - 1).seq);
+                notifyAll();
+                mark = durableSeq;
+                if (bytesSinceCompact > COMPACT_AFTER_BYTES) kept = kept();
+            }
+            // Rewritten outside the lock, so appends and reads don't wait on the
+            // disk. Everything up to the mark is already written, and whatever
+            // arrived since goes to the new log on the next round.
+            if (kept != null) {
+                try {
+                    compact(mark, kept);
+                } catch (IOException e) {
+                    log.log("Inbox compaction failed: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    // The durable messages still kept, oldest first. Caller holds the lock.
+    private List<Message> kept() {
+        List<Message> kept = new ArrayList<>((int) Math.max(0, durableSeq - firstSeq + 1));
+        for (long seq = firstSeq; seq <= durableSeq; seq++) {
+            kept.add(ring[(int) (seq % ring.length)]);
+        }
+        return kept;
+    }
+
+    // Rewrites the log with the mark and the kept messages, and swaps it in. Only
+    // the writer thread calls it, or open() before the writer runs.
+    private void compact(long mark, List<Message> kept) throws IOException {
+        file.rewrite(out -> {
+            out.write(encodeMark(mark));
+            for (Message message : kept) {
+                out.write(encode(message));
+            }
+        });
+        bytesSinceCompact = 0;
+    }
+
+    private void readLog() throws IOException {
+        long[] mark = new long[1];
+        int[] count = new int[1];
+        file.read(record -> {
+            byte type = record.readByte();
+            long seq = record.readLong();
+            if (type == RECORD_MARK) {
+                mark[0] = Math.max(mark[0], seq);
+            } else if (type == RECORD_MESSAGE && seq > lastSeq) {
+                long receivedAt = record.readLong();
+                long sentAt = record.readLong();
+                int simSlot = record.readInt();
+                String sender = RecordLog.readString(record);
+                String text = RecordLog.readString(record);
+                if (firstSeq <= lastSeq && seq != lastSeq + 1) {
+                    // A gap means an unreadable stretch; keep what follows it
+                    clearMemory();
+                }
+                add(new Message(seq, receivedAt, sentAt, simSlot, sender, text));
+                count[0]++;
+            }
+        });
+        if (lastSeq < mark[0]) {
+            // Every message aged out; numbering resumes after the mark
+            clearMemory();
+            lastSeq = mark[0];
+        }
+        durableSeq = lastSeq;
+        evictExpired(System.currentTimeMillis());
+        if (count[0] > 0) {
+            log.log("Inbox: " + size() + " message(s) kept, last #" + lastSeq);
+        }
+    }
+
+    private void clearMemory() {
+        Arrays.fill(ring, null);
+        bySender.clear();
+        firstSeq = lastSeq + 1;
+    }
+
+    private static byte[] encode(Message message) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 + message.body.length() * 3);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(RECORD_MESSAGE);
+        out.writeLong(message.seq);
+        out.writeLong(message.receivedAt);
+        out.writeLong(message.sentAt);
+        out.writeInt(message.simSlot);
+        RecordLog.writeString(out, message.sender);
+        RecordLog.writeString(out, message.body);
+        return RecordLog.frame(bytes.toByteArray());
+    }
+
+    private static byte[] encodeMark(long seq) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(9);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(RECORD_MARK);
+        out.writeLong(seq);
+        return RecordLog.frame(bytes.toByteArray());
+    }
+}
@@ -0,0 +1,183 @@
+package com.pathway.android;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+// Pushes received SMS to a URL on the LAN: POST {"items": [...]}, each item as
+// in GET /inbox, up to MAX_BATCH at a time. A batch is retried with exponential
+// backoff and jitter until the endpoint answers 2xx, and the cursor of the last
+// delivered message is kept on disk, so nothing is skipped across restarts. A
+// batch in flight when the app dies is sent again; receivers can use "seq" to
+// drop repeats.
+public class InboxWebhook {
+    private static final int MAX_BATCH = 100;
+    // Lets a burst gather into one batch
+    private static final long LINGER_MILLIS = 100;
+    private static final long FIRST_BACKOFF_MILLIS = 1000;
+    private static final long MAX_BACKOFF_MILLIS = 5 * 60 * 1000;
+    private static final int CONNECT_TIMEOUT_MILLIS = 5000;
+    private static final int READ_TIMEOUT_MILLIS = 15000;
+    private static final long IDLE_WAIT_MILLIS = 30_000;
+
+    private final Inbox inbox;
+    private final URL url;
+    // Sent as a Bearer token when set
+    private final String key;
+    private final File cursorFile;
+    private final ApiServer.LogCallback log;
+    private final Random jitter = new Random();
+    private Thread thread;
+    private volatile boolean running;
+
+    public InboxWebhook(Inbox inbox, URL url, String key, File cursorFile, ApiServer.LogCallback log) {
+        this.inbox = inbox;
+        this.url = url;
+        this.key = key;
+        this.cursorFile = cursorFile;
+        this.log = log;
+    }
+
+    public synchronized void start() {
+        if (running) return;
+        running = true;
+        // Starts from the newest message when there is no cursor yet, rather
+        // than replaying everything kept. Read here, not on the thread, so a
+        // message received right after start() is never taken for an old one.
+        long cursor = readCursor();
+        if (cursor < 0) {
+            cursor = inbox.lastSeq();
+            saveCursor(cursor);
+        }
+        long from = cursor;
+        thread = new Thread(() -> run(from), "Pathway-InboxWebhook");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public void stop() {
+        Thread t;
+        synchronized (this) {
+            if (!running) return;
+            running = false;
+            t = thread;
+            thread = null;
+        }
+        t.interrupt();
+        try {
+            t.join(5000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void run(long cursor) {
+        long backoff = FIRST_BACKOFF_MILLIS;
+        try {
+            while (running) {
+                if (!inbox.awaitAfter(cursor, IDLE_WAIT_MILLIS)) continue;
+                Thread.sleep(LINGER_MILLIS);
+                Inbox.Page page = inbox.read(cursor, MAX_BATCH, null, 0);
+                if (page.items.isEmpty()) {
+                    cursor = page.cursor;
+                    continue;
+                }
+                if (page.truncated) {
+                    log.log("Inbox webhook fell behind; messages before #" + page.items.get(0).seq + " were dropped unsent");
+                }
+                String failure = post(page);
+                if (failure == null) {
+                    cursor = page.cursor;
+                    saveCursor(cursor);
+                    backoff = FIRST_BACKOFF_MILLIS;
+                    continue;
+                }
+                long wait = backoff / 2 + (long) (jitter.nextDouble() * backoff / 2);
+                log.log("Inbox webhook failed (" + failure + "), retrying " + page.items.size() + " message(s) in "
+                        + (wait / 1000) + "s");
+                Thread.sleep(wait);
+                backoff = Math.min(MAX_BACKOFF_MILLIS, backoff * 2);
+            }
+        } catch (InterruptedException e) {
+            // Stopped
+        }
+    }
+
+    // Returns null once the endpoint has taken the batch, or why it didn't
+    private String post(Inbox.Page page) {
+        JsonWriter out = JsonWriter.forThread().beginObject();
+        out.name("items").beginArray();
+        for (Inbox.Message message : page.items) {
+            message.write(out);
+        }
+        out.endArray().endObject();
+
+        HttpURLConnection conn = null;
+        try {
+            conn = (HttpURLConnection) url.openConnection();
+            conn.setConnectTimeout(CONNECT_TIMEOUT_MILLIS);
+            conn.setReadTimeout(READ_TIMEOUT_MILLIS);
+            conn.setRequestMethod("POST");
+            conn.setDoOutput(true);
+            conn.setFixedLengthStreamingMode(out.length());
+            conn.setRequestProperty("Content-Type", "application/json");
+            if (key != null) conn.setRequestProperty("Authorization", "Bearer " + key);
+            try (InputStream body = out.stream(); OutputStream os = conn.getOutputStream()) {
+                byte[] buffer = new byte[8192];
+                int n;
+                while ((n = body.read(buffer)) > 0) os.write(buffer, 0, n);
+            }
+            int code = conn.getResponseCode();
+            // Drain so the connection can be reused
+            InputStream in = code < 400 ? conn.getInputStream() : conn.getErrorStream();
+            if (in != null) {
+                byte[] buffer = new byte[1024];
+                while (in.read(buffer) > 0) {
+                    // Discard
+                }
+                in.close();
+            }
+            return code / 100 == 2 ? null : "HTTP " + code;
+        } catch (IOException e) {
+            if (conn != null) conn.disconnect();
+            return e.getMessage();
+        }
+    }
+
+    // A FileInputStream rather than java.nio.file, which needs API 26
+    private long readCursor() {
+        byte[] buffer = new byte[32];
+        int length = 0;
+        try (FileInputStream in = new FileInputStream(cursorFile)) {
+            int n;
+            while (length < buffer.length && (n = in.read(buffer, length, buffer.length - length)) > 0) {
+                length += n;
+            }
+            return Long.parseLong(new String(buffer, 0, length, StandardCharsets.UTF_8).trim());
+        } catch (IOException | NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    // Written to a temporary file and renamed, so a crash leaves the old cursor or the new one
+    private void saveCursor(long cursor) {
+        File tmp = new File(cursorFile.getPath() + ".tmp");
+        try (FileOutputStream out = new FileOutputStream(tmp)) {
+            out.write(Long.toString(cursor).getBytes(StandardCharsets.UTF_8));
+            out.getFD().sync();
+        } catch (IOException e) {
+            log.log("Cannot save inbox webhook cursor: " + e.getMessage());
+            return;
+        }
+        if (!tmp.renameTo(cursorFile)) {
+            log.log("Cannot save inbox webhook cursor to " + cursorFile);
+        }
+    }
+}
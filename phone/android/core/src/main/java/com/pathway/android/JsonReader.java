@@ -0,0 +1,484 @@
+package com.pathway.android;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+// Pull-style JSON decoder that reads request bodies straight off the connection's
+// InputStream, decoding UTF-8 as it goes, so no intermediate byte array, String
+// or DOM tree of the whole body is built. Each worker thread reuses one reader
+// and its buffers; callers pull just the fields they need and skip the rest.
+//
+// The reader never reads past the body's declared length, and finish() drains
+// anything left unread so the next request on a kept-alive connection starts at
+// the right byte.
+public final class JsonReader {
+    public static final int BEGIN_OBJECT = 1;
+    public static final int END_OBJECT = 2;
+    public static final int BEGIN_ARRAY = 3;
+    public static final int END_ARRAY = 4;
+    public static final int NAME = 5;
+    public static final int STRING = 6;
+    public static final int NUMBER = 7;
+    public static final int BOOLEAN = 8;
+    public static final int NULL = 9;
+    public static final int END_DOCUMENT = 10;
+
+    public static class MalformedJsonException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        MalformedJsonException(String message) {
+            super(message);
+        }
+    }
+
+    public static class BodyTooLargeException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        BodyTooLargeException(long length, long max) {
+            super("Body of " + length + " bytes exceeds " + max);
+        }
+    }
+
+    // Scope states, as in a JSON grammar stack
+    private static final int EMPTY_DOCUMENT = 0;
+    private static final int NONEMPTY_DOCUMENT = 1;
+    private static final int EMPTY_OBJECT = 2;
+    private static final int DANGLING_NAME = 3;
+    private static final int NONEMPTY_OBJECT = 4;
+    private static final int EMPTY_ARRAY = 5;
+    private static final int NONEMPTY_ARRAY = 6;
+    private static final int MAX_DEPTH = 32;
+    // Scratch space beyond this is dropped when the reader is handed out again
+    private static final int MAX_RETAINED_CHARS = 16 * 1024;
+
+    private static final ThreadLocal<JsonReader> LOCAL = new ThreadLocal<JsonReader>() {
+        @Override
+        protected JsonReader initialValue() {
+            return new JsonReader();
+        }
+    };
+
+    private final byte[] buffer = new byte[8192];
+    private int position;
+    private int limit;
+    private InputStream in;
+    private long remaining;
+    private final int[] stack = new int[MAX_DEPTH];
+    private int depth;
+    private int peeked;
+    private char[] chars = new char[256];
+    private int charCount;
+
+    private JsonReader() {
+    }
+
+    // The calling thread's reader, reset to read a body of `length` bytes from `in`
+    public static JsonReader forThread(InputStream in, long length, long maxLength) throws IOException {
+        if (length > maxLength) {
+            throw new BodyTooLargeException(length, maxLength);
+        }
+        JsonReader reader = LOCAL.get();
+        reader.reset(in, length);
+        return reader;
+    }
+
+    private void reset(InputStream in, long length) {
+        this.in = in;
+        this.remaining = length;
+        this.position = 0;
+        this.limit = 0;
+        this.depth = 1;
+        this.stack[0] = EMPTY_DOCUMENT;
+        this.peeked = 0;
+        if (chars.length > MAX_RETAINED_CHARS) {
+            chars = new char[256];
+        }
+    }
+
+    // Skips the rest of the body and lets go of the stream
+    public void finish() throws IOException {
+        position = limit;
+        while (remaining > 0) {
+            long skipped = in.skip(remaining);
+            if (skipped <= 0) {
+                if (in.read() == -1) break;
+                skipped = 1;
+            }
+            remaining -= skipped;
+        }
+        in = null;
+    }
+
+    public int peek() throws IOException {
+        if (peeked == 0) peeked = doPeek();
+        return peeked;
+    }
+
+    public void beginObject() throws IOException {
+        expect(BEGIN_OBJECT);
+        push(EMPTY_OBJECT);
+    }
+
+    public void endObject() throws IOException {
+        expect(END_OBJECT);
+        depth--;
+    }
+
+    public void beginArray() throws IOException {
+        expect(BEGIN_ARRAY);
+        push(EMPTY_ARRAY);
+    }
+
+    public void endArray() throws IOException {
+        expect(END_ARRAY);
+        depth--;
+    }
+
+    // True while the current object or array has more members
+    public boolean hasNext() throws IOException {
+        int p = peek();
+        return p != END_OBJECT && p != END_ARRAY && p != END_DOCUMENT;
+    }
+
+    public String nextName() throws IOException {
+        expect(NAME);
+        return readQuoted();
+    }
+
+    // Strings, plus numbers and booleans as their text; null for a JSON null
+    public String nextString() throws IOException {
+        int p = peek();
+        peeked = 0;
+        switch (p) {
+            case STRING:
+                return readQuoted();
+            case NUMBER:
+                return readNumberText();
+            case BOOLEAN:
+                return readLiteral() ? "true" : "false";
+            case NULL:
+                readLiteral();
+                return null;
+            default:
+                throw syntaxError("Expected a string");
+        }
+    }
+
+    // Numbers, or strings holding a number
+    public long nextLong() throws IOException {
+        String text = peek() == NULL ? null : nextString();
+        if (text == null) throw syntaxError("Expected a number");
+        try {
+            return Long.parseLong(text.trim());
+        } catch (NumberFormatException e) {
+            try {
+                double value = Double.parseDouble(text.trim());
+                if (value == Math.rint(value)) return (long) value;
+            } catch (NumberFormatException ignored) {
+                // Reported below
+            }
+            throw syntaxError("Expected a whole number but was " + text);
+        }
+    }
+
+    public int nextInt() throws IOException {
+        long value = nextLong();
+        if (value != (int) value) throw syntaxError("Number out of range: " + value);
+        return (int) value;
+    }
+
+    public double nextDouble() throws IOException {
+        String text = peek() == NULL ? null : nextString();
+        if (text == null) throw syntaxError("Expected a number");
+        try {
+            return Double.parseDouble(text.trim());
+        } catch (NumberFormatException e) {
+            throw syntaxError("Expected a number but was " + text);
+        }
+    }
+
+    // Booleans, or the strings "true"/"false"
+    public boolean nextBoolean() throws IOException {
+        int p = peek();
+        if (p == BOOLEAN) {
+            peeked = 0;
+            return readLiteral();
+        }
+        if (p == STRING) {
+            return "true".equalsIgnoreCase(nextString());
+        }
+        throw syntaxError("Expected a boolean");
+    }
+
+    // Consumes a null and returns true, or leaves any other value in place
+    public boolean nextNullIfPresent() throws IOException {
+        if (peek() != NULL) return false;
+        peeked = 0;
+        readLiteral();
+        return true;
+    }
+
+    public void skipValue() throws IOException {
+        int nested = 0;
+        do {
+            int p = peek();
+            switch (p) {
+                case BEGIN_OBJECT:
+                    beginObject();
+                    nested++;
+                    break;
+                case BEGIN_ARRAY:
+                    beginArray();
+                    nested++;
+                    break;
+                case END_OBJECT:
+                    endObject();
+                    nested--;
+                    break;
+                case END_ARRAY:
+                    endArray();
+                    nested--;
+                    break;
+                case NAME:
+                    peeked = 0;
+                    skipQuoted();
+                    break;
+                case STRING:
+                    peeked = 0;
+                    skipQuoted();
+                    break;
+                case NUMBER:
+                    peeked = 0;
+                    readNumberText();
+                    break;
+                case BOOLEAN:
+                case NULL:
+                    peeked = 0;
+                    readLiteral();
+                    break;
+                default:
+                    throw syntaxError("Unexpected end of body");
+            }
+        } while (nested > 0);
+    }
+
+    private void expect(int token) throws IOException {
+        if (peek() != token) {
+            throw syntaxError("Unexpected token");
+        }
+        peeked = 0;
+    }
+
+    private void push(int scope) throws IOException {
+        if (depth == MAX_DEPTH) throw syntaxError("Nesting too deep");
+        stack[depth++] = scope;
+    }
+
+    private int doPeek() throws IOException {
+        int top = stack[depth - 1];
+        if (top == EMPTY_ARRAY) {
+            stack[depth - 1] = NONEMPTY_ARRAY;
+        } else if (top == NONEMPTY_ARRAY) {
+            int c = nextNonWhitespace();
+            if (c == ']') return END_ARRAY;
+            if (c != ',') throw syntaxError("Expected ',' or ']'");
+        } else if (top == EMPTY_OBJECT || top == NONEMPTY_OBJECT) {
+            stack[depth - 1] = DANGLING_NAME;
+            if (top == NONEMPTY_OBJECT) {
+                int c = nextNonWhitespace();
+                if (c == '}') return END_OBJECT;
+                if (c != ',') throw syntaxError("Expected ',' or '}'");
+            }
+            int c = nextNonWhitespace();
+            if (c == '"') return NAME;
+            if (c == '}' && top == EMPTY_OBJECT) return END_OBJECT;
+            throw syntaxError("Expected a name");
+        } else if (top == DANGLING_NAME) {
+            stack[depth - 1] = NONEMPTY_OBJECT;
+            if (nextNonWhitespace() != ':') throw syntaxError("Expected ':'");
+        } else if (top == EMPTY_DOCUMENT) {
+            stack[depth - 1] = NONEMPTY_DOCUMENT;
+        } else if (top == NONEMPTY_DOCUMENT) {
+            if (nextNonWhitespace() == -1) return END_DOCUMENT;
+            throw syntaxError("Unexpected data after the document");
+        }
+
+        int c = nextNonWhitespace();
+        switch (c) {
+            case ']':
+                if (top == EMPTY_ARRAY) return END_ARRAY;
+                throw syntaxError("Unexpected ']'");
+            case '{':
+                return BEGIN_OBJECT;
+            case '[':
+                return BEGIN_ARRAY;
+            case '"':
+                return STRING;
+            case 't':
+            case 'f':
+                position--;
+                return BOOLEAN;
+            case 'n':
+                position--;
+                return NULL;
+            case -1:
+                return END_DOCUMENT;
+            default:
+                if (c == '-' || (c >= '0' && c <= '9')) {
+                    position--;
+                    return NUMBER;
+                }
+                throw syntaxError("Unexpected character '" + (char) c + "'");
+        }
+    }
+
+    private int read() throws IOException {
+        if (position == limit && !fill()) return -1;
+        return buffer[position++] & 0xFF;
+    }
+
+    private boolean fill() throws IOException {
+        if (remaining <= 0) return false;
+        int n = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+        if (n <= 0) {
+            remaining = 0;
+            return false;
+        }
+        remaining -= n;
+        position = 0;
+        limit = n;
+        return true;
+    }
+
+    private int nextNonWhitespace() throws IOException {
+        int c;
+        do {
+            c = read();
+        } while (c == ' ' || c == '\t' || c == '\n' || c == '\r');
+        return c;
+    }
+
+    // Reads up to the closing quote; the opening quote was consumed by doPeek
+    private String readQuoted() throws IOException {
+        charCount = 0;
+        while (true) {
+            int b = read();
+            if (b == -1) throw syntaxError("Unterminated string");
+            if (b == '"') break;
+            if (b == '\\') {
+                appendChar(readEscape());
+            } else if (b < 0x80) {
+                appendChar((char) b);
+            } else {
+                appendUtf8(b);
+            }
+        }
+        return new String(chars, 0, charCount);
+    }
+
+    private void skipQuoted() throws IOException {
+        while (true) {
+            int b = read();
+            if (b == -1) throw syntaxError("Unterminated string");
+            if (b == '"') return;
+            if (b == '\\') read();
+        }
+    }
+
+    private char readEscape() throws IOException {
+        int c = read();
+        switch (c) {
+            case '"': return '"';
+            case '\\': return '\\';
+            case '/': return '/';
+            case 'b': return '\b';
+            case 'f': return '\f';
+            case 'n': return '\n';
+            case 'r': return '\r';
+            case 't': return '\t';
+            case 'u':
+                int value = 0;
+                for (int i = 0; i < 4; i++) {
+                    int h = read();
+                    int digit = Character.digit(h, 16);
+                    if (h == -1 || digit < 0) throw syntaxError("Invalid \\u escape");
+                    value = value << 4 | digit;
+                }
+                return (char) value;
+            default:
+                throw syntaxError("Invalid escape");
+        }
+    }
+
+    // Decodes one multi-byte UTF-8 sequence whose lead byte is b
+    private void appendUtf8(int b) throws IOException {
+        int codePoint;
+        int extra;
+        if ((b & 0xE0) == 0xC0) {
+            codePoint = b & 0x1F;
+            extra = 1;
+        } else if ((b & 0xF0) == 0xE0) {
+            codePoint = b & 0x0F;
+            extra = 2;
+        } else if ((b & 0xF8) == 0xF0) {
+            codePoint = b & 0x07;
+            extra = 3;
+        } else {
+            appendChar('\uFFFD');
+            return;
+        }
+        for (int i = 0; i < extra; i++) {
+            int next = read();
+            if (next == -1 || (next & 0xC0) != 0x80) {
+                appendChar('\uFFFD');
+                if (next == '"') position--; // Let the caller see the closing quote
+                return;
+            }
+            codePoint = codePoint << 6 | (next & 0x3F);
+        }
+        if (codePoint >= 0x10000) {
+            appendChar(Character.highSurrogate(codePoint));
+            appendChar(Character.lowSurrogate(codePoint));
+        } else {
+            appendChar((char) codePoint);
+        }
+    }
+
+    private void appendChar(char c) {
+        if (charCount == chars.length) {
+            char[] grown = new char[chars.length * 2];
+            System.arraycopy(chars, 0, grown, 0, charCount);
+            chars = grown;
+        }
+        chars[charCount++] = c;
+    }
+
+    private String readNumberText() throws IOException {
+        charCount = 0;
+        while (true) {
+            int c = read();
+            if ((c >= '0' && c <= '9') || c == '-' || c == '+' || c == '.' || c == 'e' || c == 'E') {
+                appendChar((char) c);
+            } else {
+                if (c != -1) position--;
+                break;
+            }
+        }
+        return new String(chars, 0, charCount);
+    }
+
+    // true, false or null; returns the boolean value (false for null)
+    private boolean readLiteral() throws IOException {
+        int c = read();
+        String rest = c == 't' ? "rue" : c == 'f' ? "alse" : c == 'n' ? "ull" : null;
+        if (rest == null) throw syntaxError("Unexpected character");
+        for (int i = 0; i < rest.length(); i++) {
+            if (read() != rest.charAt(i)) throw syntaxError("Invalid literal");
+        }
+        return c == 't';
+    }
+
+    private MalformedJsonException syntaxError(String message) {
+        return new MalformedJsonException(message);
+    }
+}
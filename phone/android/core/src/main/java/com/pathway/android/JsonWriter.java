@@ -0,0 +1,247 @@
+package com.pathway.android;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+
+// Writes a JSON response straight into a UTF-8 byte buffer that the worker thread
+// keeps between requests, so a response is encoded once with no intermediate
+// String. Commas between members are handled by the writer.
+//
+// The buffer is reused by the next forThread() call on the same thread: hand
+// stream() to the response only on the thread that sends it, as NanoHTTPD does
+// right after serve() returns.
+public final class JsonWriter {
+    private static final int MAX_DEPTH = 32;
+    // A buffer grown past this for one large response is dropped on the next reuse
+    private static final int MAX_RETAINED_BYTES = 64 * 1024;
+    private static final byte[] HEX = "0123456789abcdef".getBytes(java.nio.charset.StandardCharsets.US_ASCII);
+
+    private static final ThreadLocal<JsonWriter> LOCAL = new ThreadLocal<JsonWriter>() {
+        @Override
+        protected JsonWriter initialValue() {
+            return new JsonWriter(1024);
+        }
+    };
+
+    private byte[] buffer;
+    private int length;
+    // Per open object/array: whether the next member needs a leading comma
+    private final boolean[] needsComma = new boolean[MAX_DEPTH];
+    private int depth;
+    private boolean afterName;
+
+    public JsonWriter(int initialCapacity) {
+        this.buffer = new byte[initialCapacity];
+    }
+
+    // The calling thread's writer, emptied
+    public static JsonWriter forThread() {
+        JsonWriter writer = LOCAL.get();
+        if (writer.buffer.length > MAX_RETAINED_BYTES) {
+            writer.buffer = new byte[1024];
+        }
+        writer.length = 0;
+        writer.depth = 0;
+        writer.afterName = false;
+        return writer;
+    }
+
+    // A JSON string literal for code that assembles JSON in a StringBuilder;
+    // null becomes "" like org.json's JSONObject.quote
+    public static String quote(String s) {
+        if (s == null) return "\"\"";
+        StringBuilder sb = new StringBuilder(s.length() + 2).append('"');
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            switch (c) {
+                case '"': sb.append("\\\""); break;
+                case '\\': sb.append("\\\\"); break;
+                case '\n': sb.append("\\n"); break;
+                case '\r': sb.append("\\r"); break;
+                case '\t': sb.append("\\t"); break;
+                case '\b': sb.append("\\b"); break;
+                case '\f': sb.append("\\f"); break;
+                default:
+                    if (c < 0x20) {
+                        sb.append("\\u00").append((char) HEX[c >> 4]).append((char) HEX[c & 0xF]);
+                    } else {
+                        sb.append(c);
+                    }
+            }
+        }
+        return sb.append('"').toString();
+    }
+
+    public JsonWriter beginObject() {
+        beforeValue();
+        writeByte('{');
+        push();
+        return this;
+    }
+
+    public JsonWriter endObject() {
+        depth--;
+        writeByte('}');
+        return this;
+    }
+
+    public JsonWriter beginArray() {
+        beforeValue();
+        writeByte('[');
+        push();
+        return this;
+    }
+
+    public JsonWriter endArray() {
+        depth--;
+        writeByte(']');
+        return this;
+    }
+
+    public JsonWriter name(String name) {
+        separate();
+        writeString(name);
+        writeByte(':');
+        writeByte(' ');
+        afterName = true;
+        return this;
+    }
+
+    public JsonWriter value(String value) {
+        beforeValue();
+        if (value == null) {
+            writeAscii("null");
+        } else {
+            writeString(value);
+        }
+        return this;
+    }
+
+    public JsonWriter value(long value) {
+        beforeValue();
+        writeAscii(Long.toString(value));
+        return this;
+    }
+
+    public JsonWriter value(boolean value) {
+        beforeValue();
+        writeAscii(value ? "true" : "false");
+        return this;
+    }
+
+    // Writes an already-encoded JSON value, such as a stored status entry
+    public JsonWriter raw(String json) {
+        beforeValue();
+        writeChars(json, false);
+        return this;
+    }
+
+    public int length() {
+        return length;
+    }
+
+    // The bytes written so far, valid until this thread's writer is reused
+    public InputStream stream() {
+        return new ByteArrayInputStream(buffer, 0, length);
+    }
+
+    @Override
+    public String toString() {
+        return new String(buffer, 0, length, java.nio.charset.StandardCharsets.UTF_8);
+    }
+
+    private void push() {
+        needsComma[depth++] = false;
+    }
+
+    private void beforeValue() {
+        if (afterName) {
+            afterName = false;
+        } else {
+            separate();
+        }
+    }
+
+    private void separate() {
+        if (depth == 0) return;
+        if (needsComma[depth - 1]) {
+            writeByte(',');
+            writeByte(' ');
+        }
+        needsComma[depth - 1] = true;
+    }
+
+    private void writeString(String s) {
+        writeByte('"');
+        writeChars(s, true);
+        writeByte('"');
+    }
+
+    // UTF-8 encodes s, escaping it as a JSON string body when asked
+    private void writeChars(String s, boolean escape) {
+        int n = s.length();
+        ensure(n);
+        for (int i = 0; i < n; i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                if (escape && (c < 0x20 || c == '"' || c == '\\')) {
+                    writeEscaped(c);
+                } else {
+                    writeByte(c);
+                }
+            } else if (c < 0x800) {
+                writeByte(0xC0 | c >> 6);
+                writeByte(0x80 | c & 0x3F);
+            } else if (Character.isHighSurrogate(c) && i + 1 < n && Character.isLowSurrogate(s.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(c, s.charAt(++i));
+                writeByte(0xF0 | codePoint >> 18);
+                writeByte(0x80 | codePoint >> 12 & 0x3F);
+                writeByte(0x80 | codePoint >> 6 & 0x3F);
+                writeByte(0x80 | codePoint & 0x3F);
+            } else if (Character.isSurrogate(c)) {
+                writeByte('?'); // Unpaired surrogate
+            } else {
+                writeByte(0xE0 | c >> 12);
+                writeByte(0x80 | c >> 6 & 0x3F);
+                writeByte(0x80 | c & 0x3F);
+            }
+        }
+    }
+
+    private void writeEscaped(char c) {
+        writeByte('\\');
+        switch (c) {
+            case '"': writeByte('"'); break;
+            case '\\': writeByte('\\'); break;
+            case '\n': writeByte('n'); break;
+            case '\r': writeByte('r'); break;
+            case '\t': writeByte('t'); break;
+            case '\b': writeByte('b'); break;
+            case '\f': writeByte('f'); break;
+            default:
+                writeAscii("u00");
+                writeByte(HEX[c >> 4]);
+                writeByte(HEX[c & 0xF]);
+        }
+    }
+
+    private void writeAscii(String s) {
+        ensure(s.length());
+        for (int i = 0; i < s.length(); i++) {
+            buffer[length++] = (byte) s.charAt(i);
+        }
+    }
+
+    private void writeByte(int b) {
+        if (length == buffer.length) ensure(1);
+        buffer[length++] = (byte) b;
+    }
+
+    private void ensure(int extra) {
+        if (length + extra > buffer.length) {
+            byte[] grown = new byte[Math.max(buffer.length * 2, length + extra)];
+            System.arraycopy(buffer, 0, grown, 0, length);
+            buffer = grown;
+        }
+    }
+}
@@ -0,0 +1,109 @@
+package com.pathway.android;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+// Fixed-size ring of recent log lines. Writers claim a sequence number with one
+// atomic increment and fill a preallocated slot, so logging on a send or request
+// thread never blocks and never crosses into the WebView. Readers (GET /logs,
+// the event stream, the Capacitor bridge) each keep their own cursor and copy
+// lines out; a slot that was overwritten while being read is detected by
+// re-checking its sequence number and skipped.
+public class LogBuffer {
+    public static final int DEBUG = 0;
+    public static final int INFO = 1;
+    public static final int WARN = 2;
+    public static final int ERROR = 3;
+    private static final String[] LEVEL_NAMES = { "debug", "info", "warn", "error" };
+
+    public static final class Record {
+        public final long seq;
+        public final long time;
+        public final int level;
+        public final String message;
+
+        Record(long seq, long time, int level, String message) {
+            this.seq = seq;
+            this.time = time;
+            this.level = level;
+            this.message = message;
+        }
+
+        public String levelName() {
+            return LEVEL_NAMES[level];
+        }
+    }
+
+    private final int mask;
+    private final AtomicLong head = new AtomicLong();
+    // Per slot: the sequence number it holds (0 while being written), the
+    // timestamp and level packed as time << 2 | level, and the message
+    private final AtomicLongArray seqs;
+    private final AtomicLongArray meta;
+    private final AtomicReferenceArray<String> messages;
+
+    // capacity is rounded up to a power of two
+    public LogBuffer(int capacity) {
+        int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        this.mask = size - 1;
+        this.seqs = new AtomicLongArray(size);
+        this.meta = new AtomicLongArray(size);
+        this.messages = new AtomicReferenceArray<>(size);
+    }
+
+    public void append(int level, String message) {
+        long seq = head.incrementAndGet();
+        int slot = (int) (seq & mask);
+        seqs.set(slot, 0);
+        messages.set(slot, message);
+        meta.set(slot, System.currentTimeMillis() << 2 | (level & 3));
+        seqs.set(slot, seq);
+    }
+
+    // Sequence number of the newest line
+    public long head() {
+        return head.get();
+    }
+
+    // Oldest sequence number still held
+    public long tail() {
+        return Math.max(1, head.get() - mask);
+    }
+
+    public int capacity() {
+        return mask + 1;
+    }
+
+    // Copies up to max lines after the cursor, at or above minLevel, into out and
+    // returns the new cursor. Stops early at a line that is still being written.
+    public long read(long after, int max, int minLevel, List<Record> out) {
+        long newest = head.get();
+        long seq = Math.max(after + 1, newest - mask);
+        int added = 0;
+        for (; seq <= newest && added < max; seq++) {
+            int slot = (int) (seq & mask);
+            long held = seqs.get(slot);
+            if (held < seq) break; // Claimed but not written yet; pick it up next time
+            if (held > seq) continue; // Already overwritten
+            String message = messages.get(slot);
+            long packed = meta.get(slot);
+            if (seqs.get(slot) != seq) continue;
+            int level = (int) (packed & 3);
+            if (level < minLevel) continue;
+            out.add(new Record(seq, packed >>> 2, level, message));
+            added++;
+        }
+        return Math.max(after, seq - 1);
+    }
+
+    public static int parseLevel(String name, int defaultLevel) {
+        if (name != null) {
+            for (int i = 0; i < LEVEL_NAMES.length; i++) {
+                if (LEVEL_NAMES[i].equalsIgnoreCase(name)) return i;
+            }
+        }
+        return defaultLevel;
+    }
+}
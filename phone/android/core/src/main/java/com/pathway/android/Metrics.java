@@ -0,0 +1,447 @@
+package com.pathway.android;
+
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.Function;
+
+// Counters and latency histograms behind GET /metrics. Recording is a handful
+// of atomic increments on arrays allocated up front (no locks, no garbage), so
+// it can stay on in production; all formatting happens at scrape time.
+public class Metrics {
+    public static final int ROUTE_SMS = 0;
+    public static final int ROUTE_SMS_BATCH = 1;
+    public static final int ROUTE_USSD = 2;
+    public static final int ROUTE_STATUS = 3;
+    public static final int ROUTE_EVENTS = 4;
+    public static final int ROUTE_OTHER = 5;
+    private static final String[] ROUTE_NAMES = { "sms", "sms_batch", "ussd", "status", "events", "other" };
+    private static final String[] STATUS_CLASSES = { "2xx", "4xx", "5xx" };
+
+    // Failure reasons with their own counter; anything else is counted as "other"
+    private static final String[] FAILURE_REASONS = { "generic_failure", "no_service", "null_pdu", "radio_off",
+            "timeout", "partial_timeout", "queue_full", "server_stopped", "unconfirmed", "other" };
+
+    public static final int USSD_SUCCESS = 0;
+    public static final int USSD_FAILED = 1;
+    public static final int USSD_TIMEOUT = 2;
+    private static final String[] USSD_RESULTS = { "success", "failed", "timeout" };
+
+    // Latency objective per priority class (SmsJob.PRIORITY_NAMES): time from
+    // when a message could be sent until the carrier confirmed it
+    private static final long[] SLO_MILLIS = { 10_000, 60_000, 60 * 60_000 };
+
+    // Log-linear histogram of microsecond values in the style of HdrHistogram:
+    // each power of two is split into 8 sub-buckets, so any recorded value is
+    // within 12.5% of its bucket's bound, from 1 us up to about 12 days.
+    public static final class Histogram {
+        private static final int SUB_BITS = 3;
+        private static final int SUB_COUNT = 1 << SUB_BITS;
+        private static final int MAX_EXPONENT = 40;
+        private static final int BUCKETS = (MAX_EXPONENT - SUB_BITS + 1) * SUB_COUNT + SUB_COUNT;
+
+        private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong sum = new AtomicLong();
+        private final AtomicLong max = new AtomicLong();
+
+        public void recordMicros(long micros) {
+            if (micros < 0) micros = 0;
+            buckets.incrementAndGet(index(micros));
+            count.incrementAndGet();
+            sum.addAndGet(micros);
+            long current;
+            while (micros > (current = max.get()) && !max.compareAndSet(current, micros)) {
+                // Retry until the max sticks or someone recorded a larger one
+            }
+        }
+
+        public void recordNanos(long nanos) {
+            recordMicros(nanos / 1000);
+        }
+
+        public long count() {
+            return count.get();
+        }
+
+        static int index(long value) {
+            if (value < SUB_COUNT) return (int) value;
+            int exponent = 63 - Long.numberOfLeadingZeros(value);
+            int sub = (int) (value >>> (exponent - SUB_BITS)) & (SUB_COUNT - 1);
+            return Math.min(BUCKETS - 1, (exponent - SUB_BITS + 1) * SUB_COUNT + sub);
+        }
+
+        // Largest value that lands in the bucket
+        static long upperBound(int index) {
+            if (index < SUB_COUNT) return index;
+            int exponent = index / SUB_COUNT + SUB_BITS - 1;
+            int sub = index % SUB_COUNT;
+            return ((long) (SUB_COUNT + sub + 1) << (exponent - SUB_BITS)) - 1;
+        }
+
+        // Upper bound of the bucket holding the given quantile, in microseconds
+        long percentile(double quantile) {
+            long total = count.get();
+            if (total == 0) return 0;
+            long rank = (long) Math.ceil(quantile * total);
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += buckets.get(i);
+                if (seen >= rank) return Math.min(upperBound(i), max.get());
+            }
+            return max.get();
+        }
+
+        void writeJson(JsonWriter out) {
+            out.beginObject().name("count").value(count.get());
+            out.name("sumMs").raw(millis(sum.get()));
+            out.name("maxMs").raw(millis(max.get()));
+            out.name("p50Ms").raw(millis(percentile(0.5)));
+            out.name("p90Ms").raw(millis(percentile(0.9)));
+            out.name("p99Ms").raw(millis(percentile(0.99)));
+            out.name("p999Ms").raw(millis(percentile(0.999)));
+            out.endObject();
+        }
+
+        // Cumulative buckets at every power of two from 128 us, as Prometheus expects
+        void appendPrometheus(StringBuilder sb, String name, String labels) {
+            String prefix = labels.isEmpty() ? "{" : "{" + labels + ",";
+            long cumulative = 0;
+            int exponent = 7;
+            int nextBoundary = index((1L << exponent) - 1);
+            for (int i = 0; i < BUCKETS && exponent <= 36; i++) {
+                cumulative += buckets.get(i);
+                if (i == nextBoundary) {
+                    sb.append(name).append("_bucket").append(prefix).append("le=\"")
+                            .append(seconds((1L << exponent) - 1)).append("\"} ").append(cumulative).append('\n');
+                    exponent++;
+                    nextBoundary = index((1L << exponent) - 1);
+                }
+            }
+            sb.append(name).append("_bucket").append(prefix).append("le=\"+Inf\"} ").append(count.get()).append('\n');
+            String plain = labels.isEmpty() ? "" : "{" + labels + "}";
+            sb.append(name).append("_sum").append(plain).append(' ').append(seconds(sum.get())).append('\n');
+            sb.append(name).append("_count").append(plain).append(' ').append(count.get()).append('\n');
+        }
+    }
+
+    public static final class Sim {
+        final int slot;
+        final AtomicLong sent = new AtomicLong();
+        final AtomicLongArray failed = new AtomicLongArray(FAILURE_REASONS.length);
+        final AtomicLongArray ussd = new AtomicLongArray(USSD_RESULTS.length);
+        // Accepted until handed to the radio: queueing, in-flight limit and rate limit
+        public final Histogram queueWait = new Histogram();
+        // Handed to the radio until the carrier confirmed each part
+        public final Histogram partConfirm = new Histogram();
+        // Accepted until sent, for messages that went out
+        public final Histogram sendLatency = new Histogram();
+        public final Histogram ussdRoundTrip = new Histogram();
+
+        Sim(int slot) {
+            this.slot = slot;
+        }
+
+        public void recordFinished(String status, String reason, long micros) {
+            if (SmsJob.STATUS_SENT.equals(status)) {
+                sent.incrementAndGet();
+                sendLatency.recordMicros(micros);
+            } else {
+                failed.incrementAndGet(reasonIndex(reason));
+            }
+        }
+
+        public void recordUssd(int result, long nanos) {
+            ussd.incrementAndGet(result);
+            ussdRoundTrip.recordNanos(nanos);
+        }
+
+        String label() {
+            return "sim=\"" + (slot == -1 ? "default" : String.valueOf(slot)) + "\"";
+        }
+    }
+
+    public static final class PriorityClass {
+        final int priority;
+        final AtomicLong sent = new AtomicLong();
+        final AtomicLong withinSlo = new AtomicLong();
+        final AtomicLong failed = new AtomicLong();
+        public final Histogram queueWait = new Histogram();
+        public final Histogram sendLatency = new Histogram();
+
+        PriorityClass(int priority) {
+            this.priority = priority;
+        }
+
+        public void recordFinished(String status, long micros) {
+            if (SmsJob.STATUS_SENT.equals(status)) {
+                sent.incrementAndGet();
+                sendLatency.recordMicros(micros);
+                if (micros <= SLO_MILLIS[priority] * 1000) withinSlo.incrementAndGet();
+            } else {
+                failed.incrementAndGet();
+            }
+        }
+
+        String label() {
+            return "class=\"" + SmsJob.PRIORITY_NAMES[priority] + "\"";
+        }
+    }
+
+    private final Map<Integer, Sim> sims = new ConcurrentHashMap<>();
+    private final PriorityClass[] classes = new PriorityClass[SmsJob.PRIORITY_NAMES.length];
+    private final AtomicLongArray requests = new AtomicLongArray(ROUTE_NAMES.length * STATUS_CLASSES.length);
+    private final Histogram[] requestLatency = new Histogram[ROUTE_NAMES.length];
+    private final long startedAt = System.currentTimeMillis();
+
+    public Metrics() {
+        for (int i = 0; i < requestLatency.length; i++) {
+            requestLatency[i] = new Histogram();
+        }
+        for (int i = 0; i < classes.length; i++) {
+            classes[i] = new PriorityClass(i);
+        }
+    }
+
+    public PriorityClass priority(int priority) {
+        return classes[priority];
+    }
+
+    // Slots up to 127 are cached Integers, so the lookup doesn't allocate
+    public Sim sim(int slot) {
+        Sim sim = sims.get(slot);
+        if (sim == null) {
+            sim = sims.computeIfAbsent(slot, Sim::new);
+        }
+        return sim;
+    }
+
+    public static int route(String uri) {
+        if (uri.startsWith("/sms/batch")) return ROUTE_SMS_BATCH;
+        if (uri.equals("/sms")) return ROUTE_SMS;
+        if (uri.startsWith("/sms/") || uri.equals("/jobs")) return ROUTE_STATUS;
+        if (uri.equals("/ussd") || uri.startsWith("/ussd/")) return ROUTE_USSD;
+        if (uri.equals("/events")) return ROUTE_EVENTS;
+        return ROUTE_OTHER;
+    }
+
+    public void recordRequest(int route, int httpStatus, long nanos) {
+        int statusClass = httpStatus >= 500 ? 2 : (httpStatus >= 400 ? 1 : 0);
+        requests.incrementAndGet(route * STATUS_CLASSES.length + statusClass);
+        requestLatency[route].recordNanos(nanos);
+    }
+
+    private static int reasonIndex(String reason) {
+        if (reason == null) return FAILURE_REASONS.length - 1;
+        switch (reason) {
+            case "generic_failure": return 0;
+            case "no_service": return 1;
+            case "null_pdu": return 2;
+            case "radio_off": return 3;
+            case "timeout": return 4;
+            case "partial_timeout": return 5;
+            case "queue_full": return 6;
+            case SmsJob.REASON_STOPPED: return 7;
+            case "unconfirmed": return 8;
+            default: return FAILURE_REASONS.length - 1;
+        }
+    }
+
+    // Prometheus text exposition format 0.0.4
+    public String prometheus(DispatchLane[] lanes, int outboxPending, int statusEntries, long logLines) {
+        StringBuilder sb = new StringBuilder(16384);
+        header(sb, "pathway_uptime_seconds", "gauge", "Seconds since the server started");
+        sb.append("pathway_uptime_seconds ").append((System.currentTimeMillis() - startedAt) / 1000).append('\n');
+
+        header(sb, "pathway_http_requests_total", "counter", "HTTP requests by route and status class");
+        for (int route = 0; route < ROUTE_NAMES.length; route++) {
+            for (int c = 0; c < STATUS_CLASSES.length; c++) {
+                long value = requests.get(route * STATUS_CLASSES.length + c);
+                if (value == 0) continue;
+                sb.append("pathway_http_requests_total{route=\"").append(ROUTE_NAMES[route])
+                        .append("\",code=\"").append(STATUS_CLASSES[c]).append("\"} ").append(value).append('\n');
+            }
+        }
+        header(sb, "pathway_http_request_duration_seconds", "histogram", "Time to produce a response");
+        for (int route = 0; route < ROUTE_NAMES.length; route++) {
+            if (requestLatency[route].count() == 0) continue;
+            requestLatency[route].appendPrometheus(sb, "pathway_http_request_duration_seconds",
+                    "route=\"" + ROUTE_NAMES[route] + "\"");
+        }
+
+        Map<Integer, Sim> ordered = new TreeMap<>(sims);
+        header(sb, "pathway_sms_sent_total", "counter", "Messages the carrier confirmed as sent");
+        for (Sim sim : ordered.values()) {
+            sb.append("pathway_sms_sent_total{").append(sim.label()).append("} ").append(sim.sent.get()).append('\n');
+        }
+        header(sb, "pathway_sms_failed_total", "counter", "Messages that failed, by reason");
+        for (Sim sim : ordered.values()) {
+            for (int r = 0; r < FAILURE_REASONS.length; r++) {
+                long value = sim.failed.get(r);
+                if (value == 0) continue;
+                sb.append("pathway_sms_failed_total{").append(sim.label()).append(",reason=\"")
+                        .append(FAILURE_REASONS[r]).append("\"} ").append(value).append('\n');
+            }
+        }
+        simHistogram(sb, ordered, "pathway_sms_queue_wait_seconds", "Time from acceptance until handed to the radio", sim -> sim.queueWait);
+        simHistogram(sb, ordered, "pathway_sms_part_confirm_seconds", "Time from send until the carrier confirmed a part", sim -> sim.partConfirm);
+        simHistogram(sb, ordered, "pathway_sms_send_latency_seconds", "Time from acceptance until confirmed sent", sim -> sim.sendLatency);
+
+        header(sb, "pathway_sms_queue_depth", "gauge", "Messages waiting on each SIM lane");
+        for (DispatchLane lane : lanes) {
+            sb.append("pathway_sms_queue_depth{").append(sim(lane.simSlot).label()).append("} ").append(lane.queueDepth()).append('\n');
+        }
+        header(sb, "pathway_sms_in_flight", "gauge", "Messages handed to the radio and awaiting confirmation");
+        for (DispatchLane lane : lanes) {
+            sb.append("pathway_sms_in_flight{").append(sim(lane.simSlot).label()).append("} ").append(lane.inFlight()).append('\n');
+        }
+
+        header(sb, "pathway_sms_class_queue_depth", "gauge", "Messages waiting, by priority class");
+        for (PriorityClass c : classes) {
+            int depth = 0;
+            for (DispatchLane lane : lanes) depth += lane.queueDepth(c.priority);
+            sb.append("pathway_sms_class_queue_depth{").append(c.label()).append("} ").append(depth).append('\n');
+        }
+        header(sb, "pathway_sms_class_sent_total", "counter", "Messages sent, by priority class");
+        for (PriorityClass c : classes) {
+            sb.append("pathway_sms_class_sent_total{").append(c.label()).append("} ").append(c.sent.get()).append('\n');
+        }
+        header(sb, "pathway_sms_class_failed_total", "counter", "Messages that failed, by priority class");
+        for (PriorityClass c : classes) {
+            sb.append("pathway_sms_class_failed_total{").append(c.label()).append("} ").append(c.failed.get()).append('\n');
+        }
+        header(sb, "pathway_sms_slo_target_seconds", "gauge", "Latency objective of each priority class");
+        for (PriorityClass c : classes) {
+            sb.append("pathway_sms_slo_target_seconds{").append(c.label()).append("} ")
+                    .append(SLO_MILLIS[c.priority] / 1000).append('\n');
+        }
+        header(sb, "pathway_sms_slo_met_total", "counter", "Messages sent within their class's latency objective");
+        for (PriorityClass c : classes) {
+            sb.append("pathway_sms_slo_met_total{").append(c.label()).append("} ").append(c.withinSlo.get()).append('\n');
+        }
+        header(sb, "pathway_sms_class_queue_wait_seconds", "histogram", "Time from ready until handed to the radio, by priority class");
+        for (PriorityClass c : classes) {
+            if (c.queueWait.count() > 0) c.queueWait.appendPrometheus(sb, "pathway_sms_class_queue_wait_seconds", c.label());
+        }
+        header(sb, "pathway_sms_class_send_latency_seconds", "histogram", "Time from ready until confirmed sent, by priority class");
+        for (PriorityClass c : classes) {
+            if (c.sendLatency.count() > 0) c.sendLatency.appendPrometheus(sb, "pathway_sms_class_send_latency_seconds", c.label());
+        }
+
+        header(sb, "pathway_ussd_requests_total", "counter", "USSD requests by result");
+        for (Sim sim : ordered.values()) {
+            for (int r = 0; r < USSD_RESULTS.length; r++) {
+                long value = sim.ussd.get(r);
+                if (value == 0) continue;
+                sb.append("pathway_ussd_requests_total{").append(sim.label()).append(",result=\"")
+                        .append(USSD_RESULTS[r]).append("\"} ").append(value).append('\n');
+            }
+        }
+        simHistogram(sb, ordered, "pathway_ussd_duration_seconds", "USSD round trip from request to network answer", sim -> sim.ussdRoundTrip);
+
+        header(sb, "pathway_outbox_pending", "gauge", "Accepted messages not yet finished");
+        sb.append("pathway_outbox_pending ").append(outboxPending).append('\n');
+        header(sb, "pathway_status_entries", "gauge", "Messages held in the status store");
+        sb.append("pathway_status_entries ").append(statusEntries).append('\n');
+        header(sb, "pathway_log_lines_total", "counter", "Log lines written");
+        sb.append("pathway_log_lines_total ").append(logLines).append('\n');
+        return sb.toString();
+    }
+
+    public void json(JsonWriter out, DispatchLane[] lanes, int outboxPending, int statusEntries, long logLines) {
+        out.beginObject().name("uptimeSeconds").value((System.currentTimeMillis() - startedAt) / 1000);
+        out.name("http").beginObject();
+        for (int route = 0; route < ROUTE_NAMES.length; route++) {
+            out.name(ROUTE_NAMES[route]).beginObject();
+            for (int c = 0; c < STATUS_CLASSES.length; c++) {
+                out.name(STATUS_CLASSES[c]).value(requests.get(route * STATUS_CLASSES.length + c));
+            }
+            out.name("latency");
+            requestLatency[route].writeJson(out);
+            out.endObject();
+        }
+        out.endObject();
+        out.name("sims").beginArray();
+        Map<Integer, Sim> ordered = new TreeMap<>(sims);
+        for (DispatchLane lane : lanes) {
+            ordered.putIfAbsent(lane.simSlot, sim(lane.simSlot));
+        }
+        for (Sim sim : ordered.values()) {
+            out.beginObject().name("sim").value(sim.slot);
+            for (DispatchLane lane : lanes) {
+                if (lane.simSlot == sim.slot) {
+                    out.name("queued").value(lane.queueDepth());
+                    out.name("inFlight").value(lane.inFlight());
+                }
+            }
+            out.name("sent").value(sim.sent.get());
+            out.name("failed").beginObject();
+            for (int r = 0; r < FAILURE_REASONS.length; r++) {
+                out.name(FAILURE_REASONS[r]).value(sim.failed.get(r));
+            }
+            out.endObject();
+            out.name("ussd").beginObject();
+            for (int r = 0; r < USSD_RESULTS.length; r++) {
+                out.name(USSD_RESULTS[r]).value(sim.ussd.get(r));
+            }
+            out.endObject();
+            out.name("queueWait");
+            sim.queueWait.writeJson(out);
+            out.name("partConfirm");
+            sim.partConfirm.writeJson(out);
+            out.name("sendLatency");
+            sim.sendLatency.writeJson(out);
+            out.name("ussdRoundTrip");
+            sim.ussdRoundTrip.writeJson(out);
+            out.endObject();
+        }
+        out.endArray();
+        out.name("classes").beginArray();
+        for (PriorityClass c : classes) {
+            int depth = 0;
+            for (DispatchLane lane : lanes) depth += lane.queueDepth(c.priority);
+            out.beginObject().name("class").value(SmsJob.PRIORITY_NAMES[c.priority]);
+            out.name("sloMs").value(SLO_MILLIS[c.priority]);
+            out.name("queued").value(depth);
+            out.name("sent").value(c.sent.get());
+            out.name("withinSlo").value(c.withinSlo.get());
+            out.name("failed").value(c.failed.get());
+            out.name("queueWait");
+            c.queueWait.writeJson(out);
+            out.name("sendLatency");
+            c.sendLatency.writeJson(out);
+            out.endObject();
+        }
+        out.endArray();
+        out.name("outboxPending").value(outboxPending);
+        out.name("statusEntries").value(statusEntries);
+        out.name("logLines").value(logLines);
+        out.endObject();
+    }
+
+    private static void simHistogram(StringBuilder sb, Map<Integer, Sim> sims, String name, String help,
+                                     Function<Sim, Histogram> select) {
+        header(sb, name, "histogram", help);
+        for (Sim sim : sims.values()) {
+            Histogram histogram = select.apply(sim);
+            if (histogram.count() == 0) continue;
+            histogram.appendPrometheus(sb, name, sim.label());
+        }
+    }
+
+    private static void header(StringBuilder sb, String name, String type, String help) {
+        sb.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        sb.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    private static String millis(long micros) {
+        return String.format(Locale.US, "%.3f", micros / 1000.0);
+    }
+
+    private static String seconds(long micros) {
+        return String.format(Locale.US, "%.6f", micros / 1_000_000.0);
+    }
+}
@@ -0,0 +1,255 @@
+package com.pathway.android;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Write-ahead log of accepted SMS jobs, so queued messages survive the process
+// being killed. Every accepted job gets an ACCEPT record and every finished job
+// a DONE record; on open, ACCEPTs without a DONE are handed back for replay.
+//
+// Appends are group-committed: callers add records to a pending batch and one
+// writer thread writes and fsyncs whatever has piled up, so a burst of requests
+// costs one fsync rather than one per message.
+public class Outbox {
+    private static final byte RECORD_ACCEPT = 1;
+    private static final byte RECORD_DONE = 2;
+    private static final int FLAG_DELIVERY_REPORT = 1;
+    // Followed by the job's sendAt
+    private static final int FLAG_SCHEDULED = 2;
+    // Followed by the job's priority class and tenant; without it a job is
+    // transactional and belongs to no tenant
+    private static final int FLAG_PRIORITY = 4;
+    private static final String LOG_NAME = "outbox.log";
+    // Rewrite the log with only the live jobs once this much has been appended, or
+    // as much as the live jobs took at the last rewrite if that is more: scheduled
+    // messages can keep hundreds of thousands of jobs live, and rewriting them all
+    // every few megabytes would cost more than the appends themselves
+    private static final long COMPACT_AFTER_BYTES = 4L * 1024 * 1024;
+    private static final long COMMIT_WAIT_MILLIS = 5000;
+
+    private final File dir;
+    private final RecordLog file;
+    private final ApiServer.LogCallback log;
+    private final Map<String, SmsJob> live = new ConcurrentHashMap<>();
+    private final Object commitLock = new Object();
+    private List<byte[]> pendingRecords = new ArrayList<>();
+    // Batches are numbered; a caller's records are durable once committedBatch reaches its batch
+    private long openBatch = 1;
+    private long committedBatch = 0;
+    private IOException writeError;
+    private long bytesSinceCompact;
+    private long compactedBytes;
+    private Thread writer;
+    private volatile boolean closed = true;
+
+    public Outbox(File dir, ApiServer.LogCallback log) {
+        this.dir = dir;
+        this.file = new RecordLog(dir, LOG_NAME);
+        this.log = log;
+    }
+
+    // Reads the log, compacts it, starts the writer and returns the jobs to replay
+    public synchronized List<SmsJob> open() throws IOException {
+        if (!closed) return new ArrayList<>();
+        if (!dir.exists() && !dir.mkdirs()) {
+            throw new IOException("Cannot create " + dir);
+        }
+
+        live.clear();
+        readLog();
+        compact();
+
+        synchronized (commitLock) {
+            pendingRecords = new ArrayList<>();
+            writeError = null;
+        }
+        closed = false;
+        writer = new Thread(this::writeLoop, "Pathway-Outbox");
+        writer.setDaemon(true);
+        writer.start();
+        return new ArrayList<>(live.values());
+    }
+
+    public synchronized void close() {
+        if (closed) return;
+        closed = true;
+        synchronized (commitLock) {
+            commitLock.notifyAll();
+        }
+        try {
+            writer.join(COMMIT_WAIT_MILLIS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        writer = null;
+        file.close();
+    }
+
+    // Blocks until the jobs are on disk
+    public void accept(List<SmsJob> jobs) throws IOException, InterruptedException {
+        // Nothing would commit, so there'd be nothing to wait for
+        if (jobs.isEmpty()) return;
+        List<byte[]> records = new ArrayList<>(jobs.size());
+        for (SmsJob job : jobs) {
+            records.add(encodeAccept(job));
+            live.put(job.id, job);
+        }
+        long batch = enqueue(records);
+        awaitCommit(batch);
+    }
+
+    // Fire-and-forget; a lost DONE only means the job is replayed once more
+    public void done(SmsJob job) {
+        if (live.remove(job.id) == null || closed) return;
+        List<byte[]> records = new ArrayList<>(1);
+        records.add(encodeDone(job.id));
+        enqueue(records);
+    }
+
+    public int pendingCount() {
+        return live.size();
+    }
+
+    private long enqueue(List<byte[]> records) {
+        synchronized (commitLock) {
+            pendingRecords.addAll(records);
+            commitLock.notifyAll();
+            return openBatch;
+        }
+    }
+
+    private void awaitCommit(long batch) throws IOException, InterruptedException {
+        long deadline = System.currentTimeMillis() + COMMIT_WAIT_MILLIS;
+        synchronized (commitLock) {
+            while (true) {
+                // A failed write poisons the outbox until it is reopened
+                if (writeError != null) throw writeError;
+                if (committedBatch >= batch) return;
+                if (closed) throw new IOException("Outbox closed");
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) throw new IOException("Outbox commit timed out");
+                commitLock.wait(remaining);
+            }
+        }
+    }
+
+    private void writeLoop() {
+        while (true) {
+            List<byte[]> batch;
+            long batchNumber;
+            synchronized (commitLock) {
+                while (pendingRecords.isEmpty() && !closed) {
+                    try {
+                        commitLock.wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if (pendingRecords.isEmpty()) return; // Closed and drained
+                batch = pendingRecords;
+                batchNumber = openBatch++;
+                pendingRecords = new ArrayList<>();
+            }
+
+            IOException error = null;
+            try {
+                bytesSinceCompact += file.append(batch);
+                if (bytesSinceCompact > Math.max(COMPACT_AFTER_BYTES, compactedBytes)) {
+                    compact();
+                }
+            } catch (IOException e) {
+                error = e;
+                log.log("Outbox write failed: " + e.getMessage());
+            }
+
+            synchronized (commitLock) {
+                committedBatch = batchNumber;
+                if (error != null) writeError = error;
+                commitLock.notifyAll();
+            }
+        }
+    }
+
+    // Rewrites the log with just the live ACCEPT records and swaps it in
+    private void compact() throws IOException {
+        compactedBytes = file.rewrite(out -> {
+            for (SmsJob job : live.values()) {
+                out.write(encodeAccept(job));
+            }
+        });
+        bytesSinceCompact = 0;
+    }
+
+    private void readLog() throws IOException {
+        // Insertion order keeps replay close to the original accept order
+        Map<String, SmsJob> accepted = new LinkedHashMap<>();
+        int records = file.read(record -> {
+            byte type = record.readByte();
+            String id = RecordLog.readString(record);
+            if (type == RECORD_ACCEPT) {
+                String number = RecordLog.readString(record);
+                String message = RecordLog.readString(record);
+                int simSlot = record.readInt();
+                long createdAt = record.readLong();
+                // Flags were added later; older records end after createdAt
+                int flags = record.available() > 0 ? record.readByte() : 0;
+                boolean deliveryReport = (flags & FLAG_DELIVERY_REPORT) != 0;
+                long sendAt = (flags & FLAG_SCHEDULED) != 0 ? record.readLong() : 0;
+                int priority = SmsJob.PRIORITY_TRANSACTIONAL;
+                String tenant = "";
+                if ((flags & FLAG_PRIORITY) != 0) {
+                    priority = record.readByte();
+                    tenant = RecordLog.readString(record);
+                }
+                accepted.put(id, new SmsJob(id, number, message, simSlot, deliveryReport, createdAt, sendAt,
+                        priority, tenant));
+            } else if (type == RECORD_DONE) {
+                accepted.remove(id);
+            }
+        });
+        live.putAll(accepted);
+        if (!accepted.isEmpty()) {
+            log.log("Outbox: " + accepted.size() + " unsent message(s) found in " + records + " record(s)");
+        }
+    }
+
+    private static byte[] encodeAccept(SmsJob job) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 + job.message.length() * 3);
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeByte(RECORD_ACCEPT);
+            RecordLog.writeString(out, job.id);
+            RecordLog.writeString(out, job.number);
+            RecordLog.writeString(out, job.message);
+            out.writeInt(job.simSlot);
+            out.writeLong(job.createdAt);
+            out.writeByte((job.deliveryReport ? FLAG_DELIVERY_REPORT : 0) | (job.sendAt > 0 ? FLAG_SCHEDULED : 0)
+                    | FLAG_PRIORITY);
+            if (job.sendAt > 0) out.writeLong(job.sendAt);
+            out.writeByte(job.priority);
+            RecordLog.writeString(out, job.tenant);
+            return RecordLog.frame(bytes.toByteArray());
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static byte[] encodeDone(String id) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(32);
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeByte(RECORD_DONE);
+            RecordLog.writeString(out, id);
+            return RecordLog.frame(bytes.toByteArray());
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
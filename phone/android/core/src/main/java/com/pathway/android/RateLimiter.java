@@ -0,0 +1,158 @@
+package com.pathway.android;
+
+import java.util.Calendar;
+
+// Token bucket pacing for one SIM, with optional hourly and daily caps.
+// When adaptive, the refill rate follows AIMD like TCP congestion control:
+// it creeps up by roughly one message/minute for every minute's worth of
+// successful sends and halves when the carrier starts failing sends, never
+// going above the configured rate or below MIN_RATE_PER_MINUTE.
+public class RateLimiter {
+    private static final double MIN_RATE_PER_MINUTE = 1.0;
+    // Back off once this share of recent sends failed (EWMA over ~20 sends)
+    private static final double FAILURE_THRESHOLD = 0.2;
+    private static final double FAILURE_EWMA_WEIGHT = 0.05;
+    // Don't halve again until the last cut has had time to take effect
+    private static final long BACKOFF_COOLDOWN_MILLIS = 60_000;
+
+    final double maxRatePerMinute;
+    final int burst;
+    final int hourlyCap;
+    final int dailyCap;
+    final boolean adaptive;
+
+    private double ratePerMinute;
+    private double tokens;
+    private long lastRefillMillis;
+    private double failureRate;
+    private long lastBackoffMillis;
+    private long hourStart;
+    private int sentThisHour;
+    private long dayStart;
+    private long dayEnd;
+    private int sentToday;
+
+    // Caps of 0 mean no cap
+    public RateLimiter(double ratePerMinute, int burst, int hourlyCap, int dailyCap, boolean adaptive) {
+        this.maxRatePerMinute = Math.max(MIN_RATE_PER_MINUTE, ratePerMinute);
+        this.burst = Math.max(1, burst);
+        this.hourlyCap = hourlyCap;
+        this.dailyCap = dailyCap;
+        this.adaptive = adaptive;
+        this.ratePerMinute = this.maxRatePerMinute;
+        this.tokens = this.burst;
+        this.lastRefillMillis = System.currentTimeMillis();
+    }
+
+    // A limiter with new settings that keeps this one's hourly and daily counts
+    // and, when both adapt, what it has learned about the carrier, so saving the
+    // settings again doesn't clear the caps or undo a backoff
+    public synchronized RateLimiter reconfigure(double ratePerMinute, int burst, int hourlyCap, int dailyCap,
+            boolean adaptive) {
+        RateLimiter next = new RateLimiter(ratePerMinute, burst, hourlyCap, dailyCap, adaptive);
+        long now = System.currentTimeMillis();
+        refill(now);
+        next.tokens = Math.min(next.burst, tokens);
+        next.lastRefillMillis = now;
+        if (this.adaptive && adaptive) {
+            next.ratePerMinute = Math.min(next.maxRatePerMinute, this.ratePerMinute);
+            next.failureRate = failureRate;
+            next.lastBackoffMillis = lastBackoffMillis;
+        }
+        next.hourStart = hourStart;
+        next.sentThisHour = sentThisHour;
+        next.dayStart = dayStart;
+        next.dayEnd = dayEnd;
+        next.sentToday = sentToday;
+        return next;
+    }
+
+    // Takes a token if one is available and returns 0, otherwise returns how
+    // many milliseconds to wait before asking again
+    public synchronized long reserve() {
+        long now = System.currentTimeMillis();
+        rollWindows(now);
+
+        if (hourlyCap > 0 && sentThisHour >= hourlyCap) {
+            return hourStart + 3_600_000L - now;
+        }
+        if (dailyCap > 0 && sentToday >= dailyCap) {
+            return dayEnd - now;
+        }
+
+        refill(now);
+        if (tokens >= 1.0) {
+            tokens -= 1.0;
+            sentThisHour++;
+            sentToday++;
+            return 0;
+        }
+        return (long) Math.ceil((1.0 - tokens) * 60_000.0 / ratePerMinute);
+    }
+
+    // Feeds a send outcome back into the adaptive rate
+    public synchronized void onResult(boolean success, String reason) {
+        if (!adaptive) return;
+        // Only carrier-side pushback counts; a missing number or radio off says nothing about rate
+        boolean throttled = !success && ("generic_failure".equals(reason) || "timeout".equals(reason));
+        failureRate += FAILURE_EWMA_WEIGHT * ((throttled ? 1.0 : 0.0) - failureRate);
+
+        long now = System.currentTimeMillis();
+        if (failureRate > FAILURE_THRESHOLD) {
+            if (now - lastBackoffMillis >= BACKOFF_COOLDOWN_MILLIS) {
+                refill(now);
+                ratePerMinute = Math.max(MIN_RATE_PER_MINUTE, ratePerMinute / 2);
+                lastBackoffMillis = now;
+            }
+        } else if (success) {
+            refill(now);
+            ratePerMinute = Math.min(maxRatePerMinute, ratePerMinute + 1.0 / ratePerMinute);
+        }
+    }
+
+    public synchronized double currentRatePerMinute() {
+        return ratePerMinute;
+    }
+
+    public synchronized double failureRate() {
+        return failureRate;
+    }
+
+    public synchronized int sentThisHour() {
+        rollWindows(System.currentTimeMillis());
+        return sentThisHour;
+    }
+
+    public synchronized int sentToday() {
+        rollWindows(System.currentTimeMillis());
+        return sentToday;
+    }
+
+    private void refill(long now) {
+        long elapsed = now - lastRefillMillis;
+        if (elapsed > 0) {
+            tokens = Math.min(burst, tokens + elapsed * ratePerMinute / 60_000.0);
+            lastRefillMillis = now;
+        }
+    }
+
+    // Days follow the device's local calendar
+    private void rollWindows(long now) {
+        if (now - hourStart >= 3_600_000L || now < hourStart) {
+            hourStart = now - (now % 3_600_000L);
+            sentThisHour = 0;
+        }
+        if (now >= dayEnd || now < dayStart) {
+            Calendar calendar = Calendar.getInstance();
+            calendar.setTimeInMillis(now);
+            calendar.set(Calendar.HOUR_OF_DAY, 0);
+            calendar.set(Calendar.MINUTE, 0);
+            calendar.set(Calendar.SECOND, 0);
+            calendar.set(Calendar.MILLISECOND, 0);
+            dayStart = calendar.getTimeInMillis();
+            calendar.add(Calendar.DAY_OF_MONTH, 1);
+            dayEnd = calendar.getTimeInMillis();
+            sentToday = 0;
+        }
+    }
+}
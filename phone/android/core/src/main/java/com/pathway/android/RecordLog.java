@@ -0,0 +1,141 @@
+package com.pathway.android;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.zip.CRC32;
+
+// An append-only file of records, each framed as [length][body][crc32 of body],
+// that Outbox and Inbox keep their logs in. A record torn by a crash fails its
+// length or checksum, and reading stops there, so only whole records come back.
+//
+// Not thread-safe: each owner appends and rewrites from its one writer thread.
+final class RecordLog {
+    private static final int MAX_RECORD_BYTES = 1024 * 1024;
+
+    interface Reader {
+        // One record's body, without the framing
+        void record(DataInputStream record) throws IOException;
+    }
+
+    interface Writer {
+        // Writes the records of a rewritten log, each one framed
+        void writeTo(OutputStream out) throws IOException;
+    }
+
+    private final File file;
+    private FileChannel channel;
+
+    RecordLog(File dir, String name) {
+        this.file = new File(dir, name);
+    }
+
+    // Hands every whole record to reader, oldest first, and returns how many there were
+    int read(Reader reader) throws IOException {
+        if (!file.exists()) return 0;
+        int count = 0;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            CRC32 crc = new CRC32();
+            while (true) {
+                int length;
+                try {
+                    length = in.readInt();
+                } catch (EOFException e) {
+                    break;
+                }
+                if (length <= 0 || length > MAX_RECORD_BYTES) break; // Torn or corrupt tail
+                byte[] body = new byte[length];
+                long checksum;
+                try {
+                    in.readFully(body);
+                    checksum = in.readInt() & 0xFFFFFFFFL;
+                } catch (EOFException e) {
+                    break;
+                }
+                crc.reset();
+                crc.update(body, 0, body.length);
+                if (crc.getValue() != checksum) break;
+
+                reader.record(new DataInputStream(new ByteArrayInputStream(body)));
+                count++;
+            }
+        }
+        return count;
+    }
+
+    // Writes framed records at the end of the log and fsyncs them; returns the bytes written
+    long append(List<byte[]> records) throws IOException {
+        int size = 0;
+        for (byte[] record : records) size += record.length;
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        for (byte[] record : records) buffer.put(record);
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        channel.force(false);
+        return size;
+    }
+
+    // Replaces the log with what writer writes, fsynced before it is swapped in,
+    // and appends after it from then on. Returns the new log's size.
+    long rewrite(Writer writer) throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        try (FileOutputStream raw = new FileOutputStream(tmp);
+             BufferedOutputStream out = new BufferedOutputStream(raw, 64 * 1024)) {
+            writer.writeTo(out);
+            out.flush();
+            raw.getFD().sync();
+        }
+        close();
+        if (!tmp.renameTo(file)) {
+            throw new IOException("Cannot replace " + file);
+        }
+        channel = new FileOutputStream(file, true).getChannel();
+        return channel.size();
+    }
+
+    void close() {
+        if (channel == null) return;
+        try {
+            channel.close();
+        } catch (IOException ignored) {
+            // Nothing left to flush
+        }
+        channel = null;
+    }
+
+    static byte[] frame(byte[] body) {
+        CRC32 crc = new CRC32();
+        crc.update(body, 0, body.length);
+        ByteBuffer framed = ByteBuffer.allocate(body.length + 8);
+        framed.putInt(body.length);
+        framed.put(body);
+        framed.putInt((int) crc.getValue());
+        return framed.array();
+    }
+
+    static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    static String readString(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
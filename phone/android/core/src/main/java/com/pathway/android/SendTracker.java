@@ -0,0 +1,163 @@
+package com.pathway.android;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+// Jobs whose parts are with the radio, waiting for each part's sent status. The
+// radio reports parts by job ID and index, which are looked up in a table of
+// in-flight sends, so any number of messages can be outstanding at once. A job
+// finishes on its last report or when its lane's timeout runs out. Delivery
+// reports can arrive long after the job finished, so they go straight to the
+// StatusStore.
+public class SendTracker implements Telephony.Listener {
+
+    private static class PendingSend {
+        final SmsJob job;
+        final DispatchLane lane;
+        final int partCount;
+        final long startedNanos = System.nanoTime();
+        // 0 = waiting, 1 = ok, 2 = failed
+        final AtomicIntegerArray parts;
+        final AtomicInteger reported = new AtomicInteger();
+        final AtomicInteger succeeded = new AtomicInteger();
+        volatile String failure;
+        volatile ScheduledFuture<?> timeout;
+
+        PendingSend(SmsJob job, DispatchLane lane, int partCount) {
+            this.job = job;
+            this.lane = lane;
+            this.partCount = partCount;
+            this.parts = new AtomicIntegerArray(partCount);
+        }
+    }
+
+    public interface DeliveryListener {
+        // A message's delivery state became final (StatusStore.DELIVERY_DELIVERED or _FAILED)
+        void onDelivery(String jobId, String delivery);
+    }
+
+    private final ApiServer.LogCallback log;
+    private final StatusStore statuses;
+    private final Metrics metrics;
+    private final Map<String, PendingSend> pending = new ConcurrentHashMap<>();
+    private ScheduledExecutorService timeouts;
+    private volatile DeliveryListener deliveryListener;
+
+    public SendTracker(StatusStore statuses, Metrics metrics, ApiServer.LogCallback log) {
+        this.statuses = statuses;
+        this.metrics = metrics;
+        this.log = log;
+    }
+
+    public void setDeliveryListener(DeliveryListener listener) {
+        this.deliveryListener = listener;
+    }
+
+    public synchronized void start() {
+        if (timeouts != null) return;
+        timeouts = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "Pathway-SmsTimeouts");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    public synchronized void stop() {
+        if (timeouts == null) return;
+        timeouts.shutdownNow();
+        timeouts = null;
+
+        // These already reached the radio and may well have gone out, so they are
+        // not treated as stopped (which would replay them on the next start)
+        for (PendingSend send : pending.values()) {
+            finish(send, SmsJob.STATUS_FAILED, "unconfirmed");
+        }
+    }
+
+    // Starts tracking a job before its parts go to the radio
+    public void track(SmsJob job, DispatchLane lane, int partCount) {
+        PendingSend send = new PendingSend(job, lane, partCount);
+        pending.put(job.id, send);
+
+        ScheduledExecutorService scheduler = timeouts;
+        if (scheduler != null) {
+            send.timeout = scheduler.schedule(() -> expire(send), lane.timeoutMillis(partCount), TimeUnit.MILLISECONDS);
+        }
+    }
+
+    // For sends that never reached the radio
+    public void cancel(SmsJob job) {
+        PendingSend send = pending.remove(job.id);
+        if (send != null && send.timeout != null) {
+            send.timeout.cancel(false);
+        }
+    }
+
+    @Override
+    public void onPartSent(String jobId, int part, String failure) {
+        PendingSend send = jobId != null ? pending.get(jobId) : null;
+        if (send == null || part < 0 || part >= send.partCount) {
+            return; // Late report for a job that already timed out
+        }
+
+        boolean ok = failure == null;
+        if (!send.parts.compareAndSet(part, 0, ok ? 1 : 2)) {
+            return; // Duplicate
+        }
+        metrics.sim(send.lane.simSlot).partConfirm.recordNanos(System.nanoTime() - send.startedNanos);
+
+        if (ok) {
+            send.succeeded.incrementAndGet();
+        } else {
+            send.failure = failure;
+            log.log("SMS " + failure.replace('_', ' ') + " (" + send.job.number + ")");
+        }
+
+        if (send.reported.incrementAndGet() == send.partCount) {
+            if (send.failure == null) {
+                log.log("SMS Sent Successfully (" + send.partCount + "/" + send.partCount + " parts)");
+                finish(send, SmsJob.STATUS_SENT, null);
+            } else {
+                finish(send, SmsJob.STATUS_FAILED, send.failure);
+            }
+        }
+    }
+
+    @Override
+    public void onPartDelivered(String jobId, int part, byte outcome) {
+        if (jobId == null || outcome == StatusStore.PART_PENDING) return;
+        String delivery = statuses.onDeliveryReport(jobId, part, outcome);
+        if (delivery != null) {
+            log.log("SMS " + jobId + " " + delivery);
+            DeliveryListener listener = deliveryListener;
+            if (listener != null) listener.onDelivery(jobId, delivery);
+        }
+    }
+
+    private void expire(PendingSend send) {
+        if (send.failure != null) {
+            finish(send, SmsJob.STATUS_FAILED, send.failure);
+        } else if (send.succeeded.get() > 0) {
+            log.log("SMS Partial timeout (" + send.succeeded.get() + "/" + send.partCount + " parts confirmed)");
+            finish(send, SmsJob.STATUS_FAILED, "partial_timeout");
+        } else {
+            log.log("SMS Timed out waiting for carrier response");
+            finish(send, SmsJob.STATUS_FAILED, "timeout");
+        }
+    }
+
+    private void finish(PendingSend send, String status, String reason) {
+        if (pending.remove(send.job.id, send)) {
+            if (send.timeout != null) {
+                send.timeout.cancel(false);
+            }
+            send.lane.complete(send.job, status, reason);
+        }
+    }
+}
@@ -0,0 +1,244 @@
+package com.pathway.android;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+// A phone without a radio, for running the server on a plain JVM in tests and
+// capacity runs. Each part is reported sent after a random latency in the
+// configured range, one after another like a real modem; a configurable share
+// of parts fails with a given reason or is never reported at all, which lets
+// the send time out. Delivery reports follow when the message asked for them.
+public class SimulatedTelephony implements Telephony {
+    private static final int RADIO_THREADS = 2;
+
+    private final File dataDir;
+    private final Random random = new Random();
+    private final Map<Integer, RateLimit> rateLimits = new ConcurrentHashMap<>();
+    private final AtomicLong messages = new AtomicLong();
+    private final AtomicLong parts = new AtomicLong();
+    private volatile List<Sim> sims = Collections.emptyList();
+    private volatile int preferredSim = -1;
+    private volatile long minLatencyMillis;
+    private volatile long maxLatencyMillis;
+    private volatile double failureRate;
+    private volatile String failureReason = "generic_failure";
+    private volatile double timeoutRate;
+    private volatile double deliveryFailureRate;
+    private volatile String ussdResponse = "OK";
+    private volatile String ussdFailure;
+    private final Map<String, String> ussdAnswers = new ConcurrentHashMap<>();
+    private final AtomicLong ussdRequests = new AtomicLong();
+    private volatile Listener listener;
+    private volatile SimListener simListener;
+    private volatile InboxListener inboxListener;
+    private ScheduledExecutorService radio;
+
+    public SimulatedTelephony(int simCount, File dataDir) {
+        this.dataDir = dataDir;
+        setSimCount(simCount);
+    }
+
+    // Replaces the SIMs with slots 0..count-1 (subscription IDs 1..count) and
+    // tells the server, like a SIM being inserted or removed
+    public void setSimCount(int count) {
+        List<Sim> created = new ArrayList<>(count);
+        for (int slot = 0; slot < count; slot++) {
+            created.add(new Sim(slot, slot + 1, "Simulated", "+1555000000" + slot, "SIM " + (slot + 1)));
+        }
+        sims = Collections.unmodifiableList(created);
+        SimListener l = simListener;
+        if (l != null) l.onSimsChanged();
+    }
+
+    public void setPreferredSim(int slot) {
+        this.preferredSim = slot;
+    }
+
+    // null removes the limit; applied on the server's next applyRateLimits()
+    public void setRateLimit(int subscriptionId, RateLimit limit) {
+        if (limit == null) {
+            rateLimits.remove(subscriptionId);
+        } else {
+            rateLimits.put(subscriptionId, limit);
+        }
+    }
+
+    // Time the radio takes per part, and per USSD session
+    public void setLatency(long minMillis, long maxMillis) {
+        this.minLatencyMillis = minMillis;
+        this.maxLatencyMillis = Math.max(minMillis, maxMillis);
+    }
+
+    // Share of parts that fail with reason (e.g. "no_service", "radio_off")
+    public void setFailures(double rate, String reason) {
+        this.failureRate = rate;
+        this.failureReason = reason;
+    }
+
+    // Share of parts the radio never reports
+    public void setTimeouts(double rate) {
+        this.timeoutRate = rate;
+    }
+
+    // Share of sent parts whose delivery report says failed
+    public void setDeliveryFailures(double rate) {
+        this.deliveryFailureRate = rate;
+    }
+
+    // USSD sessions answer with response, or fail with failure when it isn't null
+    public void setUssd(String response, String failure) {
+        this.ussdResponse = response;
+        this.ussdFailure = failure;
+    }
+
+    // Answer for one code, such as a menu reached with *123*1#; other codes get setUssd's
+    public void setUssdAnswer(String code, String response) {
+        ussdAnswers.put(code, response);
+    }
+
+    public void setSeed(long seed) {
+        random.setSeed(seed);
+    }
+
+    // Messages and parts handed to sendText so far
+    public long sentMessages() {
+        return messages.get();
+    }
+
+    public long sentParts() {
+        return parts.get();
+    }
+
+    // An SMS arriving on simSlot, passed on like the real receiver does
+    public void receive(int simSlot, String sender, String body) {
+        InboxListener l = inboxListener;
+        if (l != null) l.onSmsReceived(simSlot, sender, body, System.currentTimeMillis());
+    }
+
+    // USSD requests handed to sendUssd so far
+    public long ussdRequests() {
+        return ussdRequests.get();
+    }
+
+    @Override
+    public synchronized void start(Listener listener) {
+        this.listener = listener;
+        if (radio != null) return;
+        ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(RADIO_THREADS, r -> {
+            Thread t = new Thread(r, "Pathway-SimulatedRadio");
+            t.setDaemon(true);
+            return t;
+        });
+        executor.setRemoveOnCancelPolicy(true);
+        radio = executor;
+    }
+
+    @Override
+    public synchronized void stop() {
+        if (radio == null) return;
+        radio.shutdownNow();
+        radio = null;
+        listener = null;
+    }
+
+    @Override
+    public List<Sim> sims() {
+        return sims;
+    }
+
+    @Override
+    public int preferredSim() {
+        return preferredSim;
+    }
+
+    @Override
+    public int subscriptionIdForSlot(int slot) {
+        for (Sim sim : sims) {
+            if (sim.slot == slot) return sim.subscriptionId;
+        }
+        return -1;
+    }
+
+    @Override
+    public void setSimListener(SimListener listener) {
+        this.simListener = listener;
+    }
+
+    @Override
+    public void setInboxListener(InboxListener listener) {
+        this.inboxListener = listener;
+    }
+
+    @Override
+    public RateLimit rateLimit(int subscriptionId) {
+        return rateLimits.get(subscriptionId);
+    }
+
+    @Override
+    public File dataDir() {
+        return dataDir;
+    }
+
+    @Override
+    public void sendText(int simSlot, String jobId, String number, List<String> parts, boolean deliveryReport) {
+        ScheduledExecutorService scheduler = radio;
+        if (scheduler == null) {
+            throw new IllegalStateException("Radio off");
+        }
+        messages.incrementAndGet();
+        this.parts.addAndGet(parts.size());
+        long at = 0;
+        for (int i = 0; i < parts.size(); i++) {
+            at += latency();
+            final int part = i;
+            double roll = random.nextDouble();
+            if (roll < timeoutRate) continue;
+            String failure = roll < timeoutRate + failureRate ? failureReason : null;
+            scheduler.schedule(() -> {
+                Listener l = listener;
+                if (l != null) l.onPartSent(jobId, part, failure);
+            }, at, TimeUnit.MILLISECONDS);
+            if (deliveryReport && failure == null) {
+                byte outcome = random.nextDouble() < deliveryFailureRate ? StatusStore.PART_FAILED : StatusStore.PART_DELIVERED;
+                scheduler.schedule(() -> {
+                    Listener l = listener;
+                    if (l != null) l.onPartDelivered(jobId, part, outcome);
+                }, at + latency(), TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+
+    @Override
+    public void sendUssd(int simSlot, String code, UssdCallback callback) {
+        ScheduledExecutorService scheduler = radio;
+        if (scheduler == null) {
+            callback.onFailure("Radio off");
+            return;
+        }
+        ussdRequests.incrementAndGet();
+        String failure = ussdFailure;
+        String response = ussdAnswers.getOrDefault(code, ussdResponse);
+        scheduler.schedule(() -> {
+            if (failure != null) {
+                callback.onFailure(failure);
+            } else {
+                callback.onResponse(response);
+            }
+        }, latency(), TimeUnit.MILLISECONDS);
+    }
+
+    private long latency() {
+        long min = minLatencyMillis;
+        long spread = maxLatencyMillis - min;
+        return spread > 0 ? min + (long) (random.nextDouble() * (spread + 1)) : min;
+    }
+}
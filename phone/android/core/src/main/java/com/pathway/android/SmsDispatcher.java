@@ -0,0 +1,176 @@
+package com.pathway.android;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Routes accepted SMS jobs onto per-SIM dispatch lanes and keeps the table of
+// unfinished jobs. HTTP threads only enqueue and look up jobs, so request latency
+// no longer depends on how long the carrier takes to confirm a send. Status
+// changes are copied into the StatusStore, which outlives the jobs themselves.
+public class SmsDispatcher {
+    public interface JobListener {
+        void onFinished(SmsJob job);
+    }
+
+    private final int laneCapacity;
+    private final int maxInFlight;
+    private final int baseTimeoutSeconds;
+    private final int perPartTimeoutSeconds;
+    private final DispatchLane.Sender sender;
+    private final StatusStore statuses;
+    private final Map<String, SmsJob> jobs = new ConcurrentHashMap<>();
+    private volatile DispatchLane[] lanes = new DispatchLane[0];
+    private boolean running;
+    private volatile JobListener listener;
+
+    public SmsDispatcher(int laneCapacity, int maxInFlight, int baseTimeoutSeconds, int perPartTimeoutSeconds,
+                         DispatchLane.Sender sender, StatusStore statuses) {
+        this.laneCapacity = laneCapacity;
+        this.maxInFlight = maxInFlight;
+        this.baseTimeoutSeconds = baseTimeoutSeconds;
+        this.perPartTimeoutSeconds = perPartTimeoutSeconds;
+        this.sender = sender;
+        this.statuses = statuses;
+    }
+
+    // One lane per active SIM slot; pass {-1} when the SIMs can't be enumerated
+    public synchronized void start(int[] simSlots) {
+        if (running) return;
+        DispatchLane[] created = new DispatchLane[simSlots.length];
+        for (int i = 0; i < simSlots.length; i++) {
+            created[i] = new DispatchLane(simSlots[i], laneCapacity, maxInFlight, baseTimeoutSeconds,
+                    perPartTimeoutSeconds, sender, this::retire);
+            created[i].start();
+        }
+        lanes = created;
+        running = true;
+    }
+
+    // Adds lanes for slots that appeared since start (e.g. a SIM was inserted).
+    // Lanes for removed SIMs are kept; their sends fall back to the default SmsManager.
+    public synchronized void addLanes(int[] simSlots) {
+        if (!running) return;
+        List<DispatchLane> merged = new ArrayList<>(java.util.Arrays.asList(lanes));
+        for (int slot : simSlots) {
+            boolean exists = false;
+            for (DispatchLane lane : merged) {
+                if (lane.simSlot == slot) exists = true;
+            }
+            if (!exists) {
+                DispatchLane lane = new DispatchLane(slot, laneCapacity, maxInFlight, baseTimeoutSeconds,
+                        perPartTimeoutSeconds, sender, this::retire);
+                lane.start();
+                merged.add(lane);
+            }
+        }
+        lanes = merged.toArray(new DispatchLane[0]);
+    }
+
+    public void setJobListener(JobListener listener) {
+        this.listener = listener;
+    }
+
+    public synchronized void stop() {
+        if (!running) return;
+        for (DispatchLane lane : lanes) {
+            lane.stop();
+        }
+        running = false;
+    }
+
+    // Returns false if the chosen lane is full
+    public synchronized boolean submit(SmsJob job) {
+        DispatchLane lane = route(job.simSlot, null);
+        if (lane == null) return false;
+        jobs.put(job.id, job);
+        if (!lane.offer(job)) {
+            jobs.remove(job.id);
+            return false;
+        }
+        statuses.record(job);
+        return true;
+    }
+
+    // Enqueues a whole batch or none of it. Returns false if any lane can't take its share.
+    public synchronized boolean submitAll(List<SmsJob> batch) {
+        if (batch.isEmpty()) return true;
+        if (lanes.length == 0) return false;
+
+        // Route first so unspecified-SIM items spread across lanes by projected load
+        Map<DispatchLane, Integer> assigned = new HashMap<>();
+        DispatchLane[] routes = new DispatchLane[batch.size()];
+        for (int i = 0; i < batch.size(); i++) {
+            DispatchLane lane = route(batch.get(i).simSlot, assigned);
+            routes[i] = lane;
+            assigned.merge(lane, 1, Integer::sum);
+        }
+        // A batch comes from one tenant in one class
+        SmsJob first = batch.get(0);
+        for (Map.Entry<DispatchLane, Integer> entry : assigned.entrySet()) {
+            if (entry.getKey().remainingCapacity(first.priority, first.tenant) < entry.getValue()) {
+                return false;
+            }
+        }
+
+        for (int i = 0; i < batch.size(); i++) {
+            SmsJob job = batch.get(i);
+            jobs.put(job.id, job);
+            // Submissions are serialized on this lock, so the capacity check above holds
+            if (routes[i].offer(job)) {
+                statuses.record(job);
+            } else {
+                job.complete(SmsJob.STATUS_FAILED, "queue_full");
+                retire(job);
+            }
+        }
+        return true;
+    }
+
+    // The requested slot's lane if there is one, otherwise the least-loaded lane
+    private DispatchLane route(int simSlot, Map<DispatchLane, Integer> pending) {
+        DispatchLane best = null;
+        int bestLoad = Integer.MAX_VALUE;
+        for (DispatchLane lane : lanes) {
+            if (simSlot != -1 && lane.simSlot == simSlot) {
+                return lane;
+            }
+            int load = lane.load();
+            if (pending != null) {
+                Integer extra = pending.get(lane);
+                if (extra != null) load += extra;
+            }
+            if (load < bestLoad) {
+                best = lane;
+                bestLoad = load;
+            }
+        }
+        return best;
+    }
+
+    // Unfinished jobs only; finished ones are looked up in the StatusStore
+    public SmsJob get(String id) {
+        return jobs.get(id);
+    }
+
+    public DispatchLane[] lanes() {
+        return lanes;
+    }
+
+    public int queueDepth() {
+        int depth = 0;
+        for (DispatchLane lane : lanes) {
+            depth += lane.queueDepth();
+        }
+        return depth;
+    }
+
+    private void retire(SmsJob job) {
+        jobs.remove(job.id);
+        statuses.record(job);
+        JobListener l = listener;
+        if (l != null) l.onFinished(job);
+    }
+}
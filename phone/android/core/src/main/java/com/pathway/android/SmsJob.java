@@ -0,0 +1,149 @@
+package com.pathway.android;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+// A single SMS accepted by the gateway. The dispatcher thread moves it through
+// queued -> sending -> sent/failed while HTTP threads read it concurrently. A job
+// with sendAt starts out scheduled and waits in the TimerWheel until then.
+public class SmsJob {
+    public static final String STATUS_SCHEDULED = "scheduled";
+    public static final String STATUS_QUEUED = "queued";
+    public static final String STATUS_SENDING = "sending";
+    public static final String STATUS_SENT = "sent";
+    public static final String STATUS_FAILED = "failed";
+    // Failure reason for jobs dropped by a server shutdown; these stay in the outbox
+    public static final String REASON_STOPPED = "server_stopped";
+
+    // Priority classes, highest first (see FairQueue)
+    public static final int PRIORITY_OTP = 0;
+    public static final int PRIORITY_TRANSACTIONAL = 1;
+    public static final int PRIORITY_BULK = 2;
+    public static final String[] PRIORITY_NAMES = { "otp", "transactional", "bulk" };
+
+    // IDs are "<process start in base36>-<counter in base36>" so they stay short
+    // and don't collide with jobs accepted by a previous run of the app.
+    private static final String ID_PREFIX = Long.toString(System.currentTimeMillis(), 36);
+    private static final AtomicLong ID_COUNTER = new AtomicLong();
+
+    final String id;
+    final String number;
+    final String message;
+    final int simSlot;
+    final long createdAt;
+    // Ask the carrier for a delivery report on every part
+    final boolean deliveryReport;
+    // When to send it, or 0 for as soon as possible
+    final long sendAt;
+    final int priority;
+    // Who submitted it; lanes take turns between tenants within a priority class
+    final String tenant;
+
+    private volatile String status;
+    private volatile String reason;
+    private volatile int sentOnSlot = -1;
+    private volatile int partCount;
+    private volatile long finishedAt;
+    private final CountDownLatch done = new CountDownLatch(1);
+
+    public SmsJob(String number, String message, int simSlot, boolean deliveryReport) {
+        this(number, message, simSlot, deliveryReport, 0);
+    }
+
+    public SmsJob(String number, String message, int simSlot, boolean deliveryReport, long sendAt) {
+        this(number, message, simSlot, deliveryReport, sendAt, PRIORITY_TRANSACTIONAL, "");
+    }
+
+    public SmsJob(String number, String message, int simSlot, boolean deliveryReport, long sendAt,
+                  int priority, String tenant) {
+        this(ID_PREFIX + "-" + Long.toString(ID_COUNTER.incrementAndGet(), 36), number, message, simSlot,
+                deliveryReport, System.currentTimeMillis(), sendAt, priority, tenant);
+    }
+
+    // Restores a job read back from the outbox
+    SmsJob(String id, String number, String message, int simSlot, boolean deliveryReport, long createdAt, long sendAt,
+           int priority, String tenant) {
+        this.id = id;
+        this.number = number;
+        this.message = message;
+        this.simSlot = simSlot;
+        this.deliveryReport = deliveryReport;
+        this.createdAt = createdAt;
+        this.sendAt = sendAt;
+        this.priority = priority;
+        this.tenant = tenant;
+        this.status = sendAt > 0 ? STATUS_SCHEDULED : STATUS_QUEUED;
+    }
+
+    // The class's index in PRIORITY_NAMES, or -1 for an unknown name
+    public static int priority(String name) {
+        for (int i = 0; i < PRIORITY_NAMES.length; i++) {
+            if (PRIORITY_NAMES[i].equals(name)) return i;
+        }
+        return -1;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public String getStatus() {
+        return status;
+    }
+
+    public String getReason() {
+        return reason;
+    }
+
+    // Slot the job went out on, or -1 before it was sent
+    public int getSentOnSlot() {
+        return sentOnSlot;
+    }
+
+    public int getPartCount() {
+        return partCount;
+    }
+
+    public long getSendAt() {
+        return sendAt;
+    }
+
+    // When it could first have been sent, which latency is measured from
+    public long readyAt() {
+        return Math.max(createdAt, sendAt);
+    }
+
+    public long getFinishedAt() {
+        return finishedAt;
+    }
+
+    public boolean isFinished() {
+        return done.getCount() == 0;
+    }
+
+    // Called when its time comes and it is handed to the dispatcher
+    void markQueued() {
+        if (STATUS_SCHEDULED.equals(status)) status = STATUS_QUEUED;
+    }
+
+    void markSending(int sentOnSlot, int partCount) {
+        this.sentOnSlot = sentOnSlot;
+        this.partCount = partCount;
+        this.status = STATUS_SENDING;
+    }
+
+    // Returns false if the job had already finished
+    synchronized boolean complete(String status, String reason) {
+        if (isFinished()) return false;
+        this.reason = reason;
+        this.finishedAt = System.currentTimeMillis();
+        this.status = status;
+        done.countDown();
+        return true;
+    }
+
+    boolean await(long timeout, TimeUnit unit) throws InterruptedException {
+        return done.await(timeout, unit);
+    }
+}
@@ -0,0 +1,310 @@
+package com.pathway.android;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+// Predicts how many SMS parts a text needs, and cuts it into those parts, the
+// way the radio will encode it: GSM 03.38 7-bit when every character is in the
+// alphabet (a single shift character costs two septets), otherwise UCS-2. With
+// national languages enabled it also tries their locking and single shift
+// tables and picks the combination that needs the fewest parts, paying for the
+// header elements that announce them. Measures of separate pieces of text add
+// up, so the fixed text of a template is measured once and each recipient only
+// pays for its own variable values.
+public final class SmsSegmenter {
+    public static final String GSM_7 = "gsm7";
+    public static final String UCS_2 = "ucs2";
+
+    // Only the default tables, which is what carriers enable unless configured
+    // otherwise; the send path uses this so the radio never re-splits a part
+    public static final SmsSegmenter DEFAULT = new SmsSegmenter(new int[] { 0 }, new int[] { 0 });
+
+    // User data octets in one PDU
+    private static final int PAYLOAD_OCTETS = 140;
+    // Header elements: concatenation (IEI, length, reference, count, sequence)
+    // and a national language shift (IEI, length, language)
+    private static final int CONCAT_IE = 5;
+    private static final int SHIFT_IE = 3;
+
+    // Candidate tables, default first, and the table bits of each combination
+    private final int[] locking;
+    private final int[] shift;
+    private final int[] lockingBits;
+    private final int[] shiftBits;
+
+    // Length of a piece of text under each table combination and in UCS-2
+    public static final class Measure {
+        // GSM-7 septets per combination, -1 where some character isn't in its tables
+        final int[] septets;
+        // UTF-16 code units, which is the UCS-2 length
+        public final int units;
+        // Whether a character takes two units somewhere (a single shift character
+        // or a surrogate pair). Only then can the part boundaries make the
+        // arithmetic estimate short by a part.
+        final boolean wide;
+
+        Measure(int[] septets, int units, boolean wide) {
+            this.septets = septets;
+            this.units = units;
+            this.wide = wide;
+        }
+
+        // Both measures must come from the same segmenter
+        public Measure plus(Measure other) {
+            if (other.septets.length != septets.length) {
+                throw new IllegalArgumentException("Measures from different segmenters");
+            }
+            int[] combined = new int[septets.length];
+            for (int i = 0; i < combined.length; i++) {
+                combined[i] = septets[i] < 0 || other.septets[i] < 0 ? -1 : septets[i] + other.septets[i];
+            }
+            return new Measure(combined, units + other.units, wide || other.wide);
+        }
+    }
+
+    public static final class Estimate {
+        public final String encoding;
+        // Septets (GSM-7) or UTF-16 units (UCS-2)
+        public final int length;
+        public final int parts;
+        public final int perPart;
+        // Units left in the last part before another one is needed
+        public final int remaining;
+        // National language tables used, 0 for the default alphabet
+        public final int lockingShift;
+        public final int singleShift;
+
+        Estimate(String encoding, int length, int parts, int perPart, int remaining, int lockingShift, int singleShift) {
+            this.encoding = encoding;
+            this.length = length;
+            this.parts = parts;
+            this.perPart = perPart;
+            this.remaining = remaining;
+            this.lockingShift = lockingShift;
+            this.singleShift = singleShift;
+        }
+
+        public boolean isGsm7() {
+            return GSM_7.equals(encoding);
+        }
+    }
+
+    private SmsSegmenter(int[] locking, int[] shift) {
+        this.locking = locking;
+        this.shift = shift;
+        int combinations = locking.length * shift.length;
+        this.lockingBits = new int[combinations];
+        this.shiftBits = new int[combinations];
+        for (int l = 0; l < locking.length; l++) {
+            for (int s = 0; s < shift.length; s++) {
+                lockingBits[l * shift.length + s] = 1 << locking[l];
+                shiftBits[l * shift.length + s] = 1 << (16 + shift[s]);
+            }
+        }
+    }
+
+    // The default tables plus those of the given national languages (see
+    // language()). A language without a locking shift table (Spanish) only adds
+    // its single shift table.
+    public static SmsSegmenter forLanguages(int... languages) {
+        int[] locking = new int[languages.length + 1];
+        int[] shift = new int[languages.length + 1];
+        int lockingCount = 1;
+        int shiftCount = 1;
+        for (int language : languages) {
+            if (language < 0 || language >= GsmTables.LANGUAGES) {
+                throw new IllegalArgumentException("Unknown language: " + language);
+            }
+            if (language == 0) continue;
+            if (GsmTables.hasLockingShift(language) && indexOf(locking, lockingCount, language) < 0) {
+                locking[lockingCount++] = language;
+            }
+            if (indexOf(shift, shiftCount, language) < 0) {
+                shift[shiftCount++] = language;
+            }
+        }
+        if (lockingCount == 1 && shiftCount == 1) return DEFAULT;
+        return new SmsSegmenter(java.util.Arrays.copyOf(locking, lockingCount), java.util.Arrays.copyOf(shift, shiftCount));
+    }
+
+    // National language identifier by name ("turkish", "bengali", ...), or -1
+    public static int language(String name) {
+        return GsmTables.language(name);
+    }
+
+    public static String languageName(int language) {
+        return GsmTables.NAMES[language];
+    }
+
+    public Measure measure(CharSequence text) {
+        int combinations = lockingBits.length;
+        int[] septets = new int[combinations];
+        int possible = combinations;
+        boolean wide = false;
+        int n = text.length();
+        int i = 0;
+        for (; i < n && possible > 0; i++) {
+            int masks = GsmTables.masks(text.charAt(i));
+            for (int c = 0; c < combinations; c++) {
+                if (septets[c] < 0) continue;
+                if ((masks & lockingBits[c]) != 0) {
+                    septets[c]++;
+                } else if ((masks & shiftBits[c]) != 0) {
+                    septets[c] += 2;
+                    wide = true;
+                } else {
+                    septets[c] = -1;
+                    possible--;
+                }
+            }
+        }
+        // Past the last GSM-7 candidate only surrogate pairs still matter
+        for (; i < n && !wide; i++) {
+            wide = Character.isSurrogate(text.charAt(i));
+        }
+        return new Measure(septets, n, wide);
+    }
+
+    public Estimate estimate(CharSequence text) {
+        return estimate(measure(text), text);
+    }
+
+    // From the measure alone, which can be a part short when a two-unit
+    // character would straddle a part boundary; see estimate(Measure, text)
+    public Estimate estimate(Measure measure) {
+        int best = -1;
+        int bestParts = 0;
+        for (int c = 0; c < measure.septets.length; c++) {
+            int septets = measure.septets[c];
+            if (septets < 0) continue;
+            int parts = parts(septets, gsmCapacity(c, false), gsmCapacity(c, true));
+            if (best < 0 || parts < bestParts || (parts == bestParts && septets < measure.septets[best])) {
+                best = c;
+                bestParts = parts;
+            }
+        }
+        if (best >= 0) {
+            int length = measure.septets[best];
+            int perPart = gsmCapacity(best, bestParts > 1);
+            return new Estimate(GSM_7, length, bestParts, perPart, bestParts * perPart - length,
+                    locking[best / shift.length], shift[best % shift.length]);
+        }
+        int length = measure.units;
+        int parts = parts(length, ucs2Capacity(false), ucs2Capacity(true));
+        int perPart = ucs2Capacity(parts > 1);
+        return new Estimate(UCS_2, length, parts, perPart, parts * perPart - length, 0, 0);
+    }
+
+    // Exact, for a measure of text: falls back to cutting the text only when a
+    // two-unit character could have moved a part boundary
+    public Estimate estimate(Measure measure, CharSequence text) {
+        Estimate estimate = estimate(measure);
+        if (estimate.parts == 1 || !measure.wide) return estimate;
+        int combination = combination(estimate);
+        int[] cut = cut(text, combination, estimate.perPart, null);
+        return new Estimate(estimate.encoding, estimate.length, cut[0], estimate.perPart,
+                estimate.perPart - cut[1], estimate.lockingShift, estimate.singleShift);
+    }
+
+    // The parts the radio sends, never separating an escape sequence from its
+    // character or the halves of a surrogate pair
+    public ArrayList<String> split(CharSequence text) {
+        Estimate estimate = estimate(text);
+        ArrayList<String> parts = new ArrayList<>(estimate.parts);
+        if (estimate.parts == 1) {
+            parts.add(text.toString());
+        } else {
+            cut(text, combination(estimate), estimate.perPart, parts);
+        }
+        return parts;
+    }
+
+    // Distinct characters (as strings, so a surrogate pair stays whole) that no
+    // table of this segmenter holds: the ones forcing a message into UCS-2
+    public List<String> unencodable(CharSequence text, int max) {
+        int all = 0;
+        for (int c = 0; c < lockingBits.length; c++) {
+            all |= lockingBits[c] | shiftBits[c];
+        }
+        Set<String> found = new LinkedHashSet<>();
+        int n = text.length();
+        for (int i = 0; i < n && found.size() < max; i++) {
+            char c = text.charAt(i);
+            if ((GsmTables.masks(c) & all) != 0) continue;
+            if (Character.isHighSurrogate(c) && i + 1 < n && Character.isLowSurrogate(text.charAt(i + 1))) {
+                found.add(text.subSequence(i, i + 2).toString());
+                i++;
+            } else {
+                found.add(String.valueOf(c));
+            }
+        }
+        return new ArrayList<>(found);
+    }
+
+    // Walks text filling parts of perPart units under a combination (-1 for
+    // UCS-2), adding them to parts when given. Returns {parts, units in the last}.
+    private int[] cut(CharSequence text, int combination, int perPart, List<String> parts) {
+        int count = 1;
+        int used = 0;
+        int start = 0;
+        int n = text.length();
+        for (int i = 0; i < n; i++) {
+            char c = text.charAt(i);
+            int cost;
+            if (combination < 0) {
+                cost = Character.isHighSurrogate(c) && i + 1 < n && Character.isLowSurrogate(text.charAt(i + 1)) ? 2 : 1;
+            } else {
+                cost = (GsmTables.masks(c) & lockingBits[combination]) != 0 ? 1 : 2;
+            }
+            if (used + cost > perPart) {
+                if (parts != null) parts.add(text.subSequence(start, i).toString());
+                count++;
+                start = i;
+                used = 0;
+            }
+            used += cost;
+            // Both halves of a surrogate pair were paid for
+            if (combination < 0 && cost == 2) i++;
+        }
+        if (parts != null) parts.add(text.subSequence(start, n).toString());
+        return new int[] { count, used };
+    }
+
+    private int combination(Estimate estimate) {
+        if (!estimate.isGsm7()) return -1;
+        return indexOf(locking, locking.length, estimate.lockingShift) * shift.length
+                + indexOf(shift, shift.length, estimate.singleShift);
+    }
+
+    // Septets that fit in one PDU after the user data header; septets are
+    // aligned after the header, hence the rounding down
+    private int gsmCapacity(int combination, boolean concatenated) {
+        int header = headerOctets(combination, concatenated);
+        return ((PAYLOAD_OCTETS - header) * 8) / 7;
+    }
+
+    private static int ucs2Capacity(boolean concatenated) {
+        return (PAYLOAD_OCTETS - (concatenated ? 1 + CONCAT_IE : 0)) / 2;
+    }
+
+    // Header length, including its length octet, or 0 when there is none
+    private int headerOctets(int combination, boolean concatenated) {
+        int elements = concatenated ? CONCAT_IE : 0;
+        if (locking[combination / shift.length] != 0) elements += SHIFT_IE;
+        if (shift[combination % shift.length] != 0) elements += SHIFT_IE;
+        return elements == 0 ? 0 : elements + 1;
+    }
+
+    private static int parts(int length, int single, int multi) {
+        return length <= single ? 1 : (length + multi - 1) / multi;
+    }
+
+    private static int indexOf(int[] values, int count, int value) {
+        for (int i = 0; i < count; i++) {
+            if (values[i] == value) return i;
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,265 @@
+package com.pathway.android;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+// Bounded on-device record of every message's status, including delivery reports
+// that can arrive hours after the send. Entries hold only what the API returns
+// (no message text), and each change stamps the entry with a new sequence number
+// so clients can page through changes with GET /sms/status?since=.
+//
+// The least recently updated entries are evicted once there are more than
+// maxEntries of them or they are older than maxAgeMillis.
+public class StatusStore {
+    public static final String DELIVERY_PENDING = "pending";
+    public static final String DELIVERY_DELIVERED = "delivered";
+    public static final String DELIVERY_FAILED = "failed";
+
+    // Per-part delivery outcomes
+    static final byte PART_PENDING = 0;
+    static final byte PART_DELIVERED = 1;
+    static final byte PART_FAILED = 2;
+
+    private static final class Entry {
+        final String id;
+        final String number;
+        final long createdAt;
+        final boolean deliveryRequested;
+        final long sendAt;
+        String status;
+        String reason;
+        int simSlot;
+        int partCount;
+        long finishedAt;
+        byte[] partDelivery;
+        String delivery;
+        long deliveredAt;
+        long updatedAt;
+        long seq;
+
+        Entry(SmsJob job) {
+            this.id = job.id;
+            this.number = job.number;
+            this.createdAt = job.createdAt;
+            this.deliveryRequested = job.deliveryReport;
+            this.sendAt = job.sendAt;
+        }
+    }
+
+    public interface Listener {
+        // Called with the entry's JSON after every change, under the store's lock
+        void onChange(String json);
+    }
+
+    public static final class Page {
+        public final List<String> items;
+        public final long cursor;
+        public final boolean more;
+        // Changes after the caller's cursor were lost (evicted, or the app restarted)
+        public final boolean truncated;
+
+        Page(List<String> items, long cursor, boolean more, boolean truncated) {
+            this.items = items;
+            this.cursor = cursor;
+            this.more = more;
+            this.truncated = truncated;
+        }
+    }
+
+    private final int maxEntries;
+    private final long maxAgeMillis;
+    private final Map<String, Entry> byId = new HashMap<>();
+    // Ordered by last update, which is also eviction order
+    private final TreeMap<Long, Entry> bySeq = new TreeMap<>();
+    private long lastSeq;
+    private long evictedSeq;
+    private volatile Listener listener;
+
+    public StatusStore(int maxEntries, long maxAgeMillis) {
+        this.maxEntries = maxEntries;
+        this.maxAgeMillis = maxAgeMillis;
+    }
+
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    // Copies the job's current state into its entry, creating it if needed
+    public synchronized void record(SmsJob job) {
+        Entry entry = byId.get(job.id);
+        if (entry == null) {
+            entry = new Entry(job);
+            byId.put(job.id, entry);
+        }
+        entry.status = job.getStatus();
+        entry.reason = job.getReason();
+        entry.simSlot = job.getSentOnSlot() != -1 ? job.getSentOnSlot() : job.simSlot;
+        entry.partCount = job.getPartCount();
+        entry.finishedAt = job.getFinishedAt();
+        if (entry.deliveryRequested) {
+            if (SmsJob.STATUS_FAILED.equals(entry.status)) {
+                entry.delivery = null;
+            } else if (entry.partCount > 0 && entry.partDelivery == null) {
+                entry.partDelivery = new byte[entry.partCount];
+                entry.delivery = DELIVERY_PENDING;
+            }
+        }
+        touch(entry);
+    }
+
+    // Applies one part's delivery report. Returns the message's delivery state
+    // once it is final, or null while parts are still outstanding or the entry is gone.
+    public synchronized String onDeliveryReport(String id, int part, byte outcome) {
+        Entry entry = byId.get(id);
+        if (entry == null || entry.partDelivery == null || part < 0 || part >= entry.partDelivery.length) {
+            return null;
+        }
+        if (entry.partDelivery[part] == outcome) {
+            return null;
+        }
+        entry.partDelivery[part] = outcome;
+
+        int delivered = 0;
+        int failed = 0;
+        for (byte state : entry.partDelivery) {
+            if (state == PART_DELIVERED) delivered++;
+            else if (state == PART_FAILED) failed++;
+        }
+        String previous = entry.delivery;
+        if (delivered == entry.partDelivery.length) {
+            entry.delivery = DELIVERY_DELIVERED;
+        } else if (delivered + failed == entry.partDelivery.length) {
+            entry.delivery = DELIVERY_FAILED;
+        } else {
+            entry.delivery = DELIVERY_PENDING;
+        }
+        if (!DELIVERY_PENDING.equals(entry.delivery) && entry.deliveredAt == 0) {
+            entry.deliveredAt = System.currentTimeMillis();
+        }
+        touch(entry);
+        return DELIVERY_PENDING.equals(entry.delivery) || entry.delivery.equals(previous) ? null : entry.delivery;
+    }
+
+    // The entry as JSON, or null if unknown or evicted
+    public synchronized String get(String id) {
+        evictExpired(System.currentTimeMillis());
+        Entry entry = byId.get(id);
+        return entry != null ? toJson(entry) : null;
+    }
+
+    // The entry's {status, reason}, or null if unknown or evicted
+    public synchronized String[] outcome(String id) {
+        Entry entry = byId.get(id);
+        return entry != null ? new String[] { entry.status, entry.reason } : null;
+    }
+
+    // Most recently updated first, optionally filtered by status
+    public synchronized List<String> list(String status, int limit) {
+        evictExpired(System.currentTimeMillis());
+        List<String> result = new ArrayList<>();
+        for (Entry entry : bySeq.descendingMap().values()) {
+            if (result.size() >= limit) break;
+            if (status == null || status.equals(entry.status)) {
+                result.add(toJson(entry));
+            }
+        }
+        return result;
+    }
+
+    // Entries changed after the given sequence number, oldest change first
+    public synchronized Page since(long since, int limit) {
+        evictExpired(System.currentTimeMillis());
+        // Sequence numbers restart with the app, so a cursor from a previous run starts over
+        boolean reset = since > lastSeq;
+        if (reset) since = 0;
+        List<String> items = new ArrayList<>(Math.min(limit, 256));
+        long cursor = since;
+        boolean more = false;
+        for (Entry entry : bySeq.tailMap(since, false).values()) {
+            if (items.size() >= limit) {
+                more = true;
+                break;
+            }
+            items.add(toJson(entry));
+            cursor = entry.seq;
+        }
+        return new Page(items, cursor, more, reset || since < evictedSeq);
+    }
+
+    public synchronized int size() {
+        return byId.size();
+    }
+
+    private void touch(Entry entry) {
+        if (entry.seq != 0) {
+            bySeq.remove(entry.seq);
+        }
+        entry.seq = ++lastSeq;
+        entry.updatedAt = System.currentTimeMillis();
+        bySeq.put(entry.seq, entry);
+        Listener l = listener;
+        if (l != null) l.onChange(toJson(entry));
+
+        while (bySeq.size() > maxEntries) {
+            evict(bySeq.firstEntry().getValue());
+        }
+        evictExpired(entry.updatedAt);
+    }
+
+    private void evictExpired(long now) {
+        Iterator<Entry> oldest = bySeq.values().iterator();
+        while (oldest.hasNext()) {
+            Entry entry = oldest.next();
+            if (now - entry.updatedAt <= maxAgeMillis) break;
+            oldest.remove();
+            byId.remove(entry.id);
+            evictedSeq = Math.max(evictedSeq, entry.seq);
+        }
+    }
+
+    private void evict(Entry entry) {
+        bySeq.remove(entry.seq);
+        byId.remove(entry.id);
+        evictedSeq = Math.max(evictedSeq, entry.seq);
+    }
+
+    private static String toJson(Entry entry) {
+        StringBuilder sb = new StringBuilder(160);
+        sb.append("{\"id\": ").append(JsonWriter.quote(entry.id));
+        sb.append(", \"status\": ").append(JsonWriter.quote(entry.status));
+        if (entry.reason != null) {
+            sb.append(", \"reason\": ").append(JsonWriter.quote(entry.reason));
+        }
+        sb.append(", \"number\": ").append(JsonWriter.quote(entry.number));
+        if (entry.simSlot != -1) {
+            sb.append(", \"sim\": ").append(entry.simSlot);
+        }
+        if (entry.partCount > 0) {
+            sb.append(", \"parts\": ").append(entry.partCount);
+        }
+        sb.append(", \"createdAt\": ").append(entry.createdAt);
+        if (entry.sendAt > 0) {
+            sb.append(", \"sendAt\": ").append(entry.sendAt);
+        }
+        if (entry.finishedAt > 0) {
+            sb.append(", \"finishedAt\": ").append(entry.finishedAt);
+        }
+        if (entry.delivery != null) {
+            int delivered = 0;
+            for (byte state : entry.partDelivery) {
+                if (state == PART_DELIVERED) delivered++;
+            }
+            sb.append(", \"delivery\": ").append(JsonWriter.quote(entry.delivery));
+            sb.append(", \"deliveredParts\": ").append(delivered);
+            if (entry.deliveredAt > 0) {
+                sb.append(", \"deliveredAt\": ").append(entry.deliveredAt);
+            }
+        }
+        sb.append(", \"seq\": ").append(entry.seq);
+        return sb.append('}').toString();
+    }
+}
@@ -0,0 +1,107 @@
+package com.pathway.android;
+
+import java.io.File;
+import java.util.List;
+
+// Everything ApiServer needs from the phone: its SIMs, the radio (SMS parts and
+// USSD) and the stored gateway settings. AndroidTelephony is the real thing;
+// SimulatedTelephony stands in for it on a plain JVM, so the whole server can
+// run in unit tests and load tests.
+public interface Telephony {
+
+    class Sim {
+        public final int slot;
+        public final int subscriptionId;
+        public final CharSequence carrierName;
+        public final String number;
+        public final CharSequence displayName;
+
+        public Sim(int slot, int subscriptionId, CharSequence carrierName, String number, CharSequence displayName) {
+            this.slot = slot;
+            this.subscriptionId = subscriptionId;
+            this.carrierName = carrierName;
+            this.number = number;
+            this.displayName = displayName;
+        }
+    }
+
+    // Per-subscription send limit, as set through GatewayPlugin.setRateLimit
+    final class RateLimit {
+        public final double perMinute;
+        public final int burst;
+        public final int hourlyCap;
+        public final int dailyCap;
+        public final boolean adaptive;
+
+        public RateLimit(double perMinute, int burst, int hourlyCap, int dailyCap, boolean adaptive) {
+            this.perMinute = perMinute;
+            this.burst = burst;
+            this.hourlyCap = hourlyCap;
+            this.dailyCap = dailyCap;
+            this.adaptive = adaptive;
+        }
+
+        boolean matches(RateLimiter limiter) {
+            return limiter.maxRatePerMinute == perMinute && limiter.burst == burst && limiter.hourlyCap == hourlyCap
+                    && limiter.dailyCap == dailyCap && limiter.adaptive == adaptive;
+        }
+    }
+
+    // Radio reports for the parts handed over by sendText, on any thread
+    interface Listener {
+        // failure is null when the network took the part, otherwise a reason
+        // such as "no_service"
+        void onPartSent(String jobId, int part, String failure);
+
+        // A delivery report came in; outcome is a StatusStore.PART_* value
+        void onPartDelivered(String jobId, int part, byte outcome);
+    }
+
+    interface UssdCallback {
+        void onResponse(String text);
+
+        void onFailure(String reason);
+    }
+
+    interface SimListener {
+        void onSimsChanged();
+    }
+
+    // Received SMS, with multipart messages already joined; on any thread but the main one
+    interface InboxListener {
+        void onSmsReceived(int simSlot, String sender, String body, long sentAt);
+    }
+
+    // Begins reporting sent parts to the listener
+    void start(Listener listener);
+
+    void stop();
+
+    // Active SIMs; empty when they can't be read
+    List<? extends Sim> sims();
+
+    // Slot to use when a request doesn't name one; -1 = Auto
+    int preferredSim();
+
+    // -1 for an unknown slot, which sends through the default subscription
+    int subscriptionIdForSlot(int slot);
+
+    void setSimListener(SimListener listener);
+
+    // Starts passing received SMS to listener; null stops it
+    void setInboxListener(InboxListener listener);
+
+    // The configured limit for a subscription (-1 = default), or null for none
+    RateLimit rateLimit(int subscriptionId);
+
+    // Where the outbox and other state that must survive a restart live
+    File dataDir();
+
+    // Hands the parts to the radio for the SIM in simSlot (-1 = default) and
+    // returns without waiting; each part is reported to the listener under
+    // jobId. Throws when the radio refuses the message outright.
+    void sendText(int simSlot, String jobId, String number, List<String> parts, boolean deliveryReport);
+
+    // Starts a USSD session; the callback runs once, on any thread
+    void sendUssd(int simSlot, String code, UssdCallback callback);
+}
@@ -0,0 +1,114 @@
+package com.pathway.android;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+
+// A registered message text with {{name}} placeholders. It is parsed and its
+// fixed text measured once at registration; expanding it for a recipient only
+// copies the pieces together and measures the variable values. Estimates use
+// the default tables, like the send path.
+public final class Template {
+    // An expanded message and its predicted segmentation
+    public static final class Expansion {
+        public final String text;
+        public final SmsSegmenter.Estimate estimate;
+
+        Expansion(String text, SmsSegmenter.Estimate estimate) {
+            this.text = text;
+            this.estimate = estimate;
+        }
+    }
+
+    public final String id;
+    public final String text;
+    public final long createdAt = System.currentTimeMillis();
+    // literals[i] comes before placeholders[i]; the last literal ends the text
+    private final String[] literals;
+    private final String[] placeholders;
+    private final List<String> variables;
+    private final SmsSegmenter.Measure fixed;
+    private final int fixedLength;
+    private final SmsSegmenter.Estimate fixedEstimate;
+
+    private Template(String id, String text, String[] literals, String[] placeholders) {
+        this.id = id;
+        this.text = text;
+        this.literals = literals;
+        this.placeholders = placeholders;
+        LinkedHashSet<String> names = new LinkedHashSet<>();
+        Collections.addAll(names, placeholders);
+        this.variables = Collections.unmodifiableList(new ArrayList<>(names));
+        StringBuilder fixedText = new StringBuilder();
+        SmsSegmenter.Measure measure = SmsSegmenter.DEFAULT.measure(literals[0]);
+        fixedText.append(literals[0]);
+        for (int i = 1; i < literals.length; i++) {
+            measure = measure.plus(SmsSegmenter.DEFAULT.measure(literals[i]));
+            fixedText.append(literals[i]);
+        }
+        this.fixed = measure;
+        this.fixedLength = fixedText.length();
+        this.fixedEstimate = SmsSegmenter.DEFAULT.estimate(measure, fixedText);
+    }
+
+    // Throws IllegalArgumentException for an unterminated or empty placeholder
+    public static Template compile(String id, String text) {
+        List<String> literals = new ArrayList<>();
+        List<String> placeholders = new ArrayList<>();
+        int position = 0;
+        while (true) {
+            int open = text.indexOf("{{", position);
+            if (open < 0) break;
+            int close = text.indexOf("}}", open + 2);
+            if (close < 0) {
+                throw new IllegalArgumentException("Unterminated placeholder at " + open);
+            }
+            String name = text.substring(open + 2, close).trim();
+            if (name.isEmpty()) {
+                throw new IllegalArgumentException("Empty placeholder at " + open);
+            }
+            literals.add(text.substring(position, open));
+            placeholders.add(name);
+            position = close + 2;
+        }
+        literals.add(text.substring(position));
+        return new Template(id, text, literals.toArray(new String[0]), placeholders.toArray(new String[0]));
+    }
+
+    // Distinct placeholder names in order of first use
+    public List<String> variables() {
+        return variables;
+    }
+
+    // Segmentation of the text with every placeholder empty
+    public SmsSegmenter.Estimate fixedEstimate() {
+        return fixedEstimate;
+    }
+
+    // Throws IllegalArgumentException naming the first variable missing from vars
+    public Expansion expand(Map<String, String> vars) {
+        if (placeholders.length == 0) {
+            return new Expansion(text, fixedEstimate);
+        }
+        String[] values = new String[placeholders.length];
+        int length = fixedLength;
+        SmsSegmenter.Measure measure = fixed;
+        for (int i = 0; i < placeholders.length; i++) {
+            String value = vars != null ? vars.get(placeholders[i]) : null;
+            if (value == null) {
+                throw new IllegalArgumentException("Missing variable: " + placeholders[i]);
+            }
+            values[i] = value;
+            length += value.length();
+            measure = measure.plus(SmsSegmenter.DEFAULT.measure(value));
+        }
+        StringBuilder sb = new StringBuilder(length);
+        for (int i = 0; i < placeholders.length; i++) {
+            sb.append(literals[i]).append(values[i]);
+        }
+        sb.append(literals[placeholders.length]);
+        return new Expansion(sb.toString(), SmsSegmenter.DEFAULT.estimate(measure, sb));
+    }
+}
@@ -0,0 +1,57 @@
+package com.pathway.android;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Compiled templates by ID, kept in memory for the life of the server. Senders
+// look templates up on every message, so reads are a single map lookup; only
+// registration is serialized to enforce the limit.
+public class TemplateStore {
+    private static final String ID_PREFIX = "t" + Long.toString(System.currentTimeMillis(), 36) + "-";
+
+    private final Map<String, Template> templates = new ConcurrentHashMap<>();
+    private final AtomicLong ids = new AtomicLong();
+    private final int maxTemplates;
+
+    public TemplateStore(int maxTemplates) {
+        this.maxTemplates = maxTemplates;
+    }
+
+    public Template get(String id) {
+        return templates.get(id);
+    }
+
+    // Registers text under id (a new ID when null), replacing any template with
+    // that ID. Returns null when the store is full; throws
+    // IllegalArgumentException when the text doesn't compile.
+    public synchronized Template put(String id, String text) {
+        if (id == null) id = ID_PREFIX + Long.toString(ids.incrementAndGet(), 36);
+        Template template = Template.compile(id, text);
+        if (!templates.containsKey(id) && templates.size() >= maxTemplates) {
+            return null;
+        }
+        templates.put(id, template);
+        return template;
+    }
+
+    public boolean remove(String id) {
+        return templates.remove(id) != null;
+    }
+
+    // Oldest first
+    public List<Template> list() {
+        List<Template> result = new ArrayList<>(templates.values());
+        Collections.sort(result, new Comparator<Template>() {
+            @Override
+            public int compare(Template a, Template b) {
+                return Long.compare(a.createdAt, b.createdAt);
+            }
+        });
+        return result;
+    }
+}
@@ -0,0 +1,266 @@
+package com.pathway.android;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+// Hierarchical timer wheel for messages scheduled with sendAt. Time moves in
+// one-second ticks over LEVELS wheels of 64 slots each: level 0 covers the next
+// 64 seconds one slot per second, level 1 the next 64 minutes one slot per 64
+// seconds, and so on up to about 194 days. A timer goes into the level where its
+// tick first differs from the current one, so adding one is O(1) however many
+// are pending, and a slot of a higher level is moved down a level ("cascaded")
+// only when the wheel below it wraps around to it.
+//
+// Each level keeps a bitmap of its occupied slots, so the one thread behind the
+// wheel can compute the next tick with anything to do and sleep until then,
+// rather than waking every second to find empty slots.
+public class TimerWheel<T> {
+    public interface Sink<T> {
+        // Takes a due value; false puts it back for the next tick (e.g. the queue is full)
+        boolean fire(T value);
+    }
+
+    private static final long TICK_MILLIS = 1000;
+    private static final int SLOT_BITS = 6;
+    private static final int SLOTS = 1 << SLOT_BITS;
+    private static final int LEVELS = 4;
+
+    private static final class Timer<T> {
+        final T value;
+        final long tick;
+        Timer<T> next;
+
+        Timer(T value, long tick) {
+            this.value = value;
+            this.tick = tick;
+        }
+    }
+
+    private final Sink<T> sink;
+    private final String name;
+    // Guarded by this. Each slot is a FIFO list, so timers due in the same second
+    // fire in the order they were added.
+    @SuppressWarnings("unchecked")
+    private final Timer<T>[][] heads = new Timer[LEVELS][SLOTS];
+    @SuppressWarnings("unchecked")
+    private final Timer<T>[][] tails = new Timer[LEVELS][SLOTS];
+    private final long[] occupied = new long[LEVELS];
+    // Timers whose tick differs from the current one above the top level; they are
+    // spread over the levels when the top level wraps
+    private final List<Timer<T>> overflow = new ArrayList<>();
+    private long currentTick;
+    private int size;
+    private Thread thread;
+    private boolean running;
+
+    public TimerWheel(String name, Sink<T> sink) {
+        this.name = name;
+        this.sink = sink;
+        this.currentTick = System.currentTimeMillis() / TICK_MILLIS;
+    }
+
+    public synchronized void start() {
+        if (running) return;
+        running = true;
+        thread = new Thread(this::run, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    // Drops whatever is pending; the owner keeps its own durable copy to schedule again
+    public void stop() {
+        Thread t;
+        synchronized (this) {
+            if (!running) return;
+            running = false;
+            t = thread;
+            thread = null;
+            notifyAll();
+        }
+        try {
+            t.join(5000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (this) {
+            for (int level = 0; level < LEVELS; level++) {
+                Arrays.fill(heads[level], null);
+                Arrays.fill(tails[level], null);
+                occupied[level] = 0;
+            }
+            overflow.clear();
+            size = 0;
+        }
+    }
+
+    // Fires value at dueMillis, or on the next tick if that has passed
+    public synchronized void schedule(T value, long dueMillis) {
+        catchUp();
+        add(new Timer<>(value, Math.max(tickOf(dueMillis), currentTick + 1)));
+        notifyAll();
+    }
+
+    public synchronized void scheduleAll(List<T> values, long[] dueMillis) {
+        catchUp();
+        for (int i = 0; i < values.size(); i++) {
+            add(new Timer<>(values.get(i), Math.max(tickOf(dueMillis[i]), currentTick + 1)));
+        }
+        notifyAll();
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    // An empty wheel may have slept through a long time; moving it to now keeps
+    // new timers on the low levels instead of cascading them from the top
+    private void catchUp() {
+        if (size == 0) currentTick = Math.max(currentTick, System.currentTimeMillis() / TICK_MILLIS);
+    }
+
+    // Rounded up, so nothing fires before its time
+    private static long tickOf(long millis) {
+        return (millis + TICK_MILLIS - 1) / TICK_MILLIS;
+    }
+
+    private void add(Timer<T> timer) {
+        size++;
+        link(timer);
+    }
+
+    // Caller holds the lock; timer.tick is after currentTick
+    private void link(Timer<T> timer) {
+        int level = (63 - Long.numberOfLeadingZeros(timer.tick ^ currentTick)) / SLOT_BITS;
+        if (level >= LEVELS) {
+            overflow.add(timer);
+            return;
+        }
+        int slot = (int) (timer.tick >>> (level * SLOT_BITS)) & (SLOTS - 1);
+        timer.next = null;
+        if (heads[level][slot] == null) {
+            heads[level][slot] = timer;
+            occupied[level] |= 1L << slot;
+        } else {
+            tails[level][slot].next = timer;
+        }
+        tails[level][slot] = timer;
+    }
+
+    private Timer<T> unlink(int level, int slot) {
+        Timer<T> head = heads[level][slot];
+        heads[level][slot] = null;
+        tails[level][slot] = null;
+        occupied[level] &= ~(1L << slot);
+        return head;
+    }
+
+    // The first tick after currentTick when a slot fires or cascades, or
+    // Long.MAX_VALUE when nothing is pending
+    private long nextEventTick() {
+        long next = Long.MAX_VALUE;
+        for (int level = 0; level < LEVELS; level++) {
+            int shift = level * SLOT_BITS;
+            int current = (int) (currentTick >>> shift) & (SLOTS - 1);
+            // Every timer on a level is in a slot after the current one
+            long ahead = current == SLOTS - 1 ? 0 : occupied[level] & (-1L << (current + 1));
+            if (ahead == 0) continue;
+            int slot = Long.numberOfTrailingZeros(ahead);
+            long span = shift + SLOT_BITS;
+            long tick = ((currentTick >>> span) << span) | ((long) slot << shift);
+            next = Math.min(next, tick);
+        }
+        if (!overflow.isEmpty()) {
+            long span = LEVELS * SLOT_BITS;
+            next = Math.min(next, ((currentTick >>> span) + 1) << span);
+        }
+        return next;
+    }
+
+    // Moves the wheel to tick, which must be nextEventTick(), and collects what is due
+    private void advance(long tick, List<T> due) {
+        currentTick = tick;
+        if (!overflow.isEmpty() && (tick & ((1L << (LEVELS * SLOT_BITS)) - 1)) == 0) {
+            List<Timer<T>> carried = new ArrayList<>(overflow);
+            overflow.clear();
+            for (Timer<T> timer : carried) {
+                relink(timer, due);
+            }
+        }
+        // Top down; relink places each cascaded timer by the new tick, so it drops
+        // as many levels as it needs to at once
+        for (int level = LEVELS - 1; level >= 1; level--) {
+            int shift = level * SLOT_BITS;
+            if ((tick & ((1L << shift) - 1)) != 0) continue;
+            int slot = (int) (tick >>> shift) & (SLOTS - 1);
+            if ((occupied[level] & (1L << slot)) == 0) continue;
+            for (Timer<T> timer = unlink(level, slot); timer != null; ) {
+                Timer<T> next = timer.next;
+                relink(timer, due);
+                timer = next;
+            }
+        }
+        int slot = (int) tick & (SLOTS - 1);
+        if ((occupied[0] & (1L << slot)) != 0) {
+            for (Timer<T> timer = unlink(0, slot); timer != null; timer = timer.next) {
+                due.add(timer.value);
+                size--;
+            }
+        }
+    }
+
+    private void relink(Timer<T> timer, List<T> due) {
+        if (timer.tick <= currentTick) {
+            due.add(timer.value);
+            size--;
+        } else {
+            link(timer);
+        }
+    }
+
+    private void run() {
+        List<T> due = new ArrayList<>();
+        while (true) {
+            synchronized (this) {
+                try {
+                    while (running) {
+                        long next = nextEventTick();
+                        long now = System.currentTimeMillis();
+                        if (next != Long.MAX_VALUE && next * TICK_MILLIS <= now) break;
+                        if (next == Long.MAX_VALUE) {
+                            wait();
+                        } else {
+                            wait(next * TICK_MILLIS - now);
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    return;
+                }
+                if (!running) return;
+                // Catches up one event at a time after a long sleep
+                long nowTick = System.currentTimeMillis() / TICK_MILLIS;
+                long next;
+                while ((next = nextEventTick()) <= nowTick) {
+                    advance(next, due);
+                }
+                if (nowTick > currentTick) currentTick = nowTick;
+            }
+            // The sink may block briefly on a lane; timers added meanwhile just wait their turn
+            List<T> retry = null;
+            for (T value : due) {
+                if (retry == null && sink.fire(value)) continue;
+                // Once one is refused, keep the rest in order behind it
+                if (retry == null) retry = new ArrayList<>();
+                retry.add(value);
+            }
+            due.clear();
+            if (retry != null) {
+                synchronized (this) {
+                    for (T value : retry) {
+                        add(new Timer<>(value, currentTick + 1));
+                    }
+                }
+            }
+        }
+    }
+}
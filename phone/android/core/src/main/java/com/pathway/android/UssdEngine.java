@@ -0,0 +1,385 @@
+package com.pathway.android;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+// USSD sessions, run one at a time per SIM on a thread of their own so a slow
+// network never holds up SMS, another SIM or an HTTP worker. Callers get a
+// session ID straight away and read the result when it is ready.
+//
+// A session is one code, or a scripted walk through a carrier menu. The
+// platform only runs one-shot requests, so each step sends the code chained
+// with every reply so far (*123# -> *123*1# -> *123*1*2#). A step's reply is
+// either given or picked from the previous answer by the text of its menu line,
+// and any step can require its answer to contain some text before going on.
+//
+// Answers to codes the caller marks read-only (balance queries and the like)
+// are reused for the TTL it gives, and a request identical to one still queued
+// or running joins it, so dashboards polling many SIMs don't hit the network
+// for every poll.
+public class UssdEngine {
+    public static final String STATUS_QUEUED = "queued";
+    public static final String STATUS_RUNNING = "running";
+    public static final String STATUS_SUCCESS = "success";
+    public static final String STATUS_FAILED = "failed";
+
+    public static final int MAX_STEPS = 8;
+    public static final long MAX_CACHE_TTL_MILLIS = 60L * 60 * 1000;
+    private static final int MAX_CACHE_ENTRIES = 256;
+    // Menu lines look like "2. Data", "2) Data" or "2 - Data"
+    private static final Pattern MENU_LINE = Pattern.compile("^\\s*(\\d{1,3})\\s*[.):-]\\s*(.+)$", Pattern.MULTILINE);
+
+    // See SmsJob; the "u" keeps them apart from SMS job IDs
+    private static final String ID_PREFIX = Long.toString(System.currentTimeMillis(), 36) + "-u";
+    private static final AtomicLong ID_COUNTER = new AtomicLong();
+
+    // One reply after the initial code: given outright, or the number of the
+    // menu line containing select. expect, when set, must appear in the answer.
+    public static final class Step {
+        final String reply;
+        final String select;
+        final String expect;
+
+        public Step(String reply, String select, String expect) {
+            this.reply = reply;
+            this.select = select;
+            this.expect = expect;
+        }
+    }
+
+    public static final class Session {
+        public final String id;
+        public final int simSlot;
+        final String code;
+        final String expect;
+        final List<Step> steps;
+        // Set for sessions that may be reused; see key()
+        final String cacheKey;
+        final long createdAt;
+
+        // Answers so far, one per step run, guarded by this
+        private final List<String> answers = new ArrayList<>();
+        private volatile String status = STATUS_QUEUED;
+        private volatile String reason;
+        private volatile long finishedAt;
+        // System.nanoTime() at finish, to tell a reused answer from a fresh one
+        // that finished within the same millisecond the request came in
+        private volatile long finishedNanos;
+        private final CountDownLatch done = new CountDownLatch(1);
+
+        Session(int simSlot, String code, String expect, List<Step> steps, String cacheKey) {
+            this.id = ID_PREFIX + Long.toString(ID_COUNTER.incrementAndGet(), 36);
+            this.simSlot = simSlot;
+            this.code = code;
+            this.expect = expect;
+            this.steps = steps;
+            this.cacheKey = cacheKey;
+            this.createdAt = System.currentTimeMillis();
+        }
+
+        public String getStatus() {
+            return status;
+        }
+
+        public boolean isFinished() {
+            return done.getCount() == 0;
+        }
+
+        public long getFinishedAt() {
+            return finishedAt;
+        }
+
+        // True if it had finished before System.nanoTime() read nanos
+        public boolean finishedBefore(long nanos) {
+            return isFinished() && finishedNanos - nanos < 0;
+        }
+
+        public boolean await(long timeout, TimeUnit unit) throws InterruptedException {
+            return done.await(timeout, unit);
+        }
+
+        synchronized void answered(String text) {
+            answers.add(text);
+        }
+
+        private synchronized String lastAnswer() {
+            return answers.isEmpty() ? null : answers.get(answers.size() - 1);
+        }
+
+        synchronized void finish(String status, String reason) {
+            if (isFinished()) return;
+            this.reason = reason;
+            this.finishedAt = System.currentTimeMillis();
+            this.finishedNanos = System.nanoTime();
+            this.status = status;
+            done.countDown();
+        }
+
+        // cached marks an answer given again rather than fetched for this request
+        public synchronized void write(JsonWriter out, boolean cached) {
+            out.beginObject();
+            out.name("id").value(id);
+            out.name("status").value(status);
+            if (STATUS_SUCCESS.equals(status)) {
+                out.name("result").value(lastAnswer());
+            } else if (STATUS_FAILED.equals(status)) {
+                out.name("reason").value(reason);
+            }
+            out.name("sim").value(simSlot);
+            out.name("code").value(code);
+            out.name("steps").value(1 + steps.size());
+            out.name("answers").beginArray();
+            for (String answer : answers) {
+                out.value(answer);
+            }
+            out.endArray();
+            out.name("cached").value(cached);
+            out.name("createdAt").value(createdAt);
+            if (isFinished()) out.name("finishedAt").value(finishedAt);
+            out.endObject();
+        }
+    }
+
+    private final Telephony telephony;
+    private final Metrics metrics;
+    private final LogBuffer logs;
+    private final int queueCapacity;
+    private final long stepTimeoutMillis;
+    // One single-threaded lane per SIM slot
+    private final Map<Integer, ExecutorService> lanes = new ConcurrentHashMap<>();
+    // Recent sessions by ID, oldest dropped first; guarded by this
+    private final LinkedHashMap<String, Session> sessions;
+    // Reusable sessions by cache key: running ones to join, successful ones to
+    // answer from; least recently used dropped first; guarded by this
+    private final LinkedHashMap<String, Session> reusable = new LinkedHashMap<String, Session>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Session> eldest) {
+            return size() > MAX_CACHE_ENTRIES;
+        }
+    };
+    private volatile boolean stopped;
+
+    public UssdEngine(Telephony telephony, Metrics metrics, int queueCapacity, long stepTimeoutMillis, int maxSessions,
+            LogBuffer logs) {
+        this.telephony = telephony;
+        this.metrics = metrics;
+        this.queueCapacity = queueCapacity;
+        this.stepTimeoutMillis = stepTimeoutMillis;
+        this.logs = logs;
+        this.sessions = new LinkedHashMap<String, Session>() {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Session> eldest) {
+                return size() > maxSessions;
+            }
+        };
+    }
+
+    // Queues a session on simSlot's lane. With cacheTtlMillis > 0 an identical
+    // request that is still running, or succeeded within the TTL, is returned
+    // instead. Returns null when the lane's queue is full; throws
+    // IllegalArgumentException for a script that can't run.
+    public Session submit(int simSlot, String code, String expect, List<Step> steps, long cacheTtlMillis) {
+        if (steps == null) steps = Collections.emptyList();
+        validate(code, steps);
+        String cacheKey = cacheTtlMillis > 0 ? key(simSlot, code, expect, steps) : null;
+        Session session;
+        synchronized (this) {
+            if (cacheKey != null) {
+                Session earlier = reusable.get(cacheKey);
+                if (earlier != null) {
+                    if (!earlier.isFinished()) return earlier;
+                    long ttl = Math.min(cacheTtlMillis, MAX_CACHE_TTL_MILLIS);
+                    if (STATUS_SUCCESS.equals(earlier.status) && System.currentTimeMillis() - earlier.finishedAt < ttl) {
+                        return earlier;
+                    }
+                }
+            }
+            session = new Session(simSlot, code, expect, steps, cacheKey);
+            sessions.put(session.id, session);
+            if (cacheKey != null) reusable.put(cacheKey, session);
+        }
+        try {
+            lane(simSlot).execute(() -> run(session));
+        } catch (RejectedExecutionException e) {
+            synchronized (this) {
+                sessions.remove(session.id);
+                if (cacheKey != null) reusable.remove(cacheKey, session);
+            }
+            return null;
+        }
+        return session;
+    }
+
+    public synchronized Session get(String id) {
+        return sessions.get(id);
+    }
+
+    public void stop() {
+        stopped = true;
+        for (ExecutorService lane : lanes.values()) {
+            lane.shutdownNow();
+        }
+        lanes.clear();
+    }
+
+    private ExecutorService lane(int simSlot) {
+        if (stopped) throw new RejectedExecutionException("Stopped");
+        return lanes.computeIfAbsent(simSlot, slot -> new ThreadPoolExecutor(1, 1,
+                0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>(queueCapacity),
+                r -> {
+                    Thread t = new Thread(r, "Pathway-Ussd-" + (slot == -1 ? "default" : "sim" + slot));
+                    t.setDaemon(true);
+                    return t;
+                }));
+    }
+
+    private static void validate(String code, List<Step> steps) {
+        if (code == null || code.isEmpty()) throw new IllegalArgumentException("Missing code");
+        if (steps.isEmpty()) return;
+        if (steps.size() > MAX_STEPS - 1) {
+            throw new IllegalArgumentException("More than " + MAX_STEPS + " steps");
+        }
+        if (!code.endsWith("#")) throw new IllegalArgumentException("A menu code must end with #");
+        for (int i = 0; i < steps.size(); i++) {
+            Step step = steps.get(i);
+            boolean hasReply = step.reply != null && !step.reply.isEmpty();
+            boolean hasSelect = step.select != null && !step.select.isEmpty();
+            if (hasReply == hasSelect) {
+                throw new IllegalArgumentException("Step " + (i + 1) + " needs a reply or a select");
+            }
+            if (hasReply && !step.reply.matches("[0-9*#+]+")) {
+                throw new IllegalArgumentException("Invalid reply at step " + (i + 1));
+            }
+        }
+    }
+
+    private static String key(int simSlot, String code, String expect, List<Step> steps) {
+        StringBuilder sb = new StringBuilder().append(simSlot).append('\n').append(code);
+        sb.append('\n').append(expect != null ? expect : "");
+        for (Step step : steps) {
+            sb.append('\n').append(step.reply != null ? "=" + step.reply : "?" + step.select);
+            sb.append('\n').append(step.expect != null ? step.expect : "");
+        }
+        return sb.toString();
+    }
+
+    // Runs on the SIM's lane thread
+    private void run(Session session) {
+        session.status = STATUS_RUNNING;
+        try {
+            String answer = step(session, session.code, session.expect);
+            List<String> replies = new ArrayList<>();
+            for (int i = 0; answer != null && i < session.steps.size(); i++) {
+                Step step = session.steps.get(i);
+                String reply = step.reply != null ? step.reply : menuOption(answer, step.select);
+                if (reply == null) {
+                    session.finish(STATUS_FAILED, "No menu option matching \"" + step.select + "\" at step " + (i + 2));
+                    return;
+                }
+                replies.add(reply);
+                answer = step(session, chain(session.code, replies), step.expect);
+            }
+            if (answer != null) session.finish(STATUS_SUCCESS, null);
+        } catch (InterruptedException e) {
+            session.finish(STATUS_FAILED, SmsJob.REASON_STOPPED);
+        } catch (RuntimeException e) {
+            log(LogBuffer.ERROR, "USSD Exception: " + e.getMessage());
+            session.finish(STATUS_FAILED, "error_" + e.getMessage());
+        } finally {
+            if (!STATUS_SUCCESS.equals(session.status) && session.cacheKey != null) {
+                synchronized (this) {
+                    reusable.remove(session.cacheKey, session);
+                }
+            }
+        }
+    }
+
+    // Sends one request and waits for the radio. Returns the answer, or null
+    // after failing the session.
+    private String step(Session session, String code, String expect) throws InterruptedException {
+        log("Running USSD: " + code + (session.simSlot != -1 ? " on SIM " + session.simSlot : ""));
+        long started = System.nanoTime();
+        Metrics.Sim simMetrics = metrics.sim(session.simSlot);
+
+        CountDownLatch latch = new CountDownLatch(1);
+        AtomicReference<String> answer = new AtomicReference<>();
+        AtomicReference<String> failure = new AtomicReference<>();
+        telephony.sendUssd(session.simSlot, code, new Telephony.UssdCallback() {
+            @Override
+            public void onResponse(String text) {
+                answer.set(text != null ? text : "");
+                latch.countDown();
+            }
+
+            @Override
+            public void onFailure(String reason) {
+                failure.set(reason);
+                latch.countDown();
+            }
+        });
+
+        if (!latch.await(stepTimeoutMillis, TimeUnit.MILLISECONDS)) {
+            simMetrics.recordUssd(Metrics.USSD_TIMEOUT, System.nanoTime() - started);
+            session.finish(STATUS_FAILED, "timeout");
+            return null;
+        }
+        if (failure.get() != null) {
+            simMetrics.recordUssd(Metrics.USSD_FAILED, System.nanoTime() - started);
+            log(LogBuffer.ERROR, failure.get());
+            session.finish(STATUS_FAILED, failure.get());
+            return null;
+        }
+        simMetrics.recordUssd(Metrics.USSD_SUCCESS, System.nanoTime() - started);
+        String text = answer.get();
+        log("USSD Response: " + text);
+        session.answered(text);
+        if (expect != null && !text.toLowerCase(Locale.ROOT).contains(expect.toLowerCase(Locale.ROOT))) {
+            session.finish(STATUS_FAILED, "Unexpected answer to " + code);
+            return null;
+        }
+        return text;
+    }
+
+    // Number of the first menu line in answer whose text contains select, ignoring case
+    static String menuOption(String answer, String select) {
+        String wanted = select.toLowerCase(Locale.ROOT);
+        Matcher m = MENU_LINE.matcher(answer);
+        while (m.find()) {
+            if (m.group(2).toLowerCase(Locale.ROOT).contains(wanted)) return m.group(1);
+        }
+        return null;
+    }
+
+    // *123# with replies 1 and 2 becomes *123*1*2#
+    static String chain(String code, List<String> replies) {
+        StringBuilder sb = new StringBuilder(code.length() + replies.size() * 3);
+        sb.append(code, 0, code.length() - 1);
+        for (String reply : replies) {
+            sb.append('*').append(reply);
+        }
+        return sb.append('#').toString();
+    }
+
+    private void log(String message) {
+        logs.append(LogBuffer.INFO, message);
+    }
+
+    private void log(int level, String message) {
+        logs.append(level, message);
+    }
+}
@@ -0,0 +1,129 @@
+package com.pathway.android;
+
+import fi.iki.elonen.NanoHTTPD;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Runs NanoHTTPD connections on a fixed set of worker threads instead of one new
+// thread per connection. Connections wait in a bounded queue when every worker
+// is busy; past that, or when one client holds too many connections, they are
+// answered straight from the accept thread with 503 or 429 and a Retry-After,
+// so the thread count stays flat however many clients connect.
+public class WorkerPool implements NanoHTTPD.AsyncRunner {
+    // A connection whose socket and client address are known before it runs
+    public interface Connection {
+        Socket socket();
+    }
+
+    private static final int RETRY_AFTER_SECONDS = 1;
+
+    private final ThreadPoolExecutor executor;
+    private final int maxPerClient;
+    private final Set<NanoHTTPD.ClientHandler> open = ConcurrentHashMap.newKeySet();
+    private final Map<InetAddress, AtomicInteger> perClient = new ConcurrentHashMap<>();
+    private final AtomicInteger rejected = new AtomicInteger();
+
+    public WorkerPool(int workers, int queueCapacity, int maxPerClient) {
+        AtomicInteger threadNumber = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(workers, workers, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueCapacity), r -> {
+                    Thread t = new Thread(r, "Pathway-Http-" + threadNumber.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                });
+        this.maxPerClient = maxPerClient;
+    }
+
+    @Override
+    public void exec(NanoHTTPD.ClientHandler handler) {
+        Socket socket = ((Connection) handler).socket();
+        InetAddress client = socket.getInetAddress();
+        AtomicInteger connections = perClient.computeIfAbsent(client, address -> new AtomicInteger());
+        if (connections.incrementAndGet() > maxPerClient) {
+            release(client, connections);
+            reject(handler, socket, "429 Too Many Requests");
+            return;
+        }
+        open.add(handler);
+        try {
+            executor.execute(handler);
+        } catch (RejectedExecutionException e) {
+            open.remove(handler);
+            release(client, connections);
+            reject(handler, socket, "503 Service Unavailable");
+        }
+    }
+
+    @Override
+    public void closed(NanoHTTPD.ClientHandler handler) {
+        if (open.remove(handler)) {
+            InetAddress client = ((Connection) handler).socket().getInetAddress();
+            AtomicInteger connections = perClient.get(client);
+            if (connections != null) release(client, connections);
+        }
+    }
+
+    @Override
+    public void closeAll() {
+        for (NanoHTTPD.ClientHandler handler : new ArrayList<>(open)) {
+            handler.close();
+        }
+    }
+
+    public void shutdown() {
+        closeAll();
+        executor.shutdownNow();
+    }
+
+    // Connections currently being served or waiting for a worker
+    public int openConnections() {
+        return open.size();
+    }
+
+    public int queued() {
+        return executor.getQueue().size();
+    }
+
+    public int rejectedCount() {
+        return rejected.get();
+    }
+
+    private void release(InetAddress client, AtomicInteger connections) {
+        if (connections.decrementAndGet() <= 0) {
+            perClient.remove(client, connections);
+        }
+    }
+
+    // Answers without reading the request; the client retries after Retry-After
+    private void reject(NanoHTTPD.ClientHandler handler, Socket socket, String status) {
+        rejected.incrementAndGet();
+        String body = "{\"status\": \"failed\", \"reason\": \"server_busy\"}";
+        String response = "HTTP/1.1 " + status + "\r\n"
+                + "Content-Type: application/json\r\n"
+                + "Content-Length: " + body.length() + "\r\n"
+                + "Retry-After: " + RETRY_AFTER_SECONDS + "\r\n"
+                + "Access-Control-Allow-Origin: *\r\n"
+                + "Connection: close\r\n\r\n" + body;
+        try {
+            OutputStream out = socket.getOutputStream();
+            out.write(response.getBytes(StandardCharsets.US_ASCII));
+            out.flush();
+            socket.shutdownOutput();
+        } catch (IOException ignored) {
+            // Client already gone
+        }
+        handler.close();
+    }
+}
@@ -0,0 +1,859 @@
+package com.pathway.android;
+
+import static org.junit.Assert.*;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+// The whole HTTP server on a plain JVM, with the simulated radio behind it
+public class ApiServerTest {
+    private static final String KEY = "test-key";
+    private static final Pattern ID = Pattern.compile("\"id\": \"([^\"]+)\"");
+    private static final Pattern SEQ = Pattern.compile("\"seq\": (\\d+)");
+    private static final Pattern SECRET = Pattern.compile("\"key\": \"([0-9a-f]+)\"");
+
+    @Rule
+    public TemporaryFolder dataDir = new TemporaryFolder();
+
+    private SimulatedTelephony telephony;
+    private ApiServer server;
+    private String base;
+
+    @Before
+    public void setUp() throws IOException {
+        telephony = new SimulatedTelephony(2, dataDir.getRoot());
+        telephony.setSeed(1);
+        telephony.setLatency(1, 3);
+        server = new ApiServer(0, KEY, telephony, new LogBuffer(256));
+        server.start();
+        base = "http://127.0.0.1:" + server.getListeningPort();
+    }
+
+    @After
+    public void tearDown() {
+        server.stop();
+    }
+
+    private static class Reply {
+        final int code;
+        final String body;
+
+        Reply(int code, String body) {
+            this.code = code;
+            this.body = body;
+        }
+    }
+
+    private Reply request(String method, String path, String body, String key) throws IOException {
+        HttpURLConnection conn = (HttpURLConnection) new URL(base + path).openConnection();
+        conn.setRequestMethod(method);
+        conn.setConnectTimeout(5000);
+        conn.setReadTimeout(30000);
+        if (key != null) conn.setRequestProperty("Authorization", "Bearer " + key);
+        if (body != null) {
+            conn.setDoOutput(true);
+            conn.setRequestProperty("Content-Type", "application/json");
+            try (OutputStream out = conn.getOutputStream()) {
+                out.write(body.getBytes(StandardCharsets.UTF_8));
+            }
+        }
+        int code = conn.getResponseCode();
+        InputStream in = code < 400 ? conn.getInputStream() : conn.getErrorStream();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        if (in != null) {
+            byte[] buffer = new byte[4096];
+            int n;
+            while ((n = in.read(buffer)) > 0) bytes.write(buffer, 0, n);
+            in.close();
+        }
+        return new Reply(code, new String(bytes.toByteArray(), StandardCharsets.UTF_8));
+    }
+
+    private Reply post(String path, String body) throws IOException {
+        return request("POST", path, body, KEY);
+    }
+
+    // Writes a request as given, for what HttpURLConnection won't send; returns the
+    // whole response. The request should ask for the connection to be closed.
+    private String raw(String request) throws IOException {
+        try (Socket socket = new Socket("127.0.0.1", server.getListeningPort())) {
+            socket.setSoTimeout(10000);
+            OutputStream out = socket.getOutputStream();
+            out.write(request.getBytes(StandardCharsets.UTF_8));
+            out.flush();
+            InputStream in = socket.getInputStream();
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int n;
+            while ((n = in.read(buffer)) > 0) bytes.write(buffer, 0, n);
+            return new String(bytes.toByteArray(), StandardCharsets.UTF_8);
+        }
+    }
+
+    // A GET /events stream, once the server has subscribed it
+    private Socket openEvents(String query, String lastEventId) throws IOException {
+        Socket socket = new Socket("127.0.0.1", server.getListeningPort());
+        socket.setSoTimeout(10000);
+        OutputStream out = socket.getOutputStream();
+        out.write(("GET /events" + query + " HTTP/1.1\r\nHost: localhost\r\nAuthorization: Bearer " + KEY + "\r\n"
+                + (lastEventId != null ? "Last-Event-ID: " + lastEventId + "\r\n" : "") + "\r\n")
+                .getBytes(StandardCharsets.UTF_8));
+        out.flush();
+        return socket;
+    }
+
+    // The next event's id, type and data, skipping the headers, chunk sizes,
+    // retry hint and heartbeats around it
+    private static String[] nextEvent(BufferedReader in) throws IOException {
+        String[] event = new String[3];
+        String line;
+        while ((line = in.readLine()) != null) {
+            if (line.startsWith("id: ")) event[0] = line.substring(4);
+            else if (line.startsWith("event: ")) event[1] = line.substring(7);
+            else if (line.startsWith("data: ")) {
+                event[2] = line.substring(6);
+                return event;
+            }
+        }
+        fail("Stream ended");
+        return null;
+    }
+
+    private static BufferedReader lines(Socket socket) throws IOException {
+        return new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+    }
+
+    private String waitForFinish(String id) throws Exception {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (System.currentTimeMillis() < deadline) {
+            String body = request("GET", "/sms/" + id, null, KEY).body;
+            if (body.contains("\"status\": \"sent\"") || body.contains("\"status\": \"failed\"")) return body;
+            Thread.sleep(10);
+        }
+        fail("Job " + id + " did not finish");
+        return null;
+    }
+
+    private static long sentOn(String prometheus, String slot) {
+        Matcher m = Pattern.compile("pathway_sms_sent_total\\{sim=\"" + slot + "\"\\} (\\d+)").matcher(prometheus);
+        return m.find() ? Long.parseLong(m.group(1)) : 0;
+    }
+
+    @Test
+    public void rejectsMissingApiKey() throws IOException {
+        assertEquals(401, request("POST", "/sms", "{}", null).code);
+        assertEquals(401, request("GET", "/jobs", null, "wrong").code);
+        // Same length as the key, last character wrong
+        assertEquals(401, request("GET", "/jobs", null, KEY.substring(0, KEY.length() - 1) + "x").code);
+        assertEquals(200, request("GET", "/jobs", null, KEY).code);
+    }
+
+    @Test
+    public void blockingSendWaitsForTheRadio() throws IOException {
+        Reply reply = post("/sms", "{\"number\": \"+15550001\", \"message\": \"Hello\"}");
+        assertEquals(200, reply.code);
+        assertTrue(reply.body, reply.body.contains("\"status\": \"sent\""));
+        assertEquals(1, telephony.sentMessages());
+    }
+
+    @Test
+    public void multipartMessageSendsEveryPart() throws Exception {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 400; i++) text.append('x');
+        Reply reply = post("/sms", "{\"number\": \"+15550001\", \"message\": \"" + text + "\", \"async\": true}");
+        assertEquals(202, reply.code);
+        assertTrue(reply.body, reply.body.contains("\"parts\": 3"));
+        Matcher m = ID.matcher(reply.body);
+        assertTrue(m.find());
+        assertTrue(waitForFinish(m.group(1)).contains("\"status\": \"sent\""));
+        assertEquals(3, telephony.sentParts());
+    }
+
+    @Test
+    public void radioFailureIsReportedWithItsReason() throws IOException {
+        telephony.setFailures(1.0, "no_service");
+        Reply reply = post("/sms", "{\"number\": \"+15550001\", \"message\": \"Hello\"}");
+        assertTrue(reply.body, reply.body.contains("\"status\": \"failed\""));
+        assertTrue(reply.body, reply.body.contains("\"reason\": \"no_service\""));
+    }
+
+    @Test
+    public void batchUnderLoadFinishesOnBothSims() throws Exception {
+        int count = 500;
+        StringBuilder body = new StringBuilder("{\"message\": \"Load test\", \"numbers\": [");
+        for (int i = 0; i < count; i++) {
+            if (i > 0) body.append(", ");
+            body.append("\"+1555").append(1000 + i).append('"');
+        }
+        body.append("]}");
+        Reply reply = post("/sms/batch", body.toString());
+        assertEquals(202, reply.code);
+        assertTrue(reply.body, reply.body.contains("\"accepted\": " + count));
+
+        List<String> ids = new ArrayList<>();
+        Matcher m = ID.matcher(reply.body);
+        while (m.find()) ids.add(m.group(1));
+        assertEquals(count, ids.size());
+        for (String id : ids) {
+            assertTrue(waitForFinish(id).contains("\"status\": \"sent\""));
+        }
+        assertEquals(count, telephony.sentMessages());
+        // Least-loaded routing spreads the batch over both lanes
+        String metrics = request("GET", "/metrics", null, KEY).body;
+        assertTrue(metrics, sentOn(metrics, "0") > 0);
+        assertTrue(metrics, sentOn(metrics, "1") > 0);
+        assertEquals(count, sentOn(metrics, "0") + sentOn(metrics, "1"));
+    }
+
+    @Test
+    public void ussdAnswersFromTheRadio() throws IOException {
+        telephony.setUssd("Balance: 10.00", null);
+        Reply reply = post("/ussd", "{\"code\": \"*123#\"}");
+        assertTrue(reply.body, reply.body.contains("\"result\": \"Balance: 10.00\""));
+
+        telephony.setUssd(null, "USSD Failed: Service unavailable (-2)");
+        reply = post("/ussd", "{\"code\": \"*123#\"}");
+        assertTrue(reply.body, reply.body.contains("\"status\": \"failed\""));
+    }
+
+    @Test
+    public void ussdMenuIsWalkedOnTheRequestedSim() throws IOException {
+        telephony.setUssdAnswer("*123#", "1. Balance\n2. Data bundles");
+        telephony.setUssdAnswer("*123*2#", "1) 1GB\n2) 5GB");
+        telephony.setUssdAnswer("*123*2*1#", "1GB bundle activated");
+        Reply reply = post("/ussd", "{\"code\": \"*123#\", \"sim\": 1, \"steps\": [{\"select\": \"data\"}, "
+                + "{\"reply\": \"1\", \"expect\": \"activated\"}]}");
+        assertTrue(reply.body, reply.body.contains("\"result\": \"1GB bundle activated\""));
+        assertTrue(reply.body, reply.body.contains("\"sim\": 1"));
+        assertEquals(3, telephony.ussdRequests());
+
+        reply = post("/ussd", "{\"code\": \"*123#\", \"steps\": [{\"select\": \"roaming\"}]}");
+        assertTrue(reply.body, reply.body.contains("\"status\": \"failed\""));
+        assertTrue(reply.body, post("/ussd", "{\"code\": \"*123#\", \"sim\": 5}").body.contains("Unknown SIM"));
+    }
+
+    @Test
+    public void asyncUssdIsCachedForItsTtl() throws Exception {
+        telephony.setUssd("Balance: 10.00", null);
+        Reply reply = post("/ussd", "{\"code\": \"*124#\", \"async\": true, \"cacheTtl\": 60}");
+        Matcher m = ID.matcher(reply.body);
+        assertTrue(reply.body, m.find());
+        String id = m.group(1);
+        long deadline = System.currentTimeMillis() + 10000;
+        String body;
+        do {
+            body = request("GET", "/ussd/" + id, null, KEY).body;
+        } while (!body.contains("\"status\": \"success\"") && System.currentTimeMillis() < deadline);
+        assertTrue(body, body.contains("\"result\": \"Balance: 10.00\""));
+
+        reply = post("/ussd", "{\"code\": \"*124#\", \"cacheTtl\": 60}");
+        assertTrue(reply.body, reply.body.contains("\"cached\": true"));
+        assertTrue(reply.body, reply.body.contains("\"id\": \"" + id + "\""));
+        assertEquals(1, telephony.ussdRequests());
+
+        // Without a TTL the network is asked again
+        reply = post("/ussd", "{\"code\": \"*124#\"}");
+        assertTrue(reply.body, reply.body.contains("\"cached\": false"));
+        assertEquals(2, telephony.ussdRequests());
+        assertEquals(404, request("GET", "/ussd/nope", null, KEY).code);
+    }
+
+    private static int count(Pattern pattern, String text) {
+        Matcher m = pattern.matcher(text);
+        int n = 0;
+        while (m.find()) n++;
+        return n;
+    }
+
+    @Test
+    public void receivedSmsArePagedPushedAndKept() throws Exception {
+        // A webhook that fails its first batch, then records every seq it is sent
+        Set<String> pushed = ConcurrentHashMap.newKeySet();
+        AtomicInteger posts = new AtomicInteger();
+        com.sun.net.httpserver.HttpServer hook = com.sun.net.httpserver.HttpServer.create(
+                new java.net.InetSocketAddress("127.0.0.1", 0), 0);
+        hook.createContext("/hook", exchange -> {
+            String body = new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8);
+            boolean authorized = "Bearer hook-key".equals(exchange.getRequestHeaders().getFirst("Authorization"));
+            int code = posts.incrementAndGet() == 1 || !authorized ? 500 : 200;
+            if (code == 200) {
+                Matcher m = SEQ.matcher(body);
+                while (m.find()) pushed.add(m.group(1));
+            }
+            exchange.sendResponseHeaders(code, -1);
+            exchange.close();
+        });
+        hook.start();
+        try {
+            server.setInboxWebhook("http://127.0.0.1:" + hook.getAddress().getPort() + "/hook", "hook-key");
+            for (int i = 0; i < 300; i++) {
+                telephony.receive(i % 2, "+155500" + (i % 3), "Reply " + i);
+            }
+
+            long deadline = System.currentTimeMillis() + 10000;
+            while (pushed.size() < 300 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(20);
+            }
+            assertEquals(300, pushed.size());
+            assertTrue(posts.get() > 1);
+
+            Reply page = request("GET", "/inbox?after=0&limit=100", null, KEY);
+            assertEquals(100, count(SEQ, page.body));
+            assertTrue(page.body, page.body.contains("\"cursor\": 100"));
+            assertTrue(page.body, page.body.contains("\"more\": true"));
+            Reply sender = request("GET", "/inbox?from=%2B1555001&limit=1000", null, KEY);
+            assertEquals(100, count(SEQ, sender.body));
+            assertTrue(sender.body, sender.body.contains("\"message\": \"Reply 1\""));
+        } finally {
+            hook.stop(0);
+        }
+
+        // Kept across a restart, with the numbering carried on
+        server.stop();
+        server = new ApiServer(0, KEY, telephony, new LogBuffer(256));
+        server.start();
+        base = "http://127.0.0.1:" + server.getListeningPort();
+        telephony.receive(0, "+1555009", "After restart");
+        long deadline = System.currentTimeMillis() + 5000;
+        Reply tail;
+        do {
+            tail = request("GET", "/inbox?after=299", null, KEY);
+        } while (count(SEQ, tail.body) < 2 && System.currentTimeMillis() < deadline);
+        assertTrue(tail.body, tail.body.contains("\"message\": \"Reply 299\""));
+        assertTrue(tail.body, tail.body.contains("\"seq\": 301, \"from\": \"+1555009\""));
+    }
+
+    @Test
+    public void scheduledMessagesWaitSpreadAndSurviveARestart() throws Exception {
+        long now = System.currentTimeMillis();
+        Reply soon = post("/sms", "{\"number\": \"+15550001\", \"message\": \"Later\", \"sendAt\": " + (now + 1500) + "}");
+        assertEquals(202, soon.code);
+        assertTrue(soon.body, soon.body.contains("\"status\": \"scheduled\""));
+        Matcher m = ID.matcher(soon.body);
+        assertTrue(m.find());
+        String soonId = m.group(1);
+        assertTrue(request("GET", "/sms/" + soonId, null, KEY).body.contains("\"status\": \"scheduled\""));
+
+        // The first item goes now, the others 0.5s apart
+        Reply batch = post("/sms/batch", "{\"message\": \"Spread\", \"spreadOver\": 2,"
+                + " \"numbers\": [\"+15550002\", \"+15550003\", \"+15550004\", \"+15550005\"]}");
+        assertEquals(202, batch.code);
+        assertTrue(batch.body, batch.body.contains("\"scheduled\": 3"));
+        m = ID.matcher(batch.body);
+        List<String> spread = new ArrayList<>();
+        while (m.find()) spread.add(m.group(1));
+        assertEquals(4, spread.size());
+
+        // An hour ahead as an ISO time, then an invalid one
+        java.text.SimpleDateFormat iso = new java.text.SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'");
+        iso.setTimeZone(java.util.TimeZone.getTimeZone("UTC"));
+        long hourAhead = (now / 1000 + 3600) * 1000;
+        Reply later = post("/sms", "{\"number\": \"+15550006\", \"message\": \"Tomorrow\", \"sendAt\": \""
+                + iso.format(new java.util.Date(hourAhead)) + "\", \"async\": true}");
+        assertTrue(later.body, later.body.contains("\"sendAt\": " + hourAhead));
+        m = ID.matcher(later.body);
+        assertTrue(m.find());
+        String laterId = m.group(1);
+        assertEquals(400, post("/sms", "{\"number\": \"+15550007\", \"message\": \"x\", \"sendAt\": \"2025-02-30T10:00\"}").code);
+
+        String finished = waitForFinish(soonId);
+        assertTrue(finished, finished.contains("\"status\": \"sent\""));
+        Matcher at = Pattern.compile("\"finishedAt\": (\\d+)").matcher(finished);
+        assertTrue(at.find());
+        assertTrue(Long.parseLong(at.group(1)) >= now + 1500);
+        for (String id : spread) {
+            assertTrue(waitForFinish(id).contains("\"status\": \"sent\""));
+        }
+
+        // Still scheduled after a restart
+        server.stop();
+        server = new ApiServer(0, KEY, telephony, new LogBuffer(256));
+        server.start();
+        base = "http://127.0.0.1:" + server.getListeningPort();
+        assertTrue(request("GET", "/jobs", null, KEY).body.contains("\"scheduled\": 1"));
+        String restored = request("GET", "/sms/" + laterId, null, KEY).body;
+        assertTrue(restored, restored.contains("\"status\": \"scheduled\""));
+        assertTrue(restored, restored.contains("\"sendAt\": " + hourAhead));
+    }
+
+    @Test
+    public void batchWithEveryItemRejectedGetsTheReasons() throws Exception {
+        long started = System.currentTimeMillis();
+        Reply batch = post("/sms/batch", "{\"items\": [{\"number\": \"+15550001\"}, 7, {\"message\": \"No number\"}]}");
+        assertEquals(batch.body, 202, batch.code);
+        assertTrue(batch.body, batch.body.contains("\"accepted\": 0, \"rejected\": 3"));
+        assertTrue(batch.body, batch.body.contains("\"reason\": \"Invalid item\""));
+        // Answered without waiting on an outbox commit that never comes
+        assertTrue(System.currentTimeMillis() - started < 2000);
+        assertEquals(0, telephony.sentMessages());
+    }
+
+    @Test
+    public void batchWithEveryItemScheduledIsAccepted() throws Exception {
+        long hourAhead = System.currentTimeMillis() + 3_600_000;
+        Reply batch = post("/sms/batch", "{\"message\": \"Campaign\", \"sendAt\": " + hourAhead
+                + ", \"numbers\": [\"+15550001\", \"+15550002\", \"+15550003\"]}");
+        assertEquals(batch.body, 202, batch.code);
+        assertTrue(batch.body, batch.body.contains("\"accepted\": 3, \"rejected\": 0, \"scheduled\": 3"));
+        String jobs = request("GET", "/jobs", null, KEY).body;
+        assertTrue(jobs, jobs.contains("\"queued\": 0, \"scheduled\": 3"));
+    }
+
+    @Test
+    public void unknownSimIsRejectedRatherThanRerouted() throws Exception {
+        Reply single = post("/sms", "{\"number\": \"+15550001\", \"message\": \"Hi\", \"sim\": 5}");
+        assertTrue(single.body, single.body.contains("\"reason\": \"Unknown SIM: 5\""));
+        Reply batch = post("/sms/batch", "{\"message\": \"Hi\", \"items\": [{\"number\": \"+15550001\", \"sim\": 5},"
+                + " {\"number\": \"+15550002\", \"sim\": 1}]}");
+        assertTrue(batch.body, batch.body.contains("\"accepted\": 1, \"rejected\": 1"));
+        assertTrue(batch.body, batch.body.contains("\"reason\": \"Unknown SIM: 5\""));
+        Reply shared = post("/sms/batch", "{\"message\": \"Hi\", \"sim\": 5, \"numbers\": [\"+15550001\"]}");
+        assertTrue(shared.body, shared.body.contains("\"accepted\": 0, \"rejected\": 1"));
+    }
+
+    @Test
+    public void templatesAreRegisteredExpandedAndCounted() throws Exception {
+        Reply created = post("/templates", "{\"id\": \"otp\", \"text\": \"Hi {{name}}, your code is {{code}}\"}");
+        assertEquals(created.body, 201, created.code);
+        assertTrue(created.body, created.body.contains("\"variables\": [\"name\", \"code\"]"));
+        assertEquals(400, post("/templates", "{\"text\": \"\"}").code);
+        Reply broken = post("/templates", "{\"text\": \"Hi {{name\"}");
+        assertEquals(400, broken.code);
+        assertTrue(broken.body, broken.body.contains("Unterminated placeholder"));
+
+        assertTrue(request("GET", "/templates", null, KEY).body.contains("\"id\": \"otp\""));
+        Reply one = request("GET", "/templates/otp", null, KEY);
+        assertTrue(one.body, one.body.contains("\"text\": \"Hi {{name}}, your code is {{code}}\""));
+        assertEquals(404, request("GET", "/templates/none", null, KEY).code);
+
+        Reply single = post("/sms", "{\"number\": \"+15550001\", \"template\": \"otp\", \"async\": true,"
+                + " \"vars\": {\"name\": \"Ana\", \"code\": \"4821\"}}");
+        assertEquals(single.body, 202, single.code);
+        assertTrue(single.body, single.body.contains("\"parts\": 1"));
+        Reply missing = post("/sms", "{\"number\": \"+15550001\", \"template\": \"otp\", \"vars\": {\"name\": \"Ana\"}}");
+        assertEquals(400, missing.code);
+        assertTrue(missing.body, missing.body.contains("\"reason\": \"Missing variable: code\""));
+
+        // Each recipient is counted with its own values; a value long enough takes a second part
+        StringBuilder longName = new StringBuilder();
+        for (int i = 0; i < 150; i++) longName.append('x');
+        Reply batch = post("/sms/batch", "{\"template\": \"otp\", \"vars\": {\"name\": \"friend\", \"code\": \"0000\"},"
+                + " \"items\": [{\"number\": \"+15550002\"},"
+                + " {\"number\": \"+15550003\", \"vars\": {\"name\": \"" + longName + "\", \"code\": \"1177\"}},"
+                + " {\"number\": \"+15550004\", \"vars\": {\"code\": \"1177\"}},"
+                + " {\"number\": \"+15550005\", \"message\": \"Plain\"}]}");
+        assertEquals(batch.body, 202, batch.code);
+        assertTrue(batch.body, batch.body.contains("\"accepted\": 3, \"rejected\": 1, \"parts\": 4"));
+        assertTrue(batch.body, batch.body.contains("\"index\": 1, \"status\": \"queued\""));
+        assertTrue(batch.body, batch.body.contains("\"parts\": 2}"));
+        assertTrue(batch.body, batch.body.contains("\"index\": 2, \"status\": \"failed\", \"reason\": \"Missing variable: name\""));
+        Matcher m = ID.matcher(batch.body);
+        while (m.find()) waitForFinish(m.group(1));
+        waitForFinish(idOf(single));
+        assertEquals(5, telephony.sentParts());
+
+        assertEquals(200, request("DELETE", "/templates/otp", null, KEY).code);
+        assertEquals(404, request("DELETE", "/templates/otp", null, KEY).code);
+        Reply unknown = post("/sms", "{\"number\": \"+15550001\", \"template\": \"otp\", \"vars\": {}}");
+        assertEquals(400, unknown.code);
+        assertTrue(unknown.body, unknown.body.contains("Unknown template: otp"));
+    }
+
+    @Test
+    public void bodiesAreDecodedAsTheyArriveWithinTheirLimits() throws Exception {
+        Reply broken = post("/sms", "{\"number\": \"+15550001\", \"message\": ");
+        assertEquals(400, broken.code);
+        assertTrue(broken.body, broken.body.contains("Invalid JSON"));
+
+        StringBuilder deep = new StringBuilder("{\"extra\": ");
+        for (int i = 0; i < 40; i++) deep.append('[');
+        for (int i = 0; i < 40; i++) deep.append(']');
+        Reply nested = post("/sms", deep.append('}').toString());
+        assertEquals(400, nested.code);
+        assertTrue(nested.body, nested.body.contains("Nesting too deep"));
+
+        Reply unknown = post("/sms", "{\"client\": {\"app\": \"crm\", \"tags\": [1, [2], {\"x\": null}]},"
+                + " \"number\": \"+15550001\", \"message\": \"Hi\", \"async\": true}");
+        assertEquals(unknown.body, 202, unknown.code);
+
+        // Refused from the declared length alone, before any of the body is sent
+        String tooLarge = raw("POST /sms HTTP/1.1\r\nHost: localhost\r\nAuthorization: Bearer " + KEY
+                + "\r\nContent-Type: application/json\r\nContent-Length: " + (5 * 1024 * 1024) + "\r\n\r\n");
+        assertTrue(tooLarge, tooLarge.startsWith("HTTP/1.1 413"));
+
+        // Without Content-Length, the body is what already arrived
+        String body = "{\"number\": \"+15550002\", \"message\": \"No length\", \"async\": true}";
+        String noLength = raw("POST /sms HTTP/1.1\r\nHost: localhost\r\nAuthorization: Bearer " + KEY
+                + "\r\nContent-Type: application/json\r\nConnection: close\r\n\r\n" + body);
+        assertTrue(noLength, noLength.startsWith("HTTP/1.1 202"));
+        assertTrue(noLength, noLength.contains("\"status\": \"queued\""));
+    }
+
+    @Test
+    public void eventStreamResumesFromTheLastEventId() throws Exception {
+        String lastSeen;
+        String first;
+        try (Socket socket = openEvents("?types=status", null)) {
+            BufferedReader in = lines(socket);
+            assertTrue(in.readLine().startsWith("HTTP/1.1 200"));
+            first = idOf(post("/sms", "{\"number\": \"+15550001\", \"message\": \"One\", \"async\": true}"));
+            String[] event;
+            do {
+                event = nextEvent(in);
+                assertEquals("status", event[1]);
+                assertTrue(event[2], event[2].contains(first));
+            } while (!event[2].contains("\"status\": \"sent\""));
+            lastSeen = event[0];
+        }
+
+        // Missed while disconnected, and replayed on reconnect
+        String second = idOf(post("/sms", "{\"number\": \"+15550002\", \"message\": \"Two\", \"async\": true}"));
+        waitForFinish(second);
+        try (Socket socket = openEvents("?types=status", lastSeen)) {
+            BufferedReader in = lines(socket);
+            String[] event = nextEvent(in);
+            assertTrue(Long.parseLong(event[0]) > Long.parseLong(lastSeen));
+            assertTrue(event[2], event[2].contains(second));
+            while (!event[2].contains("\"status\": \"sent\"")) {
+                event = nextEvent(in);
+                assertFalse(event[2], event[2].contains(first));
+            }
+        }
+    }
+
+    @Test
+    public void eventStreamsAreLimited() throws Exception {
+        List<Socket> streams = new ArrayList<>();
+        try {
+            for (int i = 0; i < 4; i++) {
+                Socket socket = openEvents("", null);
+                streams.add(socket);
+                assertTrue(lines(socket).readLine().startsWith("HTTP/1.1 200"));
+            }
+            Reply refused = request("GET", "/events", null, KEY);
+            assertEquals(503, refused.code);
+            assertTrue(refused.body, refused.body.contains("too_many_streams"));
+        } finally {
+            for (Socket socket : streams) socket.close();
+        }
+    }
+
+    @Test
+    public void logsArePagedByCursor() throws Exception {
+        Pattern cursorPattern = Pattern.compile("\"cursor\": (\\d+)");
+        Matcher m = cursorPattern.matcher(request("GET", "/logs", null, KEY).body);
+        assertTrue(m.find());
+        long cursor = Long.parseLong(m.group(1));
+
+        post("/sms", "{\"number\": \"+15550009\", \"message\": \"Logged\"}");
+        Reply next = request("GET", "/logs?after=" + cursor, null, KEY);
+        assertTrue(next.body, next.body.contains("Sending SMS to +15550009"));
+        assertTrue(next.body, next.body.contains("\"truncated\": false"));
+        m = SEQ.matcher(next.body);
+        int count = 0;
+        while (m.find()) {
+            assertTrue(next.body, Long.parseLong(m.group(1)) > cursor);
+            count++;
+        }
+        assertTrue(count > 0);
+        // limit= pages through them
+        Reply page = request("GET", "/logs?after=" + cursor + "&limit=1", null, KEY);
+        m = SEQ.matcher(page.body);
+        assertTrue(m.find());
+        assertEquals(cursor + 1, Long.parseLong(m.group(1)));
+        assertFalse(page.body, m.find());
+
+        // A cursor from a previous run starts over from the oldest line
+        Reply restarted = request("GET", "/logs?after=" + (cursor + 1_000_000), null, KEY);
+        assertTrue(restarted.body, restarted.body.contains("\"seq\": 1,"));
+
+        // Fall further behind than the buffer holds and the answer says so
+        StringBuilder numbers = new StringBuilder();
+        for (int i = 0; i < 300; i++) numbers.append(i > 0 ? ", " : "").append("\"+1555").append(2000 + i).append('"');
+        Reply batch = post("/sms/batch", "{\"message\": \"Flood\", \"numbers\": [" + numbers + "]}");
+        m = ID.matcher(batch.body);
+        while (m.find()) waitForFinish(m.group(1));
+        Reply behind = request("GET", "/logs?after=" + cursor, null, KEY);
+        assertTrue(behind.body, behind.body.contains("\"truncated\": true"));
+    }
+
+    @Test
+    public void busyServerAnswersWithRetryAfter() throws Exception {
+        List<Socket> idle = new ArrayList<>();
+        try {
+            // Twelve connections from one client are allowed; the thirteenth is not
+            for (int i = 0; i < 12; i++) idle.add(new Socket("127.0.0.1", server.getListeningPort()));
+            String tooMany = raw("GET /jobs HTTP/1.1\r\nHost: localhost\r\nAuthorization: Bearer " + KEY
+                    + "\r\nConnection: close\r\n\r\n");
+            assertTrue(tooMany, tooMany.startsWith("HTTP/1.1 429"));
+            assertTrue(tooMany, tooMany.contains("Retry-After: 1"));
+
+            // Other clients fill the 16 workers and the 64 places in the queue
+            int port = server.getListeningPort();
+            for (int i = 0; i < 80 - 12; i++) {
+                InetAddress from = InetAddress.getByName("127.0.0." + (2 + i / 12));
+                idle.add(new Socket(InetAddress.getByName("127.0.0.1"), port, from, 0));
+            }
+            try (Socket socket = new Socket(InetAddress.getByName("127.0.0.1"), port, InetAddress.getByName("127.0.0.9"), 0)) {
+                socket.setSoTimeout(10000);
+                BufferedReader in = lines(socket);
+                String status = in.readLine();
+                assertTrue(status, status.startsWith("HTTP/1.1 503"));
+                String line;
+                boolean retryAfter = false;
+                while ((line = in.readLine()) != null && !line.isEmpty()) {
+                    if (line.equals("Retry-After: 1")) retryAfter = true;
+                }
+                assertTrue(retryAfter);
+            }
+        } finally {
+            for (Socket socket : idle) socket.close();
+        }
+    }
+
+    @Test
+    public void otpOvertakesABulkBacklog() throws Exception {
+        StringBuilder numbers = new StringBuilder();
+        for (int i = 0; i < 2000; i++) {
+            if (i > 0) numbers.append(", ");
+            numbers.append("\"+1555").append(String.format("%06d", i)).append('"');
+        }
+        Reply batch = post("/sms/batch", "{\"message\": \"Sale\", \"sim\": 0, \"numbers\": [" + numbers + "]}");
+        assertEquals(202, batch.code);
+
+        Reply otp = post("/sms", "{\"number\": \"+15559999\", \"message\": \"Code 1234\", \"sim\": 0, \"priority\": \"otp\"}");
+        assertTrue(otp.body, otp.body.contains("\"status\": \"sent\""));
+        // Sent while most of the campaign was still waiting
+        String jobs = request("GET", "/jobs", null, KEY).body;
+        Matcher queued = Pattern.compile("\"queued\": (\\d+)").matcher(jobs);
+        assertTrue(queued.find());
+        assertTrue(jobs, Integer.parseInt(queued.group(1)) > 1000);
+
+        String metrics = request("GET", "/metrics?format=json", null, KEY).body;
+        assertTrue(metrics, metrics.contains("{\"class\": \"otp\", \"sloMs\": 10000, \"queued\": 0, \"sent\": 1, \"withinSlo\": 1"));
+        assertEquals(400, post("/sms", "{\"number\": \"+15550001\", \"message\": \"x\", \"priority\": \"urgent\"}").code);
+    }
+
+    private String addKey(String body) throws IOException {
+        Reply reply = post("/keys", body);
+        assertEquals(reply.body, 201, reply.code);
+        Matcher m = SECRET.matcher(reply.body);
+        assertTrue(reply.body, m.find());
+        return m.group(1);
+    }
+
+    @Test
+    public void keysHaveTheirOwnScopesLimitsAndUsage() throws Exception {
+        String reader = addKey("{\"id\": \"dashboard\", \"scopes\": [\"read\"]}");
+        String campaign = addKey("{\"id\": \"campaign\", \"scopes\": [\"sms\"], \"ratePerMinute\": 3}");
+        String daily = addKey("{\"id\": \"alerts\", \"scopes\": [\"sms\"], \"dailyQuota\": 2}");
+        assertEquals(400, post("/keys", "{\"id\": \"campaign\", \"scopes\": [\"sms\"]}").code);
+        assertEquals(400, post("/keys", "{\"id\": \"x\", \"scopes\": [\"admin\"]}").code);
+
+        String sms = "{\"number\": \"+15550001\", \"message\": \"Hi\", \"async\": true}";
+        assertEquals(403, request("POST", "/sms", sms, reader).code);
+        assertEquals(200, request("GET", "/limits", null, reader).code);
+        assertEquals(403, request("GET", "/limits", null, campaign).code);
+        assertEquals(403, request("POST", "/keys", "{\"id\": \"mine\", \"scopes\": [\"sms\"]}", campaign).code);
+
+        // The campaign key spends its burst and is turned away; nobody else is
+        for (int i = 0; i < 3; i++) {
+            assertEquals(202, request("POST", "/sms", sms, campaign).code);
+        }
+        Reply limited = request("POST", "/sms", sms, campaign);
+        assertEquals(429, limited.code);
+        assertTrue(limited.body, limited.body.contains("rate_limited"));
+        assertEquals(413, request("POST", "/sms/batch", "{\"message\": \"Hi\", \"numbers\": [\"1\", \"2\", \"3\", \"4\"]}",
+                campaign).code);
+        assertEquals(202, post("/sms", sms).code);
+        assertEquals(202, request("POST", "/sms", sms, daily).code);
+        assertEquals(202, request("POST", "/sms", sms, daily).code);
+        assertTrue(request("POST", "/sms", sms, daily).body.contains("daily_quota"));
+
+        String own = request("GET", "/keys", null, campaign).body;
+        assertTrue(own, own.contains("\"id\": \"campaign\""));
+        assertFalse(own, own.contains("\"id\": \"alerts\""));
+        assertTrue(own, own.contains("\"messages\": 3, \"today\": 3, \"throttled\": 2"));
+        String all = request("GET", "/keys", null, KEY).body;
+        assertTrue(all, all.contains("\"id\": \"primary\"") && all.contains("\"id\": \"dashboard\""));
+        assertFalse(all, SECRET.matcher(all).find());
+
+        assertEquals(200, request("DELETE", "/keys/dashboard", null, KEY).code);
+        assertEquals(401, request("GET", "/limits", null, reader).code);
+        assertEquals(404, request("DELETE", "/keys/primary", null, KEY).code);
+
+        // Keys outlive a restart; their usage starts over
+        server.stop();
+        server = new ApiServer(0, KEY, telephony, new LogBuffer(256));
+        server.start();
+        base = "http://127.0.0.1:" + server.getListeningPort();
+        assertEquals(202, request("POST", "/sms", sms, campaign).code);
+        assertEquals(401, request("GET", "/limits", null, reader).code);
+    }
+
+    private static String idOf(Reply reply) {
+        Matcher m = ID.matcher(reply.body);
+        assertTrue(reply.body, m.find());
+        return m.group(1);
+    }
+
+    @Test
+    public void retriesAreRecognizedPerKey() throws Exception {
+        String shop = addKey("{\"id\": \"shop\", \"scopes\": [\"sms\"]}");
+        String bank = addKey("{\"id\": \"bank\", \"scopes\": [\"sms\"]}");
+        server.setDedupWindow(60);
+
+        String same = "{\"number\": \"+15550001\", \"message\": \"Your order shipped\", \"async\": true}";
+        String first = idOf(request("POST", "/sms", same, shop));
+        assertEquals(first, idOf(request("POST", "/sms", same, shop)));
+        // Another integration sending the same text to the same number is a new message
+        String other = idOf(request("POST", "/sms", same, bank));
+        assertNotEquals(first, other);
+
+        String keyed = "{\"number\": \"+15550002\", \"message\": \"%s\", \"idempotencyKey\": \"order-1\", \"async\": true}";
+        String shopOrder = idOf(request("POST", "/sms", String.format(keyed, "a"), shop));
+        String bankOrder = idOf(request("POST", "/sms", String.format(keyed, "b"), bank));
+        assertNotEquals(shopOrder, bankOrder);
+        assertEquals(bankOrder, idOf(request("POST", "/sms", String.format(keyed, "b"), bank)));
+        for (String id : new String[] { first, other, shopOrder, bankOrder }) {
+            waitForFinish(id);
+        }
+        assertEquals(4, telephony.sentMessages());
+    }
+
+    private static byte[] hello(String key) {
+        return new FrameServer.FrameBuilder(FrameServer.HELLO).string(key).build();
+    }
+
+    private static byte[] sendFrame(long corr, String number, String message) {
+        return new FrameServer.FrameBuilder(FrameServer.SEND).varint(corr).u8(0).u8(0)
+                .string(number).string(message).build();
+    }
+
+    // The next frame's payload, positioned after its type, which must be `type`
+    private static FrameServer.Cursor expect(InputStream in, int type) throws IOException {
+        byte[] frame = FrameServer.readFrame(in);
+        assertNotNull("Connection closed", frame);
+        FrameServer.Cursor c = new FrameServer.Cursor(frame);
+        assertEquals(type, c.u8());
+        return c;
+    }
+
+    private Socket frameClient(int port, String key) throws IOException {
+        Socket socket = new Socket("127.0.0.1", port);
+        socket.setSoTimeout(10000);
+        OutputStream out = socket.getOutputStream();
+        out.write(hello(key));
+        out.flush();
+        return socket;
+    }
+
+    @Test
+    public void binaryListenerAcksAndReportsOverAPlainSocket() throws Exception {
+        String dashboard = addKey("{\"id\": \"dashboard\", \"scopes\": [\"read\"]}");
+        String alerts = addKey("{\"id\": \"alerts\", \"scopes\": [\"sms\"], \"dailyQuota\": 1}");
+        int port;
+        try (ServerSocket probe = new ServerSocket(0)) {
+            port = probe.getLocalPort();
+        }
+        server.startFrameListener(port);
+
+        try (Socket socket = frameClient(port, "wrong")) {
+            assertEquals("unauthorized", expect(socket.getInputStream(), FrameServer.ERROR).string());
+        }
+        try (Socket socket = frameClient(port, dashboard)) {
+            assertEquals("forbidden", expect(socket.getInputStream(), FrameServer.ERROR).string());
+        }
+
+        try (Socket socket = frameClient(port, KEY)) {
+            InputStream in = socket.getInputStream();
+            OutputStream out = socket.getOutputStream();
+            expect(in, FrameServer.READY);
+
+            out.write(sendFrame(7, "+15550001", "Over the wire"));
+            out.flush();
+            FrameServer.Cursor ack = expect(in, FrameServer.ACK);
+            assertEquals(7, ack.varint());
+            assertEquals(FrameServer.ACK_QUEUED, ack.u8());
+            String id = ack.string();
+            FrameServer.Cursor status = expect(in, FrameServer.STATUS);
+            assertEquals(7, status.varint());
+            assertEquals(id, status.string());
+            assertEquals(FrameServer.STATE_SENT, status.u8());
+
+            out.write(new FrameServer.FrameBuilder(FrameServer.PING).varint(8).build());
+            out.write(sendFrame(9, "", "No number"));
+            out.write(new FrameServer.FrameBuilder(FrameServer.SEND).varint(10).u8(5).u8(0)
+                    .string("+15550001").string("No such SIM").build());
+            out.flush();
+            assertEquals(8, expect(in, FrameServer.PONG).varint());
+            ack = expect(in, FrameServer.ACK);
+            assertEquals(9, ack.varint());
+            assertEquals(FrameServer.ACK_INVALID, ack.u8());
+            ack = expect(in, FrameServer.ACK);
+            assertEquals(10, ack.varint());
+            assertEquals(FrameServer.ACK_INVALID, ack.u8());
+            assertEquals("Unknown SIM: 5", ack.string());
+
+            out.write(new FrameServer.FrameBuilder(0x55).build());
+            out.flush();
+            assertEquals("unknown_frame", expect(in, FrameServer.ERROR).string());
+        }
+
+        // A SEND drained together with a bad frame is dropped, and its quota given back
+        try (Socket socket = frameClient(port, alerts)) {
+            InputStream in = socket.getInputStream();
+            OutputStream out = socket.getOutputStream();
+            expect(in, FrameServer.READY);
+            ByteArrayOutputStream frames = new ByteArrayOutputStream();
+            frames.write(sendFrame(1, "+15550002", "Dropped"));
+            frames.write(new FrameServer.FrameBuilder(0x55).build());
+            out.write(frames.toByteArray());
+            out.flush();
+            assertEquals("unknown_frame", expect(in, FrameServer.ERROR).string());
+        }
+
+        // The key's daily quota holds on the socket too
+        try (Socket socket = frameClient(port, alerts)) {
+            InputStream in = socket.getInputStream();
+            OutputStream out = socket.getOutputStream();
+            expect(in, FrameServer.READY);
+            out.write(sendFrame(1, "+15550002", "First"));
+            out.flush();
+            FrameServer.Cursor ack = expect(in, FrameServer.ACK);
+            assertEquals(1, ack.varint());
+            assertEquals(FrameServer.ACK_QUEUED, ack.u8());
+            expect(in, FrameServer.STATUS);
+            out.write(sendFrame(2, "+15550002", "Second"));
+            out.flush();
+            ack = expect(in, FrameServer.ACK);
+            assertEquals(2, ack.varint());
+            assertEquals(FrameServer.ACK_THROTTLED, ack.u8());
+            assertEquals("daily_quota", ack.string());
+        }
+        assertEquals(2, telephony.sentMessages());
+    }
+}
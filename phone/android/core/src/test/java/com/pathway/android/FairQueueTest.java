@@ -0,0 +1,69 @@
+package com.pathway.android;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class FairQueueTest {
+    private static SmsJob job(int priority, String tenant) {
+        return new SmsJob("+15550001", "Hello", 0, false, 0, priority, tenant);
+    }
+
+    @Test
+    public void tenantsTakeTurnsWithinAClass() {
+        FairQueue queue = new FairQueue(1000);
+        for (int i = 0; i < 100; i++) {
+            assertTrue(queue.offer(job(SmsJob.PRIORITY_BULK, "campaign")));
+        }
+        assertTrue(queue.offer(job(SmsJob.PRIORITY_BULK, "other")));
+        assertTrue(queue.offer(job(SmsJob.PRIORITY_BULK, "other")));
+
+        StringBuilder order = new StringBuilder();
+        for (int i = 0; i < 6; i++) {
+            order.append(queue.poll().tenant.charAt(0));
+        }
+        assertEquals("cococc", order.toString());
+        assertEquals(96, queue.size());
+    }
+
+    @Test
+    public void otpGoesFirstAndTheRestShareByWeight() throws Exception {
+        FairQueue queue = new FairQueue(1000);
+        for (int i = 0; i < 50; i++) {
+            queue.offer(job(SmsJob.PRIORITY_BULK, "a"));
+            queue.offer(job(SmsJob.PRIORITY_TRANSACTIONAL, "a"));
+        }
+        queue.offer(job(SmsJob.PRIORITY_OTP, "b"));
+        assertEquals(SmsJob.PRIORITY_OTP, queue.take().priority);
+
+        int[] served = new int[3];
+        for (int i = 0; i < 50; i++) {
+            served[queue.take().priority]++;
+        }
+        assertEquals(40, served[SmsJob.PRIORITY_TRANSACTIONAL]);
+        assertEquals(10, served[SmsJob.PRIORITY_BULK]);
+
+        // An OTP arriving after a bulk job was taken goes out in its place
+        SmsJob bulk = queue.poll();
+        while (bulk.priority != SmsJob.PRIORITY_BULK) bulk = queue.poll();
+        assertSame(bulk, queue.preempt(bulk));
+        SmsJob otp = job(SmsJob.PRIORITY_OTP, "c");
+        queue.offer(otp);
+        assertSame(otp, queue.preempt(bulk));
+        assertSame(bulk, queue.poll());
+    }
+
+    @Test
+    public void fullQueueStillTakesOtpAndOtherTenants() {
+        FairQueue queue = new FairQueue(100);
+        int taken = 0;
+        while (queue.offer(job(SmsJob.PRIORITY_BULK, "noisy"))) taken++;
+        assertEquals(75, taken);
+        for (int i = 0; i < 25; i++) {
+            assertTrue(queue.offer(job(SmsJob.PRIORITY_BULK, "quiet")));
+        }
+        assertFalse(queue.offer(job(SmsJob.PRIORITY_TRANSACTIONAL, "quiet")));
+        assertTrue(queue.offer(job(SmsJob.PRIORITY_OTP, "quiet")));
+        assertEquals(SmsJob.PRIORITY_OTP, queue.poll().priority);
+    }
+}
@@ -0,0 +1,115 @@
+package com.pathway.android;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Test;
+
+public class JsonReaderTest {
+
+    private static JsonReader reader(String json) throws IOException {
+        byte[] bytes = json.getBytes(StandardCharsets.UTF_8);
+        return JsonReader.forThread(new ByteArrayInputStream(bytes), bytes.length, 1024 * 1024);
+    }
+
+    private static String malformed(String json) throws IOException {
+        try {
+            ApiServer.readBody(new ByteArrayInputStream(json.getBytes(StandardCharsets.UTF_8)), json.length());
+        } catch (JsonReader.MalformedJsonException e) {
+            return e.getMessage();
+        }
+        fail("Parsed: " + json);
+        return null;
+    }
+
+    @Test
+    public void readsTokensEscapesAndUtf8() throws IOException {
+        JsonReader in = reader("{\"text\": \"a\\\"b\\u00e9\\n\u00e9\u20AC\uD83D\uDE9A\", \"n\": -12.5e1,"
+                + " \"list\": [true, null, \"7\"]}");
+        in.beginObject();
+        assertEquals("text", in.nextName());
+        assertEquals("a\"b\u00e9\n\u00e9\u20AC\uD83D\uDE9A", in.nextString());
+        assertEquals("n", in.nextName());
+        assertEquals(-125.0, in.nextDouble(), 0);
+        assertEquals("list", in.nextName());
+        in.beginArray();
+        assertTrue(in.nextBoolean());
+        assertTrue(in.nextNullIfPresent());
+        assertEquals(7, in.nextInt());
+        assertFalse(in.hasNext());
+        in.endArray();
+        in.endObject();
+        assertEquals(JsonReader.END_DOCUMENT, in.peek());
+    }
+
+    @Test
+    public void invalidUtf8BecomesAReplacementCharacter() throws IOException {
+        byte[] bytes = { '"', 'a', (byte) 0xC3, '"' };
+        JsonReader in = JsonReader.forThread(new ByteArrayInputStream(bytes), bytes.length, 1024);
+        assertEquals("a\uFFFD", in.nextString());
+    }
+
+    @Test
+    public void neverReadsPastTheDeclaredLength() throws IOException {
+        String body = "{\"number\": \"+15550001\", \"message\": \"Hi\"}";
+        byte[] bytes = (body + "GET / HTTP/1.1\r\n").getBytes(StandardCharsets.UTF_8);
+        ByteArrayInputStream stream = new ByteArrayInputStream(bytes);
+        ApiRequest request = ApiServer.readBody(stream, body.length());
+        assertEquals("+15550001", request.number);
+        assertEquals("GET / HTTP/1.1\r\n".length(), stream.available());
+
+        // Fields read early still leave the stream at the end of the body
+        stream = new ByteArrayInputStream(bytes);
+        JsonReader in = JsonReader.forThread(stream, body.length(), 1024);
+        in.beginObject();
+        in.nextName();
+        in.finish();
+        assertEquals("GET / HTTP/1.1\r\n".length(), stream.available());
+    }
+
+    @Test
+    public void unknownFieldsAreSkipped() throws IOException {
+        String json = "{\"extra\": {\"a\": [1, {\"b\": \"c\\\"}\"}], \"d\": null}, \"number\": \"+15550001\","
+                + " \"tags\": [[], {}, \"x\"], \"message\": \"Hi\", \"flag\": false}";
+        ApiRequest request = ApiServer.readBody(new ByteArrayInputStream(json.getBytes(StandardCharsets.UTF_8)),
+                json.length());
+        assertEquals("+15550001", request.number);
+        assertEquals("Hi", request.message);
+    }
+
+    @Test
+    public void malformedBodiesAreRejected() throws IOException {
+        assertEquals("Unterminated string", malformed("{\"number\": \"+1555"));
+        assertEquals("Expected ',' or '}'", malformed("{\"number\": \"+1\" \"message\": \"Hi\"}"));
+        assertEquals("Expected ':'", malformed("{\"number\" \"+1\"}"));
+        assertEquals("Invalid literal", malformed("{\"async\": tru}"));
+        assertEquals("Invalid escape", malformed("{\"message\": \"\\q\"}"));
+        assertEquals("Unexpected data after the document", malformed("{} {}"));
+        assertEquals("Expected a whole number but was 1.5", malformed("{\"sim\": 1.5}"));
+    }
+
+    @Test
+    public void nestingIsLimited() throws IOException {
+        StringBuilder deep = new StringBuilder("{\"extra\": ");
+        for (int i = 0; i < 40; i++) deep.append('[');
+        for (int i = 0; i < 40; i++) deep.append(']');
+        deep.append('}');
+        assertEquals("Nesting too deep", malformed(deep.toString()));
+
+        StringBuilder fits = new StringBuilder("{\"extra\": ");
+        for (int i = 0; i < 20; i++) fits.append('[');
+        for (int i = 0; i < 20; i++) fits.append(']');
+        fits.append(", \"number\": \"+15550001\"}");
+        String json = fits.toString();
+        assertEquals("+15550001", ApiServer.readBody(new ByteArrayInputStream(json.getBytes(StandardCharsets.UTF_8)),
+                json.length()).number);
+    }
+
+    @Test(expected = JsonReader.BodyTooLargeException.class)
+    public void declaredLengthOverTheLimitIsRefusedBeforeReading() throws IOException {
+        JsonReader.forThread(new ByteArrayInputStream(new byte[0]), 2048, 1024);
+    }
+}
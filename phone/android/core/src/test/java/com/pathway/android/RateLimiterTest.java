@@ -0,0 +1,34 @@
+package com.pathway.android;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class RateLimiterTest {
+    @Test
+    public void newSettingsKeepTheCountsAndTheBackoff() {
+        RateLimiter limiter = new RateLimiter(600, 10, 0, 3, true);
+        for (int i = 0; i < 3; i++) {
+            assertEquals(0, limiter.reserve());
+        }
+        assertTrue(limiter.reserve() > 0);
+        for (int i = 0; i < 10; i++) {
+            limiter.onResult(false, "generic_failure");
+        }
+        assertEquals(300, limiter.currentRatePerMinute(), 0.001);
+
+        // Same rate, the daily cap raised by one: one more today, and still backed off
+        RateLimiter next = limiter.reconfigure(600, 10, 0, 4, true);
+        assertEquals(3, next.sentToday());
+        assertEquals(300, next.currentRatePerMinute(), 0.001);
+        assertEquals(limiter.failureRate(), next.failureRate(), 0.001);
+        assertEquals(0, next.reserve());
+        assertTrue(next.reserve() > 0);
+
+        // A lower ceiling caps the adapted rate; turning adaptation off starts from the ceiling
+        assertEquals(120, next.reconfigure(120, 10, 0, 4, true).currentRatePerMinute(), 0.001);
+        RateLimiter fixed = next.reconfigure(600, 10, 0, 0, false);
+        assertEquals(600, fixed.currentRatePerMinute(), 0.001);
+        assertEquals(4, fixed.sentToday());
+    }
+}
@@ -0,0 +1,79 @@
+package com.pathway.android;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class SendTrackerTest {
+    private StatusStore statuses;
+    private SendTracker tracker;
+    private SimulatedTelephony radio;
+    private DispatchLane lane;
+
+    @Before
+    public void setUp() {
+        statuses = new StatusStore(100, 60_000);
+        tracker = new SendTracker(statuses, new Metrics(), message -> { });
+        tracker.start();
+        radio = new SimulatedTelephony(1, null);
+        radio.setSeed(1);
+        radio.start(tracker);
+        // One second per part, no base allowance
+        lane = new DispatchLane(0, 10, 1, 0, 1, (job, l) -> { }, job -> { });
+    }
+
+    @After
+    public void tearDown() {
+        radio.stop();
+        tracker.stop();
+    }
+
+    private SmsJob send(int parts, boolean deliveryReport) {
+        SmsJob job = new SmsJob("+15550001", "Hello", 0, deliveryReport);
+        job.markSending(0, parts);
+        statuses.record(job);
+        tracker.track(job, lane, parts);
+        radio.sendText(0, job.id, job.number, Arrays.asList(new String[parts]), deliveryReport);
+        return job;
+    }
+
+    @Test
+    public void finishesWhenEveryPartIsSent() throws InterruptedException {
+        SmsJob job = send(3, false);
+        assertTrue(job.await(5, TimeUnit.SECONDS));
+        assertEquals(SmsJob.STATUS_SENT, job.getStatus());
+    }
+
+    @Test
+    public void silentRadioTimesOut() throws InterruptedException {
+        radio.setTimeouts(1.0);
+        SmsJob job = send(1, false);
+        assertTrue(job.await(5, TimeUnit.SECONDS));
+        assertEquals(SmsJob.STATUS_FAILED, job.getStatus());
+        assertEquals("timeout", job.getReason());
+    }
+
+    @Test
+    public void failedPartFailsTheJob() throws InterruptedException {
+        radio.setFailures(1.0, "radio_off");
+        SmsJob job = send(2, false);
+        assertTrue(job.await(5, TimeUnit.SECONDS));
+        assertEquals("radio_off", job.getReason());
+    }
+
+    @Test
+    public void deliveryReportsReachTheStatusStore() throws InterruptedException {
+        SmsJob job = send(2, true);
+        assertTrue(job.await(5, TimeUnit.SECONDS));
+        long deadline = System.currentTimeMillis() + 5000;
+        while (System.currentTimeMillis() < deadline && !statuses.get(job.id).contains(StatusStore.DELIVERY_DELIVERED)) {
+            Thread.sleep(5);
+        }
+        assertTrue(statuses.get(job.id), statuses.get(job.id).contains(StatusStore.DELIVERY_DELIVERED));
+    }
+}
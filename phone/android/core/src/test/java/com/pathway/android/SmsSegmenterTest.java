@@ -0,0 +1,162 @@
+package com.pathway.android;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+
+public class SmsSegmenterTest {
+
+    private static String repeat(String s, int times) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < times; i++) sb.append(s);
+        return sb.toString();
+    }
+
+    @Test
+    public void basicAlphabetFitsOnePartUpTo160() {
+        SmsSegmenter.Estimate e = SmsSegmenter.DEFAULT.estimate(repeat("a", 160));
+        assertEquals(SmsSegmenter.GSM_7, e.encoding);
+        assertEquals(1, e.parts);
+        assertEquals(160, e.perPart);
+        assertEquals(0, e.remaining);
+
+        e = SmsSegmenter.DEFAULT.estimate(repeat("a", 161));
+        assertEquals(2, e.parts);
+        assertEquals(153, e.perPart);
+        assertEquals(306 - 161, e.remaining);
+    }
+
+    @Test
+    public void extensionCharactersCostTwoSeptets() {
+        SmsSegmenter.Estimate e = SmsSegmenter.DEFAULT.estimate("{}[]~^|\\€\f");
+        assertEquals(SmsSegmenter.GSM_7, e.encoding);
+        assertEquals(20, e.length);
+        assertEquals(1, SmsSegmenter.DEFAULT.estimate(repeat("€", 80)).parts);
+        assertEquals(2, SmsSegmenter.DEFAULT.estimate(repeat("€", 81)).parts);
+    }
+
+    @Test
+    public void characterOutsideAlphabetForcesUcs2() {
+        SmsSegmenter.Estimate e = SmsSegmenter.DEFAULT.estimate("Hello আ");
+        assertEquals(SmsSegmenter.UCS_2, e.encoding);
+        assertEquals(7, e.length);
+        assertEquals(70, e.perPart);
+        assertEquals(1, SmsSegmenter.DEFAULT.estimate(repeat("আ", 70)).parts);
+        SmsSegmenter.Estimate multi = SmsSegmenter.DEFAULT.estimate(repeat("আ", 71));
+        assertEquals(2, multi.parts);
+        assertEquals(67, multi.perPart);
+        assertEquals(Collections.singletonList("আ"), SmsSegmenter.DEFAULT.unencodable("abআআ", 10));
+    }
+
+    @Test
+    public void splitNeverSeparatesAnEscapeSequence() {
+        // 152 basic septets leave one septet, too little for the euro sign
+        String text = repeat("a", 152) + repeat("€", 10);
+        SmsSegmenter.Estimate e = SmsSegmenter.DEFAULT.estimate(text);
+        assertEquals(2, e.parts);
+        ArrayList<String> parts = SmsSegmenter.DEFAULT.split(text);
+        assertEquals(2, parts.size());
+        assertEquals(repeat("a", 152), parts.get(0));
+        assertEquals(text, parts.get(0) + parts.get(1));
+
+        // The arithmetic fits 306 septets in two parts; the boundary needs a third
+        String tight = repeat("a", 152) + repeat("€", 77);
+        assertEquals(306, SmsSegmenter.DEFAULT.estimate(tight).length);
+        assertEquals(2, SmsSegmenter.DEFAULT.estimate(SmsSegmenter.DEFAULT.measure(tight)).parts);
+        assertEquals(3, SmsSegmenter.DEFAULT.estimate(tight).parts);
+        assertEquals(3, SmsSegmenter.DEFAULT.split(tight).size());
+    }
+
+    @Test
+    public void splitNeverSeparatesASurrogatePair() {
+        String emoji = "😀";
+        String text = repeat("x", 66) + repeat(emoji, 3);
+        List<String> parts = SmsSegmenter.DEFAULT.split(text);
+        assertEquals(2, parts.size());
+        assertEquals(66, parts.get(0).length());
+        assertEquals(repeat(emoji, 3), parts.get(1));
+        assertEquals(Collections.singletonList(emoji), SmsSegmenter.DEFAULT.unencodable(text, 10));
+    }
+
+    @Test
+    public void partsStayWithinCapacity() {
+        String text = repeat("Hello [world] € ", 50);
+        List<String> parts = SmsSegmenter.DEFAULT.split(text);
+        assertEquals(SmsSegmenter.DEFAULT.estimate(text).parts, parts.size());
+        StringBuilder joined = new StringBuilder();
+        for (String part : parts) {
+            SmsSegmenter.Estimate e = SmsSegmenter.DEFAULT.estimate(part);
+            assertTrue(e.length <= 153);
+            joined.append(part);
+        }
+        assertEquals(text, joined.toString());
+    }
+
+    @Test
+    public void measuresAddUp() {
+        SmsSegmenter s = SmsSegmenter.DEFAULT;
+        SmsSegmenter.Measure m = s.measure("Hi {").plus(s.measure("there"));
+        assertEquals(s.estimate("Hi {there").length, s.estimate(m).length);
+        SmsSegmenter.Measure u = s.measure("Hi ").plus(s.measure("আ"));
+        assertEquals(SmsSegmenter.UCS_2, s.estimate(u).encoding);
+        assertEquals(4, s.estimate(u).length);
+    }
+
+    @Test
+    public void nationalTablesKeepIndicTextInGsm7() {
+        String bengali = repeat("আমি", 30);
+        assertEquals(SmsSegmenter.UCS_2, SmsSegmenter.DEFAULT.estimate(bengali).encoding);
+        assertEquals(2, SmsSegmenter.DEFAULT.estimate(bengali).parts);
+
+        SmsSegmenter segmenter = SmsSegmenter.forLanguages(SmsSegmenter.language("bengali"));
+        SmsSegmenter.Estimate e = segmenter.estimate(bengali);
+        assertEquals(SmsSegmenter.GSM_7, e.encoding);
+        assertEquals(90, e.length);
+        assertEquals(1, e.parts);
+        assertEquals(SmsSegmenter.language("bengali"), e.lockingShift);
+        assertEquals(0, e.singleShift);
+        // Header with the locking shift element: 140 - 5 octets
+        assertEquals(155, e.perPart);
+    }
+
+    @Test
+    public void nationalHeaderReducesCapacity() {
+        // Ş is in the Turkish locking table, not the default one
+        SmsSegmenter turkish = SmsSegmenter.forLanguages(SmsSegmenter.language("turkish"));
+        SmsSegmenter.Estimate e = turkish.estimate(repeat("Ş", 200));
+        assertEquals(SmsSegmenter.GSM_7, e.encoding);
+        assertEquals(2, e.parts);
+        assertEquals(SmsSegmenter.language("turkish"), e.lockingShift);
+        assertEquals(0, e.singleShift);
+        // Concatenation plus one shift element: 140 - 9 octets
+        assertEquals(149, e.perPart);
+
+        // Plain text stays on the default tables, which need no header
+        assertEquals(160, turkish.estimate("plain").perPart);
+        assertEquals(0, turkish.estimate("plain").lockingShift);
+    }
+
+    @Test
+    public void spanishOnlyAddsSingleShift() {
+        SmsSegmenter spanish = SmsSegmenter.forLanguages(SmsSegmenter.language("spanish"));
+        // á is in the Spanish single shift table only
+        SmsSegmenter.Estimate e = spanish.estimate("Gracias, está bien");
+        assertEquals(SmsSegmenter.GSM_7, e.encoding);
+        assertEquals(0, e.lockingShift);
+        assertEquals(SmsSegmenter.language("spanish"), e.singleShift);
+        assertEquals(155, e.perPart);
+        assertEquals(SmsSegmenter.UCS_2, SmsSegmenter.DEFAULT.estimate("está").encoding);
+    }
+
+    @Test
+    public void languageNames() {
+        assertEquals(0, SmsSegmenter.language("default"));
+        assertEquals(4, SmsSegmenter.language("Bengali"));
+        assertEquals(-1, SmsSegmenter.language("klingon"));
+        assertSame(SmsSegmenter.DEFAULT, SmsSegmenter.forLanguages(0));
+    }
+}
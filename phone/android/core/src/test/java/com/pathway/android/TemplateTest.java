@@ -0,0 +1,85 @@
+package com.pathway.android;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+public class TemplateTest {
+
+    private static Map<String, String> vars(String... pairs) {
+        Map<String, String> vars = new HashMap<>();
+        for (int i = 0; i < pairs.length; i += 2) vars.put(pairs[i], pairs[i + 1]);
+        return vars;
+    }
+
+    private static void assertSameEstimate(SmsSegmenter.Estimate expected, SmsSegmenter.Estimate actual) {
+        assertEquals(expected.encoding, actual.encoding);
+        assertEquals(expected.length, actual.length);
+        assertEquals(expected.parts, actual.parts);
+        assertEquals(expected.perPart, actual.perPart);
+        assertEquals(expected.remaining, actual.remaining);
+    }
+
+    @Test
+    public void expandsPlaceholdersAndMeasuresLikeTheWholeText() {
+        Template template = Template.compile("otp", "Hi {{name}}, your code is {{ code }}. Bye {{name}}");
+        assertEquals(Arrays.asList("name", "code"), template.variables());
+        assertSameEstimate(SmsSegmenter.DEFAULT.estimate("Hi , your code is . Bye "), template.fixedEstimate());
+
+        Template.Expansion expansion = template.expand(vars("name", "Ana", "code", "4821"));
+        assertEquals("Hi Ana, your code is 4821. Bye Ana", expansion.text);
+        assertSameEstimate(SmsSegmenter.DEFAULT.estimate(expansion.text), expansion.estimate);
+    }
+
+    @Test
+    public void valuesCanChangeTheEncodingAndThePartCount() {
+        Template template = Template.compile("t", "Order {{id}} ships today {{note}}");
+        // An extension-table character counts twice; a non-GSM one switches to UCS-2
+        Template.Expansion euro = template.expand(vars("id", "42", "note", "\u20AC5"));
+        assertEquals(SmsSegmenter.GSM_7, euro.estimate.encoding);
+        assertSameEstimate(SmsSegmenter.DEFAULT.estimate(euro.text), euro.estimate);
+        Template.Expansion emoji = template.expand(vars("id", "42", "note", "\uD83D\uDE9A"));
+        assertEquals(SmsSegmenter.UCS_2, emoji.estimate.encoding);
+        assertSameEstimate(SmsSegmenter.DEFAULT.estimate(emoji.text), emoji.estimate);
+
+        StringBuilder longNote = new StringBuilder();
+        for (int i = 0; i < 200; i++) longNote.append('x');
+        Template.Expansion multipart = template.expand(vars("id", "42", "note", longNote.toString()));
+        assertEquals(2, multipart.estimate.parts);
+        assertSameEstimate(SmsSegmenter.DEFAULT.estimate(multipart.text), multipart.estimate);
+    }
+
+    @Test
+    public void textWithoutPlaceholdersNeedsNoVars() {
+        Template template = Template.compile("plain", "No variables here");
+        assertTrue(template.variables().isEmpty());
+        assertEquals("No variables here", template.expand(null).text);
+    }
+
+    @Test
+    public void missingVariableAndBadPlaceholdersAreReported() {
+        Template template = Template.compile("otp", "Hi {{name}}, your code is {{code}}");
+        try {
+            template.expand(vars("name", "Ana"));
+            fail();
+        } catch (IllegalArgumentException e) {
+            assertEquals("Missing variable: code", e.getMessage());
+        }
+        try {
+            Template.compile("t", "Hi {{name");
+            fail();
+        } catch (IllegalArgumentException e) {
+            assertEquals("Unterminated placeholder at 3", e.getMessage());
+        }
+        try {
+            Template.compile("t", "Hi {{ }}");
+            fail();
+        } catch (IllegalArgumentException e) {
+            assertEquals("Empty placeholder at 3", e.getMessage());
+        }
+    }
+}
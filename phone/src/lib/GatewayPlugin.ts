@@ -1,5 +1,17 @@
 import { registerPlugin, type PluginListenerHandle, type PermissionState } from '@capacitor/core';
 
+export interface LogEntry {
+  time: number;
+  level: 'debug' | 'info' | 'warn' | 'error';
+  message: string;
+}
+
+export interface LogBatch {
+  entries: LogEntry[];
+  // Lines left out because more than a batch arrived at once
+  skipped: number;
+}
+
 export interface PermissionStatus {
   [pluginPermission: string]: PermissionState;
 }
@@ -12,8 +24,17 @@ export interface DeviceInfo {
   sdkVersion: number;
 }
 
+export interface RateLimitConfig {
+  perMinute: number;
+  burst?: number;
+  hourlyCap?: number;
+  dailyCap?: number;
+  adaptive?: boolean;
+}
+
 export interface GatewayPlugin {
-  startServer(options: { port: number; apiKey: string }): Promise<{ success: boolean; message: string }>;
+  // inboxWebhookUrl: received SMS are POSTed there in batches (inboxWebhookKey is sent as a Bearer token)
+  startServer(options: { port: number; apiKey: string; binaryPort?: number; dedupWindowSeconds?: number; inboxWebhookUrl?: string; inboxWebhookKey?: string }): Promise<{ success: boolean; message: string }>;
   stopServer(): Promise<{ success: boolean; message: string }>;
   getLocalIpAddress(): Promise<{ ip: string }>;
   sendSms(options: { number: string; message: string }): Promise<{ value: string }>;
@@ -24,6 +45,10 @@ export interface GatewayPlugin {
   setPreferredSim(options: { slot: number }): Promise<void>;
   getPreferredSim(): Promise<{ slot: number }>;
   
+  // Per-SIM pacing (perMinute: 0 removes the limit; caps of 0 mean no cap)
+  setRateLimit(options: RateLimitConfig & { subscriptionId?: number }): Promise<void>;
+  getRateLimit(options: { subscriptionId?: number }): Promise<Partial<RateLimitConfig>>;
+  
   // Persistence & Lifecycle
   setKeepScreenOn(options: { on: boolean }): Promise<void>;
   exitApp(): Promise<void>;
@@ -36,7 +61,8 @@ export interface GatewayPlugin {
   getDeviceInfo(): Promise<DeviceInfo>;
   
   // Events
-  addListener(eventName: 'log', listenerFunc: (data: { message: string }) => void): Promise<PluginListenerHandle> & PluginListenerHandle;
+  // New native log lines, batched a few times a second while the app is visible
+  addListener(eventName: 'logs', listenerFunc: (data: LogBatch) => void): Promise<PluginListenerHandle> & PluginListenerHandle;
   
   // Standard Capacitor Permissions
   checkPermissions(): Promise<PermissionStatus>;